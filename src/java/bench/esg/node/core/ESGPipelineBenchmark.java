@@ -0,0 +1,218 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+   JMH benchmarks for the queued event pipeline: an event goes in
+   through ESGQueue.enqueueEvent, is drained by the queue's
+   ESGBatchController and lands in the component's
+   handleESGQueuedEvent(s), which (as AbstractDataNodeComponent does
+   by default) passes it on to the next hop.
+
+   The pipeline is a chain of "stages" components wired together the
+   way the data node manager's connect() does it
+   (addESGQueueListener), the last of which fans out to "fanOut"
+   sinks.  stages=1, fanOut=1 is a single hop.  Every stage queue is
+   configured through ESGQueue.configure() from the same properties
+   the node reads, so "batchSize" and "execution" (pool | shared) are
+   the queue.batch.size and queue.execution values being compared.
+
+   throughput - events/time pushed through the whole pipeline (each
+                invocation is EVENTS events, waited for until every
+                sink has seen them)
+   roundTrip  - latency distribution of one event from enqueue to
+                the last sink
+
+   Run with: ant bench  (see build.xml for the knobs)
+**/
+
+package esg.node.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ESGPipelineBenchmark {
+
+    static final int EVENTS = 1000;
+
+    @Param({"1","3"})
+    public int stages;
+
+    @Param({"1","4"})
+    public int fanOut;
+
+    @Param({"1","16"})
+    public int batchSize;
+
+    @Param({"pool","shared"})
+    public String execution;
+
+    @Param({"2"})
+    public int threadsMin;
+
+    @Param({"20"})
+    public int threadsMax;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private List<AbstractDataNodeComponent> pipeline = null;
+    private ESGQueue head = null;
+    private Object payload = null;
+    private long expected = 0L;
+
+    //A stage just passes the event along (the default queued event
+    //handling of AbstractDataNodeComponent)
+    static class Stage extends AbstractDataNodeComponent {
+        Stage(String name) { super(name); }
+        public void init() { }
+    }
+
+    //End of the road, counts what made it through
+    static class Sink extends AbstractDataNodeComponent {
+        private final AtomicLong delivered;
+        Sink(String name, AtomicLong delivered) { super(name); this.delivered = delivered; }
+        public void init() { }
+        public boolean handleESGQueuedEvent(ESGEvent event) {
+            delivered.incrementAndGet();
+            return true;
+        }
+        public boolean handleESGQueuedEvents(List<ESGEvent> events) {
+            delivered.addAndGet(events.size());
+            return true;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Properties props = new Properties();
+        props.setProperty("queue.batch.size",""+batchSize);
+        props.setProperty("queue.execution",execution);
+        props.setProperty("queue.threads.min",""+threadsMin);
+        props.setProperty("queue.threads.max",""+threadsMax);
+
+        pipeline = new ArrayList<AbstractDataNodeComponent>();
+        AbstractDataNodeComponent previous = null;
+        for(int i=0; i < stages; i++) {
+            Stage stage = new Stage("STAGE"+i);
+            if(previous != null) previous.addESGQueueListener(stage);
+            pipeline.add(stage);
+            previous = stage;
+        }
+        for(int i=0; i < fanOut; i++) {
+            Sink sink = new Sink("SINK"+i,delivered);
+            previous.addESGQueueListener(sink);
+            pipeline.add(sink);
+        }
+        for(AbstractDataNodeComponent component : pipeline) {
+            component.getESGEventQueue().configure(props);
+        }
+        head = pipeline.get(0).getESGEventQueue();
+        payload = "benchmark payload";
+        expected = 0L;
+        delivered.set(0L);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        for(AbstractDataNodeComponent component : pipeline) {
+            component.removeAllESGQueueListeners();
+        }
+        pipeline = null;
+        head = null;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(EVENTS)
+    public long throughput() {
+        for(int i=0; i < EVENTS; i++) {
+            head.enqueueEvent(new ESGEvent(this,payload,"bench"));
+        }
+        return awaitDelivered((long)EVENTS*fanOut);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long roundTrip() {
+        head.enqueueEvent(new ESGEvent(this,payload,"bench"));
+        return awaitDelivered(fanOut);
+    }
+
+    //Spins until every sink has accounted for the events just sent,
+    //so an invocation covers the whole trip and nothing piles up in
+    //the queues between invocations.
+    private long awaitDelivered(long count) {
+        expected += count;
+        long seen;
+        while((seen = delivered.get()) < expected) {
+            Thread.yield();
+        }
+        return seen;
+    }
+
+}
@@ -0,0 +1,262 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   Compresses event payloads (registration XML for the most part) for
+   the trip over the wire.  Payloads are deflated, optionally against
+   a preset dictionary of the markup registration.xsd generates, which
+   is what gets the small (single node, delta) documents down as well
+   as the large ones.
+
+   Not every node can read these, so each event carries the sender's
+   capabilities (see ESGRemoteEvent) and a payload is only encoded for
+   a peer that has advertised it can decode it.  Nodes that predate
+   this never advertise anything and so are always sent plain text.
+
+   A payload may also have a compact (binary) form, which some
+   component that knows how to make it back into text registers (see
+   CompactForm).  Events carrying it are sent that way to peers that
+   advertise COMPACT and turned back into text for those that don't.
+
+**/
+package esg.common.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+public final class ESGPayloadCodec {
+
+    private static final Log log = LogFactory.getLog(ESGPayloadCodec.class);
+
+    //Capability (and encoding) bits
+    public static final int DEFLATE      = 1;
+    public static final int DEFLATE_DICT = 2;
+    public static final int COMPACT      = 4;
+    public static final int SYNC         = 8; //(not a payload form) takes part in REGISTER_SYNC rounds
+    public static final int DELTA        = 16; //(not a payload form) reads REGISTER_DELTA events
+    private static final int COMPRESSION = DEFLATE | DEFLATE_DICT;
+
+    public static final int DEFAULT_MIN_SIZE = 512;
+    public static final int DEFAULT_MAX_SIZE = 32*1024*1024;
+
+    //Deflate looks back at most 32K and prefers the tail of the
+    //dictionary, so the most common strings go last.  NOTE: This is
+    //part of the wire format, changing it means a new capability bit!
+    private static final byte[] DICTIONARY = toBytes(
+        "Certificate: Data: Version: 3 (0x2) Serial Number: Signature Algorithm: sha1WithRSAEncryption "+
+        "Issuer: O=Grid, OU=GlobusTest, OU=simpleCA-, CN=Globus Simple CA Validity Not Before: Not After : "+
+        "Subject: Subject Public Key Info: Public Key Algorithm: rsaEncryption RSA Public Key: (1024 bit) "+
+        "Modulus (1024 bit): Exponent: 65537 (0x10001) X509v3 extensions: -----BEGIN CERTIFICATE----- "+
+        "-----END CERTIFICATE-----</Cert></PEMCert><PEMCert><Cert>"+
+        "<RSSFeeds><RSSFeed title=\"\" url=\"\" date=\"\"/></RSSFeeds>"+
+        "<Metrics><DownloadedData count=\"\" size=\"\" users=\"\"/><RegisteredUsers count=\"\"/></Metrics>"+
+        "<Group name=\"\" description=\"\"/><Configuration serviceType=\"Replication\" port=\"2812\"/>"+
+        "<Configuration serviceType=\"Download\" port=\"2811\"/><Configuration serviceType=\"\" port=\"\"/>"+
+        "<CA hash=\"\" endpoint=\"\" dn=\"\"/><GeoLocation lat=\"\" lon=\"\" city=\"\"/>"+
+        "<NodeManager endpoint=\"\"/><FrontEnd endpoint=\"\"/><OAIRepository endpoint=\"\"/>"+
+        "<MetricsService endpoint=\"\"/><RegistrationService endpoint=\"\"/>"+
+        "<MyProxyService endpoint=\"\"/><LASService endpoint=\"\"/><GridFTPService endpoint=\"gsiftp://\">"+
+        "</GridFTPService><ThreddsService endpoint=\"\"/><IndexService port=\"\" endpoint=\"\"/>"+
+        "<OpenIDProvider endpoint=\"\"/><RelyingPartyService endpoint=\"\"/>"+
+        "<PublishingService endpoint=\"\"/><AuthorizationService endpoint=\"\"/>"+
+        "<AttributeService endpoint=\"\"></AttributeService>"+
+        "/esgf-security/saml/soap/secure/attributeService.htm "+
+        "/esgf-security/saml/soap/secure/authorizationService.htm "+
+        "/esg-search/remote/secure/client-cert/hessian/publishingService /esg-search/search "+
+        "/esgf-idp/idp/openidServer.htm /esgf-node-manager/node /esg-orp/html.htm /thredds /las "+
+        "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"+
+        "<Registration xmlns=\"http://www.esgf.org/registry\" timeStamp=\"\" version=\"\">"+
+        "</Registration></Node>"+
+        "<Node organization=\"\" namespace=\"\" nodePeerGroup=\"esgf-test\" supportEmail=\"\" "+
+        "hostname=\"\" ip=\"\" dn=\"\" shortName=\"\" longName=\"\" timeStamp=\"\" version=\"\" "+
+        "release=\"\" nodeType=\"\" adminPeer=\"\" defaultPeer=\"\">"+
+        "\" endpoint=\"https://\" endpoint=\"http://\"/>\n        <");
+
+    private static volatile int capabilities = DEFLATE | DEFLATE_DICT;
+    private static volatile int minSize = DEFAULT_MIN_SIZE;
+    private static volatile int maxSize = DEFAULT_MAX_SIZE;
+    private static volatile CompactForm compactForm = null;
+
+    /**
+       Turns a payload's compact form back into its text form (for
+       peers that can't read the former)
+    */
+    public interface CompactForm {
+        public String toText(byte[] compact) throws IOException;
+    }
+
+    private ESGPayloadCodec() {}
+
+    //What this node is able (and willing) to decode
+    public static int getCapabilities() { return capabilities; }
+    public static void setCapabilities(int capabilities) { ESGPayloadCodec.capabilities = capabilities; }
+    public static void setCompression(boolean enabled) { setCapability(COMPRESSION,enabled); }
+
+    public static void setCapability(int capability, boolean enabled) {
+        capabilities = enabled ? (capabilities | capability) : (capabilities & ~capability);
+    }
+
+    //Registering a compact form is what lets us take (advertise) it
+    public static void setCompactForm(CompactForm form) {
+        compactForm = form;
+        capabilities = (form != null) ? (capabilities | COMPACT) : (capabilities & ~COMPACT);
+    }
+
+    //The text form of a compact payload, null if there is no (working) way back
+    public static String toText(byte[] compact) {
+        CompactForm form = compactForm;
+        if(form == null) {
+            log.warn("Have a compact payload but no way to turn it into text");
+            return null;
+        }
+        try{
+            return form.toText(compact);
+        }catch(IOException e) {
+            log.warn("Could not turn compact payload into text: "+e.getMessage());
+            return null;
+        }
+    }
+
+    //Payloads smaller than this are not worth the trouble
+    public static int getMinSize() { return minSize; }
+    public static void setMinSize(int minSize) { ESGPayloadCodec.minSize = minSize; }
+
+    //Payloads that inflate to more than this are refused (rather
+    //than letting a peer run us out of memory)
+    public static int getMaxSize() { return maxSize; }
+    public static void setMaxSize(int maxSize) { ESGPayloadCodec.maxSize = maxSize; }
+
+    /**
+       The best encoding both this node and a peer with the given
+       capabilities understand (0 meaning plain)
+    */
+    public static int encodingFor(int peerCapabilities) {
+        int common = capabilities & peerCapabilities;
+        if((common & DEFLATE_DICT) != 0) return DEFLATE_DICT;
+        if((common & DEFLATE) != 0) return DEFLATE;
+        return 0;
+    }
+
+    public static byte[] compress(String text, int encoding) { return compress(toBytes(text),encoding); }
+
+    public static byte[] compress(byte[] in, int encoding) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try{
+            if(encoding == DEFLATE_DICT) deflater.setDictionary(DICTIONARY);
+            deflater.setInput(in);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64,in.length/4));
+            byte[] buf = new byte[4096];
+            while(!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf,0,n);
+            }
+            if(log.isTraceEnabled()) log.trace("Compressed payload "+in.length+" -> "+out.size()+" bytes (encoding "+encoding+")");
+            return out.toByteArray();
+        }finally{
+            deflater.end();
+        }
+    }
+
+    public static String decompress(byte[] data, int encoding) throws IOException {
+        return new String(inflate(data,encoding),"UTF-8");
+    }
+
+    public static byte[] inflate(byte[] data, int encoding) throws IOException { return inflate(data,encoding,maxSize); }
+
+    static byte[] inflate(byte[] data, int encoding, int limit) throws IOException {
+        Inflater inflater = new Inflater();
+        try{
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int)Math.min((long)data.length*6,limit));
+            byte[] buf = new byte[4096];
+            while(!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if(n == 0) {
+                    if(inflater.needsDictionary()) {
+                        if(encoding != DEFLATE_DICT) throw new IOException("Payload needs a dictionary it was not encoded with");
+                        inflater.setDictionary(DICTIONARY);
+                    }else if(inflater.needsInput()) {
+                        throw new IOException("Truncated payload ("+data.length+" bytes)");
+                    }
+                }
+                if(out.size() > limit - n) throw new IOException("Payload inflates to more than "+limit+" bytes ("+data.length+" bytes in)");
+                out.write(buf,0,n);
+            }
+            return out.toByteArray();
+        }catch(DataFormatException e) {
+            throw new IOException("Corrupt payload: "+e.getMessage());
+        }finally{
+            inflater.end();
+        }
+    }
+
+    static byte[] toBytes(String s) {
+        try{
+            return s.getBytes("UTF-8");
+        }catch(java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -66,6 +66,10 @@ package esg.common.service;
 
 public class ESGRemoteEvent implements java.io.Serializable {
 
+    //pinned to the value computed before traceId was added so events
+    //journaled/spilled by earlier builds still read back
+    private static final long serialVersionUID = -2745835965161165767L;
+
     //Okay, I know ideally these should be ENUMS but I am not sure on
     //how enums serialize with hessian, so I am going to play it safe
     //before I start experimenting.  Just something to get this setup
@@ -79,6 +83,9 @@ public class ESGRemoteEvent implements java.io.Serializable {
     public static final int METRICS     = 32;
     public static final int APPLICATION = 64;
     public static final int PRUNE       = 128;
+    public static final int REGISTER_DELTA = 256; //only what changed in a registration (see RegistryDelta)
+    public static final int REGISTER_PULL  = 512; //asks for the full registration (REGISTER) back
+    public static final int REGISTER_SYNC  = 1024; //a step of an anti-entropy round (see RegistrySync)
 
     public static final int DEFAULT_TTL = 6;
 
@@ -89,6 +96,11 @@ public class ESGRemoteEvent implements java.io.Serializable {
     private String checksum = null;
     private long   seqNum = 0L;
     private int    ttl = 6; //a good spread in a network about the size of 2^6th-ish nodes in our federation, right?
+    private String traceId = null; //ties this event to the trace (ESGEventTrace) of the work that produced it
+    private int    capabilities = 0; //what the sender can decode (older senders: 0), set on the way out (see BasicPeer)
+    private int    encoding = 0; //how the payload is encoded, 0 is as is (see ESGPayloadCodec)
+    private transient byte[] compactPayload = null; //the (text) payload's compact form, if it has one
+    private transient volatile String textPayload = null; //the (compact) payload's text form, once made
     
     public ESGRemoteEvent(String source, int messageType, Object payload, String checksum, Long seqNum, int ttl) {
         this.origin = source;
@@ -100,7 +112,7 @@ public class ESGRemoteEvent implements java.io.Serializable {
         this.ttl = ttl;
     }
 
-    //Copy Constructor... (does not change value of origin or ttl - see copy method)
+    //Copy Constructor... (does not change value of origin, ttl or traceId - see copy method)
     public ESGRemoteEvent(ESGRemoteEvent otherEvent) {
         this.copy(otherEvent);
     }
@@ -123,6 +135,14 @@ public class ESGRemoteEvent implements java.io.Serializable {
     public String getPayloadChecksum() { return checksum; }
     public long   getSeqNum() { return seqNum; }
     public int    getTTL() { return ttl; }
+    public String getTraceId() { return traceId; }
+    public void   setTraceId(String traceId) { this.traceId = traceId; }
+    public int    getCapabilities() { return capabilities; }
+    public void   setCapabilities(int capabilities) { this.capabilities = capabilities; }
+    public int    getEncoding() { return encoding; }
+    public boolean isEncoded() { return (encoding & ~ESGPayloadCodec.COMPACT) != 0; } //compressed
+    public boolean isCompact() { return (encoding & ESGPayloadCodec.COMPACT) != 0; }
+    public ESGRemoteEvent setCompactPayload(byte[] compactPayload) { this.compactPayload = compactPayload; return this; }
 
     //call me before sending on to next hop
     public void decTTL() { ttl--; }
@@ -140,10 +160,86 @@ public class ESGRemoteEvent implements java.io.Serializable {
         this.payload = otherEvent.payload;
         this.checksum = otherEvent.checksum;
         this.seqNum = otherEvent.seqNum;
+        this.capabilities = otherEvent.capabilities;
+        this.encoding = otherEvent.encoding;
+        this.compactPayload = otherEvent.compactPayload;
+        this.textPayload = otherEvent.textPayload;
+        return this;
+    }
+
+    //For an event made with another's payload: the payload is in
+    //whatever form it is in the other
+    public ESGRemoteEvent keepPayloadFormOf(ESGRemoteEvent otherEvent) {
+        if(this.payload == otherEvent.payload) {
+            this.encoding = otherEvent.encoding;
+            this.compactPayload = otherEvent.compactPayload;
+            this.textPayload = otherEvent.textPayload;
+        }
         return this;
     }
 
-    public String toString() { return "RE - orig:["+origin+"] src:["+source+"] msg:["+messageType+"] seq:["+seqNum+"] ttl:["+ttl+"] pld:["+(null != payload)+"] chk["+checksum+"]"; }
+    /**
+       This event as it should go out to a peer that can decode the
+       given capabilities: a copy with its payload in compact form
+       and/or compressed when that is worth it and understood (and
+       back in text form if the peer can't take the compact one),
+       otherwise this very event.  The checksum stays that of the
+       text payload.
+    */
+    public ESGRemoteEvent encodeFor(int peerCapabilities) {
+        if(isEncoded()) return this;
+        Object out = payload;
+        int form = encoding;
+        if(isCompact() && (peerCapabilities & ESGPayloadCodec.COMPACT) == 0) {
+            if(textPayload == null) textPayload = ESGPayloadCodec.toText((byte[])payload);
+            if(textPayload == null) return this;
+            out = textPayload;
+            form = 0;
+        }else if(!isCompact() && (compactPayload != null) &&
+                 (ESGPayloadCodec.getCapabilities() & peerCapabilities & ESGPayloadCodec.COMPACT) != 0) {
+            out = compactPayload;
+            form = ESGPayloadCodec.COMPACT;
+        }
+
+        int enc = 0;
+        int size = (out instanceof String) ? ((String)out).length() : (out instanceof byte[]) ? ((byte[])out).length : 0;
+        if(size >= ESGPayloadCodec.getMinSize()) enc = ESGPayloadCodec.encodingFor(peerCapabilities);
+        if(out == payload && enc == 0) return this;
+
+        ESGRemoteEvent encoded = new ESGRemoteEvent(this);
+        encoded.origin = origin;
+        encoded.ttl = ttl;
+        encoded.traceId = traceId;
+        encoded.compactPayload = null;
+        encoded.textPayload = null;
+        if(enc != 0) {
+            encoded.payload = (out instanceof String) ? ESGPayloadCodec.compress((String)out,enc) : ESGPayloadCodec.compress((byte[])out,enc);
+        }else {
+            encoded.payload = out;
+        }
+        encoded.encoding = form | enc;
+        return encoded;
+    }
+
+    /**
+       Undoes the compression encodeFor may have applied (no-op on
+       uncompressed events), a compact payload stays compact.  Returns
+       false if it could not be decoded.
+    */
+    public boolean decode() {
+        if(!isEncoded()) return true;
+        if(!(payload instanceof byte[])) return false;
+        try{
+            byte[] raw = ESGPayloadCodec.inflate((byte[])payload,encoding & ~ESGPayloadCodec.COMPACT);
+            payload = isCompact() ? (Object)raw : new String(raw,"UTF-8");
+            encoding &= ESGPayloadCodec.COMPACT;
+            return true;
+        }catch(java.io.IOException e) {
+            return false;
+        }
+    }
+
+    public String toString() { return "RE - orig:["+origin+"] src:["+source+"] msg:["+messageType+"] seq:["+seqNum+"] ttl:["+ttl+"] pld:["+(null != payload)+(encoding != 0 ? "/enc"+encoding : "")+"] chk["+checksum+"]"; }
 
 }
 
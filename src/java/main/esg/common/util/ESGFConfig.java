@@ -0,0 +1,352 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   The node's configuration (esgf.properties), read once and shared.
+   What callers get is an immutable Snapshot of the file's values, so
+   asking for configuration no longer means re-reading and re-parsing
+   the file, and everyone in the node sees the same values.
+
+   Snapshots keep (lazily built) views of the keys under a prefix and
+   of the keys matching a regex, the regex compiled once, so repeated
+   lookups of the same view are a map get.
+
+   When watching (startWatching()) a WatchService on the config
+   directory picks up changes to the file, which is then re-read and
+   the new snapshot swapped in atomically.  ESGFConfigListeners are
+   told which keys changed so they can pick up the new values without
+   a restart.  Code that held on to an older snapshot (or a
+   getProperties() copy) keeps seeing the values of that snapshot.
+
+   ESGFConfig config = ESGFConfig.getInstance();
+   String host = config.get("esgf.host");
+   Map<String,String> dbValues = config.current().withPrefix("db.");
+
+**/
+package esg.common.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+public class ESGFConfig {
+
+    private static final Log log = LogFactory.getLog(ESGFConfig.class);
+
+    private static final long SETTLE_MILLIS = 250L; //let writers finish before re-reading
+    private static final ConcurrentHashMap<String,Pattern> patterns = new ConcurrentHashMap<String,Pattern>();
+    private static ESGFConfig instance = null;
+
+    private final File file;
+    private final AtomicReference<Snapshot> current = new AtomicReference<Snapshot>();
+    private final AtomicLong versions = new AtomicLong(0L);
+    private final CopyOnWriteArrayList<ESGFConfigListener> listeners = new CopyOnWriteArrayList<ESGFConfigListener>();
+    private Thread watcher = null;
+    private WatchService watchService = null;
+
+    public static synchronized ESGFConfig getInstance() {
+        if(instance == null) instance = new ESGFConfig(ESGFProperties.propertyFile());
+        return instance;
+    }
+
+    public ESGFConfig(File file) {
+        this.file = file;
+        Snapshot first = read();
+        current.set((first == null) ? new Snapshot(new TreeMap<String,String>(),0L,false) : first);
+    }
+
+    public File getFile() { return file; }
+    public Snapshot current() { return current.get(); }
+    public String get(String key) { return current().get(key); }
+    public String get(String key, String defaultValue) { return current().get(key,defaultValue); }
+
+    /**
+       A private (modifiable) copy of the current values, for code
+       that wants a Properties object.  Throws FileNotFoundException,
+       as reading the file would, when there are no values to be had.
+    */
+    public ESGFProperties getProperties() throws IOException {
+        Snapshot snapshot = current();
+        if(!snapshot.isLoaded()) {
+            reload();
+            if(!(snapshot = current()).isLoaded()) throw new FileNotFoundException("Could not load "+file.getAbsolutePath());
+        }
+        return new ESGFProperties(snapshot.toProperties());
+    }
+
+    public void addListener(ESGFConfigListener listener) { if(listener != null) listeners.addIfAbsent(listener); }
+    public void removeListener(ESGFConfigListener listener) { listeners.remove(listener); }
+
+    //@return null if the file could not be read
+    private Snapshot read() {
+        Properties values = new Properties();
+        FileInputStream in = null;
+        try{
+            in = new FileInputStream(file);
+            values.load(in);
+        }catch(IOException e) {
+            log.error("Could not read configuration "+file.getAbsolutePath()+": "+e.getMessage());
+            return null;
+        }finally{
+            try{ if(in != null) in.close(); }catch(IOException e) { log.error(e); }
+        }
+        TreeMap<String,String> sorted = new TreeMap<String,String>();
+        for(String key : values.stringPropertyNames()) { sorted.put(key,values.getProperty(key)); }
+        return new Snapshot(sorted,versions.incrementAndGet(),true);
+    }
+
+    /**
+       Re-reads the file and, if any values differ, swaps in the new
+       snapshot and tells the listeners.
+
+       @return the keys that changed (empty if none, or if the file
+       could not be read - the current snapshot stays)
+    */
+    public synchronized Set<String> reload() {
+        Snapshot next = read();
+        if(next == null) return Collections.<String>emptySet();
+        Snapshot previous = current.get();
+        Set<String> changed = previous.changedKeys(next);
+        if(changed.isEmpty() && previous.isLoaded()) return changed;
+        current.set(next);
+        log.info("Configuration reloaded (version "+next.getVersion()+"), changed: "+changed);
+        for(ESGFConfigListener listener : listeners) {
+            try{
+                listener.configChanged(previous,next,changed);
+            }catch(Throwable t) {
+                log.error("Configuration listener "+listener+" failed",t);
+            }
+        }
+        return changed;
+    }
+
+    //-------------------------------------------
+    //Watching the file
+    //-------------------------------------------
+
+    /**
+       Starts a (daemon) thread reloading the configuration whenever
+       the file is written or replaced.
+    */
+    public synchronized boolean startWatching() {
+        if(watcher != null) return true;
+        final Path dir = file.getAbsoluteFile().getParentFile().toPath();
+        try{
+            watchService = FileSystems.getDefault().newWatchService();
+            dir.register(watchService,StandardWatchEventKinds.ENTRY_CREATE,StandardWatchEventKinds.ENTRY_MODIFY);
+        }catch(IOException e) {
+            log.warn("Could not watch "+dir+" for configuration changes: "+e.getMessage());
+            return false;
+        }
+        final WatchService service = watchService;
+        watcher = new Thread("ESGFConfig-Watcher") {
+                public void run() { watch(service); }
+            };
+        watcher.setDaemon(true);
+        watcher.start();
+        log.info("Watching "+file.getAbsolutePath()+" for changes");
+        return true;
+    }
+
+    public synchronized void stopWatching() {
+        if(watcher == null) return;
+        watcher.interrupt();
+        try{ watchService.close(); }catch(IOException e) { log.error(e); }
+        watcher = null;
+        watchService = null;
+    }
+
+    public synchronized boolean isWatching() { return watcher != null; }
+
+    private void watch(WatchService service) {
+        try{
+            while(!Thread.currentThread().isInterrupted()) {
+                WatchKey key = service.take();
+                boolean ours = false;
+                for(WatchEvent<?> event : key.pollEvents()) {
+                    Object name = event.context();
+                    if(event.kind() == StandardWatchEventKinds.OVERFLOW ||
+                       (name instanceof Path && ((Path)name).toString().equals(file.getName()))) ours = true;
+                }
+                key.reset();
+                if(!ours) continue;
+                //editors write in bursts; wait until it settles then take it all in one go
+                Thread.sleep(SETTLE_MILLIS);
+                WatchKey more = null;
+                while((more = service.poll()) != null) { more.pollEvents(); more.reset(); }
+                reload();
+            }
+        }catch(InterruptedException e) {
+            //stopping
+        }catch(java.nio.file.ClosedWatchServiceException e) {
+            //stopping
+        }
+    }
+
+    //-------------------------------------------
+    //Snapshot
+    //-------------------------------------------
+    public static final class Snapshot {
+        private final SortedMap<String,String> values;
+        private final long version;
+        private final long loadedAt;
+        private final boolean loaded;
+        private final ConcurrentHashMap<String,Map<String,String>> prefixViews = new ConcurrentHashMap<String,Map<String,String>>();
+        private final ConcurrentHashMap<String,Properties> regexViews = new ConcurrentHashMap<String,Properties>();
+
+        Snapshot(SortedMap<String,String> values, long version, boolean loaded) {
+            this.values = Collections.unmodifiableSortedMap(values);
+            this.version = version;
+            this.loadedAt = System.currentTimeMillis();
+            this.loaded = loaded;
+        }
+
+        public long getVersion() { return version; }
+        public long getLoadedAt() { return loadedAt; }
+        public boolean isLoaded() { return loaded; }
+        public int size() { return values.size(); }
+        public Map<String,String> asMap() { return values; }
+
+        public String get(String key) { return values.get(key); }
+        public String get(String key, String defaultValue) {
+            String value = values.get(key);
+            return (value == null) ? defaultValue : value;
+        }
+
+        //All the keys starting with prefix (a view, keys in order)
+        public Map<String,String> withPrefix(String prefix) {
+            Map<String,String> view = prefixViews.get(prefix);
+            if(view == null) {
+                view = Collections.unmodifiableSortedMap(values.subMap(prefix,prefix+Character.MAX_VALUE));
+                Map<String,String> raced = prefixViews.putIfAbsent(prefix,view);
+                if(raced != null) view = raced;
+            }
+            return view;
+        }
+
+        /**
+           The entries whose whole key matches the regex.  The same
+           Properties object is handed to everyone asking for the same
+           regex of this snapshot, so callers must not modify it.  A
+           bad regex gets an empty set (and an error logged).
+        */
+        public Properties matching(String regex) {
+            Properties view = regexViews.get(regex);
+            if(view != null) return view;
+            view = new Properties();
+            try{
+                Pattern pattern = patterns.get(regex);
+                if(pattern == null) {
+                    pattern = Pattern.compile(regex);
+                    patterns.putIfAbsent(regex,pattern);
+                }
+                for(Map.Entry<String,String> entry : values.entrySet()) {
+                    if(pattern.matcher(entry.getKey()).matches()) view.setProperty(entry.getKey(),entry.getValue());
+                }
+            }catch(PatternSyntaxException e) {
+                log.error(e.getMessage(),e);
+            }
+            Properties raced = regexViews.putIfAbsent(regex,view);
+            return (raced == null) ? view : raced;
+        }
+
+        public Properties toProperties() {
+            Properties props = new Properties();
+            for(Map.Entry<String,String> entry : values.entrySet()) { props.setProperty(entry.getKey(),entry.getValue()); }
+            return props;
+        }
+
+        //Keys added, removed or with a different value in other
+        public Set<String> changedKeys(Snapshot other) {
+            Set<String> changed = new HashSet<String>();
+            for(Map.Entry<String,String> entry : values.entrySet()) {
+                if(!entry.getValue().equals(other.values.get(entry.getKey()))) changed.add(entry.getKey());
+            }
+            for(String key : other.values.keySet()) {
+                if(!values.containsKey(key)) changed.add(key);
+            }
+            return changed;
+        }
+
+        public String toString() { return "ESGFConfig.Snapshot[v"+version+", "+values.size()+" entries]"; }
+    }
+
+}
@@ -75,20 +75,42 @@ public class ESGFProperties extends Properties {
         load();
     }
 
+    /**
+     * A copy of values that have already been loaded (ex: from the
+     * shared ESGFConfig snapshot), without going to the file again.
+     */
+    public ESGFProperties(Properties values) {
+        super();
+        if(values != null) this.putAll(values);
+    }
+
     private String securityAdminPassword = null;
 
     public ESGFProperties load() throws IOException, FileNotFoundException {
-        return load(System.getenv().get("ESGF_HOME")+"/config/esgf.properties");
+        return load(propertyFile());
     }
-    private ESGFProperties load(String propFilename) throws IOException, FileNotFoundException {
+    private ESGFProperties load(File propertyFile) throws IOException, FileNotFoundException {
         // load ESGF property values
-        File propertyFile = new File(propFilename);
-        if (!propertyFile.exists()) propertyFile = new File("/esg/config/esgf.properties");
-        this.load( new FileInputStream(propertyFile) );
+        FileInputStream in = new FileInputStream(propertyFile);
+        try{
+            this.load(in);
+        }finally{
+            in.close();
+        }
         if (log.isInfoEnabled()) log.info("Loading properties from file: "+propertyFile.getAbsolutePath());
         return this;
     }
 
+    /**
+     * The esgf.properties file: ESGF_HOME/config/esgf.properties, or
+     * /esg/config/esgf.properties if there is no such file.
+     */
+    public static File propertyFile() {
+        File propertyFile = new File(System.getenv().get("ESGF_HOME")+"/config/esgf.properties");
+        if (!propertyFile.exists()) propertyFile = new File("/esg/config/esgf.properties");
+        return propertyFile;
+    }
+
     public String getAdminPassword() { return this.getAdminPassword(false); }
     public String getAdminPassword(boolean force) { 
         if((securityAdminPassword == null) || force) {
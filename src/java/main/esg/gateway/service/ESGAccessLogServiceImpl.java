@@ -74,6 +74,7 @@ import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.ResultSetHandler;
 
 import esg.common.db.DatabaseResource;
+import esg.common.util.ESGFConfig;
 import esg.common.util.ESGFProperties;
 
 /**
@@ -111,7 +112,7 @@ public class ESGAccessLogServiceImpl implements ESGAccessLogService {
 	props.setProperty("db.user","dbsuper");
 	props.setProperty("db.password","changeme");
     try{
-        props.putAll(new ESGFProperties());
+        props.putAll(ESGFConfig.getInstance().getProperties());
     }catch(IOException ex) {
         log.error(ex);
     }
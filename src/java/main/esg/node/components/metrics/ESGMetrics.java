@@ -65,8 +65,7 @@
 package esg.node.components.metrics;
 
 import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
@@ -81,7 +80,6 @@ public class ESGMetrics extends AbstractDataNodeComponent {
     
     private static Log log = LogFactory.getLog(ESGMetrics.class);
     private Properties props = null;
-    private boolean isBusy = false;
     private MetricsDAO metricsDAO = null;
     private MetricsExpDAO metricsExpDAO = null;
     private MetricsVarsDAO metricsVarsDAO = null;
@@ -101,6 +99,7 @@ public class ESGMetrics extends AbstractDataNodeComponent {
     
     public void init() {
 	log.info("Initializing ESGMetrics...");
+	getDataNodeManager().subscribe(this); //none of the manager's (join/system) events are of use here
 	props = getDataNodeManager().getMatchingProperties("^metrics.*");
 	metricsDAO = new MetricsDAO(DatabaseResource.getInstance().getDataSource(),Utils.getNodeID(),props);
 	metricsExpDAO = new MetricsExpDAO(DatabaseResource.getInstance().getDataSource(),Utils.getNodeID(),props);
@@ -162,19 +161,15 @@ public class ESGMetrics extends AbstractDataNodeComponent {
 	log.trace("metrics delay: "+delay+" sec");
 	log.trace("metrics period: "+period+" sec");
 	
-	Timer timer = new Timer();
-	timer.schedule(new TimerTask() {
+	//(the scheduler never runs a job over itself)
+	getDataNodeManager().getScheduler().schedule("metrics",new Runnable() {
 		public final void run() {
-		    //log.trace("Checking for new datanode information... [busy? "+ESGMetrics.this.isBusy+"]");
-		    if(!ESGMetrics.this.isBusy) {
-			ESGMetrics.this.isBusy = true;
-			if(fetchNodeStats()) {
-			    metricsDAO.markLastCompletionTime();
-			}
-			ESGMetrics.this.isBusy = false;
+		    //log.trace("Checking for new datanode information...");
+		    if(fetchNodeStats()) {
+			metricsDAO.markLastCompletionTime();
 		    }
 		}
-	    },delay*1000,period*1000);
+	    },delay,period,TimeUnit.SECONDS);
     }
 
     //TODO:
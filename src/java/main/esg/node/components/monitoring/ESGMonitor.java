@@ -65,9 +65,10 @@
 **/
 package esg.node.components.monitoring;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -81,7 +82,6 @@ public class ESGMonitor extends AbstractDataNodeComponent {
     
     private static Log log = LogFactory.getLog(ESGMonitor.class);
     private Properties props = null;
-    private boolean isBusy = false;
     private MonitorDAO monitorDAO = null;
 
     //Local cache object for results
@@ -94,6 +94,7 @@ public class ESGMonitor extends AbstractDataNodeComponent {
     
     public void init() {
         log.info("Initializing ESGMonitor...");
+        getDataNodeManager().subscribe(this); //none of the manager's (join/system) events are of use here
         props = getDataNodeManager().getMatchingProperties("^monitor.*");
         monitorInfo = new MonitorInfo();
         monitorDAO = new MonitorDAO(DatabaseResource.getInstance().getDataSource(),Utils.getNodeID(),props);
@@ -107,9 +108,20 @@ public class ESGMonitor extends AbstractDataNodeComponent {
         boolean ret = true;
         monitorDAO.setMonitorInfo(monitorInfo);
         monitorInfo.componentList = getDataNodeManager().getComponentNames();
+        monitorInfo.queueInfo = fetchQueueInfo(monitorInfo.componentList);
         return ret;
     }
     
+    private Map<String,Map<String,String>> fetchQueueInfo(String[] componentNames) {
+        Map<String,Map<String,String>> queueInfo = new HashMap<String,Map<String,String>>();
+        DataNodeComponent component = null;
+        for(String componentName : componentNames) {
+            if(null == (component = getDataNodeManager().getComponent(componentName))) continue;
+            queueInfo.put(componentName,component.getESGEventQueue().getStats().toMap());
+        }
+        return queueInfo;
+    }
+
     private void startMonitoring() {
         log.trace("launching system monitor timer");
         long delay  = Long.parseLong(props.getProperty("monitor.initialDelay"));
@@ -117,20 +129,16 @@ public class ESGMonitor extends AbstractDataNodeComponent {
         log.trace("monitoring delay: "+delay+" sec");
         log.trace("monitoring period: "+period+" sec");
 	
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
+        //(the scheduler never runs a job over itself)
+        getDataNodeManager().getScheduler().schedule("monitor",new Runnable() {
                 public final void run() {
-                    //log.trace("Checking for new node information... [busy? "+ESGMonitor.this.isBusy+"]");
-                    if(!ESGMonitor.this.isBusy) {
-                        ESGMonitor.this.isBusy = true;
-                        if(fetchNodeInfo()) {
-                            //TODO
-                            monitorDAO.markLastCompletionTime();
-                        }
-                        ESGMonitor.this.isBusy = false;
+                    //log.trace("Checking for new node information...");
+                    if(fetchNodeInfo()) {
+                        //TODO
+                        monitorDAO.markLastCompletionTime();
                     }
                 }
-            },delay*1000,period*1000);
+            },delay,period,TimeUnit.SECONDS);
     }
 
     public boolean handleESGQueuedEvent(ESGEvent event) {
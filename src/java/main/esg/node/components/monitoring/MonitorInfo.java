@@ -105,5 +105,8 @@ public class MonitorInfo implements Serializable {
     public Map<String,String> uptimeInfo = null; 
     public Map<String,String> xferInfo = null;
     public String[] componentList = null;
+    //component name -> that component's event queue stats
+    //(keys are the constants in esg.node.core.ESGQueueStats)
+    public Map<String,Map<String,String>> queueInfo = null;
 
 }
\ No newline at end of file
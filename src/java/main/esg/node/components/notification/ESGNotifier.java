@@ -87,8 +87,7 @@ package esg.node.components.notification;
 
 import java.util.Properties;
 import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 import java.util.List;
 import java.util.Vector;
 
@@ -123,7 +122,6 @@ public class ESGNotifier extends AbstractDataNodeComponent {
 
     private Properties props = null;
     private Session session = null;
-    private boolean isBusy = false;
     private StringBuilder endusers = null;
     private String messageTemplate = null;
     private NotificationDAO notificationDAO = null;
@@ -139,6 +137,7 @@ public class ESGNotifier extends AbstractDataNodeComponent {
     
     public void init() {
 	log.info("Initializing ESGNotifier...");
+	getDataNodeManager().subscribe(this); //none of the manager's (join/system) events are of use here
 
 	log.trace("getDataNodeManager() = "+getDataNodeManager());
 	props = getDataNodeManager().getMatchingProperties("^mail.*");
@@ -251,19 +250,15 @@ public class ESGNotifier extends AbstractDataNodeComponent {
 	log.trace("notification delay: "+delay+" sec");
 	log.trace("notification period: "+period+" sec");
 	
-	Timer timer = new Timer();
-	timer.schedule(new TimerTask() {
+	//(the scheduler never runs a job over itself)
+	getDataNodeManager().getScheduler().schedule("notifier",new Runnable() {
 		public final void run() {
-		    //log.trace("Checking for new notification updates... [busy? "+ESGNotifier.this.isBusy+"]");
-		    if(!ESGNotifier.this.isBusy) {
-			ESGNotifier.this.isBusy = true;
-			if(fetchNextUpdates()) {
-			    markTime();
-			}
-			ESGNotifier.this.isBusy = false;
+		    //log.trace("Checking for new notification updates...");
+		    if(fetchNextUpdates()) {
+			markTime();
 		    }
 		}
-	    },delay*1000,period*1000);
+	    },delay,period,TimeUnit.SECONDS);
     }
     
 
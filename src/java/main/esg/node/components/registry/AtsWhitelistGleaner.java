@@ -58,6 +58,7 @@ package esg.node.components.registry;
 
 import esg.common.generated.registration.*;
 import esg.common.generated.whitelist.*;
+import esg.common.util.ESGFConfig;
 import esg.common.util.ESGFProperties;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
@@ -103,7 +104,7 @@ public class AtsWhitelistGleaner {
     public AtsWhitelistGleaner() { this(null); }
     public AtsWhitelistGleaner(Properties props) {
         try {
-            if(props == null) this.props = new ESGFProperties();
+            if(props == null) this.props = ESGFConfig.getInstance().getProperties();
             else this.props = props;
 
             if (null != (atsWhitelistPath = System.getenv().get("ESGF_HOME"))) {
@@ -0,0 +1,120 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   Keeps track, per delta origin, of which of the origin's states we
+   are in step with, so that a receiver whose own filters (peer group,
+   exclusion list) keep it from ever reaching the sender's digest does
+   not pull the sender's full state on every delta.
+
+   A delta whose "digest" our node list comes to is plainly in step.
+   Otherwise our list may differ only by nodes we drop: a delta that
+   goes on from ("base") a state we were in step with leaves us in
+   step with the state it leads to.  The answer to a pull puts us in
+   step with the state that was out of step, whether or not it
+   changed anything.  Only a delta from a state we were never in step
+   with (we missed one along the way) calls for a pull.
+
+**/
+package esg.node.components.registry;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public final class DeltaSteps {
+
+    private static final Log log = LogFactory.getLog(DeltaSteps.class);
+
+    //origin -> the digest of the origin's state we are in step with
+    private final Map<String,String> inStep = new ConcurrentHashMap<String,String>();
+    //origin -> the digest of the origin's state we pulled for
+    private final Map<String,String> pulling = new ConcurrentHashMap<String,String>();
+
+    //Whether, having merged the delta from origin (our node list now
+    //coming to ourDigest), we are out of step with origin and should
+    //pull its full state
+    public boolean merged(String origin, String ourDigest, Map<?,?> payload) {
+        String theirs = RegistryDelta.digestOf(payload);
+        String known  = inStep.get(origin);
+        if(theirs.equals(ourDigest) || ((known != null) && known.equals(RegistryDelta.baseOf(payload)))) {
+            inStep.put(origin,theirs);
+            return false;
+        }
+        log.trace("Missed a change from "+origin+" (in step with "+known+", delta from "+RegistryDelta.baseOf(payload)+")");
+        inStep.remove(origin);
+        return true;
+    }
+
+    //We asked origin for its full state, having fallen out of step
+    //with the delta payload
+    public void pulled(String origin, Map<?,?> payload) {
+        pulling.put(origin,RegistryDelta.digestOf(payload));
+    }
+
+    //A full registration from origin came in (the answer to a pull,
+    //if we made one).  Whatever it changed, we are now as close to
+    //the state we pulled for as our filters let us be.
+    public void fullState(String origin) {
+        String digest = pulling.remove(origin);
+        if(digest != null) inStep.put(origin,digest);
+    }
+}
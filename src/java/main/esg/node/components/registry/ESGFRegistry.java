@@ -57,8 +57,7 @@
 package esg.node.components.registry;
 
 import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Collections;
@@ -69,6 +68,7 @@ import java.util.HashSet;
 import java.util.TreeSet;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
@@ -76,8 +76,10 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.*;
 
 import esg.common.Utils;
+import esg.common.util.ESGFConfig;
 import esg.common.util.ESGFProperties;
 import esg.common.service.ESGRemoteEvent;
+import esg.common.service.ESGPayloadCodec;
 import esg.node.connection.ESGConnectionManager;
 import esg.node.core.*;
 import esg.common.generated.registration.*;
@@ -100,14 +102,25 @@ public class ESGFRegistry extends AbstractDataNodeComponent {
 
     private static Log log = LogFactory.getLog(ESGFRegistry.class);
     private Properties props = null;
-    private boolean isBusy = false;
     private RegistrationGleaner gleaner = null;
     private Map<String,String> processedMap = null;
     private Map<String,Long> removedMap = null;
+    private Map<String,Long> lastPullMap = null;
+    private long pullInterval = 30000L;
+    private DeltaSteps deltaSteps = null;
     private NodeHostnameComparator nodecomp = null;
     private AtomicLong lastDispatchTime = null;
     private PeerNetworkFilter peerFilter = null;
     private ExclusionListReader.ExclusionList exList = null;
+    private boolean compact = true;
+    private long syncPeriod = 60L;
+
+    //Nodes mergeNodes would skip anyway (out of network or excluded)
+    private final RegistrationCodec.NodeFilter nodeFilter = new RegistrationCodec.NodeFilter() {
+            public boolean accept(String hostname, String nodePeerGroup) {
+                return peerFilter.isInNetwork(nodePeerGroup) && ((exList == null) || !exList.isExcluded(hostname));
+            }
+        };
 
     public ESGFRegistry(String name) {
         super(name);
@@ -118,13 +131,26 @@ public class ESGFRegistry extends AbstractDataNodeComponent {
         log.info("Initializing ESGFRegistry...");
         try{
             //props = getDataNodeManager().getMatchingProperties("*"); //TODO: figure the right regex for only what is needed
-            props = new ESGFProperties();
+            props = ESGFConfig.getInstance().getProperties();
             gleaner = new RegistrationGleaner(props);
             nodecomp = new NodeHostnameComparator();
-            processedMap = new HashMap<String,String>();
+            processedMap = new ConcurrentHashMap<String,String>();
             removedMap = new HashMap<String,Long>();
             peerFilter = new PeerNetworkFilter(props);
             lastDispatchTime = new AtomicLong(-1L);
+            lastPullMap = new ConcurrentHashMap<String,Long>();
+            deltaSteps = new DeltaSteps();
+            pullInterval = Long.parseLong(props.getProperty("registry.pull.interval","30000").trim());
+            syncPeriod = Long.parseLong(props.getProperty("registry.sync.period","60").trim());
+            ESGPayloadCodec.setCapability(ESGPayloadCodec.SYNC,syncPeriod > 0);
+            ESGPayloadCodec.setCapability(ESGPayloadCodec.DELTA,true); //(whether or not we send them)
+            if(compact = Boolean.valueOf(props.getProperty("registry.compact","true").trim())) {
+                ESGPayloadCodec.setCompactForm(new ESGPayloadCodec.CompactForm() {
+                        public String toText(byte[] compactDocument) throws java.io.IOException {
+                            return RegistryDelta.marshal(RegistrationCodec.decode(compactDocument));
+                        }
+                    });
+            }
             if(ExclusionListReader.getInstance().loadExclusionList()) {
                 exList = ExclusionListReader.getInstance().getExclusionList().useType(PRIVATE_BIT);
             }
@@ -132,6 +158,9 @@ public class ESGFRegistry extends AbstractDataNodeComponent {
             System.out.println("Damn ESGFRegistry can't fire up... :-(");
             log.error(e);
         }
+        //all loaded (system) and peer join events from the manager,
+        //once there is something (gleaner, removedMap...) to take them
+        getDataNodeManager().subscribe(this,ESGSystemEvent.class,ESGJoinEvent.class);
     }
 
     private void startRegistry() {
@@ -151,7 +180,7 @@ public class ESGFRegistry extends AbstractDataNodeComponent {
         enqueueESGEvent(new ESGEvent(this,
                                      new RegistryUpdateDigest(gleaner.toString(),
                                                               gleaner.getMyChecksum(),
-                                                              loadedNodes),
+                                                              loadedNodes).setCompactDocument(compactOf(gleaner)),
                                      "Initializing..."));
         lastDispatchTime.set((new Date()).getTime());
         //----------------------------------
@@ -162,8 +191,7 @@ public class ESGFRegistry extends AbstractDataNodeComponent {
         log.debug("registry delay:  "+delay+" sec");
         log.debug("registry period: "+period+" sec");
 
-        Timer timer = new Timer("Quiescence-Reg-Repost-Timer");
-        timer.schedule(new TimerTask() {
+        getDataNodeManager().getScheduler().schedule("registry.repost",new Runnable() {
                 public final void run() {
                     //If I have not dispatched any information to
                     //another peer in "period" seconds then touch the
@@ -191,29 +219,35 @@ public class ESGFRegistry extends AbstractDataNodeComponent {
                     Date now = new Date();
                     long delta=(now.getTime() - lastDispatchTime.longValue());
                     if ( delta > (period*1000)) {
-                        if(!ESGFRegistry.this.isBusy) {
-                            ESGFRegistry.this.isBusy = true;
-
-                            synchronized(gleaner) {
-                                //"touch" the registration.xml file (update timestamp via call to createMyRegistration, and resave)
-                                log.debug("re-posting registration...");
-                                
-                                gleaner.saveRegistration();
-
-                                enqueueESGEvent(new ESGEvent(this,
-                                                             new RegistryUpdateDigest(gleaner.toString(),
-                                                                                      gleaner.getMyChecksum(),
-                                                                                      new HashSet<Node>()),
-                                                             "Re-Posting Registration State"));
-                                lastDispatchTime.set((new Date()).getTime());
-                            }
-                            ESGFRegistry.this.isBusy = false;
+                        //(the scheduler never runs a job over itself)
+                        synchronized(gleaner) {
+                            //"touch" the registration.xml file (update timestamp via call to createMyRegistration, and resave)
+                            log.debug("re-posting registration...");
+
+                            gleaner.saveRegistration();
+
+                            enqueueESGEvent(new ESGEvent(ESGFRegistry.this,
+                                                         new RegistryUpdateDigest(gleaner.toString(),
+                                                                                  gleaner.getMyChecksum(),
+                                                                                  new HashSet<Node>()).setCompactDocument(compactOf(gleaner)),
+                                                         "Re-Posting Registration State"));
+                            lastDispatchTime.set((new Date()).getTime());
                         }
                     }else{
                         log.debug("Won't re-send state - too soon after last dispatch (quiescence period "+period+"secs, was not reached ["+(delta/1000)+"secs] elapsed)");
                     }
                 }
-            },delay*1000,period*1000);
+            },delay,period,TimeUnit.SECONDS);
+
+        //Anti-entropy: every so often compare notes with a peer (see
+        //RegistrySync), which is cheap when we are in step and fixes
+        //whatever the gossip above missed when we are not
+        if(syncPeriod > 0) {
+            log.debug("registry sync period: "+syncPeriod+" sec");
+            getDataNodeManager().getScheduler().schedule("registry.sync",new Runnable() {
+                    public final void run() { startSyncRound(); }
+                },syncPeriod,syncPeriod,TimeUnit.SECONDS);
+        }
     }
 
     //(Indeed this algorithm is not the most parsimoneous on memory,
@@ -389,10 +423,17 @@ public class ESGFRegistry extends AbstractDataNodeComponent {
         log.trace("handling enqueued event ["+getName()+"]:["+this.getClass().getName()+"]: "+event);
         boolean handled = false;
 
+        if(event.hasRemoteEvent() && (event.getRemoteEvent().getMessageType() == ESGRemoteEvent.REGISTER_SYNC)) {
+            //(kept out of lastDispatchTime, a round only counts if it
+            //changes our state, see mergeSyncedNodes)
+            return handleSyncEvent(event);
+        }
+
         if(event.hasRemoteEvent()) {
             int eventType = event.getRemoteEvent().getMessageType();
             switch (eventType) {
             case ESGRemoteEvent.REGISTER:
+            case ESGRemoteEvent.REGISTER_DELTA:
                 //If this event is dispatched and yet still not
                 //handled then we push the unhandled event directly to
                 //the next state, in this case the ConnectionManager,
@@ -446,86 +487,387 @@ public class ESGFRegistry extends AbstractDataNodeComponent {
     protected boolean handleRegistrationEvent(ESGEvent event) {
         log.trace("handling register enqueued event ["+getName()+"]:["+this.getClass().getName()+"]: Got A Register QueuedEvent!!!!: "+event);
 
-        synchronized(gleaner) {
+        //Only the merge needs the gleaner, so with a striped queue
+        //(queue.REGISTRY.dispatch=striped) payloads from different
+        //peers are parsed in parallel
+        Registration peerRegistration = parseRegistrationEvent(event);
+        if(peerRegistration == null) {
+            log.debug("No New Information Learned :-(");
+            return false;
+        }
 
-            String payloadChecksum  = event.getRemoteEvent().getPayloadChecksum();
-            String sourceServiceURL = event.getRemoteEvent().getSource();
-
-            //TODO: Heck no, I should NOT be using string comparison for
-            //this...  I need to revisit the typing of the remote event
-            //for type of the checksum.  The thing is I don't want to use
-            //BigInteger because I don't know how portable that is and I
-            //want the event object as type simple as can be.  Right now
-            //using the string representation of the checksum... maybe
-            //that's good enough for the type complexity trade off?
-
-            String lastChecksum = processedMap.get(sourceServiceURL);
-            if( (lastChecksum != null) && (lastChecksum.equals(payloadChecksum)) ) {
-                log.trace("I have seen this payload before, from the same dude... there is nothing new to learn... ["+event+"]");
-                //punt... (see dispatcher above)
+        synchronized(gleaner) {
+            String baseDigest = RegistryDelta.digestOf(gleaner.getMyRegistration().getNode());
+            Map<String,Long> removedNodes = new HashMap<String,Long>();
+            Set<Node> updatedNodes = mergeRegistration(event,peerRegistration,removedNodes);
+            if(updatedNodes.isEmpty() && removedNodes.isEmpty()) {
+                log.debug("No New Information Learned :-(");
                 return false;
             }
+            publishMergedState(updatedNodes,baseDigest,removedNodes);
+        }
 
-            //Pull out our registration information and parse the xml string
-            //payload from the incoming event into object form, via the gleaner.
-            Registration myRegistration = gleaner.getMyRegistration();
-            Registration peerRegistration = gleaner.createRegistrationFromString((String)event.getRemoteEvent().getPayload());
-            
-            //log.trace("myRegistration = ["+myRegistration+"]");
-            //log.trace("peerRegistration = ["+peerRegistration+"]");
-
-            //Don't even consider registrations that are not within version range!
-            Set<Node> updatedNodes = null;
-            try {
-                if(Utils.versionCompare(peerRegistration.getVersion(), ESGFRegistry.PROTOCOL_VERSION) >= 0) {
-                    updatedNodes = mergeNodes(myRegistration,peerRegistration);
-                }else{
-                    log.warn("Peer node registration has unsupported version: ["+myRegistration.getVersion()+"] (not merging)");
+        return true;
+    }
+
+    //Batched version... Every registration in the batch is merged
+    //into our view first, then the new state is saved and sent out
+    //ONCE for the whole batch, instead of once per event.  Events
+    //that teach us nothing are forwarded exactly as in the single
+    //event case.
+    public boolean handleESGQueuedEvents(List<ESGEvent> events) {
+        log.trace("handling batch of ["+events.size()+"] enqueued events ["+getName()+"]");
+        boolean handled = true;
+        Set<Node> updatedNodes = new HashSet<Node>();
+        Map<String,Long> removedNodes = new HashMap<String,Long>();
+        Set<Node> mergedNodes = null;
+
+        //parse the batch's payloads before taking the gleaner lock
+        Registration[] peerRegistrations = new Registration[events.size()];
+        for(int i=0; i < peerRegistrations.length; i++) {
+            if(isRegistrationEvent(events.get(i))) peerRegistrations[i] = parseRegistrationEvent(events.get(i));
+        }
+
+        synchronized(gleaner) {
+            String baseDigest = RegistryDelta.digestOf(gleaner.getMyRegistration().getNode());
+            for(int i=0; i < peerRegistrations.length; i++) {
+                ESGEvent event = events.get(i);
+                if(isRegistrationEvent(event)) {
+                    int numRemoved = removedNodes.size();
+                    if(peerRegistrations[i] == null ||
+                       ((mergedNodes = mergeRegistration(event,peerRegistrations[i],removedNodes)).isEmpty() && removedNodes.size() == numRemoved)) {
+                        event.setSource(this);
+                        enqueueESGEvent(event);
+                    }else {
+                        updatedNodes.addAll(mergedNodes);
+                    }
+                    lastDispatchTime.set((new Date()).getTime());
+                }else {
+                    handled &= handleESGQueuedEvent(event);
                 }
-            }catch(esg.common.InvalidVersionStringException e) {
-                log.error("Peer node registration has unsupported version*: ["+myRegistration.getVersion()+"] (not merging)",e);
-            }catch(NullPointerException e) {
-                log.trace("Peer node apparently does not even have a version field! (not merging)");
             }
 
-            log.debug("Recording this interaction with "+sourceServiceURL+" - "+payloadChecksum);
-            processedMap.put(sourceServiceURL, payloadChecksum);
+            if(!updatedNodes.isEmpty() || !removedNodes.isEmpty()) {
+                log.debug("Batch of ["+events.size()+"] events updated ["+updatedNodes.size()+"] and removed ["+removedNodes.size()+"] node entries");
+                updatedNodes.removeAll(nodesNamed(updatedNodes,removedNodes.keySet()));
+                publishMergedState(updatedNodes,baseDigest,removedNodes);
+            }
+        }
+        return handled;
+    }
+
+    private boolean isRegistrationEvent(ESGEvent event) {
+        return event.hasRemoteEvent() && ((event.getRemoteEvent().getMessageType() == ESGRemoteEvent.REGISTER) ||
+                                          (event.getRemoteEvent().getMessageType() == ESGRemoteEvent.REGISTER_DELTA));
+    }
 
-            if(updatedNodes == null || updatedNodes.isEmpty()) {
-                log.debug("No New Information Learned :-(");
-                return false;
+    private boolean isDeltaEvent(ESGEvent event) {
+        return event.getRemoteEvent().getMessageType() == ESGRemoteEvent.REGISTER_DELTA;
+    }
+
+    private static Set<Node> nodesNamed(Set<Node> nodes, Set<String> hostnames) {
+        Set<Node> named = new HashSet<Node>();
+        for(Node node : nodes) { if(hostnames.contains(node.getHostname())) named.add(node); }
+        return named;
+    }
+
+    //Pulls the registration carried by the event out of its payload.
+    //Returns null if there is nothing (new) to merge: we have seen
+    //this payload from this peer before, or it is not a registration
+    //we can use.  Does not need the gleaner lock.
+    private Registration parseRegistrationEvent(ESGEvent event) {
+        String payloadChecksum  = event.getRemoteEvent().getPayloadChecksum();
+        String sourceServiceURL = event.getRemoteEvent().getSource();
+
+        //(before the check below: the answer to a pull counts even if
+        //it holds nothing new)
+        if(!isDeltaEvent(event)) deltaSteps.fullState(event.getRemoteEvent().getOrigin());
+
+        //TODO: Heck no, I should NOT be using string comparison for
+        //this...  I need to revisit the typing of the remote event
+        //for type of the checksum.  The thing is I don't want to use
+        //BigInteger because I don't know how portable that is and I
+        //want the event object as type simple as can be.  Right now
+        //using the string representation of the checksum... maybe
+        //that's good enough for the type complexity trade off?
+
+        String lastChecksum = processedMap.get(sourceServiceURL);
+        if( (lastChecksum != null) && (lastChecksum.equals(payloadChecksum)) ) {
+            log.trace("I have seen this payload before, from the same dude... there is nothing new to learn... ["+event+"]");
+            //punt... (see dispatcher above)
+            return null;
+        }
+
+        //parse the xml string payload from the incoming event into
+        //object form, via the gleaner (for a delta, only the changed
+        //nodes are in the document)
+        Registration peerRegistration = null;
+        if(isDeltaEvent(event)) {
+            Object payload = event.getRemoteEvent().getPayload();
+            if(!RegistryDelta.isPayload(payload)) {
+                log.warn("Malformed registration delta from "+sourceServiceURL+" (not merging)");
+                return null;
+            }
+            peerRegistration = RegistryDelta.nodesOf((Map<?,?>)payload);
+        }else if(event.getRemoteEvent().isCompact()) {
+            //(nodes we would not take anyway are not even built)
+            try{
+                peerRegistration = RegistrationCodec.decode((byte[])event.getRemoteEvent().getPayload(),nodeFilter);
+            }catch(java.io.IOException e) {
+                log.warn("Malformed compact registration from "+sourceServiceURL+" (not merging): "+e.getMessage());
+                return null;
+            }
+        }else {
+            peerRegistration = gleaner.createRegistrationFromString((String)event.getRemoteEvent().getPayload());
+        }
+            
+        //log.trace("peerRegistration = ["+peerRegistration+"]");
+
+        //Don't even consider registrations that are not within version range!
+        try {
+            if(Utils.versionCompare(peerRegistration.getVersion(), ESGFRegistry.PROTOCOL_VERSION) >= 0) {
+                return peerRegistration;
+            }
+            log.warn("Peer node registration has unsupported version: ["+peerRegistration.getVersion()+"] (not merging)");
+        }catch(esg.common.InvalidVersionStringException e) {
+            log.error("Peer node registration has unsupported version*: ["+peerRegistration.getVersion()+"] (not merging)",e);
+        }catch(NullPointerException e) {
+            log.trace("Peer node apparently does not even have a version field! (not merging)");
+        }
+
+        log.debug("Recording this interaction with "+sourceServiceURL+" - "+payloadChecksum);
+        processedMap.put(sourceServiceURL, payloadChecksum);
+        return null;
+    }
+
+    //Merges the (parsed) registration carried by the event into ours.
+    //Returns the set of nodes that were updated, nodes a delta had us
+    //remove are added to removedNodes.  Caller must hold the gleaner
+    //lock.
+    private Set<Node> mergeRegistration(ESGEvent event, Registration peerRegistration, Map<String,Long> removedNodes) {
+        Set<Node> updatedNodes = peerRegistration.getNode().isEmpty() ? new HashSet<Node>() : mergeNodes(gleaner.getMyRegistration(),peerRegistration);
+
+        if(isDeltaEvent(event)) {
+            Map<?,?> payload = (Map<?,?>)event.getRemoteEvent().getPayload();
+            applyRemovals(RegistryDelta.removedOf(payload),removedNodes);
+            //Having merged the delta we should be where the sender
+            //was, as far as our filters go, unless we missed changes
+            //along the way, in which case we pull the sender's full
+            //state (see DeltaSteps)
+            if(deltaSteps.merged(event.getRemoteEvent().getOrigin(),
+                                 RegistryDelta.digestOf(gleaner.getMyRegistration().getNode()),payload)) {
+                requestFullState(event);
             }
+        }
+
+        String payloadChecksum  = event.getRemoteEvent().getPayloadChecksum();
+        String sourceServiceURL = event.getRemoteEvent().getSource();
+        log.debug("Recording this interaction with "+sourceServiceURL+" - "+payloadChecksum);
+        processedMap.put(sourceServiceURL, payloadChecksum);
+        return updatedNodes;
+    }
 
-            //--------------------------------------------------------------
-            //There has been updates made to the registry generate the R.U.D.
-            //and send it to the next state (the connection manager)
-            //--------------------------------------------------------------
-            gleaner.touch(); //timestamp our updated registry...
-            gleaner.saveRegistration(); //write the new registry to file... (registration.xml)
-            sendOutNewRegistryState(gleaner,updatedNodes); //send off registry state to peer network...
-            //--------------------------------------------------------------
+    //--------------------------------------------------------------
+    //Anti-entropy (REGISTER_SYNC) rounds, see RegistrySync for the steps
+    //--------------------------------------------------------------
+    private void startSyncRound() {
+        HashMap<String,Object> summary = null;
+        synchronized(gleaner) {
+            summary = RegistrySync.createSummary(gleaner.getMyRegistration().getNode());
+        }
+        //(no target: the connection manager picks the peer)
+        enqueueSyncStep(null,summary);
+    }
 
+    protected boolean handleSyncEvent(ESGEvent event) {
+        Object payload = event.getRemoteEvent().getPayload();
+        String peer = event.getRemoteEvent().getOrigin();
+        if(!RegistrySync.isPayload(payload)) {
+            log.warn("Malformed registry sync payload from "+peer+" (dropped)");
+            return false;
         }
+        Map<?,?> sync = (Map<?,?>)payload;
+        String phase = RegistrySync.phaseOf(sync);
+        log.trace("Registry sync ["+phase+"] from "+peer);
 
+        if(RegistrySync.SUMMARY.equals(phase)) {
+            HashMap<String,Object> entries = null;
+            synchronized(gleaner) {
+                entries = RegistrySync.createEntries(gleaner.getMyRegistration().getNode(),sync);
+            }
+            if(entries == null) {
+                log.trace("In step with "+peer);
+                return true;
+            }
+            enqueueSyncStep(peer,entries);
+        }else if(RegistrySync.ENTRIES.equals(phase)) {
+            HashMap<String,Object> exchange = null;
+            synchronized(gleaner) {
+                List<Node> give = new ArrayList<Node>();
+                List<String> want = new ArrayList<String>();
+                RegistrySync.compare(gleaner.getMyRegistration().getNode(),sync,give,want);
+                want.removeAll(unwanted(want,RegistrySync.stampsOf(sync)));
+                if(give.isEmpty() && want.isEmpty()) {
+                    log.trace("Nothing to exchange with "+peer);
+                    return true;
+                }
+                log.debug("Registry sync with "+peer+": giving ["+give.size()+"] wanting ["+want.size()+"] node entries");
+                exchange = RegistrySync.createExchange(syncRegistration(give),want);
+            }
+            enqueueSyncStep(peer,exchange);
+        }else if(RegistrySync.EXCHANGE.equals(phase)) {
+            mergeSyncedNodes(RegistrySync.nodesOf(sync,nodeFilter),peer);
+            List<String> want = RegistrySync.wantOf(sync);
+            if(!want.isEmpty()) {
+                HashMap<String,Object> nodes = null;
+                synchronized(gleaner) {
+                    Set<String> wanted = new HashSet<String>(want);
+                    List<Node> give = new ArrayList<Node>();
+                    for(Node node : gleaner.getMyRegistration().getNode()) {
+                        if(wanted.contains(node.getHostname())) give.add(node);
+                    }
+                    nodes = RegistrySync.createNodes(syncRegistration(give));
+                }
+                enqueueSyncStep(peer,nodes);
+            }
+        }else if(RegistrySync.NODE_ENTRIES.equals(phase)) {
+            mergeSyncedNodes(RegistrySync.nodesOf(sync,nodeFilter),peer);
+        }else {
+            log.warn("Unknown registry sync phase ["+phase+"] from "+peer+" (dropped)");
+            return false;
+        }
         return true;
     }
 
+    //Hostnames not worth asking for: excluded ones, ourselves, and
+    //ones we know were removed after the peer's entry
+    private Set<String> unwanted(List<String> want, Map<String,Long> stamps) {
+        Set<String> unwanted = new HashSet<String>();
+        String myHostname = Utils.getFQDN();
+        for(String hostname : want) {
+            Long removed = removedMap.get(hostname);
+            if(hostname.equals(myHostname) ||
+               ((exList != null) && exList.isExcluded(hostname)) ||
+               ((removed != null) && (stamps.get(hostname) != null) && (removed >= stamps.get(hostname)))) {
+                unwanted.add(hostname);
+            }
+        }
+        return unwanted;
+    }
+
+    //Node entries to send along, as a registration (caller must hold the gleaner lock)
+    private Registration syncRegistration(List<Node> nodes) {
+        Registration registration = new Registration();
+        registration.setVersion(PROTOCOL_VERSION);
+        registration.setTimeStamp(gleaner.getMyRegistration().getTimeStamp());
+        registration.getNode().addAll(nodes);
+        return registration;
+    }
+
+    private void mergeSyncedNodes(Registration peerRegistration, String peer) {
+        if(peerRegistration == null || peerRegistration.getNode().isEmpty()) return;
+        synchronized(gleaner) {
+            String baseDigest = RegistryDelta.digestOf(gleaner.getMyRegistration().getNode());
+            Set<Node> updatedNodes = mergeNodes(gleaner.getMyRegistration(),peerRegistration);
+            if(updatedNodes.isEmpty()) return;
+            log.debug("Registry sync with "+peer+" updated ["+updatedNodes.size()+"] node entries");
+            publishMergedState(updatedNodes,baseDigest,new HashMap<String,Long>());
+            lastDispatchTime.set((new Date()).getTime());
+        }
+    }
+
+    //One (one hop) step of a round, to the given peer (or one the
+    //connection manager picks)
+    private void enqueueSyncStep(String peer, HashMap<String,Object> payload) {
+        ESGEvent syncEvent = new ESGEvent(this,peer,"Registry Sync ("+payload.get(RegistrySync.PHASE)+")");
+        syncEvent.setRemoteEvent(new ESGRemoteEvent(Utils.getMyServiceUrl(),ESGRemoteEvent.REGISTER_SYNC,payload,
+                                                    RegistrySync.checksumOf(payload),Utils.nextSeq(),1));
+        enqueueESGEvent(syncEvent);
+    }
+
+    //Nodes a peer has seen leave: drop our entry unless it is newer
+    //than the removal, and remember the removal (see mergeNodes)
+    private void applyRemovals(Map<String,Long> removals, Map<String,Long> removedNodes) {
+        String myHostname = Utils.getFQDN();
+        for(Map.Entry<String,Long> removal : removals.entrySet()) {
+            String hostname = removal.getKey();
+            if(hostname.equals(myHostname)) continue; //rumors of my demise...
+            Long known = removedMap.get(hostname);
+            if(known == null || known < removal.getValue()) removedMap.put(hostname,removal.getValue());
+            for(Node node : gleaner.getMyRegistration().getNode()) {
+                if(hostname.equals(node.getHostname())) {
+                    if(node.getTimeStamp() < removal.getValue() && gleaner.removeNode(hostname)) {
+                        log.debug("Removing "+hostname+" (removed by peer at "+removal.getValue()+")");
+                        processedMap.remove(Utils.asServiceUrl(hostname));
+                        removedNodes.put(hostname,removal.getValue());
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    //Asks the delta's origin (or, failing that, whoever passed it on
+    //to us) for its full registration, at most once per pull
+    //interval per origin.  The connection manager does the asking.
+    private void requestFullState(ESGEvent event) {
+        String origin = event.getRemoteEvent().getOrigin();
+        long now = System.currentTimeMillis();
+        Long lastPull = lastPullMap.get(origin);
+        if(lastPull != null && (now - lastPull) < pullInterval) {
+            log.trace("Out of step with "+origin+" but pulled from it "+(now - lastPull)+"ms ago");
+            return;
+        }
+        lastPullMap.put(origin,now);
+        deltaSteps.pulled(origin,(Map<?,?>)event.getRemoteEvent().getPayload());
+        log.debug("Out of step with the registration delta from "+origin+", pulling its full state");
+        ESGEvent pullEvent = new ESGEvent(this,
+                                          new ArrayList<String>(java.util.Arrays.asList(origin,event.getRemoteEvent().getSource())),
+                                          "Registry Full State Pull");
+        pullEvent.setRemoteEvent(new ESGRemoteEvent(Utils.getMyServiceUrl(),ESGRemoteEvent.REGISTER_PULL,null,null,Utils.nextSeq(),1));
+        enqueueESGEvent(pullEvent);
+    }
+
+    //--------------------------------------------------------------
+    //There has been updates made to the registry generate the R.U.D.
+    //and send it to the next state (the connection manager)
+    //--------------------------------------------------------------
+    private void publishMergedState(Set<Node> updatedNodes, String baseDigest, Map<String,Long> removedNodes) {
+        gleaner.touch(); //timestamp our updated registry...
+        gleaner.saveRegistration(); //write the new registry to file... (registration.xml)
+        sendOutNewRegistryState(gleaner,updatedNodes,baseDigest,removedNodes); //send off registry state to peer network...
+    }
+
     //When nodes are removed from the registry there is a new state.
     //This method takes the new (reduced) state of the registry and
     //pushes it out - eventually - to the rest of the peer network.
-    private void sendOutNewRegistryState(RegistrationGleaner gleaner) {
-        this.sendOutNewRegistryState(gleaner,null);
+    private void sendOutNewRegistryState(RegistrationGleaner gleaner, String baseDigest, Map<String,Long> removedNodes) {
+        this.sendOutNewRegistryState(gleaner,null,baseDigest,removedNodes);
+    }
+
+    //Our registration in compact form, for the peers that take it
+    private byte[] compactOf(RegistrationGleaner gleaner) {
+        return compact ? RegistrationCodec.encode(gleaner.getMyRegistration()) : null;
     }
 
     //Conjure a brand new event (as we are now the source for a new state that is to be propagated).
     //send that event on to the next step - that will propagate this new state ([ending with] connection manager)
-    private synchronized void sendOutNewRegistryState(RegistrationGleaner gleaner, Set<Node> updatedNodes) {
+    //(baseDigest is the digest of our node list before the change, so
+    //the change can go out as a delta)
+    private synchronized void sendOutNewRegistryState(RegistrationGleaner gleaner, Set<Node> updatedNodes, String baseDigest, Map<String,Long> removedNodes) {
         log.trace("Sending off new event with registry update digest data");
-        ESGEvent rudEvent = new ESGEvent(this,
-                                         new RegistryUpdateDigest(gleaner.toString(),
-                                                                  gleaner.getMyChecksum(),
-                                                                  updatedNodes),
-                                         "Updated / Merged Registration State");
+        RegistryUpdateDigest rud = new RegistryUpdateDigest(gleaner.toString(),
+                                                            gleaner.getMyChecksum(),
+                                                            updatedNodes);
+        rud.setCompactDocument(compactOf(gleaner));
+        rud.setDelta(baseDigest,
+                     RegistryDelta.digestOf(gleaner.getMyRegistration().getNode()),
+                     removedNodes,
+                     gleaner.getMyRegistration().getTimeStamp());
+        ESGEvent rudEvent = new ESGEvent(this,rud,"Updated / Merged Registration State");
+        //only the latest registry state waiting to go out matters
+        //(the connection manager folds the updated nodes together)
+        rudEvent.setCoalesceKey(RegistryUpdateDigest.COALESCE_KEY);
         enqueueESGEvent(rudEvent);
     }
 
@@ -586,11 +928,14 @@ public class ESGFRegistry extends AbstractDataNodeComponent {
         if(event.hasLeft()) {
             log.debug("Detected That A Peer Node Has Left: "+event.getJoiner().getName());
             synchronized(gleaner) {
+                String baseDigest = RegistryDelta.digestOf(gleaner.getMyRegistration().getNode());
                 if(gleaner.removeNode(peerHostname)) {
                     processedMap.remove(peerUrl);
                     removedMap.put(peerHostname,event.getTimeStamp());
                     gleaner.saveRegistration(true); //NOTE: When a peer goes away do full check when constructing registration
-                    sendOutNewRegistryState(gleaner);
+                    Map<String,Long> removedNodes = new HashMap<String,Long>();
+                    removedNodes.put(peerHostname,event.getTimeStamp());
+                    sendOutNewRegistryState(gleaner,baseDigest,removedNodes);
                 }
             }
             return true;
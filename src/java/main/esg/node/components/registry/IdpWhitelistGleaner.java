@@ -58,6 +58,7 @@ package esg.node.components.registry;
 
 import esg.common.generated.registration.*;
 import esg.common.generated.whitelist.*;
+import esg.common.util.ESGFConfig;
 import esg.common.util.ESGFProperties;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
@@ -96,7 +97,7 @@ public class IdpWhitelistGleaner {
     public IdpWhitelistGleaner() { this(null); }
     public IdpWhitelistGleaner(Properties props) {
         try {
-            if(props == null) this.props = new ESGFProperties();
+            if(props == null) this.props = ESGFConfig.getInstance().getProperties();
             else this.props = props;
 
             if (null != (idpWhitelistPath = System.getenv().get("ESGF_HOME"))) {
@@ -57,6 +57,7 @@
 package esg.node.components.registry;
 
 import esg.common.generated.registration.*;
+import esg.common.util.ESGFConfig;
 import esg.common.util.ESGFProperties;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
@@ -96,7 +97,7 @@ public class LasSistersGleaner {
     public LasSistersGleaner() { this(null); }
     public LasSistersGleaner(Properties props) {
         try {
-            if(props == null) this.props = new ESGFProperties();
+            if(props == null) this.props = ESGFConfig.getInstance().getProperties();
             else this.props = props;
 
             String base = System.getenv("ESGF_HOME");
@@ -0,0 +1,656 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   A compact binary form of a Registration for node to node exchange
+   (the XML one stays what is written to disk and what older nodes
+   are sent).  Going to and from it is a matter of reading and
+   writing fields, no JAXB, no XML parsing.
+
+   Layout (all counts/lengths/indexes as unsigned varints):
+
+     magic "ESGR" (int), format version (byte)
+     registration timeStamp (long), version (string)
+     string table: count, then each string as length + UTF-8 bytes
+     node count, then for each node: hostname, nodePeerGroup, length
+     of the rest of the node's record, the rest of the record
+
+   Every string after the table is an index into it (0 being null, n
+   being the n-1th string), so the hostnames, peer urls and versions
+   every node repeats are only there once.  The hostname and
+   nodePeerGroup up front are what a reader decides on whether it
+   wants the node at all (see NodeFilter), if not, it skips over the
+   record.  Readers also skip whatever a record has past the fields
+   they know, so fields can be added to the end of a record without
+   bumping the format version.
+
+**/
+package esg.node.components.registry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+import esg.common.generated.registration.*;
+
+public final class RegistrationCodec {
+
+    private static final Log log = LogFactory.getLog(RegistrationCodec.class);
+
+    public static final int MAGIC = 0x45534752; //"ESGR"
+    public static final int VERSION = 1;
+
+    //Most any length or count read off a stream that isn't in memory
+    //may claim (in memory input bounds them by what is left of it)
+    private static final int MAX_LENGTH = 32*1024*1024;
+
+    //The optional elements of a Node, by their bit in a record's element mask
+    private static final int CA                    = 1;
+    private static final int GEO_LOCATION          = 1 << 1;
+    private static final int NODE_MANAGER          = 1 << 2;
+    private static final int OPENID_PROVIDER       = 1 << 3;
+    private static final int FRONT_END             = 1 << 4;
+    private static final int INDEX_SERVICE         = 1 << 5;
+    private static final int ATTRIBUTE_SERVICE     = 1 << 6;
+    private static final int AUTHORIZATION_SERVICE = 1 << 7;
+    private static final int REGISTRATION_SERVICE  = 1 << 8;
+    private static final int OAI_REPOSITORY        = 1 << 9;
+    private static final int THREDDS_SERVICE       = 1 << 10;
+    private static final int GRIDFTP_SERVICE       = 1 << 11;
+    private static final int METRICS_SERVICE       = 1 << 12;
+    private static final int METRICS               = 1 << 13;
+    private static final int RSS_FEEDS             = 1 << 14;
+    private static final int LAS_SERVICE           = 1 << 15;
+    private static final int MYPROXY_SERVICE       = 1 << 16;
+    private static final int PUBLISHING_SERVICE    = 1 << 17;
+    private static final int RELYING_PARTY_SERVICE = 1 << 18;
+    private static final int PEM_CERT              = 1 << 19;
+
+    /**
+       Decides, from what is at the head of a node record, whether the
+       node is wanted at all
+    */
+    public interface NodeFilter {
+        public boolean accept(String hostname, String nodePeerGroup);
+    }
+
+    private RegistrationCodec() {}
+
+    //Whether the payload looks like something encode() made
+    public static boolean isCompact(Object payload) {
+        if(!(payload instanceof byte[])) return false;
+        byte[] b = (byte[])payload;
+        return (b.length > 4) && (((b[0] & 0xff) << 24 | (b[1] & 0xff) << 16 | (b[2] & 0xff) << 8 | (b[3] & 0xff)) == MAGIC);
+    }
+
+    //-----------------------------------------------------------------
+    // Encoding
+    //-----------------------------------------------------------------
+
+    public static byte[] encode(Registration registration) {
+        try{
+            Writer w = new Writer();
+            List<Node> nodes = registration.getNode();
+            List<byte[]> records = new ArrayList<byte[]>(nodes.size());
+            int[] heads = new int[nodes.size()*2];
+            for(int i=0; i < nodes.size(); i++) {
+                heads[2*i]   = w.indexOf(nodes.get(i).getHostname());
+                heads[2*i+1] = w.indexOf(nodes.get(i).getNodePeerGroup());
+                records.add(w.record(nodes.get(i)));
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(w.size() + records.size()*128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(registration.getTimeStamp());
+            writeText(out,registration.getVersion());
+            writeVarint(out,w.strings.size());
+            for(String s : w.strings) writeText(out,s);
+            writeVarint(out,records.size());
+            for(int i=0; i < records.size(); i++) {
+                writeVarint(out,heads[2*i]);
+                writeVarint(out,heads[2*i+1]);
+                writeVarint(out,records.get(i).length);
+                out.write(records.get(i));
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }catch(IOException e) {
+            //writing to memory... not going to happen
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //Builds up the string table while writing node records
+    private static class Writer {
+        final List<String> strings = new ArrayList<String>();
+        final Map<String,Integer> index = new HashMap<String,Integer>();
+        private int size = 0;
+        private DataOutputStream out = null;
+
+        int size() { return size; }
+
+        byte[] record(Node node) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            out = new DataOutputStream(bytes);
+            out.writeLong(node.getTimeStamp());
+            str(node.getOrganization());
+            str(node.getNamespace());
+            str(node.getSupportEmail());
+            str(node.getIp());
+            str(node.getDn());
+            str(node.getShortName());
+            str(node.getLongName());
+            str(node.getVersion());
+            str(node.getRelease());
+            str(node.getNodeType());
+            str(node.getAdminPeer());
+            str(node.getDefaultPeer());
+
+            int mask = 0;
+            if(node.getCA() != null)                   mask |= CA;
+            if(node.getGeoLocation() != null)          mask |= GEO_LOCATION;
+            if(node.getNodeManager() != null)          mask |= NODE_MANAGER;
+            if(node.getOpenIDProvider() != null)       mask |= OPENID_PROVIDER;
+            if(node.getFrontEnd() != null)             mask |= FRONT_END;
+            if(node.getIndexService() != null)         mask |= INDEX_SERVICE;
+            if(node.getAttributeService() != null)     mask |= ATTRIBUTE_SERVICE;
+            if(node.getAuthorizationService() != null) mask |= AUTHORIZATION_SERVICE;
+            if(node.getRegistrationService() != null)  mask |= REGISTRATION_SERVICE;
+            if(node.getOAIRepository() != null)        mask |= OAI_REPOSITORY;
+            if(node.getThreddsService() != null)       mask |= THREDDS_SERVICE;
+            if(node.getGridFTPService() != null)       mask |= GRIDFTP_SERVICE;
+            if(node.getMetricsService() != null)       mask |= METRICS_SERVICE;
+            if(node.getMetrics() != null)              mask |= METRICS;
+            if(node.getRSSFeeds() != null)             mask |= RSS_FEEDS;
+            if(node.getLASService() != null)           mask |= LAS_SERVICE;
+            if(node.getMyProxyService() != null)       mask |= MYPROXY_SERVICE;
+            if(node.getPublishingService() != null)    mask |= PUBLISHING_SERVICE;
+            if(node.getRelyingPartyService() != null)  mask |= RELYING_PARTY_SERVICE;
+            if(node.getPEMCert() != null)              mask |= PEM_CERT;
+            writeVarint(out,mask);
+
+            if((mask & CA) != 0) {
+                CA ca = node.getCA();
+                svc(ca.getEndpoint(),ca.getDn(),ca.getVersion());
+                str(ca.getHash());
+            }
+            if((mask & GEO_LOCATION) != 0) {
+                GeoLocation geo = node.getGeoLocation();
+                svc(geo.getEndpoint(),geo.getDn(),geo.getVersion());
+                str(geo.getLat());
+                str(geo.getLon());
+                str(geo.getCity());
+            }
+            if((mask & NODE_MANAGER) != 0) {
+                NodeManager svc = node.getNodeManager();
+                svc(svc.getEndpoint(),svc.getDn(),svc.getVersion());
+            }
+            if((mask & OPENID_PROVIDER) != 0) {
+                OpenIDProvider svc = node.getOpenIDProvider();
+                svc(svc.getEndpoint(),svc.getDn(),svc.getVersion());
+            }
+            if((mask & FRONT_END) != 0) {
+                FrontEnd svc = node.getFrontEnd();
+                svc(svc.getEndpoint(),svc.getDn(),svc.getVersion());
+            }
+            if((mask & INDEX_SERVICE) != 0) {
+                IndexService svc = node.getIndexService();
+                svc(svc.getEndpoint(),svc.getDn(),svc.getVersion());
+                str(svc.getPort());
+            }
+            if((mask & ATTRIBUTE_SERVICE) != 0) {
+                AttributeService svc = node.getAttributeService();
+                svc(svc.getEndpoint(),svc.getDn(),svc.getVersion());
+                writeVarint(out,svc.getGroup().size());
+                for(Group group : svc.getGroup()) {
+                    str(group.getName());
+                    str(group.getDescription());
+                }
+            }
+            if((mask & AUTHORIZATION_SERVICE) != 0) {
+                AuthorizationService svc = node.getAuthorizationService();
+                svc(svc.getEndpoint(),svc.getDn(),svc.getVersion());
+            }
+            if((mask & REGISTRATION_SERVICE) != 0) {
+                RegistrationService svc = node.getRegistrationService();
+                svc(svc.getEndpoint(),svc.getDn(),svc.getVersion());
+            }
+            if((mask & OAI_REPOSITORY) != 0) {
+                OAIRepository svc = node.getOAIRepository();
+                svc(svc.getEndpoint(),svc.getDn(),svc.getVersion());
+            }
+            if((mask & THREDDS_SERVICE) != 0) {
+                ThreddsService svc = node.getThreddsService();
+                svc(svc.getEndpoint(),svc.getDn(),svc.getVersion());
+            }
+            if((mask & GRIDFTP_SERVICE) != 0) {
+                GridFTPService svc = node.getGridFTPService();
+                svc(svc.getEndpoint(),svc.getDn(),svc.getVersion());
+                writeVarint(out,svc.getConfiguration().size());
+                for(Configuration config : svc.getConfiguration()) {
+                    str((config.getServiceType() == null) ? null : config.getServiceType().value());
+                    str(config.getPort());
+                }
+            }
+            if((mask & METRICS_SERVICE) != 0) {
+                MetricsService svc = node.getMetricsService();
+                svc(svc.getEndpoint(),svc.getDn(),svc.getVersion());
+            }
+            if((mask & METRICS) != 0) {
+                DownloadedData data = node.getMetrics().getDownloadedData();
+                RegisteredUsers users = node.getMetrics().getRegisteredUsers();
+                out.writeByte(((data == null) ? 0 : 1) | ((users == null) ? 0 : 2));
+                if(data != null) {
+                    str(data.getCount());
+                    str(data.getSize());
+                    str(data.getUsers());
+                }
+                if(users != null) str(users.getCount());
+            }
+            if((mask & RSS_FEEDS) != 0) {
+                List<RSSFeed> feeds = node.getRSSFeeds().getRSSFeed();
+                writeVarint(out,feeds.size());
+                for(RSSFeed feed : feeds) {
+                    str(feed.getUrl());
+                    str(feed.getTitle());
+                }
+            }
+            if((mask & LAS_SERVICE) != 0) {
+                LASService svc = node.getLASService();
+                svc(svc.getEndpoint(),svc.getDn(),svc.getVersion());
+            }
+            if((mask & MYPROXY_SERVICE) != 0) {
+                MyProxyService svc = node.getMyProxyService();
+                svc(svc.getEndpoint(),svc.getDn(),svc.getVersion());
+            }
+            if((mask & PUBLISHING_SERVICE) != 0) {
+                PublishingService svc = node.getPublishingService();
+                svc(svc.getEndpoint(),svc.getDn(),svc.getVersion());
+            }
+            if((mask & RELYING_PARTY_SERVICE) != 0) {
+                RelyingPartyService svc = node.getRelyingPartyService();
+                svc(svc.getEndpoint(),svc.getDn(),svc.getVersion());
+            }
+            if((mask & PEM_CERT) != 0) {
+                str(node.getPEMCert().getCert());
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private void svc(String endpoint, String dn, String version) throws IOException {
+            str(endpoint);
+            str(dn);
+            str(version);
+        }
+
+        private void str(String s) throws IOException { writeVarint(out,indexOf(s)); }
+
+        int indexOf(String s) {
+            if(s == null) return 0;
+            Integer i = index.get(s);
+            if(i == null) {
+                index.put(s,i = strings.size());
+                strings.add(s);
+                size += s.length()+2;
+            }
+            return i+1;
+        }
+    }
+
+    //-----------------------------------------------------------------
+    // Decoding
+    //-----------------------------------------------------------------
+
+    public static Registration decode(byte[] data) throws IOException { return decode(data,null); }
+
+    public static Registration decode(byte[] data, NodeFilter filter) throws IOException {
+        return decode(new ByteArrayInputStream(data),filter);
+    }
+
+    /**
+       Reads a registration off the stream, only building the nodes
+       the filter accepts (all of them if there is no filter)
+    */
+    public static Registration decode(InputStream stream, NodeFilter filter) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        boolean inMemory = (stream instanceof ByteArrayInputStream);
+        if(in.readInt() != MAGIC) throw new IOException("Not a compact registration");
+        int version = in.readUnsignedByte();
+        if(version > VERSION) throw new IOException("Unsupported compact registration version ["+version+"] (can read up to "+VERSION+")");
+
+        Registration registration = new Registration();
+        registration.setTimeStamp(in.readLong());
+        registration.setVersion(readText(in,inMemory));
+
+        String[] strings = new String[readLength(in,inMemory)];
+        for(int i=0; i < strings.length; i++) strings[i] = readText(in,inMemory);
+
+        Reader r = new Reader(strings);
+        int numNodes = readLength(in,inMemory);
+        int skipped = 0;
+        for(int i=0; i < numNodes; i++) {
+            String hostname = r.str(in);
+            String nodePeerGroup = r.str(in);
+            int length = readLength(in,inMemory);
+            if(filter != null && !filter.accept(hostname,nodePeerGroup)) {
+                skipFully(in,length);
+                skipped++;
+                continue;
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            r.in = new DataInputStream(new ByteArrayInputStream(record));
+            registration.getNode().add(r.node(hostname,nodePeerGroup));
+        }
+        if(skipped > 0) log.trace("Skipped "+skipped+" of "+numNodes+" nodes");
+        return registration;
+    }
+
+    private static class Reader {
+        final String[] strings;
+        DataInputStream in = null;
+
+        Reader(String[] strings) { this.strings = strings; }
+
+        Node node(String hostname, String nodePeerGroup) throws IOException {
+            Node node = new Node();
+            node.setHostname(hostname);
+            node.setNodePeerGroup(nodePeerGroup);
+            node.setTimeStamp(in.readLong());
+            node.setOrganization(str());
+            node.setNamespace(str());
+            node.setSupportEmail(str());
+            node.setIp(str());
+            node.setDn(str());
+            node.setShortName(str());
+            node.setLongName(str());
+            node.setVersion(str());
+            node.setRelease(str());
+            node.setNodeType(str());
+            node.setAdminPeer(str());
+            node.setDefaultPeer(str());
+
+            int mask = readVarint(in);
+            if((mask & CA) != 0) {
+                CA ca = new CA();
+                ca.setEndpoint(str()); ca.setDn(str()); ca.setVersion(str());
+                ca.setHash(str());
+                node.setCA(ca);
+            }
+            if((mask & GEO_LOCATION) != 0) {
+                GeoLocation geo = new GeoLocation();
+                geo.setEndpoint(str()); geo.setDn(str()); geo.setVersion(str());
+                geo.setLat(str());
+                geo.setLon(str());
+                geo.setCity(str());
+                node.setGeoLocation(geo);
+            }
+            if((mask & NODE_MANAGER) != 0) {
+                NodeManager svc = new NodeManager();
+                svc.setEndpoint(str()); svc.setDn(str()); svc.setVersion(str());
+                node.setNodeManager(svc);
+            }
+            if((mask & OPENID_PROVIDER) != 0) {
+                OpenIDProvider svc = new OpenIDProvider();
+                svc.setEndpoint(str()); svc.setDn(str()); svc.setVersion(str());
+                node.setOpenIDProvider(svc);
+            }
+            if((mask & FRONT_END) != 0) {
+                FrontEnd svc = new FrontEnd();
+                svc.setEndpoint(str()); svc.setDn(str()); svc.setVersion(str());
+                node.setFrontEnd(svc);
+            }
+            if((mask & INDEX_SERVICE) != 0) {
+                IndexService svc = new IndexService();
+                svc.setEndpoint(str()); svc.setDn(str()); svc.setVersion(str());
+                svc.setPort(str());
+                node.setIndexService(svc);
+            }
+            if((mask & ATTRIBUTE_SERVICE) != 0) {
+                AttributeService svc = new AttributeService();
+                svc.setEndpoint(str()); svc.setDn(str()); svc.setVersion(str());
+                for(int n = readLength(in,true); n > 0; n--) {
+                    Group group = new Group();
+                    group.setName(str());
+                    group.setDescription(str());
+                    svc.getGroup().add(group);
+                }
+                node.setAttributeService(svc);
+            }
+            if((mask & AUTHORIZATION_SERVICE) != 0) {
+                AuthorizationService svc = new AuthorizationService();
+                svc.setEndpoint(str()); svc.setDn(str()); svc.setVersion(str());
+                node.setAuthorizationService(svc);
+            }
+            if((mask & REGISTRATION_SERVICE) != 0) {
+                RegistrationService svc = new RegistrationService();
+                svc.setEndpoint(str()); svc.setDn(str()); svc.setVersion(str());
+                node.setRegistrationService(svc);
+            }
+            if((mask & OAI_REPOSITORY) != 0) {
+                OAIRepository svc = new OAIRepository();
+                svc.setEndpoint(str()); svc.setDn(str()); svc.setVersion(str());
+                node.setOAIRepository(svc);
+            }
+            if((mask & THREDDS_SERVICE) != 0) {
+                ThreddsService svc = new ThreddsService();
+                svc.setEndpoint(str()); svc.setDn(str()); svc.setVersion(str());
+                node.setThreddsService(svc);
+            }
+            if((mask & GRIDFTP_SERVICE) != 0) {
+                GridFTPService svc = new GridFTPService();
+                svc.setEndpoint(str()); svc.setDn(str()); svc.setVersion(str());
+                for(int n = readLength(in,true); n > 0; n--) {
+                    Configuration config = new Configuration();
+                    String serviceType = str();
+                    try{
+                        config.setServiceType((serviceType == null) ? null : GridFTPServiceType.fromValue(serviceType));
+                    }catch(IllegalArgumentException e) {
+                        log.warn("Unknown GridFTP service type ["+serviceType+"] for "+node.getHostname());
+                    }
+                    config.setPort(str());
+                    svc.getConfiguration().add(config);
+                }
+                node.setGridFTPService(svc);
+            }
+            if((mask & METRICS_SERVICE) != 0) {
+                MetricsService svc = new MetricsService();
+                svc.setEndpoint(str()); svc.setDn(str()); svc.setVersion(str());
+                node.setMetricsService(svc);
+            }
+            if((mask & METRICS) != 0) {
+                Metrics metrics = new Metrics();
+                int present = in.readUnsignedByte();
+                if((present & 1) != 0) {
+                    DownloadedData data = new DownloadedData();
+                    data.setCount(str());
+                    data.setSize(str());
+                    data.setUsers(str());
+                    metrics.setDownloadedData(data);
+                }
+                if((present & 2) != 0) {
+                    RegisteredUsers users = new RegisteredUsers();
+                    users.setCount(str());
+                    metrics.setRegisteredUsers(users);
+                }
+                node.setMetrics(metrics);
+            }
+            if((mask & RSS_FEEDS) != 0) {
+                RSSFeeds feeds = new RSSFeeds();
+                for(int n = readLength(in,true); n > 0; n--) {
+                    RSSFeed feed = new RSSFeed();
+                    feed.setUrl(str());
+                    feed.setTitle(str());
+                    feeds.getRSSFeed().add(feed);
+                }
+                node.setRSSFeeds(feeds);
+            }
+            if((mask & LAS_SERVICE) != 0) {
+                LASService svc = new LASService();
+                svc.setEndpoint(str()); svc.setDn(str()); svc.setVersion(str());
+                node.setLASService(svc);
+            }
+            if((mask & MYPROXY_SERVICE) != 0) {
+                MyProxyService svc = new MyProxyService();
+                svc.setEndpoint(str()); svc.setDn(str()); svc.setVersion(str());
+                node.setMyProxyService(svc);
+            }
+            if((mask & PUBLISHING_SERVICE) != 0) {
+                PublishingService svc = new PublishingService();
+                svc.setEndpoint(str()); svc.setDn(str()); svc.setVersion(str());
+                node.setPublishingService(svc);
+            }
+            if((mask & RELYING_PARTY_SERVICE) != 0) {
+                RelyingPartyService svc = new RelyingPartyService();
+                svc.setEndpoint(str()); svc.setDn(str()); svc.setVersion(str());
+                node.setRelyingPartyService(svc);
+            }
+            if((mask & PEM_CERT) != 0) {
+                PEMCert cert = new PEMCert();
+                cert.setCert(str());
+                node.setPEMCert(cert);
+            }
+            //(anything left in the record is from a newer writer)
+            return node;
+        }
+
+        String str() throws IOException { return str(in); }
+
+        String str(DataInputStream in) throws IOException {
+            int i = readVarint(in);
+            if(i == 0) return null;
+            if(i < 0 || i > strings.length) throw new IOException("String index "+i+" out of range ("+strings.length+")");
+            return strings[i-1];
+        }
+    }
+
+    //-----------------------------------------------------------------
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        while(length > 0) {
+            int n = in.skipBytes(length);
+            if(n <= 0) {
+                in.readUnsignedByte(); //EOF check
+                n = 1;
+            }
+            length -= n;
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeText(DataOutputStream out, String s) throws IOException {
+        if(s == null) {
+            writeVarint(out,0);
+            return;
+        }
+        byte[] b = s.getBytes("UTF-8");
+        writeVarint(out,b.length+1);
+        out.write(b);
+    }
+
+    /**
+       A (non-negative) length or count, no larger than what is left
+       of in memory input or MAX_LENGTH otherwise, each unit of it
+       taking at least a byte - so it is safe to allocate by
+    */
+    private static int readLength(DataInputStream in, boolean inMemory) throws IOException {
+        int length = readVarint(in);
+        int max = inMemory ? in.available() : MAX_LENGTH;
+        if(length < 0 || length > max) throw new IOException("Length ["+length+"] out of range (at most "+max+")");
+        return length;
+    }
+
+    private static String readText(DataInputStream in, boolean inMemory) throws IOException {
+        int length = readLength(in,inMemory);
+        if(length == 0) return null;
+        byte[] b = new byte[length-1];
+        in.readFully(b);
+        return new String(b,"UTF-8");
+    }
+}
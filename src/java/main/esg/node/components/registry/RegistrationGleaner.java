@@ -57,6 +57,7 @@
 package esg.node.components.registry;
 
 import esg.common.generated.registration.*;
+import esg.common.util.ESGFConfig;
 import esg.common.util.ESGFProperties;
 import esg.common.QuickHash;
 
@@ -128,7 +129,7 @@ public class RegistrationGleaner {
 
     public void init() {
         try {
-            if(props == null) this.props = new ESGFProperties();
+            if(props == null) this.props = ESGFConfig.getInstance().getProperties();
         } catch(Exception e) {
             log.error(e);
         }
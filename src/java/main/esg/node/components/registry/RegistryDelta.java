@@ -0,0 +1,198 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   The payload of a REGISTER_DELTA event: just the node entries that
+   changed (added/updated, as a registration document holding only
+   those nodes) and the ones removed, instead of the whole
+   registration.  What it costs to send and parse then follows the
+   federation's churn rather than its size.
+
+   A delta is only the difference between two states, so it carries
+   the digest (see digestOf) of the node list it was made against
+   ("base") and of the one it leads to ("digest").  A receiver whose
+   own list does not come to "digest" once the delta is merged has
+   missed something along the way, and pulls the sender's full state
+   (REGISTER_PULL).
+
+   The payload is a plain map of strings (and a map of removal times)
+   so that it travels over Hessian without any classes of ours.
+
+**/
+package esg.node.components.registry;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+import esg.common.Utils;
+import esg.common.generated.registration.*;
+
+public final class RegistryDelta {
+
+    private static final Log log = LogFactory.getLog(RegistryDelta.class);
+
+    public static final String BASE    = "base";
+    public static final String DIGEST  = "digest";
+    public static final String NODES   = "nodes";
+    public static final String REMOVED = "removed";
+
+    private static JAXBContext jaxbContext = null;
+
+    private RegistryDelta() { }
+
+    private static synchronized JAXBContext context() throws JAXBException {
+        if(jaxbContext == null) jaxbContext = JAXBContext.newInstance(Registration.class);
+        return jaxbContext;
+    }
+
+    /**
+       A digest of a node list: the same set of entries (by hostname
+       and timestamp) gives the same digest whatever its order, and
+       whatever the registration's own timestamp.
+    */
+    public static String digestOf(Collection<Node> nodes) {
+        List<Node> sorted = new ArrayList<Node>(nodes);
+        Collections.sort(sorted,new Comparator<Node>() {
+                public int compare(Node a, Node b) { return a.getHostname().compareTo(b.getHostname()); }
+            });
+        StringBuilder sb = new StringBuilder(sorted.size()*48);
+        for(Node node : sorted) { sb.append(node.getHostname()).append('@').append(node.getTimeStamp()).append(';'); }
+        return Utils.hashSum(sb.toString());
+    }
+
+    public static HashMap<String,Object> createPayload(RegistryUpdateDigest rud) {
+        Registration changed = new Registration();
+        changed.setVersion(ESGFRegistry.PROTOCOL_VERSION);
+        changed.setTimeStamp(rud.timeStamp());
+        if(rud.updatedNodes() != null) changed.getNode().addAll(rud.updatedNodes());
+
+        HashMap<String,Object> payload = new HashMap<String,Object>();
+        payload.put(BASE,rud.baseDigest());
+        payload.put(DIGEST,rud.digest());
+        payload.put(NODES,marshal(changed));
+        payload.put(REMOVED,new HashMap<String,Long>(rud.removedNodes()));
+        return payload;
+    }
+
+    public static boolean isPayload(Object payload) {
+        return (payload instanceof Map) && (((Map<?,?>)payload).get(NODES) instanceof String) && (((Map<?,?>)payload).get(DIGEST) instanceof String);
+    }
+
+    //For the event's checksum (used to recognize payloads seen before)
+    public static String checksumOf(Map<?,?> payload) {
+        return Utils.hashSum(payload.get(BASE)+":"+payload.get(DIGEST)+":"+payload.get(NODES)+":"+payload.get(REMOVED));
+    }
+
+    public static String baseOf(Map<?,?> payload) { return (String)payload.get(BASE); }
+    public static String digestOf(Map<?,?> payload) { return (String)payload.get(DIGEST); }
+
+    //the changed nodes (as a registration, for merging)
+    public static Registration nodesOf(Map<?,?> payload) { return unmarshal((String)payload.get(NODES)); }
+
+    //hostname -> when it was removed
+    public static Map<String,Long> removedOf(Map<?,?> payload) {
+        Object removed = payload.get(REMOVED);
+        if(!(removed instanceof Map)) return Collections.<String,Long>emptyMap();
+        Map<String,Long> out = new HashMap<String,Long>();
+        for(Map.Entry<?,?> entry : ((Map<?,?>)removed).entrySet()) {
+            if(entry.getValue() instanceof Number) out.put(entry.getKey().toString(),((Number)entry.getValue()).longValue());
+        }
+        return out;
+    }
+
+    static String marshal(Registration registration) {
+        try{
+            StringWriter sw = new StringWriter();
+            Marshaller m = context().createMarshaller();
+            m.marshal(registration,sw);
+            return sw.toString();
+        }catch(JAXBException e) {
+            log.error("Could not write out registration delta",e);
+            return null;
+        }
+    }
+
+    static Registration unmarshal(String content) {
+        if(content == null) return null;
+        try{
+            Unmarshaller u = context().createUnmarshaller();
+            JAXBElement<Registration> root = u.unmarshal(new StreamSource(new StringReader(content)),Registration.class);
+            return root.getValue();
+        }catch(JAXBException e) {
+            log.error("Could not read registration delta",e);
+            return null;
+        }
+    }
+}
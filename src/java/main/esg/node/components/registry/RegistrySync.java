@@ -0,0 +1,255 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   The payloads of a REGISTER_SYNC exchange: a push-pull anti-entropy
+   round between two peers that moves only the node entries they
+   disagree on, in both directions.
+
+   The node list is split into BUCKETS buckets by hostname, and each
+   bucket summarized by its digest (see RegistryDelta.digestOf).  A
+   round between A (who starts it) and B goes:
+
+     A -> B  SUMMARY   A's digest and bucket digests
+     B -> A  ENTRIES   (only if the digests differ) B's bucket digests
+                       and the hostname -> timestamp of its entries in
+                       the buckets that differ
+     A -> B  EXCHANGE  A's entries that are newer or that B lacks, and
+                       the hostnames of those A wants from B
+     B -> A  NODES     (only if A wants some) the entries asked for
+
+   Peers in step stop after the first (small) message, peers that
+   aren't send what it takes to fix the buckets that differ and no
+   more.  Node entries travel in compact form (see RegistrationCodec),
+   every node that knows REGISTER_SYNC reads it.
+
+**/
+package esg.node.components.registry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+import esg.common.Utils;
+import esg.common.generated.registration.*;
+
+public final class RegistrySync {
+
+    private static final Log log = LogFactory.getLog(RegistrySync.class);
+
+    public static final int BUCKETS = 32;
+
+    public static final String PHASE   = "phase";
+    public static final String DIGEST  = "digest";
+    public static final String DIGESTS = "digests";
+    public static final String STAMPS  = "stamps";
+    public static final String NODES   = "nodes";
+    public static final String WANT    = "want";
+
+    //phases
+    public static final String SUMMARY  = "summary";
+    public static final String ENTRIES  = "entries";
+    public static final String EXCHANGE = "exchange";
+    public static final String NODE_ENTRIES = "nodes";
+
+    private RegistrySync() { }
+
+    //(String.hashCode is fixed by the spec, so every node agrees)
+    public static int bucketOf(String hostname) { return (hostname.hashCode() & 0x7fffffff) % BUCKETS; }
+
+    public static ArrayList<String> bucketDigests(Collection<Node> nodes) {
+        List<List<Node>> buckets = new ArrayList<List<Node>>(BUCKETS);
+        for(int i=0; i < BUCKETS; i++) buckets.add(new ArrayList<Node>());
+        for(Node node : nodes) buckets.get(bucketOf(node.getHostname())).add(node);
+        ArrayList<String> digests = new ArrayList<String>(BUCKETS);
+        for(List<Node> bucket : buckets) digests.add(RegistryDelta.digestOf(bucket));
+        return digests;
+    }
+
+    //The buckets whose digests differ (all of them if the other side
+    //does not bucket the way we do)
+    public static Set<Integer> differingBuckets(List<String> ours, Object theirs) {
+        Set<Integer> differing = new HashSet<Integer>();
+        List<?> other = (theirs instanceof List) ? (List<?>)theirs : Collections.emptyList();
+        for(int i=0; i < BUCKETS; i++) {
+            if(other.size() != BUCKETS || !ours.get(i).equals(other.get(i))) differing.add(i);
+        }
+        return differing;
+    }
+
+    public static HashMap<String,Long> stampsOf(Collection<Node> nodes, Set<Integer> buckets) {
+        HashMap<String,Long> stamps = new HashMap<String,Long>();
+        for(Node node : nodes) {
+            if(buckets.contains(bucketOf(node.getHostname()))) stamps.put(node.getHostname(),node.getTimeStamp());
+        }
+        return stamps;
+    }
+
+    //-----------------------------------------------------------------
+    // Payloads
+    //-----------------------------------------------------------------
+
+    public static HashMap<String,Object> createSummary(Collection<Node> nodes) {
+        HashMap<String,Object> payload = new HashMap<String,Object>();
+        payload.put(PHASE,SUMMARY);
+        payload.put(DIGEST,RegistryDelta.digestOf(nodes));
+        payload.put(DIGESTS,bucketDigests(nodes));
+        return payload;
+    }
+
+    //The answer to a summary, null if we are already in step
+    public static HashMap<String,Object> createEntries(Collection<Node> nodes, Map<?,?> summary) {
+        String digest = RegistryDelta.digestOf(nodes);
+        if(digest.equals(summary.get(DIGEST))) return null;
+        ArrayList<String> digests = bucketDigests(nodes);
+        HashMap<String,Object> payload = new HashMap<String,Object>();
+        payload.put(PHASE,ENTRIES);
+        payload.put(DIGEST,digest);
+        payload.put(DIGESTS,digests);
+        payload.put(STAMPS,stampsOf(nodes,differingBuckets(digests,summary.get(DIGESTS))));
+        return payload;
+    }
+
+    /**
+       Works out, from the other side's entries, which of our nodes it
+       should have (put in give) and which of its hostnames we should
+       have (put in want).  Only the buckets that differ are looked at.
+    */
+    public static void compare(Collection<Node> nodes, Map<?,?> entries, Collection<Node> give, Collection<String> want) {
+        Set<Integer> buckets = differingBuckets(bucketDigests(nodes),entries.get(DIGESTS));
+        Map<String,Long> theirs = stampsOf(entries);
+        Map<String,Long> ours = stampsOf(nodes,buckets);
+        for(Node node : nodes) {
+            if(!buckets.contains(bucketOf(node.getHostname()))) continue;
+            Long theirStamp = theirs.get(node.getHostname());
+            if(theirStamp == null || theirStamp < node.getTimeStamp()) give.add(node);
+        }
+        for(Map.Entry<String,Long> entry : theirs.entrySet()) {
+            Long ourStamp = ours.get(entry.getKey());
+            if(ourStamp == null || ourStamp < entry.getValue()) want.add(entry.getKey());
+        }
+    }
+
+    public static HashMap<String,Object> createExchange(Registration give, Collection<String> want) {
+        HashMap<String,Object> payload = new HashMap<String,Object>();
+        payload.put(PHASE,EXCHANGE);
+        payload.put(NODES,RegistrationCodec.encode(give));
+        payload.put(WANT,new ArrayList<String>(want));
+        return payload;
+    }
+
+    public static HashMap<String,Object> createNodes(Registration wanted) {
+        HashMap<String,Object> payload = new HashMap<String,Object>();
+        payload.put(PHASE,NODE_ENTRIES);
+        payload.put(NODES,RegistrationCodec.encode(wanted));
+        return payload;
+    }
+
+    public static boolean isPayload(Object payload) {
+        return (payload instanceof Map) && (((Map<?,?>)payload).get(PHASE) instanceof String);
+    }
+
+    public static String phaseOf(Map<?,?> payload) { return (String)payload.get(PHASE); }
+
+    //For the event's checksum
+    public static String checksumOf(Map<?,?> payload) {
+        Object nodes = payload.get(NODES);
+        return Utils.hashSum(payload.get(PHASE)+":"+payload.get(DIGEST)+":"+payload.get(WANT)+":"+
+                             ((nodes instanceof byte[]) ? Utils.hashSum(new String((byte[])nodes,java.nio.charset.Charset.forName("ISO-8859-1"))) : ""));
+    }
+
+    //hostname -> timestamp
+    public static Map<String,Long> stampsOf(Map<?,?> payload) {
+        Object stamps = payload.get(STAMPS);
+        if(!(stamps instanceof Map)) return Collections.<String,Long>emptyMap();
+        Map<String,Long> out = new HashMap<String,Long>();
+        for(Map.Entry<?,?> entry : ((Map<?,?>)stamps).entrySet()) {
+            if(entry.getValue() instanceof Number) out.put(entry.getKey().toString(),((Number)entry.getValue()).longValue());
+        }
+        return out;
+    }
+
+    public static List<String> wantOf(Map<?,?> payload) {
+        Object want = payload.get(WANT);
+        if(!(want instanceof List)) return Collections.<String>emptyList();
+        List<String> out = new ArrayList<String>();
+        for(Object hostname : (List<?>)want) out.add(String.valueOf(hostname));
+        return out;
+    }
+
+    //The node entries carried (as a registration, for merging), null if none or unreadable
+    public static Registration nodesOf(Map<?,?> payload, RegistrationCodec.NodeFilter filter) {
+        Object nodes = payload.get(NODES);
+        if(!(nodes instanceof byte[])) return null;
+        try{
+            return RegistrationCodec.decode((byte[])nodes,filter);
+        }catch(java.io.IOException e) {
+            log.warn("Unreadable node entries in sync payload: "+e.getMessage());
+            return null;
+        }
+    }
+}
@@ -56,6 +56,11 @@
 ***************************************************************************/
 package esg.node.components.registry;
 
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import esg.common.generated.registration.*;
 
@@ -66,13 +71,38 @@ import esg.common.generated.registration.*;
    form of the 1) actual xml text to be transmitted, 2) its checksum
    and 3) the list of nodes represented.
 
+   A digest made from a change to the registry (a merge, a removal)
+   also knows what the change was: the digests of the node list
+   before and after it and the nodes removed, so the change can be
+   gossiped as a delta (see RegistryDelta) rather than the whole
+   document.
+
+   It may also carry the document in compact form (see
+   RegistrationCodec) for the peers that read that instead.
+
+   Only the document and checksum are kept when a digest is
+   serialized (ex: into a component's event journal), the (JAXB)
+   nodes, the compact document and the delta are not.
+
 **/
 
-public class RegistryUpdateDigest {
+public class RegistryUpdateDigest implements Serializable {
+
+    //pinned (to what the current form computes to) so journal entries
+    //stay readable across builds that change the class's members
+    private static final long serialVersionUID = -3867665822462506337L;
+
+    //Coalescing key for events carrying a digest (only the newest state matters)
+    public static final String COALESCE_KEY = "registry-state";
 
     private String xmlDocument = null;
     private String xmlChecksum = null;
-    private Set<Node> updatedNodes = null;
+    private transient Set<Node> updatedNodes = null;
+    private transient String baseDigest = null;
+    private transient String digest = null;
+    private transient Map<String,Long> removedNodes = null;
+    private transient long timeStamp = 0L;
+    private transient byte[] compactDocument = null;
     
     public RegistryUpdateDigest (String xmlDocument, String xmlChecksum, Set<Node> updatedNodes) {
         this.xmlDocument = xmlDocument;
@@ -87,4 +117,62 @@ public class RegistryUpdateDigest {
     public String xmlDocument() { return this.xmlDocument; }
     public String xmlChecksum() { return this.xmlChecksum; }
     public Set<Node> updatedNodes() { return this.updatedNodes; }
+    public byte[] compactDocument() { return this.compactDocument; }
+    public RegistryUpdateDigest setCompactDocument(byte[] compactDocument) {
+        this.compactDocument = compactDocument;
+        return this;
+    }
+
+    //The change this state came from: the node list digests before
+    //and after it, the nodes removed (hostname -> when) and the
+    //registration's timestamp
+    public RegistryUpdateDigest setDelta(String baseDigest, String digest, Map<String,Long> removedNodes, long timeStamp) {
+        this.baseDigest = baseDigest;
+        this.digest = digest;
+        this.removedNodes = (removedNodes == null) ? new HashMap<String,Long>() : removedNodes;
+        this.timeStamp = timeStamp;
+        return this;
+    }
+    public boolean hasDelta() { return (baseDigest != null) && (digest != null) && !baseDigest.equals(digest); }
+    public String baseDigest() { return this.baseDigest; }
+    public String digest() { return this.digest; }
+    public Map<String,Long> removedNodes() { return (removedNodes == null) ? Collections.<String,Long>emptyMap() : removedNodes; }
+    public long timeStamp() { return this.timeStamp; }
+
+    //Folds two digests into one: the newer one's document and
+    //checksum, with the union of the updated nodes (keeping the most
+    //recent entry for each host).  The deltas only fold into one if
+    //the newer one picks up where the older left off, otherwise the
+    //result goes out as full state.
+    public static RegistryUpdateDigest merge(RegistryUpdateDigest older, RegistryUpdateDigest newer) {
+        if(older.updatedNodes == null && newer.updatedNodes == null) {
+            return new RegistryUpdateDigest(newer.xmlDocument,newer.xmlChecksum).setCompactDocument(newer.compactDocument);
+        }
+        Map<String,Node> nodes = new HashMap<String,Node>();
+        addNewest(nodes,older.updatedNodes);
+        addNewest(nodes,newer.updatedNodes);
+        RegistryUpdateDigest merged = new RegistryUpdateDigest(newer.xmlDocument,newer.xmlChecksum,new HashSet<Node>(nodes.values()));
+        merged.setCompactDocument(newer.compactDocument);
+        if(older.hasDelta() && newer.hasDelta() && older.digest.equals(newer.baseDigest)) {
+            Map<String,Long> removed = new HashMap<String,Long>(older.removedNodes());
+            removed.keySet().removeAll(nodes.keySet());
+            removed.putAll(newer.removedNodes());
+            for(String hostname : newer.removedNodes().keySet()) {
+                Node node = nodes.get(hostname);
+                if(node != null && merged.updatedNodes.contains(node)) merged.updatedNodes.remove(node);
+            }
+            merged.setDelta(older.baseDigest,newer.digest,removed,newer.timeStamp);
+        }
+        return merged;
+    }
+
+    private static void addNewest(Map<String,Node> nodes, Set<Node> updatedNodes) {
+        if(updatedNodes == null) return;
+        Node known = null;
+        for(Node node : updatedNodes) {
+            if(((known = nodes.get(node.getHostname())) == null) || (known.getTimeStamp() < node.getTimeStamp())) {
+                nodes.put(node.getHostname(),node);
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -58,6 +58,7 @@ package esg.node.components.registry;
 
 import esg.common.generated.registration.*;
 import esg.common.generated.whitelist.*;
+import esg.common.util.ESGFConfig;
 import esg.common.util.ESGFProperties;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
@@ -107,7 +108,7 @@ public class ShardsListGleaner {
 
     private void init() {
         try {
-            if(props == null) this.props = new ESGFProperties();
+            if(props == null) this.props = ESGFConfig.getInstance().getProperties();
             else this.props = props;
 
             if (null != (shardsListPath = System.getenv().get("ESGF_HOME"))) {
@@ -76,15 +76,16 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import esg.common.Utils;
+import esg.common.util.ESGFConfig;
 import esg.common.util.ESGFProperties;
 import esg.common.service.ESGRemoteEvent;
+import esg.common.service.ESGPayloadCodec;
 import esg.node.core.ESGPeerListener;
 import esg.node.core.AbstractDataNodeManager;
 import esg.node.core.ESGDataNodeManager;
@@ -92,6 +93,8 @@ import esg.node.core.AbstractDataNodeComponent;
 import esg.node.core.DataNodeComponent;
 import esg.node.core.ESGEvent;
 import esg.node.core.ESGEventHelper;
+import esg.node.core.ESGEventMerger;
+import esg.node.core.ESGEventTrace;
 import esg.node.core.ESGJoinEvent;
 import esg.node.core.ESGPeerEvent;
 import esg.node.core.ESGPeer;
@@ -100,6 +103,7 @@ import esg.node.core.ESGCallableEvent;
 import esg.node.core.ESGCallableFutureEvent;
 
 import esg.common.generated.registration.*;
+import esg.node.components.registry.RegistryDelta;
 import esg.node.components.registry.RegistryUpdateDigest;
 
 public class ESGConnectionManager extends AbstractDataNodeComponent implements ESGPeerListener {
@@ -113,16 +117,21 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
     private Map<String,ESGPeer> unavailablePeers = null;
     private RegistryUpdateDigest lastRud = null;
     private ESGPeer defaultPeer = null;
+    private ESGPeerProber prober = null;
+    private volatile ESGPeerSender sender = null;
     private boolean shutdownHookLatch = false;
 
     public ESGConnectionManager(String name) {
         super(name);
         log.info("Instantiating ESGConnectionManager...");
+        getESGEventQueue().setEventMerger(new RegistryUpdateMerger());
     }
     
     //Bootstrap the rest of the subsystems... (ESGDataNodeServiceImpl really bootstraps)
     public void init() {
         log.info("Initializing ESGFConnectionManager...");
+        //peer join events from the manager
+        getDataNodeManager().subscribe(this,ESGJoinEvent.class);
         lastDispatchTime = new AtomicLong(-1L);
 
         //NOTE:
@@ -133,19 +142,35 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
         if(unavailablePeers == null) unavailablePeers = Collections.synchronizedMap(new HashMap<String,ESGPeer>());
         
         try{
-            props = new ESGFProperties();
+            props = ESGFConfig.getInstance().getProperties();
+            prober = new ESGPeerProber(Integer.parseInt(props.getProperty("conn.ping.concurrency",""+ESGPeerProber.DEFAULT_CONCURRENCY).trim()),
+                                       Long.parseLong(props.getProperty("conn.ping.timeout",""+ESGPeerProber.DEFAULT_TIMEOUT).trim()));
+            sender = new ESGPeerSender(Integer.parseInt(props.getProperty("conn.send.threads",""+ESGPeerSender.DEFAULT_THREADS).trim()),
+                                       Integer.parseInt(props.getProperty("conn.send.outstanding",""+ESGPeerSender.DEFAULT_OUTSTANDING).trim()),
+                                       Long.parseLong(props.getProperty("conn.send.timeout",""+ESGPeerSender.DEFAULT_TIMEOUT).trim()));
+            //what we advertise (and so what peers may send us) and what we bother compressing
+            ESGPayloadCodec.setCompression(Boolean.valueOf(props.getProperty("conn.compress","true").trim()));
+            ESGPayloadCodec.setMinSize(Integer.parseInt(props.getProperty("conn.compress.min",""+ESGPayloadCodec.DEFAULT_MIN_SIZE).trim()));
+            ESGPayloadCodec.setMaxSize(Integer.parseInt(props.getProperty("conn.compress.max",""+ESGPayloadCodec.DEFAULT_MAX_SIZE).trim()));
             periodicallyPingToPeers();
             periodicallyRegisterToPeers();
         }catch(java.io.IOException e) {
             System.out.println("Damn, ESGConnectionManager, can't fire up... :-(");
             log.error(e);
         }
+        if(prober == null) prober = new ESGPeerProber(ESGPeerProber.DEFAULT_CONCURRENCY,ESGPeerProber.DEFAULT_TIMEOUT);
+        if(sender == null) sender = new ESGPeerSender(ESGPeerSender.DEFAULT_THREADS,ESGPeerSender.DEFAULT_OUTSTANDING,ESGPeerSender.DEFAULT_TIMEOUT);
 
         Runtime.getRuntime().addShutdownHook(new Thread() {
                 public void run(){
                     if(ESGConnectionManager.this.shutdownHookLatch){
                         System.out.println("Running Connection Manager Shutdown Hook");
-                        ESGConnectionManager.this.dispatchUnRegisterToPeers();
+                        //(no sender, or peers, once we have been unregistered)
+                        ESGPeerSender sender_ = ESGConnectionManager.this.sender;
+                        if(sender_ != null) {
+                            ESGConnectionManager.this.dispatchUnRegisterToPeers();
+                            sender_.flush(5000);
+                        }
                         System.out.println("Bye!");
                     }
                     ESGConnectionManager.this.shutdownHookLatch=true;
@@ -169,31 +194,24 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
         log.trace("connection ping delay:  "+delay+" sec");
         log.trace("connection ping period: "+period+" sec");
        
-        Timer timer = new Timer("Peer-Sweep-Timer");
-        timer.schedule(new TimerTask() { 
+        getDataNodeManager().getScheduler().schedule("conn.ping",new Runnable() {
                 public final void run() {
                     ESGConnectionManager.this.pingToPeers();
                 }
-            },delay*1000,period*1000);
+            },delay,period,TimeUnit.SECONDS);
     }
 
-    //TODO: Instead of making this a sync'ed method, turn this into a
-    //"future" tracking invocation and 'catch' responses or lack there
-    //of without locking things up.
+    //Pings the peers marked unavailable all at once (see
+    //ESGPeerProber); the ones that answer bring themselves back
+    //through their peer events.
     private void pingToPeers() {
-        java.util.Vector<ESGPeer> peers_ = new java.util.Vector<ESGPeer>();
-        peers_.addAll(unavailablePeers.values());
-        for(ESGPeer peer: peers_) {
-            log.trace("Inspecting ["+peers_.size()+"] marked peers");
-            if(peer.equals(defaultPeer)) log.trace("(default peer)");
-            //TODO: put in random selection and or heartbeat/leasing here...
-            //this is where the relationship maintenance code goes
-            //and detecting when folks fall out of the system.
-            //maybe ping should be expanded to put in lease negotiation proper.
-            peer.ping();
-        }
-        peers_.clear();
-        peers_ = null; //gc niceness...
+        List<ESGPeer> peers_ = new ArrayList<ESGPeer>(unavailablePeers.values());
+        log.trace("Inspecting ["+peers_.size()+"] marked peers");
+        //TODO: put in random selection and or heartbeat/leasing here...
+        //this is where the relationship maintenance code goes
+        //and detecting when folks fall out of the system.
+        //maybe ping should be expanded to put in lease negotiation proper.
+        prober.sweep(peers_);
     }
 
     //Does a brute force check (pings) against all known peers
@@ -201,18 +219,20 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
     //return value of true means that some pruning did take place.
     public boolean prune() {
         log.trace("prune() ...");
-        int pruneCount = 0;
-        java.util.Vector<ESGPeer> peers_ = new java.util.Vector<ESGPeer>();
-        peers_.addAll(peers.values());
+        final AtomicLong pruneCount = new AtomicLong(0L);
+        final AtomicLong timedOutCount = new AtomicLong(0L);
+        List<ESGPeer> peers_ = new ArrayList<ESGPeer>(peers.values());
         log.trace("Inspecting ["+peers_.size()+"] currently known peers");
-        for(ESGPeer peer: peers_) {
-            if(peer.equals(defaultPeer)) log.trace("(default peer)");
-            if(!peer.ping()) {
-                pruneCount++;
-                log.trace("Pruning out unresponsive peer: ("+pruneCount+") "+peer.getServiceURL());
-            }
-        }
-        log.trace("Total number of pruned peers: ["+pruneCount+"] / ["+peers_.size()+"]");
+        ESGPeerProber.Sweep sweep = prober.sweep(peers_,new ESGPeerProber.ProbeListener() {
+                public void probed(ESGPeer peer, boolean alive, boolean timedOut, long millis) {
+                    if(peer.equals(defaultPeer)) log.trace("(default peer)");
+                    //a timed out ping is still out, its peer is only
+                    //moved to unavailable (and pruned) if it fails
+                    if(timedOut) log.trace("Not (yet) pruning peer whose ping timed out: ("+timedOutCount.incrementAndGet()+") "+peer.getServiceURL());
+                    else if(!alive) log.trace("Pruning out unresponsive peer: ("+pruneCount.incrementAndGet()+") "+peer.getServiceURL());
+                }
+            });
+        log.trace("Total number of pruned peers: ["+pruneCount+"] / ["+peers_.size()+"], timed out: ["+timedOutCount+"] ("+sweep.getMillis()+"ms)");
         peers_.clear();
 
         peers_.addAll(unavailablePeers.values());
@@ -224,8 +244,8 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
 
         peers_.clear();
         peers_ = null; //gc niceness...
-        log.trace("--> returning "+(pruneCount > 0));
-        return (pruneCount > 0);
+        log.trace("--> returning "+(pruneCount.get() > 0));
+        return (pruneCount.get() > 0);
     }
 
     private void periodicallyRegisterToPeers() {
@@ -239,12 +259,10 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
         log.trace("connection registration delay:  "+delay+" sec");
         log.trace("connection registration period: "+period+" sec");
 	
-        Timer timer = new Timer("Reg-Repush-Timer");
-        
         //This will transition from active map to inactive map
-        timer.schedule(new TimerTask() {
+        getDataNodeManager().getScheduler().schedule("conn.repush",new Runnable() {
                 public final void run() {
-                    log.debug("(Timer) Re-Pushing My Last Registry State (Event)");
+                    log.debug("(Scheduled) Re-Pushing My Last Registry State (Event)");
                     long elapsedTime=(System.currentTimeMillis() - ESGConnectionManager.this.lastDispatchTime.longValue());
                     long window=((period*1000) + (Math.abs(random.nextLong()) % slop_bounds)); //milliseconds
 
@@ -276,7 +294,7 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
                         log.debug("NOT performing re-push - last message sent approx "+(elapsedTime/1000)+"secs ago < "+(window/1000)+"secs");
                     }
                 }
-            },delay*1000,period*1000);
+            },delay,period,TimeUnit.SECONDS);
     }
 
 
@@ -310,6 +328,8 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
         //clear out my datastrutures of node proxies
         peers.clear(); peers = null; //gc niceness
         unavailablePeers.clear(); unavailablePeers = null; //gc niceness
+        if(prober != null) { prober.shutdown(); prober = null; }
+        if(sender != null) { sender.shutdown(); sender = null; }
         super.unregister();
     }
 
@@ -350,12 +370,12 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
                 log.warn("(bootstrapping) Sorry no registration information yet available... check again later");
                 return false;
             }
-            defaultPeer.handleESGRemoteEvent(new ESGRemoteEvent(Utils.getMyServiceUrl(),
-                                                                ESGRemoteEvent.REGISTER,
-                                                                registration,
-                                                                ephemeralGleaner.getMyChecksum(),
-                                                                Utils.nextSeq(),
-                                                                5));
+            sender.send(defaultPeer,new ESGRemoteEvent(Utils.getMyServiceUrl(),
+                                                       ESGRemoteEvent.REGISTER,
+                                                       registration,
+                                                       ephemeralGleaner.getMyChecksum(),
+                                                       Utils.nextSeq(),
+                                                       5),sendCallback);
             log.info("Bootstrapping... sending out my registration... ");
             log.trace("My Registration is:"+ registration);
             ephemeralGleaner = null; //gc niceness.
@@ -364,14 +384,14 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
         //delagate through with no so "new" state :-)
         if(lastRud != null) {
             log.trace("Using cached state...");
-            return this.sendOutNewRegistryState(this.lastRud.xmlDocument(),this.lastRud.xmlChecksum());
+            return this.sendOutNewRegistryState(this.lastRud);
         }
         return false;
     }
     
     //Helper method containing the details of the Gossip protocol dispatch logic
     //Basically - choose two random peers (that are not me) to send my state to.
-    private synchronized boolean sendOutNewRegistryState(String xmlDocument, String xmlChecksum) {
+    private synchronized boolean sendOutNewRegistryState(RegistryUpdateDigest rud) {
         log.trace("Sending out registry state...");
         
         if((peers.size() < 1) && (defaultPeer == null)) {
@@ -380,14 +400,103 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
         }
         ESGRemoteEvent myRegistryState = new ESGRemoteEvent(Utils.getMyServiceUrl(),
                                                             ESGRemoteEvent.REGISTER,
-                                                            xmlDocument,
-                                                            xmlChecksum,
+                                                            rud.xmlDocument(),
+                                                            rud.xmlChecksum(),
                                                             Utils.nextSeq(),
                                                             5);
+        //(what goes to peers that read the compact form, see ESGPayloadCodec)
+        myRegistryState.setCompactPayload(rud.compactDocument());
+        //so the peers' traces can be lined up with ours
+        myRegistryState.setTraceId(ESGEventTrace.currentId());
         return dispatchToRandomPeers(myRegistryState);
     }
 
 
+    //Same as above, but only what changed (see RegistryDelta)
+    private synchronized boolean sendOutRegistryDelta(RegistryUpdateDigest rud) {
+        if((peers.size() < 1) && (defaultPeer == null)) {
+            log.info("No one to send to... you have no peers.  Nothing further to do. waiting to be contacted... (I am probably my own default peer)");
+            return false;
+        }
+        java.util.HashMap<String,Object> payload = RegistryDelta.createPayload(rud);
+        log.trace("Sending out registry delta: ["+((rud.updatedNodes() == null) ? 0 : rud.updatedNodes().size())+"] changed ["+
+                  rud.removedNodes().size()+"] removed nodes");
+        ESGRemoteEvent myRegistryDelta = new ESGRemoteEvent(Utils.getMyServiceUrl(),
+                                                            ESGRemoteEvent.REGISTER_DELTA,
+                                                            payload,
+                                                            RegistryDelta.checksumOf(payload),
+                                                            Utils.nextSeq(),
+                                                            5);
+        myRegistryDelta.setTraceId(ESGEventTrace.currentId());
+        return dispatchToRandomPeers(myRegistryDelta);
+    }
+
+    //Full state pulls (REGISTER_PULL): either the registry asking us
+    //to pull from one of the given peers (it fell out of step with a
+    //delta), or a peer asking us for our full registration, which it
+    //gets back as a (one hop) REGISTER.
+    private boolean handlePullEvent(ESGEvent event) {
+        ESGPeer targetPeer = null;
+        if(event.getData() instanceof List) {
+            for(Object url : (List)event.getData()) {
+                if((targetPeer = peers.get(url)) != null) break;
+            }
+            if(targetPeer == null) {
+                log.debug("Cannot pull full registration, none of "+event.getData()+" are available peers");
+                return false;
+            }
+            log.debug("Pulling full registration from "+targetPeer.getServiceURL());
+            return sender.send(targetPeer,event.getRemoteEvent(),sendCallback);
+        }
+
+        String origin = event.getRemoteEvent().getOrigin();
+        if(lastRud == null || lastRud.xmlDocument() == null) {
+            log.debug("No registration to answer pull from "+origin+" with yet");
+            return false;
+        }
+        if((targetPeer = peers.get(origin)) == null) {
+            log.debug("Pull from "+origin+" which is not an available peer (dropped)");
+            return false;
+        }
+        log.debug("Answering full registration pull from "+origin);
+        return sender.send(targetPeer,new ESGRemoteEvent(Utils.getMyServiceUrl(),
+                                                         ESGRemoteEvent.REGISTER,
+                                                         lastRud.xmlDocument(),
+                                                         lastRud.xmlChecksum(),
+                                                         Utils.nextSeq(),
+                                                         1).setCompactPayload(lastRud.compactDocument()),sendCallback);
+    }
+
+
+    //Anti-entropy rounds (REGISTER_SYNC, see RegistrySync): the
+    //registry starting one (with a peer of our choosing, one that
+    //takes part in them) or answering a step of one (back to the
+    //peer named in the event).
+    private boolean handleSyncEvent(ESGEvent event) {
+        ESGPeer targetPeer = null;
+        if(event.getData() instanceof String) {
+            if((targetPeer = peers.get(event.getData())) == null) {
+                log.debug("Sync step for "+event.getData()+" which is not an available peer (dropped)");
+                return false;
+            }
+        }else {
+            List<ESGPeer> candidates = new ArrayList<ESGPeer>();
+            synchronized(peers) {
+                for(ESGPeer peer : peers.values()) {
+                    if((peer.getCapabilities() & ESGPayloadCodec.SYNC) != 0) candidates.add(peer);
+                }
+            }
+            if(candidates.isEmpty()) {
+                log.trace("No peer (yet) known to take part in registry sync rounds");
+                return false;
+            }
+            targetPeer = candidates.get((int)(Math.random()*candidates.size()));
+            log.debug("Starting registry sync round with "+targetPeer.getServiceURL());
+        }
+        return sender.send(targetPeer,event.getRemoteEvent(),sendCallback);
+    }
+
+
     //--------------------------------------------
     //Remote Event Dispatching
     //--------------------------------------------
@@ -400,8 +509,8 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
         //If we have no peers we have to resort to using our defaultPeer...
         if((peers.size() == 0)  && (defaultPeer != null)) {
             log.info("You have no peers - resorting to harassing the default peer ["+defaultPeer.getServiceURL()+"]");
-            defaultPeer.handleESGRemoteEvent(remoteEvent);
-            return true;
+            ESGRemoteEvent outbound = readsEvent(defaultPeer,remoteEvent) ? remoteEvent : fullRegistrationFor(remoteEvent);
+            return (outbound != null) && sender.send(defaultPeer,outbound,sendCallback);
         }
         //------------
 
@@ -472,9 +581,18 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
                 //you can. And try to stay on the stack not heap (yes,
                 //in Java it's hard)
 
+                //NOTE: The send is queued up, not made here (see
+                //ESGPeerSender), a peer that still has its fill of
+                //sends out is passed over for this round.
                 ESGPeer chosenPeer = peerList.get(idx);
                 log.debug("Selected Peer: "+chosenPeer.getName());
-                chosenPeer.handleESGRemoteEvent(ESGEventHelper.createRelayedOutboundEvent(remoteEvent));
+                ESGRemoteEvent outbound = readsEvent(chosenPeer,remoteEvent) ? ESGEventHelper.createRelayedOutboundEvent(remoteEvent) : fullRegistrationFor(remoteEvent);
+                if(outbound == null || !sender.send(chosenPeer,outbound,sendCallback)) {
+                    log.debug("Peer "+chosenPeer.getName()+" is backed up (or there is nothing it can read to send it), choosing another");
+                    peerList.remove(idx);
+                    if(lastIdx > idx) lastIdx--;
+                    continue;
+                }
                 lastIdx = idx;
                 numDispatchedPeers++;
             }
@@ -485,6 +603,28 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
         return (numDispatchedPeers > 1); //I was at least able to get one off!
     }
     
+    //Only peers that have told us they read REGISTER_DELTA get deltas
+    //(older nodes would take the payload for a full registration)
+    private boolean readsEvent(ESGPeer peer, ESGRemoteEvent remoteEvent) {
+        return (remoteEvent.getMessageType() != ESGRemoteEvent.REGISTER_DELTA) ||
+            ((peer.getCapabilities() & ESGPayloadCodec.DELTA) != 0);
+    }
+
+    //...the others get our full registration instead (one hop, they
+    //gossip it on themselves), null if we don't have one yet
+    private ESGRemoteEvent fullRegistrationFor(ESGRemoteEvent remoteEvent) {
+        RegistryUpdateDigest rud = lastRud;
+        if(rud == null || rud.xmlDocument() == null) return null;
+        ESGRemoteEvent myRegistryState = new ESGRemoteEvent(Utils.getMyServiceUrl(),
+                                                            ESGRemoteEvent.REGISTER,
+                                                            rud.xmlDocument(),
+                                                            rud.xmlChecksum(),
+                                                            Utils.nextSeq(),
+                                                            1).setCompactPayload(rud.compactDocument());
+        myRegistryState.setTraceId(remoteEvent.getTraceId());
+        return myRegistryState;
+    }
+
     private boolean dispatchResponseToSource(ESGEvent event) {
         if(!checkEvent(event)) return false;
 
@@ -500,8 +640,7 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
             return false;
         }
         log.info("Dispatching Event Back To Source: "+targetAddress);
-        targetPeer.handleESGRemoteEvent(ESGEventHelper.createResponseOutboundEvent(event));
-        return true;
+        return sender.send(targetPeer,ESGEventHelper.createResponseOutboundEvent(event),sendCallback);
     }
 
     private boolean dispatchResponseToOrigin(ESGEvent event) {
@@ -519,10 +658,23 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
             return false;
         }
         log.info("Dispatching Event Back To Origin: "+targetAddress);
-        targetPeer.handleESGRemoteEvent(ESGEventHelper.createResponseOutboundEvent(event));
-        return true;
+        return sender.send(targetPeer,ESGEventHelper.createResponseOutboundEvent(event),sendCallback);
     }
 
+    //How our sends went.  Failures have already been told to us by
+    //the peer itself (see handlePeerEvent) but a peer that takes an
+    //event is evidently back, and is moved to the active list.
+    private final ESGPeerSender.Callback sendCallback = new ESGPeerSender.Callback() {
+            public void completed(ESGPeer peer, ESGRemoteEvent event, boolean sent, boolean timedOut, long millis) {
+                log.trace("Send to ["+peer.getServiceURL()+"] "+(sent ? "done" : (timedOut ? "timed out" : "failed"))+" in "+millis+"ms");
+                if(!sent || unavailablePeers == null) return;
+                if(unavailablePeers.remove(peer.getName()) != null) {
+                    log.trace("Transfering from inactive -to-> active list (took an event)");
+                    peers.put(peer.getName(),peer);
+                }
+            }
+        };
+
     private boolean dispatchUnRegisterToPeers() {
         System.out.println("I am dispatching UnRegister Event To Peers");
         String now = (System.currentTimeMillis()+""); //yeah... ugly... conversion :- \
@@ -539,6 +691,39 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
     //Event handling...
     //--------------------------------------------
 
+    //A batch may hold several registry update digests, only the
+    //newest state needs to be pushed out, but the nodes from ALL of
+    //them have to be looked at for new peers.  So they are folded
+    //into a single digest (newest entry per hostname) that is handled
+    //after the rest of the batch.
+    public boolean handleESGQueuedEvents(List<ESGEvent> events) {
+        log.trace("["+getName()+"]: Got A Batch of ["+events.size()+"] QueuedEvents");
+        boolean handled = true;
+        ESGEvent lastRudEvent = null;
+        RegistryUpdateDigest folded = null;
+        int numRuds = 0;
+
+        for(ESGEvent event : events) {
+            if(event.getData() instanceof RegistryUpdateDigest) {
+                RegistryUpdateDigest rud = (RegistryUpdateDigest)event.getData();
+                folded = (folded == null) ? rud : RegistryUpdateDigest.merge(folded,rud);
+                lastRudEvent = event;
+                numRuds++;
+            }else {
+                handled &= handleESGQueuedEvent(event);
+            }
+        }
+
+        if(lastRudEvent != null) {
+            if(numRuds > 1) {
+                log.debug("Coalesced ["+numRuds+"] registry update digests into one");
+                lastRudEvent.setData(folded);
+            }
+            handled &= handleESGQueuedEvent(lastRudEvent);
+        }
+        return handled;
+    }
+
     public boolean handleESGQueuedEvent(ESGEvent event) {
         log.trace("["+getName()+"]:["+this.getClass().getName()+"]: Got A QueuedEvent!!!!: "+event);
 
@@ -606,7 +791,10 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
             }
             lastRud=rud;
             if(rud != null) {
-                return sendOutNewRegistryState(rud.xmlDocument(), rud.xmlChecksum());  //dispatch method
+                if(rud.hasDelta() && Boolean.valueOf(props.getProperty("registry.gossip.delta","true").trim())) {
+                    return sendOutRegistryDelta(rud);
+                }
+                return sendOutNewRegistryState(rud);  //dispatch method
             }else {
                 log.warn("Sorry rud is: ["+rud+"] will not attempt to send out registration");
             }
@@ -624,6 +812,16 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
                     }
                     log.trace(event);
                     return dispatchToRandomPeers(event.getRemoteEvent());
+                case ESGRemoteEvent.REGISTER_DELTA:
+                    if(log.isTraceEnabled() && event.getRemoteEvent().getTTL() > 0) {
+                        log.trace("Forwarding REGISTER_DELTA event to next random peers");
+                    }
+                    log.trace(event);
+                    return dispatchToRandomPeers(event.getRemoteEvent());
+                case ESGRemoteEvent.REGISTER_PULL:
+                    return handlePullEvent(event);
+                case ESGRemoteEvent.REGISTER_SYNC:
+                    return handleSyncEvent(event);
                 case ESGRemoteEvent.UNREGISTER:
                     if(log.isTraceEnabled() && event.getRemoteEvent().getTTL() > 0) {
                         log.trace("Forwarding UNREGISTER event to next random peers");
@@ -686,6 +884,7 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
             log.trace("Detected That A Peer Component Has Left: "+event.getJoiner().getName());
             peers.remove(event.getJoiner().getName());
             unavailablePeers.remove(event.getJoiner().getName());
+            sender.forget((ESGPeer)event.getJoiner());
             log.trace("Number of active service managed peers = "+peers.size());
         }
         return false;
@@ -727,5 +926,24 @@ public class ESGConnectionManager extends AbstractDataNodeComponent implements E
         }
         log.trace("Available Peers: ["+peers.size()+"] Unavailable: ["+unavailablePeers.size()+"]");    
     }
-    
-}
\ No newline at end of file
+
+    //----
+
+    //Two registry states waiting to be pushed out become one: the
+    //newer state, carrying the updated nodes of both (so that no
+    //newly discovered peer is missed).
+    static class RegistryUpdateMerger implements ESGEventMerger {
+        public ESGEvent merge(ESGEvent pending, ESGEvent newer) {
+            if(!(pending.getData() instanceof RegistryUpdateDigest) || !(newer.getData() instanceof RegistryUpdateDigest)) return newer;
+            ESGEvent merged = new ESGEvent(newer.getSource(),
+                                           RegistryUpdateDigest.merge((RegistryUpdateDigest)pending.getData(),
+                                                                      (RegistryUpdateDigest)newer.getData()),
+                                           newer.getMessage());
+            merged.setRemoteEvent(newer.getRemoteEvent());
+            merged.setCoalesceKey(newer.getCoalesceKey());
+            log.trace("Coalesced waiting registry update digest into newer one");
+            return merged;
+        }
+    }
+
+}
@@ -79,8 +79,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.*;
 
-import com.caucho.hessian.client.HessianProxyFactory;
-
+import esg.node.core.ESGHessianTransport;
 import esg.node.service.ESGDataNodeService;
 
 public class ESGConnector {
@@ -88,7 +87,7 @@ public class ESGConnector {
     private static final Log log = LogFactory.getLog(ESGConnector.class);
     private static ESGConnector connector = null;
 
-    private HessianProxyFactory factory = null;
+    private ESGHessianTransport transport = null;
     private ESGDataNodeService currentEndpoint = null;
     private String currentServiceURL = null;
     private String currentServiceHost = null;
@@ -113,7 +112,7 @@ public class ESGConnector {
 
     private ESGConnector(String serviceHost, boolean secured) {
         log.trace("Instantiating ESGConnector");
-        this.factory = new HessianProxyFactory();
+        this.transport = ESGHessianTransport.getInstance();
         this.secured = secured;
         if(null != serviceHost) this.setEndpoint(serviceHost);
     }
@@ -172,7 +171,7 @@ public class ESGConnector {
         }
         Object endpoint = null;
         try{
-            endpoint = factory.create(serviceClass, serviceURL);
+            endpoint = transport.create(serviceClass, serviceURL);
         }catch(Exception e) {
             log.error(e);
             e.printStackTrace();
@@ -0,0 +1,288 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   Liveness sweeps over the connection manager's peers.  Rather than
+   pinging one peer after the other (a sweep over dead peers taking
+   the sum of all their timeouts) every peer in the sweep is pinged
+   at once, at most "concurrency" at a time, and each ping (once it
+   gets going) is given "timeout" milliseconds to answer.  A sweep
+   then takes about as long as its slowest answer (or timeout).
+
+   Results are handed to the sweep's ProbeListener as they come in.
+   A ping that times out is reported as such and left to finish on its
+   own (a blocked socket read can't be interrupted); it is the peer's
+   ping that fires the availability events, when it does return.  A
+   peer whose ping from an earlier sweep is still out is skipped, so
+   unresponsive peers can't pile up pings.
+
+**/
+package esg.node.connection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import esg.node.core.ESGPeer;
+
+public class ESGPeerProber {
+
+    private static final Log log = LogFactory.getLog(ESGPeerProber.class);
+
+    public static final int DEFAULT_CONCURRENCY = 16;
+    public static final long DEFAULT_TIMEOUT = 10000L;
+    private static final long NEVER = Long.MIN_VALUE; //(Probe.started of a probe given up on before it ran)
+
+    private final ThreadPoolExecutor pool;
+    private final Set<ESGPeer> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<ESGPeer,Boolean>());
+    private volatile long timeout;
+
+    /**
+       Told about each peer of a sweep as its ping comes back (or times
+       out), on the thread that called sweep().
+    */
+    public static interface ProbeListener {
+        public void probed(ESGPeer peer, boolean alive, boolean timedOut, long millis);
+    }
+
+    public ESGPeerProber(int concurrency, long timeout) {
+        concurrency = Math.max(1,concurrency);
+        this.timeout = Math.max(1L,timeout);
+        pool = new ThreadPoolExecutor(concurrency,concurrency,30L,TimeUnit.SECONDS,
+                                      new LinkedBlockingQueue<Runnable>(),
+                                      new ThreadFactory() {
+                                          private final AtomicInteger count = new AtomicInteger(0);
+                                          public Thread newThread(Runnable r) {
+                                              Thread t = new Thread(r,"ESGPeerProber-"+count.incrementAndGet());
+                                              t.setDaemon(true);
+                                              return t;
+                                          }
+                                      });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    public int getConcurrency() { return pool.getMaximumPoolSize(); }
+    public long getTimeout() { return timeout; }
+    public void setTimeout(long timeout) { this.timeout = Math.max(1L,timeout); }
+    public int getInFlight() { return inFlight.size(); }
+
+    public void shutdown() {
+        pool.shutdownNow();
+        inFlight.clear();
+    }
+
+    public Sweep sweep(Collection<? extends ESGPeer> peers) { return sweep(peers,null); }
+
+    /**
+       Pings all the given peers, returning once every ping has come
+       back or timed out.  Pings still waiting for a thread when the
+       sweep as a whole runs out of time (a timeout per round of
+       "concurrency" pings, plus one) are dropped and counted as timed
+       out.
+    */
+    public Sweep sweep(Collection<? extends ESGPeer> peers, ProbeListener listener) {
+        final Sweep sweep = new Sweep();
+        final long startTime = System.nanoTime();
+        final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        CompletionService<Boolean> completions = new ExecutorCompletionService<Boolean>(pool);
+        Map<Future<Boolean>,Probe> pending = new HashMap<Future<Boolean>,Probe>();
+
+        for(ESGPeer peer : peers) {
+            if(!inFlight.add(peer)) {
+                log.debug("Still waiting on the last ping of ["+peer.getServiceURL()+"], skipping it");
+                sweep.skipped++;
+                continue;
+            }
+            Probe probe = new Probe(peer);
+            try{
+                pending.put(completions.submit(probe),probe);
+            }catch(java.util.concurrent.RejectedExecutionException e) {
+                inFlight.remove(peer);
+                sweep.skipped++;
+            }
+        }
+        long rounds = (pending.size() + getConcurrency() - 1) / getConcurrency();
+        final long deadline = startTime + (rounds+1)*timeoutNanos;
+
+        try{
+            while(!pending.isEmpty()) {
+                long now = System.nanoTime();
+                long wait = deadline - now;
+                for(Iterator<Map.Entry<Future<Boolean>,Probe>> it = pending.entrySet().iterator(); it.hasNext();) {
+                    Map.Entry<Future<Boolean>,Probe> entry = it.next();
+                    long started = entry.getValue().started.get();
+                    long remaining = (started == 0L) ? deadline - now : Math.min(deadline,started+timeoutNanos) - now;
+                    if(remaining <= 0L) {
+                        //a ping that got going is left to finish (and clear itself)
+                        abandon(entry.getKey(),entry.getValue());
+                        it.remove();
+                        report(sweep,listener,entry.getValue(),false,true);
+                    }else {
+                        wait = Math.min(wait,remaining);
+                    }
+                }
+                if(pending.isEmpty()) break;
+
+                Future<Boolean> done = completions.poll(Math.max(0L,wait),TimeUnit.NANOSECONDS);
+                if(done == null) continue;
+                Probe probe = pending.remove(done);
+                if(probe == null) continue; //one we gave up on
+                boolean alive = false;
+                try{
+                    alive = done.get();
+                }catch(ExecutionException e) {
+                    log.info("Ping of ["+probe.peer.getServiceURL()+"] failed: "+e.getCause());
+                }
+                report(sweep,listener,probe,alive,false);
+            }
+        }catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for(Map.Entry<Future<Boolean>,Probe> entry : pending.entrySet()) {
+                abandon(entry.getKey(),entry.getValue());
+            }
+            sweep.skipped += pending.size();
+        }
+        sweep.millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        log.debug(sweep);
+        return sweep;
+    }
+
+    //Gives up on a probe: one that has not started never will (and
+    //won't clear its peer itself), one that has is not interrupted
+    private void abandon(Future<Boolean> future, Probe probe) {
+        if(probe.started.compareAndSet(0L,NEVER)) {
+            future.cancel(false);
+            inFlight.remove(probe.peer);
+        }
+    }
+
+    private void report(Sweep sweep, ProbeListener listener, Probe probe, boolean alive, boolean timedOut) {
+        sweep.probed++;
+        if(timedOut) sweep.timedOut++;
+        else if(alive) sweep.alive++;
+        else sweep.dead++;
+        long started = probe.started.get();
+        boolean ran = (started != 0L) && (started != NEVER);
+        long millis = ran ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) : 0L;
+        if(timedOut) log.info("Ping of ["+probe.peer.getServiceURL()+"] timed out"+(ran ? " after "+millis+"ms" : " (never started)"));
+        if(listener == null) return;
+        try{
+            listener.probed(probe.peer,alive,timedOut,millis);
+        }catch(Throwable t) {
+            log.error("Probe listener failed on ["+probe.peer.getServiceURL()+"]",t);
+        }
+    }
+
+    private final class Probe implements Callable<Boolean> {
+        final ESGPeer peer;
+        final AtomicLong started = new AtomicLong(0L);
+        Probe(ESGPeer peer) { this.peer = peer; }
+        public Boolean call() {
+            long now = System.nanoTime();
+            if(now == 0L || now == NEVER) now++;
+            if(!started.compareAndSet(0L,now)) return Boolean.FALSE; //given up on before it started
+            try{
+                return peer.ping();
+            }finally{
+                inFlight.remove(peer);
+            }
+        }
+    }
+
+    //-------------------------------------------
+    //What a sweep came to
+    //-------------------------------------------
+    public static final class Sweep {
+        private int probed = 0;
+        private int alive = 0;
+        private int dead = 0;
+        private int timedOut = 0;
+        private int skipped = 0;
+        private long millis = 0L;
+
+        public int getProbed() { return probed; }
+        public int getAlive() { return alive; }
+        public int getDead() { return dead; }
+        public int getTimedOut() { return timedOut; }
+        public int getSkipped() { return skipped; }
+        public long getMillis() { return millis; }
+
+        public String toString() {
+            return "Peer sweep: probed="+probed+" alive="+alive+" dead="+dead+" timedOut="+timedOut+" skipped="+skipped+" in "+millis+"ms";
+        }
+    }
+}
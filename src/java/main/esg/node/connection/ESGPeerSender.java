@@ -0,0 +1,258 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   Sends remote events out to peers without holding up the caller.
+   The remote (Hessian) calls are made on the sender's own threads, so
+   the connection manager can hand a gossip round to its peers and get
+   on with its queue, instead of waiting out each peer's HTTP call in
+   turn (with its lock held).
+
+   Each peer may only have so many sends outstanding ("outstanding");
+   a send to a peer that is at its limit is refused right away (send()
+   returns false) so the caller can choose another peer.  A peer that
+   stops answering therefore ties up at most that many threads, and
+   one slow peer can't hold back sends to the rest.
+
+   Each send's Callback is told how it went once: sent, failed, or
+   timed out (no answer within "timeout" ms).  A timed out call is
+   still running (a blocked socket read can't be interrupted) and
+   keeps its slot until it does return.
+
+**/
+package esg.node.connection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import esg.common.service.ESGRemoteEvent;
+import esg.node.core.ESGPeer;
+
+public class ESGPeerSender {
+
+    private static final Log log = LogFactory.getLog(ESGPeerSender.class);
+
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_OUTSTANDING = 2;
+    public static final long DEFAULT_TIMEOUT = 30000L;
+
+    private final ThreadPoolExecutor pool;
+    private final ScheduledThreadPoolExecutor timer;
+    private final ConcurrentHashMap<String,Semaphore> slots = new ConcurrentHashMap<String,Semaphore>();
+    private final int outstanding;
+    private final long timeout;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+
+    private final AtomicLong numSent = new AtomicLong(0L);
+    private final AtomicLong numFailed = new AtomicLong(0L);
+    private final AtomicLong numTimedOut = new AtomicLong(0L);
+    private final AtomicLong numRefused = new AtomicLong(0L);
+
+    /**
+       Told how a send went, once, on one of the sender's threads.
+    */
+    public static interface Callback {
+        public void completed(ESGPeer peer, ESGRemoteEvent event, boolean sent, boolean timedOut, long millis);
+    }
+
+    public ESGPeerSender(int threads, int outstanding, long timeout) {
+        this.outstanding = Math.max(1,outstanding);
+        this.timeout = Math.max(1L,timeout);
+        threads = Math.max(1,threads);
+        pool = new ThreadPoolExecutor(threads,threads,30L,TimeUnit.SECONDS,new LinkedBlockingQueue<Runnable>(),new SenderThreadFactory("ESGPeerSender-"));
+        pool.allowCoreThreadTimeOut(true);
+        timer = new ScheduledThreadPoolExecutor(1,new SenderThreadFactory("ESGPeerSender-Timeout-"));
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    public int getOutstandingLimit() { return outstanding; }
+    public long getTimeout() { return timeout; }
+    public int getInFlight() { return inFlight.get(); }
+    public long getNumSent() { return numSent.get(); }
+    public long getNumFailed() { return numFailed.get(); }
+    public long getNumTimedOut() { return numTimedOut.get(); }
+    public long getNumRefused() { return numRefused.get(); }
+
+    //How many more sends the peer can take right now
+    public int available(ESGPeer peer) { return slotsOf(peer).availablePermits(); }
+
+    private Semaphore slotsOf(ESGPeer peer) {
+        Semaphore peerSlots = slots.get(peer.getServiceURL());
+        if(peerSlots == null) {
+            peerSlots = new Semaphore(outstanding);
+            Semaphore raced = slots.putIfAbsent(peer.getServiceURL(),peerSlots);
+            if(raced != null) peerSlots = raced;
+        }
+        return peerSlots;
+    }
+
+    //Done with a peer that has left (its sends still out finish as usual)
+    public void forget(ESGPeer peer) { slots.remove(peer.getServiceURL()); }
+
+    public boolean send(ESGPeer peer, ESGRemoteEvent event) { return send(peer,event,null); }
+
+    /**
+       Queues up the event to be sent to the peer.
+
+       @return false if the peer already has its limit of sends
+       outstanding (or the sender is shut down), the event is not sent
+       and the callback not called.
+    */
+    public boolean send(final ESGPeer peer, final ESGRemoteEvent event, final Callback callback) {
+        final Semaphore peerSlots = slotsOf(peer);
+        if(!peerSlots.tryAcquire()) {
+            numRefused.incrementAndGet();
+            log.debug("["+peer.getServiceURL()+"] already has ["+outstanding+"] sends outstanding, not sending "+event);
+            return false;
+        }
+        final long startTime = System.nanoTime();
+        final AtomicBoolean reported = new AtomicBoolean(false);
+        inFlight.incrementAndGet();
+        try{
+            pool.execute(new Runnable() {
+                    public void run() {
+                        ScheduledFuture<?> timing = timer.schedule(new Runnable() {
+                                public void run() {
+                                    if(!reported.compareAndSet(false,true)) return;
+                                    numTimedOut.incrementAndGet();
+                                    log.warn("No answer from ["+peer.getServiceURL()+"] in ["+timeout+"]ms sending "+event);
+                                    report(callback,peer,event,false,true,startTime);
+                                }
+                            },timeout,TimeUnit.MILLISECONDS);
+                        boolean sent = false;
+                        try{
+                            sent = peer.sendESGRemoteEvent(event);
+                        }catch(Throwable t) {
+                            log.error("Sending to ["+peer.getServiceURL()+"] failed",t);
+                        }finally{
+                            timing.cancel(false);
+                            peerSlots.release();
+                            inFlight.decrementAndGet();
+                        }
+                        if(!reported.compareAndSet(false,true)) return; //too late
+                        (sent ? numSent : numFailed).incrementAndGet();
+                        report(callback,peer,event,sent,false,startTime);
+                    }
+                });
+        }catch(RejectedExecutionException e) {
+            peerSlots.release();
+            inFlight.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void report(Callback callback, ESGPeer peer, ESGRemoteEvent event, boolean sent, boolean timedOut, long startTime) {
+        if(callback == null) return;
+        try{
+            callback.completed(peer,event,sent,timedOut,TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        }catch(Throwable t) {
+            log.error("Send callback failed for ["+peer.getServiceURL()+"]",t);
+        }
+    }
+
+    /**
+       Waits (up to timeoutMillis) for the sends that are out to finish,
+       for when there is no waiting later (shutdown).
+
+       @return true if nothing is left outstanding
+    */
+    public boolean flush(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try{
+            while(inFlight.get() > 0 && System.currentTimeMillis() < deadline) { Thread.sleep(10); }
+        }catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return inFlight.get() == 0;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+        timer.shutdownNow();
+    }
+
+    public String toString() {
+        return "ESGPeerSender: sent="+numSent+" failed="+numFailed+" timedOut="+numTimedOut+" refused="+numRefused+" inFlight="+inFlight;
+    }
+
+    private static final class SenderThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger(0);
+        SenderThreadFactory(String prefix) { this.prefix = prefix; }
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r,prefix+count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -65,11 +65,10 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.*;
 
-import java.util.Collections;
 import java.util.List;
-import java.util.ArrayList;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public abstract class AbstractDataNodeComponent implements DataNodeComponent {
     
@@ -83,11 +82,15 @@ public abstract class AbstractDataNodeComponent implements DataNodeComponent {
     //so that they too may be able to manage event listeners
     protected List<ESGListener> esgListeners = null;
     protected Map<String,ESGQueueListener> esgQueueListenersMap = null;
+    protected ESGEventBus esgEventBus = null;
 
     public AbstractDataNodeComponent(String name) {
         this.myName = name;
-        this.esgListeners = Collections.synchronizedList(new ArrayList<ESGListener>());
-        this.esgQueueListenersMap = Collections.synchronizedMap(new HashMap<String,ESGQueueListener>());
+        //fired at from any thread while others (un)subscribe, so
+        //iteration must not need a lock or risk a CME
+        this.esgListeners = new CopyOnWriteArrayList<ESGListener>();
+        this.esgQueueListenersMap = new ConcurrentHashMap<String,ESGQueueListener>();
+        this.esgEventBus = new ESGEventBus();
         this.eventQueue = new ESGQueue(this);
     }
     public AbstractDataNodeComponent() { this(DataNodeComponent.ANONYMOUS); }
@@ -142,17 +145,28 @@ public abstract class AbstractDataNodeComponent implements DataNodeComponent {
     public void addESGListener(ESGListener listener) {
         if(listener == null) return;
         log.trace("Adding Listener: "+listener);
-        esgListeners.add(listener);
+        if(!esgListeners.contains(listener)) esgListeners.add(listener);
+        esgEventBus.subscribe(listener,ESGEvent.class);
+    }
+
+    //Only the given types of event (see ESGEventBus)
+    public void addESGListener(ESGListener listener, Class<?>... eventTypes) {
+        if(listener == null) return;
+        log.trace("Adding Listener: "+listener+" for "+java.util.Arrays.toString(eventTypes));
+        if(!esgListeners.contains(listener)) esgListeners.add(listener);
+        esgEventBus.subscribe(listener,eventTypes);
     }
     
     public void removeESGListener(ESGListener listener) {
         log.trace("Removing Listener: "+listener);
         esgListeners.remove(listener);
+        esgEventBus.unsubscribe(listener);
     }
 
     public void removeAllESGListeners() {
         log.trace("Removing ALL ("+esgListeners.size()+") ESG Listeners from "+this.getName());
         esgListeners.clear();
+        esgEventBus.clear();
     }
 
     //--------------------------------------------
@@ -161,7 +175,7 @@ public abstract class AbstractDataNodeComponent implements DataNodeComponent {
     //--------------------------------------------
     protected void fireESGEvent(ESGEvent esgEvent) {
         log.trace("Firing Event: "+esgEvent);
-        for(ESGListener listener: esgListeners) {
+        for(ESGListener listener: esgEventBus.listenersFor(esgEvent)) {
             listener.handleESGEvent(esgEvent);
         }
     }
@@ -210,6 +224,7 @@ public abstract class AbstractDataNodeComponent implements DataNodeComponent {
     }
 
     public void removeESGQueueListener(String listenerName) {
+        if(listenerName == null) return;
         log.trace("Removing Queue Listener named: "+listenerName+" from "+this.getName());
         esgQueueListenersMap.remove(listenerName);
     }
@@ -237,6 +252,7 @@ public abstract class AbstractDataNodeComponent implements DataNodeComponent {
         if(nextHop != null) {
             nextHop.getESGEventQueue().enqueueEvent(esgEvent);
         }else{
+            eventQueue.getStats().recordNoRouteDropped();
             log.warn("Sorry "+myName+" ,there isn't another component for you to dispatch to!");
             log.warn("      Dropping event, "+esgEvent+" on the floor :-(");
         }
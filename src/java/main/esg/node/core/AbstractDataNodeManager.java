@@ -66,42 +66,51 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.*;
 
 import java.util.Properties;
-import java.util.Enumeration;
-import java.util.Collection;
-import java.util.Collections;
 import java.util.Map;
-import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
-import java.util.regex.PatternSyntaxException;
+import java.util.concurrent.TimeUnit;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 //TODO: think about if we want this dependence on an outside package...
 //may want to move the datasource managing to the ESGDataNodeManager subclass
 //to keep this class prestine w.r.t. dependencies... think about it... -gmb
 import esg.common.db.DatabaseResource; 
+import esg.common.util.ESGFConfig;
+import esg.common.util.ESGFConfigListener;
 import esg.common.util.ESGFProperties;
 
 public abstract class AbstractDataNodeManager implements DataNodeManager {
 
     private static Log log = LogFactory.getLog(AbstractDataNodeManager.class);
 
-    private Map<String,ESGPeer> peers = null;
-    private Map<String,DataNodeComponent> components = null;
-    private Map<String,Properties> propCache = null;
-    private Properties props = null;
+    private ESGSnapshotMap<ESGPeer> peers = null;
+    private ESGSnapshotMap<DataNodeComponent> components = null;
+    private ESGEventBus eventBus = null;
+    private ESGFConfig config = null;
+    private volatile Properties props = null;
     private String myName=null;
+    private ESGTraceBuffer traceBuffer = null;
+    private ESGScheduler scheduler = null;
     
     public AbstractDataNodeManager() {
         myName="DN_MGR";
-        //NOTE: May want to create these as either Synchronized Maps or ConcurrentHashMaps
-        peers = new HashMap<String,ESGPeer>();
-        components = new HashMap<String,DataNodeComponent>();
-        propCache = new HashMap<String,Properties>();
+        //Registered with/looked up by timer, Hessian and queue threads
+        //alike, iterated (lock free) over snapshots when firing events
+        peers = new ESGSnapshotMap<ESGPeer>();
+        components = new ESGSnapshotMap<DataNodeComponent>();
+        eventBus = new ESGEventBus();
+        config = ESGFConfig.getInstance();
         loadProperties();
+        setupTraceBuffer();
+        setupScheduler();
+        watchProperties();
 
         //NOTE: A quick lil short circuit to take database out of loop
         //so can test without having a database installed -gavin
@@ -124,8 +133,7 @@ public abstract class AbstractDataNodeManager implements DataNodeManager {
         log.trace("Loading Properties");
         InputStream in = null;
         try {
-            propCache.clear();
-            props = new ESGFProperties();
+            props = config.getProperties();
             log.trace("Properties of esgf.properties file: "+props);
             log.trace("Loaded "+props.size()+" Properties");
         }catch(FileNotFoundException ex) {
@@ -148,43 +156,50 @@ public abstract class AbstractDataNodeManager implements DataNodeManager {
     }
     
     
-    //NOTE: the caching is a space vs speed trade off I think it is
-    //cleaner to worry about such things (optimizations) at the root
-    //of the issue than to make the interested parties (callers) worry
-    //about how to parismoniously use this call. right? :-).  The
-    //memory trade off is not so concrete since we are saving on "new"
-    //property object creation, so if many calls are made it is
-    //efficient.  If few calls are made, well... oh well... Just as
-    //important, we are giving our callers less to worry about! :-)
-
-    //Regex filtering the global properties by regex on keys
+    //Regex filtering the global properties by regex on keys.  The
+    //result is worked out once per regex per configuration snapshot
+    //(see ESGFConfig.Snapshot) and shared by every caller, so don't
+    //modify it.
     public Properties getMatchingProperties(String regex) {
         log.trace("getting matching properties for ["+regex+"]");
-        Properties matchProps = null;
-        if( (matchProps = propCache.get(regex)) != null) {
-            return matchProps;
-        }
-        matchProps = new Properties();
-        String key = null;
-        for(Enumeration keys = props.propertyNames(); keys.hasMoreElements();) {
-            key = (String)keys.nextElement();
-            //log.trace("inspecting: "+key);
-            try{
-                if(key.matches(regex)) {
-                    //log.trace("matched: adding...");
-                    matchProps.put(key, props.getProperty(key));
+        Properties matchProps = config.current().matching(regex);
+        log.trace("["+regex+"] => ("+matchProps.size()+" entries)");
+        return matchProps;
+    }
+
+    public ESGFConfig getConfig() { return config; }
+
+    //Follows changes to esgf.properties (unless config.watch=false):
+    //the node's properties are swapped for the new values and the
+    //queue and trace settings that can change on the fly are
+    //re-applied.  Anything else takes a restart.
+    private void watchProperties() {
+        config.addListener(new ESGFConfigListener() {
+                public void configChanged(ESGFConfig.Snapshot previous, ESGFConfig.Snapshot current, Set<String> changedKeys) {
+                    props = new ESGFProperties(current.toProperties());
+                    boolean queues = false;
+                    boolean trace = false;
+                    for(String key : changedKeys) {
+                        queues |= key.startsWith("queue.");
+                        trace |= key.startsWith("trace.");
+                    }
+                    if(queues) retuneQueues();
+                    if(trace) retuneTraceBuffer();
                 }
-            }catch(PatternSyntaxException ex) {
-                log.error(ex.getMessage(),ex);
-                break;
+            });
+        if(Boolean.valueOf(props.getProperty("config.watch","true").trim())) config.startWatching();
+    }
+
+    private void retuneQueues() {
+        for(DataNodeComponent component : components.values()) {
+            try{
+                component.getESGEventQueue().retune(props);
+            }catch(NumberFormatException e) {
+                log.warn("Bad queue property for ["+component.getName()+"], keeping previous settings: "+e.getMessage());
             }
         }
-        propCache.put(regex,matchProps);
-        log.trace("["+regex+"] => ("+matchProps.size()+" entries)");
-        log.trace("propCache size = "+propCache.size());
-        return matchProps;
     }
-    
+
     //-------------------------------------------
     //DataNodeManager Interface Implementations...
     //-------------------------------------------
@@ -200,22 +215,33 @@ public abstract class AbstractDataNodeManager implements DataNodeManager {
             log.warn("WARNING: Will not register peer ["+component.getName()+"] as a component!");
             return false;
         }
-        components.put(component.getName(), component);
+        DataNodeComponent previous = components.put(component.getName(), component);
+        if(previous != null && previous != component) {
+            log.warn("Component ["+component.getName()+"] replaces the one registered before it");
+            previous.removeAllESGQueueListeners();
+            previous.removeAllESGListeners();
+            eventBus.unsubscribe(previous);
+        }
 
         //Note: Casting because this method is not exposed by
         //interface but by the AbstractDataNodeComponent abstract
         //class)
         ((AbstractDataNodeComponent)component).setDataNodeManager(this);
+        component.getESGEventQueue().configure(props);
+        component.getESGEventQueue().setTraceBuffer(traceBuffer);
+        registerQueueStats(component);
 
         log.trace("Initializing newly registered component: "+component.getName());
         component.init();
+        //components that did not say what they want (in init) get everything
+        if(!eventBus.isSubscribed(component)) eventBus.subscribe(component,ESGEvent.class);
 
         sendJoinNotification(component);
         component.addESGListener(this);
         return true;
     }
     
-    public boolean hasComponent(String componentName) { return peers.containsKey(componentName); }
+    public boolean hasComponent(String componentName) { return components.containsKey(componentName); }
 
     public void removeComponent(String componentName) {
         DataNodeComponent component = components.remove(componentName);
@@ -227,6 +253,8 @@ public abstract class AbstractDataNodeManager implements DataNodeManager {
 
         component.removeAllESGQueueListeners();
         component.removeAllESGListeners();
+        eventBus.unsubscribe(component);
+        unregisterQueueStats(component);
         sendUnjoinNotification(component);
     
         //TODO: add a call for the component to shut itself down
@@ -240,14 +268,141 @@ public abstract class AbstractDataNodeManager implements DataNodeManager {
         removeComponent(component.getName());
     }
 
+    //-------------------------------------------
+    //Each component's queue stats are made visible through JMX as
+    //esg.node:type=ESGQueue,name=<component name>
+    //-------------------------------------------
+    private ObjectName queueStatsName(DataNodeComponent component) throws Exception {
+        return new ObjectName("esg.node:type=ESGQueue,name="+ObjectName.quote(component.getName()));
+    }
+
+    private void registerQueueStats(DataNodeComponent component) {
+        try{
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = queueStatsName(component);
+            if(mbs.isRegistered(name)) mbs.unregisterMBean(name);
+            mbs.registerMBean(component.getESGEventQueue().getStats(),name);
+        }catch(Exception e) {
+            log.warn("Could not register queue stats MBean for "+component.getName()+": "+e.getMessage());
+        }
+    }
+
+    private void unregisterQueueStats(DataNodeComponent component) {
+        try{
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = queueStatsName(component);
+            if(mbs.isRegistered(name)) mbs.unregisterMBean(name);
+        }catch(Exception e) {
+            log.warn("Could not unregister queue stats MBean for "+component.getName()+": "+e.getMessage());
+        }
+    }
+
+    //-------------------------------------------
+    //Event traces through the components (see ESGTraceBuffer) made
+    //visible through JMX as esg.node:type=ESGTrace
+    //-------------------------------------------
+    private void setupTraceBuffer() {
+        int capacity = 1024;
+        try{
+            capacity = Integer.parseInt(props.getProperty("trace.buffer","1024").trim());
+        }catch(NumberFormatException e) {
+            log.warn("Bad trace.buffer property, using default: "+e.getMessage());
+        }
+        traceBuffer = new ESGTraceBuffer(capacity);
+        retuneTraceBuffer();
+        try{
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("esg.node:type=ESGTrace");
+            if(mbs.isRegistered(name)) mbs.unregisterMBean(name);
+            mbs.registerMBean(traceBuffer,name);
+        }catch(Exception e) {
+            log.warn("Could not register event trace MBean: "+e.getMessage());
+        }
+    }
+
+    //(trace.buffer, the capacity, only takes at startup)
+    private void retuneTraceBuffer() {
+        try{
+            traceBuffer.setSampleEvery(Integer.parseInt(props.getProperty("trace.sample","1").trim()));
+        }catch(NumberFormatException e) {
+            log.warn("Bad trace.sample property, using default: "+e.getMessage());
+            traceBuffer.setSampleEvery(1);
+        }
+        traceBuffer.setEnabled(Boolean.valueOf(props.getProperty("trace.enabled","true").trim()));
+    }
+
+    public ESGTraceBuffer getTraceBuffer() { return traceBuffer; }
+
+    //-------------------------------------------
+    //The node's periodic jobs (see ESGScheduler) made visible through
+    //JMX as esg.node:type=ESGScheduler
+    //-------------------------------------------
+    private void setupScheduler() {
+        int threads = 2;
+        try{
+            threads = Integer.parseInt(props.getProperty("scheduler.threads","2").trim());
+        }catch(NumberFormatException e) {
+            log.warn("Bad scheduler.threads property, using default: "+e.getMessage());
+        }
+        scheduler = new ESGScheduler(threads,props);
+        try{
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("esg.node:type=ESGScheduler");
+            if(mbs.isRegistered(name)) mbs.unregisterMBean(name);
+            mbs.registerMBean(scheduler,name);
+        }catch(Exception e) {
+            log.warn("Could not register scheduler MBean: "+e.getMessage());
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread("ESGScheduler-Shutdown") {
+                public void run() { AbstractDataNodeManager.this.shutdown(); }
+            });
+    }
+
+    public ESGScheduler getScheduler() { return scheduler; }
+
+    /**
+       Stops the periodic jobs, giving the ones under way up to
+       scheduler.shutdown.timeout (ms) to finish.  Also run on JVM
+       shutdown.
+    */
+    public void shutdown() {
+        if(scheduler.isShutdown()) return;
+        long timeout = 10000L;
+        try{
+            timeout = Long.parseLong(props.getProperty("scheduler.shutdown.timeout","10000").trim());
+        }catch(NumberFormatException e) {
+            log.warn("Bad scheduler.shutdown.timeout property, using default: "+e.getMessage());
+        }
+        log.info("Shutting down scheduled jobs...");
+        scheduler.shutdown(timeout,TimeUnit.MILLISECONDS);
+    }
+
     //TODO: Maybe think about the visibility of this method.
     public DataNodeComponent getComponent(String name) {
         return components.get(name);
     }
     
+    /**
+       Hands a control event to the queue and batch controllers of
+       the named component's event queue (ex: to change its thread
+       bounds or batch size while running).
+     */
+    public boolean sendQueueControlEvent(String componentName, ESGQueueControlEvent controlEvent) {
+        DataNodeComponent component = getComponent(componentName);
+        if(component == null) {
+            log.warn("No component mapping to "+componentName+" (queue control event dropped)");
+            return false;
+        }
+        log.trace("Sending queue control event to: "+componentName+" - "+controlEvent);
+        ESGQueue queue = component.getESGEventQueue();
+        queue.getQueueController().handleESGEvent(controlEvent);
+        queue.getBatchController().handleESGEvent(controlEvent);
+        return true;
+    }
+
     public int numOfComponents() { return components.size(); }
     public String[] getComponentNames() { 
-        return components.keySet().toArray(new String[] {""}); 
+        return components.names();
     }
     
     //-------------------------------------------
@@ -265,14 +420,18 @@ public abstract class AbstractDataNodeManager implements DataNodeManager {
         log.trace("3)) Initializing newly registered peer component: "+peer.getName());
         peer.init();
         if(peer.isValid()) {
-            peers.put(peer.getName(), peer);
+            ESGPeer previous = peers.put(peer.getName(), peer);
+            if(previous != null && previous != peer) {
+                log.trace("Peer ["+peer.getName()+"] replaces the stub registered before it");
+                previous.removeESGListener(this);
+            }
             log.trace("5)) Sending Queued Join Notification...");
             sendQueuedJoinNotification(peer);
             peer.addESGListener(this);
             return true;
         }
         log.warn("Sorry Not Able To Register This Peer: "+peer);
-        peers.remove(peer); //just to be extra extra sure it isn't there
+        peers.remove(peer.getName(),peer); //just to be extra extra sure it isn't there
         return false;
     }
     
@@ -301,11 +460,11 @@ public abstract class AbstractDataNodeManager implements DataNodeManager {
 
     //For getting the list of peers...
     public List<ESGPeer> getPeers() {
-        return Collections.unmodifiableList((List<ESGPeer>)peers.values());
+        return peers.values();
     }
 
     public int numOfPeers() { return peers.size(); }
-    public String[] getPeerNames() { return peers.keySet().toArray(new String[] {""}); }
+    public String[] getPeerNames() { return peers.names(); }
 
 
     //--------------------------------------------
@@ -351,23 +510,43 @@ public abstract class AbstractDataNodeManager implements DataNodeManager {
     //is truly only calling when things are indeed all done being loaded!!
     //revisit this issue!!
     public void sendAllLoadedNotification() {
+        //Everything is wired up, events left over from the last run
+        //can go through now
+        for(DataNodeComponent component : components.values()) {
+            component.getESGEventQueue().replayJournal();
+        }
         log.trace("Sending All-Loaded Notification Broadcast...");
         ESGSystemEvent allLoadedEvent = new ESGSystemEvent(this,ESGSystemEvent.ALL_LOADED);
         fireESGEvent(allLoadedEvent);
     }
 
 
-    //TODO: Think about how I could get a subset view of the
-    //subscription list to use for firing events to a subset of
-    //entities that adhere to a particular interface.  I.E. get all
-    //the objects in the list that implement the FooListener interface
-    //for me to call back to.  In the mean time we push events to
-    //everyone and let them deal with proper selection for handling
+    //-------------------------------------------
+    //Components say which of the events fired here they want (by
+    //event class or remote message type) and only get those, see
+    //ESGEventBus.  Ex: in a component's init()...
+    //
+    //  getDataNodeManager().subscribe(this,ESGJoinEvent.class,ESGSystemEvent.class);
+    //
+    //A component that subscribes to nothing by the end of its init()
+    //is subscribed to everything (ESGEvent.class).
+    //-------------------------------------------
+    public void subscribe(ESGListener listener, Class<?>... eventTypes) {
+        log.trace("Subscribing "+listener+" to "+java.util.Arrays.toString(eventTypes));
+        eventBus.subscribe(listener,eventTypes);
+    }
+
+    public void subscribeRemote(ESGListener listener, int... messageTypes) {
+        eventBus.subscribeRemote(listener,messageTypes);
+    }
+
+    public void unsubscribe(ESGListener listener) {
+        eventBus.unsubscribe(listener);
+    }
 
     protected void fireESGEvent(ESGEvent esgEvent) {
-        Collection<? extends ESGListener> esgListeners = components.values();
         log.trace("Firing ESGEvent: "+esgEvent);
-        for(ESGListener listener: esgListeners) {
+        for(ESGListener listener: eventBus.listenersFor(esgEvent)) {
             listener.handleESGEvent(esgEvent);
         }
     }
@@ -397,14 +576,15 @@ public abstract class AbstractDataNodeManager implements DataNodeManager {
     }
 
     /**
-       Puts the event on the event queues of all registered
-       (listening) components.
+       Puts the event on the event queues of all the components
+       subscribed to it.
      */
     protected void fireQueuedESGEvent(ESGEvent esgEvent) {
-        Collection<? extends ESGQueueListener> esgListeners = components.values();
         log.trace("Firing ESGQueuedEvent: "+esgEvent);
-        for(ESGQueueListener listener: esgListeners) {
-            listener.getESGEventQueue().enqueueEvent(esgEvent);
+        for(ESGListener listener: eventBus.listenersFor(esgEvent)) {
+            if(listener instanceof ESGQueueListener) {
+                ((ESGQueueListener)listener).getESGEventQueue().enqueueEvent(esgEvent);
+            }
         }
     }
 
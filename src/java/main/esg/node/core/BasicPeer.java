@@ -82,6 +82,7 @@ import java.util.ArrayList;
 import esg.node.core.ESGPeerListener;
 import esg.node.service.ESGDataNodeService;
 import esg.common.service.ESGRemoteEvent;
+import esg.common.service.ESGPayloadCodec;
 import esg.common.Utils;
 
 public class BasicPeer extends HessianPeer {
@@ -218,14 +219,19 @@ public class BasicPeer extends HessianPeer {
         //FYI: the isAvailable() method is defined in super-superclass)
     }
         
-    public void handleESGRemoteEvent(ESGRemoteEvent evt) {
+    public void handleESGRemoteEvent(ESGRemoteEvent evt) { sendESGRemoteEvent(evt); }
+
+    public boolean sendESGRemoteEvent(ESGRemoteEvent evt) {
         try {
             log.trace("Making Remote Call to "+getServiceURL()+"'s remote \"handleESGRemoteEvent\" method, sending: "+evt);
-            datanodeServiceStub.handleESGRemoteEvent(evt);
+            evt.setCapabilities(ESGPayloadCodec.getCapabilities()); //what *we* can decode, not the last hop
+            datanodeServiceStub.handleESGRemoteEvent(evt.encodeFor(getCapabilities()));
+            return true;
         }catch (RuntimeException ex) {
             log.error("Could not make call \"handleESGRemoteEvent\" on ["+getServiceURL()+"] "+ex.getMessage());
             isAvailable=false; //I know now necessary but doesn't hurt - communicates more clearly meaning of isAvailable IMHO
             fireConnectionFailed(ex);
+            return false;
         }
     }
 
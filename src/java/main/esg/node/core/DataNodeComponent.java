@@ -70,6 +70,7 @@ public interface DataNodeComponent extends ESGListener, ESGQueueListener{
     public DataNodeManager getDataNodeManager();
     public void unregister();
     public void addESGListener(ESGListener listner);
+    public void addESGListener(ESGListener listener, Class<?>... eventTypes);
     public void removeESGListener(ESGListener listener);
     public void removeAllESGListeners();
     public void addESGQueueListener(ESGQueueListener listener);
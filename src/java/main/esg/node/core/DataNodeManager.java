@@ -83,6 +83,16 @@ public interface DataNodeManager extends ESGListener {
     public void removePeer(ESGPeer peer);
     public int numOfPeers();
     public String[] getPeerNames();
+    public ESGPeer getPeer(String peerName);
+
+    //Typed subscriptions to the events the manager fires (see
+    //ESGEventBus), components that do not subscribe get everything
+    public void subscribe(ESGListener listener, Class<?>... eventTypes);
+    public void subscribeRemote(ESGListener listener, int... messageTypes);
+    public void unsubscribe(ESGListener listener);
+
+    //The node's scheduler for periodic jobs (see ESGScheduler)
+    public ESGScheduler getScheduler();
 
     //Other....
     public Properties getMatchingProperties(String regex);
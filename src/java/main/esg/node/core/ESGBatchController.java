@@ -63,16 +63,32 @@
    this controller information can be sent to, and received by; the
    manager.
 
-   (I will be the first to admit that this whole class' purpose as
-   constructed is a bit bogus.  There is a "real" way to do this but
-   at the moment not sure of the best plan to get there.  Curse you
-   SEDA paper! :-) See NOTE below) -gmb
+   The batch controller is what the queue's drainer threads call to
+   pull events out of the queue's inbox.  Up to "batchSize" events
+   are taken at once.  If fewer than that are waiting, the drainer
+   will linger up to "maxLinger" milliseconds for more to show up
+   before dispatching what it has.  A batch of one goes to the
+   handler's handleESGQueuedEvent, anything bigger goes to
+   handleESGQueuedEvents so the component can deal with the whole
+   batch in one pass.
+
+   How long events waited in the inbox and how long the handler took
+   with them is reported to the queue controller, which uses it to
+   size the queue's thread pool.
+
+   Traced events (see ESGEventTrace) are stamped as they are taken off
+   the inbox and as the handler starts and finishes with them.  While
+   the handler runs, the event's trace (the first traced event's, for
+   a batch) is the thread's current trace, so whatever the handler
+   queues up next is timed as the next hop of the same trace.
    
 **/
 package esg.node.core;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -83,9 +99,11 @@ public class ESGBatchController implements ESGListener {
     private static Log log = LogFactory.getLog(ESGBatchController.class);    
     private String myName = null;
     private ESGQueueListener handler = null;
-    private int batchSize = 1;
-    private int collectSize = 0;
-    private List<ESGEvent> events = null;
+    private ESGQueueController qController = null;
+    private ESGQueueStats stats = null;
+    private volatile ESGEventJournal journal = null;
+    private volatile int batchSize = 1;
+    private volatile long maxLinger = 0L; //milliseconds
 
     //The default is no batching...
     public ESGBatchController(String name, ESGQueueListener handler) {
@@ -95,67 +113,172 @@ public class ESGBatchController implements ESGListener {
     public ESGBatchController(String name, ESGQueueListener handler, int initBatchSize) { 
 	this.myName = name; 
 	this.handler = handler;
-	this.events = new ArrayList<ESGEvent>();
-	this.batchSize = initBatchSize;
+	setBatchSize(initBatchSize);
     }
 
-    public void setBatchSize(int newBatchSize) { this.batchSize = newBatchSize; }
+    //Where dispatch timings get reported (set by the ESGQueue)
+    void setQueueController(ESGQueueController qController) { this.qController = qController; }
+    void setStats(ESGQueueStats stats) { this.stats = stats; }
+    void setJournal(ESGEventJournal journal) { this.journal = journal; }
+
+    public void setBatchSize(int newBatchSize) { this.batchSize = Math.max(1,newBatchSize); }
+    public int getBatchSize() { return batchSize; }
+
+    //How long (ms) a drainer will wait for a partial batch to fill up
+    public void setMaxLinger(long newMaxLinger) { this.maxLinger = Math.max(0L,newMaxLinger); }
+    public long getMaxLinger() { return maxLinger; }
 
 
     //--------------------------------------------------------
     //****WHERE EVENT IS (Finally) SENT TO THE HANDLER!!!*****
     //--------------------------------------------------------
 
-    //continually called by ESGQueue... in it's enqueued runnable
-    //delegating to handler...
+    /**
+       Called by the ESGQueue's drainer threads.  Pulls the next batch
+       out of the inbox and dispatches it to the handler.
+
+       @param inbox the queue holding the events waiting for the handler
+       @return the number of events dispatched (0 when the inbox was empty)
+    */
+    public int drain(BlockingQueue<ESGEvent> inbox) {
+        ESGEvent first = inbox.poll();
+        if(first == null) return 0;
+
+        //if batch size is 1 simply delegate through to handler
+        //calling the singular version of the function...  (don't have
+        //to go through doing extra collection work for no reason).
+        int size = batchSize;
+        if(size == 1) {
+            long start = System.nanoTime();
+            ESGEventTrace trace = first.getTrace();
+            if(trace != null) trace.dequeued(myName,start);
+            if(stats != null) stats.recordWait(start-first.getEnqueueTime());
+            handleESGQueuedEvent(first);
+            record(1,start-first.getEnqueueTime(),start);
+            completed(first);
+            return 1;
+        }
+
+        List<ESGEvent> events = new ArrayList<ESGEvent>(size);
+        events.add(first);
+        inbox.drainTo(events,size-1);
+        dequeued(events,0);
+
+        long linger = maxLinger;
+        if(events.size() < size && linger > 0) {
+            long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(linger);
+            long remaining = 0L;
+            ESGEvent next = null;
+            try{
+                while(events.size() < size && (remaining = deadline - System.nanoTime()) > 0) {
+                    if((next = inbox.poll(remaining,TimeUnit.NANOSECONDS)) == null) break;
+                    int from = events.size();
+                    events.add(next);
+                    inbox.drainTo(events,size-events.size());
+                    dequeued(events,from);
+                }
+            }catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        long start = System.nanoTime();
+        long waited = 0L;
+        long wait = 0L;
+        for(ESGEvent event : events) {
+            waited += (wait = start - event.getEnqueueTime());
+            if(stats != null) stats.recordWait(wait);
+        }
+
+        if(events.size() == 1) {
+            handleESGQueuedEvent(events.get(0));
+        }else {
+            handleESGQueuedEvents(events);
+        }
+        record(events.size(),waited,start);
+        for(ESGEvent event : events) { completed(event); }
+        return events.size();
+    }
+
+    //Handled (successfully or not, we don't replay poison) so it
+    //no longer needs to be in the journal
+    private void completed(ESGEvent event) {
+        ESGEventJournal j = journal;
+        if(j != null) j.complete(event);
+    }
+
+    private void dequeued(List<ESGEvent> events, int from) {
+        long now = System.nanoTime();
+        ESGEventTrace trace = null;
+        for(int i=from, size=events.size(); i < size; i++) {
+            if((trace = events.get(i).getTrace()) != null) trace.dequeued(myName,now);
+        }
+    }
+
+    private void record(int count, long waitNanos, long serviceStart) {
+        long serviceNanos = System.nanoTime()-serviceStart;
+        if(stats != null) stats.recordService(serviceNanos/count,count);
+        if(qController != null) qController.recordDispatch(count,waitNanos,serviceNanos);
+    }
+
+    //single event straight through to the handler
     public void handleESGQueuedEvent(ESGEvent event) {
-	//if batch size is 1 simply delegate through to handler
-	//calling the singular version of the function...  (don't have
-	//to go through doing extra collection work for no reason).
-	if(batchSize == 1) {
         log.trace("(passing event ("+event+") to handling component --> ["+myName+":"+handler+"] (batchSize="+batchSize+"))...");
-	    handler.handleESGQueuedEvent(event);
-	    return;
-	}
-	
-	//NOTE: This is kinda kokey to me... Does not seem that this
-	//will buy us anything... batching events after they have
-	//already been singularly displached here.  I will try this in
-	//a performance tuning effort, however, I honestly think this
-	//is not the way to do batching.  I would have to go directly
-	//to the workqueue held by the ThreadPoolExecutor and "drain"
-	//the pool and dispatched what was drained.  The only issue
-	//with that is that I can't really modify the workqueue from
-	//under the ThreadPoolExecutor may put the thread pool in a
-	//weird state and cause us to doubly dispatch events since
-	//even when we get the queue it is still active.  These are
-	//all optimizations that can be investigated later.  I just
-	//wanted to put in a basic implementation (even though I don't
-	//believe in it). :-)
-
-	++collectSize;
-	if(collectSize < batchSize) {
-	    events.add(event);
-	}else if(collectSize >= batchSize) {
-	    handler.handleESGQueuedEvents(events);
-	    collectSize = 0;
-	    events.clear();
-	}
-	
-	//NOTE: This should never happen...  
-	//(perhaps should get rid of collectSize altogether and just use .size()? - oops in a rush...)
-	if(collectSize != events.size()) {
-	    log.warn("There is a size inconsistency here ["+collectSize+"] != ["+events.size()+"]");
-	    //quick fix: but not solving the real reason...
-	    collectSize = events.size();
-	}
+        ESGEventTrace trace = event.getTrace();
+        ESGEventTrace previous = ESGEventTrace.current();
+        if(trace != null) {
+            trace.started(myName,System.nanoTime());
+            ESGEventTrace.setCurrent(trace);
+        }
+        try{
+            handler.handleESGQueuedEvent(event);
+        }catch(Throwable t) {
+            log.error("["+myName+"] handler failed on event: "+event,t);
+        }finally {
+            if(trace != null) {
+                ESGEventTrace.setCurrent(previous);
+                trace.ended(myName,System.nanoTime());
+            }
+        }
+    }
+
+    public void handleESGQueuedEvents(List<ESGEvent> events) {
+        log.trace("(passing batch of ["+events.size()+"] events to handling component --> ["+myName+":"+handler+"])...");
+        ESGEventTrace first = null;
+        ESGEventTrace previous = ESGEventTrace.current();
+        long start = System.nanoTime();
+        for(ESGEvent event : events) {
+            ESGEventTrace trace = event.getTrace();
+            if(trace == null) continue;
+            trace.started(myName,start);
+            if(first == null) first = trace;
+        }
+        if(first != null) ESGEventTrace.setCurrent(first);
+        try{
+            handler.handleESGQueuedEvents(events);
+        }catch(Throwable t) {
+            log.error("["+myName+"] handler failed on batch of ["+events.size()+"] events",t);
+        }finally {
+            if(first != null) {
+                ESGEventTrace.setCurrent(previous);
+                //the whole batch's handling time goes to each event in it
+                long end = System.nanoTime();
+                for(ESGEvent event : events) {
+                    ESGEventTrace trace = event.getTrace();
+                    if(trace != null) trace.ended(myName,end);
+                }
+            }
+        }
     }
 
     
     //Get messages from manager or other control object...
     public void handleESGEvent(ESGEvent event) { 
 	log.trace("Batch Controller ["+myName+"] Handling ingress control event...");
-	//TODO: handle events pertaining to batch control
+        if(!(event instanceof ESGQueueControlEvent)) return;
+        ESGQueueControlEvent controlEvent = (ESGQueueControlEvent)event;
+        if(controlEvent.hasBatchSize()) setBatchSize(controlEvent.getBatchSize());
+        if(controlEvent.hasBatchLinger()) setMaxLinger(controlEvent.getBatchLinger());
     }    
 
     public String getName() { return myName; }
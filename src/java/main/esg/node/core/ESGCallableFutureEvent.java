@@ -58,14 +58,30 @@
 /**
    Description:
 
+   A callable event that is also the Future of its result.  Whoever
+   queued it can block on get() (preferably with a timeout), or hang
+   ESGFutureCallbacks off of it and get on with things.
+
+   An event can be given a deadline (withTimeout).  Past it the event
+   fails with a TimeoutException, whether or not anyone is blocked on
+   it.  Once an event is done (completed, failed, timed out or
+   cancelled) the components it is still queued at skip it rather
+   than doing work nobody is waiting for.
+
 **/
 package esg.node.core;
 
 import java.util.concurrent.Future;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -75,9 +91,19 @@ public abstract class ESGCallableFutureEvent<T> extends ESGCallableEvent impleme
 
     private static final Log log = LogFactory.getLog(ESGCallableFutureEvent.class);
 
+    private static final int PENDING   = 0;
+    private static final int COMPLETED = 1;
+    private static final int FAILED    = 2;
+    private static final int CANCELLED = 3;
+
+    private static ScheduledThreadPoolExecutor deadlines = null;
+
+    private final AtomicInteger state = new AtomicInteger(PENDING);
     private volatile T result = null;
-    private volatile boolean cancelled = false;
+    private volatile Throwable failure = null;
     private final CountDownLatch countDownLatch;
+    private final ConcurrentLinkedQueue<ESGFutureCallback<? super T>> callbacks = new ConcurrentLinkedQueue<ESGFutureCallback<? super T>>();
+    private volatile ScheduledFuture<?> expiry = null;
     
     public ESGCallableFutureEvent(Object source) { this(source,null,null); }
     public ESGCallableFutureEvent(Object source, String message) { this(source,null,message); }
@@ -86,55 +112,143 @@ public abstract class ESGCallableFutureEvent<T> extends ESGCallableEvent impleme
         countDownLatch = new CountDownLatch(1);
     }
 
+    //One (daemon) thread that times out every event given a deadline
+    private static synchronized ScheduledThreadPoolExecutor deadlines() {
+        if(deadlines == null) {
+            deadlines = new ScheduledThreadPoolExecutor(1,new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,"ESGFuture-Deadlines");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            deadlines.setRemoveOnCancelPolicy(true);
+        }
+        return deadlines;
+    }
+
+    /**
+       Fails the event with a TimeoutException if it is not done
+       within the given time.
+       @return this event (for chaining)
+    */
+    public ESGCallableFutureEvent<T> withTimeout(long timeout, TimeUnit unit) {
+        final String what = getClass().getSimpleName();
+        final long millis = unit.toMillis(timeout);
+        expiry = deadlines().schedule(new Runnable() {
+                public void run() {
+                    if(setException(new TimeoutException(what+" not done within "+millis+"ms"))) {
+                        log.debug(what+" timed out after "+millis+"ms");
+                    }
+                }
+            },timeout,unit);
+        if(isDone()) expiry.cancel(false);
+        return this;
+    }
+
+    /**
+       Calls back when the event is done (right away if it already is).
+       @return this event (for chaining)
+    */
+    public ESGCallableFutureEvent<T> addCallback(ESGFutureCallback<? super T> callback) {
+        callbacks.add(callback);
+        if(isDone()) runCallbacks();
+        return this;
+    }
+
     @Override
     public boolean cancel(final boolean mayInterruptIfRunning) {
-        if (isDone()) {
-            return false;
-        } else {
-            countDownLatch.countDown();
-            cancelled = true;
-            return !isDone();
-        }
+        return finish(CANCELLED,null,null);
     }
 
     @Override
     public T get() throws InterruptedException, ExecutionException {
         countDownLatch.await();
-        return result;
+        return report();
     }
 
     @Override
     public T get(final long timeout, final TimeUnit unit)
             throws InterruptedException, ExecutionException, TimeoutException {
-        countDownLatch.await(timeout, unit);
-        return result;
+        if(!countDownLatch.await(timeout, unit)) {
+            throw new TimeoutException("No result within "+unit.toMillis(timeout)+"ms");
+        }
+        return report();
+    }
+
+    private T report() throws ExecutionException {
+        switch(state.get()) {
+        case CANCELLED: throw new CancellationException(getClass().getSimpleName()+" was cancelled");
+        case FAILED:    throw new ExecutionException(failure);
+        default:        return result;
+        }
     }
 
     @Override
     public boolean isCancelled() {
-        return cancelled;
+        return state.get() == CANCELLED;
     }
 
+    //(the latch, not the state, so a result is never seen half set)
     @Override
     public boolean isDone() {
         return countDownLatch.getCount() == 0;
     }
     
-    public void setResult(T result) {
+    public boolean setResult(T result) {
         log.trace("setResult to: "+result);
-        this.result = result;
+        return finish(COMPLETED,result,null);
+    }
+
+    public boolean setException(Throwable t) {
+        return finish(FAILED,null,t);
+    }
+
+    //Only the first of result/failure/cancellation takes
+    private boolean finish(int newState, T value, Throwable t) {
+        if(!state.compareAndSet(PENDING,newState)) return false;
+        result = value;
+        failure = t;
         countDownLatch.countDown();
+        ScheduledFuture<?> e = expiry;
+        if(e != null) e.cancel(false);
+        runCallbacks();
+        return true;
+    }
+
+    private void runCallbacks() {
+        ESGFutureCallback<? super T> callback = null;
+        while((callback = callbacks.poll()) != null) {
+            try{
+                switch(state.get()) {
+                case COMPLETED: callback.onSuccess(result); break;
+                case FAILED:    callback.onFailure(failure); break;
+                default:        callback.onFailure(new CancellationException(getClass().getSimpleName()+" was cancelled"));
+                }
+            }catch(Throwable t) {
+                log.error("Future callback failed: "+callback,t);
+            }
+        }
     }
 
     @SuppressWarnings("unchecked")
     public boolean doCall(DataNodeComponent contextComponent) {
         log.trace("doCall");
+        if(isDone()) {
+            log.debug("Skipping call on "+contextComponent.getName()+", no one is waiting for it any more (done/cancelled/timed out)");
+            return true;
+        }
         boolean handled = false;
-        if( (handled = this.call(contextComponent)) ) {
-            log.trace(" return value from \"call\" is "+handled);
-            setResult((T)getData());
-        }else{
-            log.trace("This event still has work to do: handled = "+handled);
+        try{
+            if( (handled = this.call(contextComponent)) ) {
+                log.trace(" return value from \"call\" is "+handled);
+                setResult((T)getData());
+            }else{
+                log.trace("This event still has work to do: handled = "+handled);
+            }
+        }catch(RuntimeException e) {
+            setException(e);
+            throw e;
         }
         return handled;
     }
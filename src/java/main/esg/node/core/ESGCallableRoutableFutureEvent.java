@@ -74,7 +74,8 @@ import java.util.Set;
    This class describes an event that knows how to transition from one
    event queue to another (from component to component).  This object
    traverses components, essentially having it's own internal route
-   through components.
+   through components.  When traced (see ESGEventTrace) each
+   component on the route shows up as a hop on the event's trace.
    </pre>
 */
 public class ESGCallableRoutableFutureEvent<T> extends ESGCallableFutureEvent<T> {
@@ -126,6 +127,13 @@ public class ESGCallableRoutableFutureEvent<T> extends ESGCallableFutureEvent<T>
 
     @SuppressWarnings("unchecked")
     public boolean doCall(DataNodeComponent contextComponent) {
+        //The caller cancelled or gave up (deadline) while we sat in
+        //this component's queue: go no further down the route
+        if(isDone()) {
+            log.debug("Dropping "+getClass().getSimpleName()+" at "+contextComponent.getName()+" (cancelled/timed out), skipping: "+getRouteAsString());
+            clear();
+            return false;
+        }
         try{
             log.trace("routable doCall...");
             String nextComponentName = null;
@@ -61,6 +61,9 @@
 **/
 package esg.node.core;
 
+import java.util.Collections;
+import java.util.Map;
+
 import esg.node.connection.ESGConnectionManager;
 import esg.node.components.notification.ESGNotifier;
 import esg.node.components.monitoring.ESGMonitor;
@@ -76,6 +79,7 @@ public class ESGDataNodeManager extends AbstractDataNodeManager {
 
     private static Log log = LogFactory.getLog(ESGDataNodeManager.class);
     private ESGConnectionManager connMgr = null;
+    private Map<String,Long> startupTimes = Collections.emptyMap();
 
     //TODO: the logic of the system, pulling in the components from a
     //config file and managing them.
@@ -84,13 +88,53 @@ public class ESGDataNodeManager extends AbstractDataNodeManager {
         log.info("Instantiating ESGDataNodeManager...");
     }
 
+    //Components are brought up as a graph of startup steps (see
+    //ESGStartupGraph): the ones that do not depend on each other
+    //init() in parallel, so we are back up (and answering peers) sooner.
     private void initCoreServices() {
         log.info("Loading core components");
+        ESGStartupGraph graph = new ESGStartupGraph(this);
 
         connMgr = new ESGConnectionManager("CONN_MGR");
-        registerComponent(connMgr);
+        graph.add(connMgr);
+
+        //Peers are picked up (on their join) by the connection manager
+        //and the registry, so both have to be up first
+        graph.add("DEFAULT_PEER",new Runnable() {
+                public void run() { registerDefaultPeer(); }
+            },"CONN_MGR","REGISTRY");
+
+        graph.add(new ESGFRegistry("REGISTRY"));
+
+        //graph.add(new ESGNotifier("NOTIFIER"));
+        //graph.add(new ESGMonitor("MONITOR"));
+        //graph.add(new ESGMetrics("METRICS"));
+
+        int threads = Integer.parseInt(getNodeProperty("startup.threads","4").trim());
+        long timeout = Long.parseLong(getNodeProperty("startup.timeout","300000").trim());
+        if(!graph.start(threads,timeout)) {
+            log.error("Not all core components started up! failed: "+graph.getFailed()+" skipped: "+graph.getSkipped());
+        }
+        startupTimes = graph.getDurations();
+
+        log.info("Connecting core components");
+
+        //Now build the "FSM" connections.
+        //Ingress messages from the network come in through the DNODE_SVC
+        //The DNODE_SVC then routes the message to the appropriate 
     
+        connect("DNODE_SVC","REGISTRY");
+        //connect("DNODE_SVC","NOTIFER");
+        //connect("DNODE_SVC","MONITOR");
+        //connect("DNODE_SVC","METRICS");
+
+        connect("REGISTRY","CONN_MGR"); 
+        //connect("NOTIFIER","CONN_MGR");
+        //connect("MONITOR","CONN_MGR");
+        //connect("METRICS","CONN_MGR");
+    }
 
+    private void registerDefaultPeer() {
         try{
             //NOTES: ESGF_PEER_SVC_ROOT should be the hostname of the
             //machine but it turns out that we need to be flexible to
@@ -124,36 +168,11 @@ public class ESGDataNodeManager extends AbstractDataNodeManager {
             }
             
         }catch(java.net.MalformedURLException e) {log.error(e); }
-        
-        ESGFRegistry registry = new ESGFRegistry("REGISTRY");
-        registerComponent(registry);
-    
-        //ESGNotifier notifier = new ESGNotifier("NOTIFIER");
-        //registerComponent(notifier);
-
-        //ESGMonitor monitor = new ESGMonitor("MONITOR");
-        //registerComponent(monitor);
-    
-        //ESGMetrics metrics = new ESGMetrics("METRICS");
-        //registerComponent(metrics);
-
-        log.info("Connecting core components");
-
-        //Now build the "FSM" connections.
-        //Ingress messages from the network come in through the DNODE_SVC
-        //The DNODE_SVC then routes the message to the appropriate 
-    
-        connect("DNODE_SVC","REGISTRY");
-        //connect("DNODE_SVC","NOTIFER");
-        //connect("DNODE_SVC","MONITOR");
-        //connect("DNODE_SVC","METRICS");
-
-        connect("REGISTRY","CONN_MGR"); 
-        //connect("NOTIFIER","CONN_MGR");
-        //connect("MONITOR","CONN_MGR");
-        //connect("METRICS","CONN_MGR");
     }
 
+    //How long (ms) each startup step took, in the order they finished
+    public Map<String,Long> getStartupTimes() { return startupTimes; }
+
     public void init() {
         log.info("Initializing ESG Data Node Manager...");
     
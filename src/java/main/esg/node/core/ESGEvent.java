@@ -69,6 +69,9 @@ public class ESGEvent extends EventObject {
     private Object data=null;
     private String message="";
     private ESGRemoteEvent remoteEvent = null;
+    private transient long enqueueTime = 0L; //System.nanoTime() when last put on a queue
+    private Object coalesceKey = null;
+    private transient ESGEventTrace trace = null;
 
     public ESGEvent(Object source) { this(source,null,null); }
     public ESGEvent(Object source, String message) { this(source,null,message); }
@@ -94,6 +97,19 @@ public class ESGEvent extends EventObject {
     public ESGRemoteEvent getRemoteEvent() { return this.remoteEvent; }
     public boolean hasRemoteEvent() { return null != remoteEvent; }
 
+    //Events with the same key supersede one another while waiting in
+    //a coalescing queue (see ESGEventInbox)
+    public void setCoalesceKey(Object coalesceKey) { this.coalesceKey = coalesceKey; }
+    public Object getCoalesceKey() { return coalesceKey; }
+
+    //The trace (if any) this event's trip through the components is timed on
+    public void setTrace(ESGEventTrace trace) { this.trace = trace; }
+    public ESGEventTrace getTrace() { return trace; }
+
+    //Stamped by ESGQueue, used for measuring time spent in the inbox
+    void setEnqueueTime(long enqueueTime) { this.enqueueTime = enqueueTime; }
+    long getEnqueueTime() { return enqueueTime; }
+
     public String toString() {
         return "Event:["+this.getClass().getName()+"] s:["+source+"] d:["+data+"] msg:["+message+"] "+((remoteEvent == null) ? "" : remoteEvent.toString());
     }
@@ -0,0 +1,238 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   Typed subscriptions for the events components and the manager fire
+   at one another.  Rather than every listener getting every event
+   and sorting out what it cares about with instanceof, a listener
+   subscribes to the event classes (ESGJoinEvent, ESGSystemEvent...)
+   and/or the remote message types (ESGRemoteEvent.REGISTER,
+   HEALTH...) it wants.  Subscribing to ESGEvent.class gets you
+   everything, which is what plain addESGListener does.
+
+   listenersFor(event) hands back a precomputed array of the listeners
+   for the event's class (and remote message type), built the first
+   time that kind of event is fired and thrown away when the
+   subscriptions change - which is rare next to the firing.
+
+**/
+package esg.node.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class ESGEventBus {
+
+    private static final ESGListener[] NONE = new ESGListener[0];
+
+    //One slot per remote message type bit, and one for events that
+    //did not come over the wire.
+    private static final int LOCAL = 32;
+    private static final int SLOTS = 33;
+
+    private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+    private volatile Subscription[] current = new Subscription[0];
+    private volatile ConcurrentMap<Class<?>,AtomicReferenceArray<ESGListener[]>> tables = newTables();
+
+    /**
+       Adds event classes to what the listener gets.  With no classes
+       given the listener is subscribed but gets nothing (yet).
+    */
+    public synchronized void subscribe(ESGListener listener, Class<?>... eventTypes) {
+        for(Class<?> eventType : eventTypes) {
+            if(!ESGEvent.class.isAssignableFrom(eventType)) {
+                throw new IllegalArgumentException(eventType.getName()+" is not an ESGEvent type");
+            }
+        }
+        Subscription subscription = subscriptionOf(listener);
+        for(Class<?> eventType : eventTypes) {
+            if(!subscription.types.contains(eventType)) subscription.types.add(eventType);
+        }
+        changed();
+    }
+
+    /**
+       Adds remote message types (ex: ESGRemoteEvent.REGISTER) to what
+       the listener gets, for events carrying a remote event.
+    */
+    public synchronized void subscribeRemote(ESGListener listener, int... messageTypes) {
+        Subscription subscription = subscriptionOf(listener);
+        for(int messageType : messageTypes) { subscription.remoteTypes |= messageType; }
+        changed();
+    }
+
+    public synchronized boolean unsubscribe(ESGListener listener) {
+        for(int i=0; i < subscriptions.size(); i++) {
+            if(subscriptions.get(i).listener == listener) {
+                subscriptions.remove(i);
+                changed();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void clear() {
+        subscriptions.clear();
+        changed();
+    }
+
+    public boolean isSubscribed(ESGListener listener) {
+        for(Subscription subscription : current) {
+            if(subscription.listener == listener) return true;
+        }
+        return false;
+    }
+
+    public int size() { return current.length; }
+
+    /**
+       @return the listeners that want this event, in the order they
+       subscribed (shared, do not modify)
+    */
+    public ESGListener[] listenersFor(ESGEvent event) {
+        int slot = slotOf(event);
+        if(slot < 0) return collect(event.getClass(),Math.max(0,event.getRemoteEvent().getMessageType()),current);
+
+        ConcurrentMap<Class<?>,AtomicReferenceArray<ESGListener[]>> t = tables;
+        AtomicReferenceArray<ESGListener[]> table = t.get(event.getClass());
+        if(table == null) {
+            table = new AtomicReferenceArray<ESGListener[]>(SLOTS);
+            AtomicReferenceArray<ESGListener[]> raced = t.putIfAbsent(event.getClass(),table);
+            if(raced != null) table = raced;
+        }
+        ESGListener[] listeners = table.get(slot);
+        if(listeners == null) {
+            listeners = collect(event.getClass(),(slot == LOCAL) ? 0 : (1 << slot),current);
+            table.set(slot,listeners);
+        }
+        return listeners;
+    }
+
+    //remote message types are single bits, anything else isn't cached
+    private static int slotOf(ESGEvent event) {
+        if(!event.hasRemoteEvent()) return LOCAL;
+        int messageType = event.getRemoteEvent().getMessageType();
+        return (messageType > 0 && Integer.bitCount(messageType) == 1) ? Integer.numberOfTrailingZeros(messageType) : -1;
+    }
+
+    private static ESGListener[] collect(Class<?> eventClass, int messageType, Subscription[] subs) {
+        List<ESGListener> listeners = new ArrayList<ESGListener>(subs.length);
+        for(Subscription subscription : subs) {
+            if(subscription.wants(eventClass,messageType)) listeners.add(subscription.listener);
+        }
+        return listeners.isEmpty() ? NONE : listeners.toArray(new ESGListener[listeners.size()]);
+    }
+
+    private Subscription subscriptionOf(ESGListener listener) {
+        for(Subscription subscription : subscriptions) {
+            if(subscription.listener == listener) return subscription;
+        }
+        Subscription subscription = new Subscription(listener);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    //Subscriptions first, then the (emptied) dispatch tables, so a
+    //table built from here on is built from the new subscriptions.
+    private void changed() {
+        Subscription[] subs = new Subscription[subscriptions.size()];
+        for(int i=0; i < subs.length; i++) { subs[i] = subscriptions.get(i).copy(); }
+        current = subs;
+        tables = newTables();
+    }
+
+    private static ConcurrentMap<Class<?>,AtomicReferenceArray<ESGListener[]>> newTables() {
+        return new ConcurrentHashMap<Class<?>,AtomicReferenceArray<ESGListener[]>>();
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ESGEventBus:");
+        for(Subscription subscription : current) { sb.append(" ").append(subscription); }
+        return sb.toString();
+    }
+
+    private static class Subscription {
+        final ESGListener listener;
+        final List<Class<?>> types = new ArrayList<Class<?>>(4);
+        int remoteTypes = 0;
+
+        Subscription(ESGListener listener) { this.listener = listener; }
+
+        boolean wants(Class<?> eventClass, int messageType) {
+            if((remoteTypes & messageType) != 0) return true;
+            for(Class<?> type : types) {
+                if(type.isAssignableFrom(eventClass)) return true;
+            }
+            return false;
+        }
+
+        Subscription copy() {
+            Subscription copy = new Subscription(listener);
+            copy.types.addAll(types);
+            copy.remoteTypes = remoteTypes;
+            return copy;
+        }
+
+        public String toString() { return listener+"->"+types+((remoteTypes != 0) ? "+remote:"+remoteTypes : ""); }
+    }
+
+}
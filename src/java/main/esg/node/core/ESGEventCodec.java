@@ -0,0 +1,129 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   Turns plain (remote event carrying) ESGEvents into bytes and back
+   so that they can be written to local disk and picked up again
+   later (the overload spill files and the event journal).  Only the
+   message, the ESGRemoteEvent, a Serializable data object and a
+   Serializable coalescing key survive the trip.  The event's source (EventObject's
+   source is transient anyway) is supplied by whoever decodes it.
+
+   Events of the ESGEvent subclasses (join, system, callable...) are
+   process local and are not encodable.
+
+**/
+package esg.node.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import esg.common.service.ESGRemoteEvent;
+
+public final class ESGEventCodec {
+
+    private static final int VERSION = 2; //1 = no coalescing key
+
+    private ESGEventCodec() { }
+
+    public static boolean canEncode(ESGEvent event) {
+        if(event == null || event.getClass() != ESGEvent.class) return false;
+        return ((event.getData() == null) || (event.getData() instanceof Serializable)) &&
+            ((event.getCoalesceKey() == null) || (event.getCoalesceKey() instanceof Serializable));
+    }
+
+    public static byte[] encode(ESGEvent event) throws IOException {
+        if(!canEncode(event)) throw new IOException("Event not encodable: "+event);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        try{
+            out.writeInt(VERSION);
+            out.writeObject(event.getMessage());
+            out.writeObject(event.getRemoteEvent());
+            out.writeObject(event.getData());
+            out.writeObject(event.getCoalesceKey());
+        }finally{
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    public static ESGEvent decode(byte[] encoded, Object source) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(encoded));
+        try{
+            int version = in.readInt();
+            if(version < 1 || version > VERSION) throw new IOException("Unknown encoded event version: "+version);
+            String message = (String)in.readObject();
+            ESGRemoteEvent remoteEvent = (ESGRemoteEvent)in.readObject();
+            Object data = in.readObject();
+            ESGEvent event = new ESGEvent(source,data,message);
+            event.setRemoteEvent(remoteEvent);
+            if(version > 1) event.setCoalesceKey(in.readObject());
+            return event;
+        }catch(ClassNotFoundException e) {
+            throw new IOException("Could not decode event",e);
+        }finally{
+            in.close();
+        }
+    }
+
+}
@@ -129,7 +129,7 @@ public class ESGEventHelper {
                                    in.getPayload(),
                                    in.getPayloadChecksum(),
                                    Utils.nextSeq(),
-                                   -1));
+                                   -1).keepPayloadFormOf(in));
         return in;
     }
 
@@ -144,7 +144,27 @@ public class ESGEventHelper {
                                   in.getMessageType(),
                                   in.getPayload(),
                                   in.getPayloadChecksum(),
-                                  in.getSeqNum());
+                                  in.getSeqNum()).keepPayloadFormOf(in);
+    }
+
+    /**
+       The "type" of an event (used by the queue's overload policies
+       and lanes): the remote message type for events that came over
+       the wire, otherwise the event's class.
+    */
+    public static String typeOf(ESGEvent event) {
+        if(!event.hasRemoteEvent()) return event.getClass().getSimpleName();
+        switch(event.getRemoteEvent().getMessageType()) {
+        case ESGRemoteEvent.NOOP:        return "NOOP";
+        case ESGRemoteEvent.REGISTER:    return "REGISTER";
+        case ESGRemoteEvent.UNREGISTER:  return "UNREGISTER";
+        case ESGRemoteEvent.NOTIFY:      return "NOTIFY";
+        case ESGRemoteEvent.HEALTH:      return "HEALTH";
+        case ESGRemoteEvent.METRICS:     return "METRICS";
+        case ESGRemoteEvent.APPLICATION: return "APPLICATION";
+        case ESGRemoteEvent.PRUNE:       return "PRUNE";
+        default: return "REMOTE_"+event.getRemoteEvent().getMessageType();
+        }
     }
 
-}
\ No newline at end of file
+}
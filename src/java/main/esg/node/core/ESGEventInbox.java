@@ -0,0 +1,430 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   The blocking queue behind each ESGQueue.  Events are sorted into
+   priority "lanes": control traffic (joins, system events, callable
+   events such as prunes, peer events, UNREGISTER and PRUNE remote
+   events...) goes in the CONTROL lane and everything else (ex: the
+   big REGISTER gossip payloads) in the NORMAL lane.  Takers get the
+   highest priority waiting event, FIFO within a lane, so a peer-left
+   notice no longer waits behind hundreds of registration merges.
+
+   So that a steady stream of control traffic cannot starve the
+   normal lane, after "burst" takes in a row from a higher lane while
+   a lower one has events waiting, the next take comes from the lower
+   lane.  Each lane has its own capacity so a flood of payload events
+   cannot lock control events out.
+
+   Which types go in the control lane can be set per component (the
+   type names are those of ESGEventHelper.typeOf(); for local events
+   any class in the event's hierarchy matches):
+
+   queue.REGISTRY.lane.control.types=ESGJoinEvent,ESGSystemEvent,UNREGISTER
+   queue.REGISTRY.lane.burst=16
+
+   When coalescing is on (queue.coalesce, the default) an event that
+   carries a coalescing key (ESGEvent.setCoalesceKey()) replaces the
+   waiting event with the same key, keeping its place in line, rather
+   than being queued behind it.  What replaces it is up to the
+   ESGEventMerger: by default the newer event (or, for remote events,
+   the one with the higher sequence number).
+
+**/
+package esg.node.core;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGEventInbox extends AbstractQueue<ESGEvent> implements BlockingQueue<ESGEvent> {
+
+    private static Log log = LogFactory.getLog(ESGEventInbox.class);
+
+    public static final int CONTROL = 0;
+    public static final int NORMAL  = 1;
+    private static final int LANES  = 2;
+
+    public static final Set<String> DEFAULT_CONTROL_TYPES =
+        Collections.unmodifiableSet(new HashSet<String>(Arrays.asList("ESGJoinEvent","ESGSystemEvent","ESGCallableEvent",
+                                                                      "ESGPeerEvent","ESGQueueControlEvent",
+                                                                      "UNREGISTER","PRUNE")));
+
+    //Keep the newer event unless it is a remote event that is older
+    //(lower sequence number) than the one waiting
+    public static final ESGEventMerger NEWEST = new ESGEventMerger() {
+            public ESGEvent merge(ESGEvent pending, ESGEvent newer) {
+                if(pending.hasRemoteEvent() && newer.hasRemoteEvent() &&
+                   pending.getRemoteEvent().getSeqNum() > newer.getRemoteEvent().getSeqNum()) return pending;
+                return newer;
+            }
+        };
+
+    private final List<LinkedList<ESGEvent>> lanes = new ArrayList<LinkedList<ESGEvent>>(LANES);
+    private final int laneCapacity;
+    private int count = 0;
+    private int burst = 16;
+    private int served = 0; //takes in a row from above a waiting lane
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull  = lock.newCondition();
+
+    private volatile Set<String> controlTypes = DEFAULT_CONTROL_TYPES;
+    private final ConcurrentHashMap<Class<?>,Integer> classLanes = new ConcurrentHashMap<Class<?>,Integer>();
+
+    private volatile boolean coalescing = true;
+    private volatile ESGEventMerger merger = NEWEST;
+    private final Map<Object,ESGEvent> keyed = new HashMap<Object,ESGEvent>(); //key -> waiting event
+    private long coalesced = 0L;
+
+    public ESGEventInbox(int laneCapacity) {
+        this.laneCapacity = laneCapacity;
+        for(int i=0; i < LANES; i++) { lanes.add(new LinkedList<ESGEvent>()); }
+    }
+
+    public void setCoalescing(boolean coalescing) { this.coalescing = coalescing; }
+    public boolean isCoalescing() { return coalescing; }
+    public void setMerger(ESGEventMerger merger) { this.merger = (merger == null) ? NEWEST : merger; }
+    public ESGEventMerger getMerger() { return merger; }
+
+    public long getCoalescedCount() {
+        lock.lock();
+        try{ return coalesced; }finally{ lock.unlock(); }
+    }
+
+    public void setControlTypes(Set<String> types) {
+        controlTypes = Collections.unmodifiableSet(new HashSet<String>(types));
+        classLanes.clear();
+    }
+    public Set<String> getControlTypes() { return controlTypes; }
+
+    public void setBurst(int burst) { this.burst = Math.max(1,burst); }
+    public int getBurst() { return burst; }
+
+    //-------------------------------------------
+    //Lane selection
+    //-------------------------------------------
+    public int laneOf(ESGEvent event) {
+        Set<String> types = controlTypes;
+        if(event.hasRemoteEvent()) return types.contains(ESGEventHelper.typeOf(event)) ? CONTROL : NORMAL;
+        Integer lane = classLanes.get(event.getClass());
+        if(lane == null) {
+            lane = NORMAL;
+            for(Class<?> c = event.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+                if(types.contains(c.getSimpleName())) { lane = CONTROL; break; }
+            }
+            classLanes.put(event.getClass(),lane);
+        }
+        return lane;
+    }
+
+    public int size(int lane) {
+        lock.lock();
+        try{ return lanes.get(lane).size(); }finally{ lock.unlock(); }
+    }
+
+    //-------------------------------------------
+    //Must hold the lock for these...
+    //-------------------------------------------
+    private boolean enqueue(ESGEvent event) {
+        Object key = coalescing ? event.getCoalesceKey() : null;
+        if(key != null && coalesce(key,event)) return true;
+
+        LinkedList<ESGEvent> lane = lanes.get(laneOf(event));
+        if(lane.size() >= laneCapacity) return false;
+        lane.addLast(event);
+        if(key != null) keyed.put(key,event);
+        count++;
+        notEmpty.signal();
+        return true;
+    }
+
+    //Swap the waiting event with this key for the merged one (in place)
+    private boolean coalesce(Object key, ESGEvent event) {
+        ESGEvent pending = keyed.get(key);
+        if(pending == null) return false;
+        ESGEvent merged = null;
+        try{
+            merged = merger.merge(pending,event);
+        }catch(Throwable t) {
+            log.error("Merge of events with key ["+key+"] failed, keeping newer event",t);
+        }
+        if(merged == null) merged = event;
+        if(merged != pending) {
+            boolean replaced = false;
+            for(LinkedList<ESGEvent> lane : lanes) {
+                for(ListIterator<ESGEvent> it = lane.listIterator(); it.hasNext();) {
+                    if(it.next() == pending) { it.set(merged); replaced = true; break; }
+                }
+                if(replaced) break;
+            }
+            if(!replaced) { keyed.remove(key); return false; }
+            keyed.put(key,merged);
+            merged.setEnqueueTime(pending.getEnqueueTime()); //it has been waiting this long
+        }
+        coalesced++;
+        return true;
+    }
+
+    private void forget(ESGEvent event) {
+        Object key = event.getCoalesceKey();
+        if(key != null && keyed.get(key) == event) keyed.remove(key);
+    }
+
+    private ESGEvent dequeue() {
+        if(count == 0) return null;
+        int lane = nextNonEmpty(0);
+        if(served >= burst) {
+            int lower = nextNonEmpty(lane+1);
+            if(lower >= 0) { lane = lower; served = 0; }
+        }
+        ESGEvent event = lanes.get(lane).pollFirst();
+        forget(event);
+        served = (nextNonEmpty(lane+1) >= 0) ? served+1 : 0;
+        count--;
+        notFull.signalAll();
+        return event;
+    }
+
+    private int nextNonEmpty(int from) {
+        for(int i=from; i < LANES; i++) { if(!lanes.get(i).isEmpty()) return i; }
+        return -1;
+    }
+
+    //-------------------------------------------
+    //BlockingQueue
+    //-------------------------------------------
+    public boolean offer(ESGEvent event) {
+        if(event == null) throw new NullPointerException();
+        lock.lock();
+        try{ return enqueue(event); }finally{ lock.unlock(); }
+    }
+
+    public boolean offer(ESGEvent event, long timeout, TimeUnit unit) throws InterruptedException {
+        if(event == null) throw new NullPointerException();
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try{
+            while(!enqueue(event)) {
+                if(nanos <= 0) return false;
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return true;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public void put(ESGEvent event) throws InterruptedException {
+        if(event == null) throw new NullPointerException();
+        lock.lockInterruptibly();
+        try{
+            while(!enqueue(event)) { notFull.await(); }
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public ESGEvent poll() {
+        lock.lock();
+        try{ return dequeue(); }finally{ lock.unlock(); }
+    }
+
+    public ESGEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try{
+            while(count == 0) {
+                if(nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public ESGEvent take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try{
+            while(count == 0) { notEmpty.await(); }
+            return dequeue();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public ESGEvent peek() {
+        lock.lock();
+        try{
+            int lane = nextNonEmpty(0);
+            return (lane < 0) ? null : lanes.get(lane).peekFirst();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try{ return count; }finally{ lock.unlock(); }
+    }
+
+    public int remainingCapacity() {
+        lock.lock();
+        try{ return (laneCapacity*LANES) - count; }finally{ lock.unlock(); }
+    }
+
+    public int drainTo(Collection<? super ESGEvent> c) { return drainTo(c,Integer.MAX_VALUE); }
+
+    public int drainTo(Collection<? super ESGEvent> c, int maxElements) {
+        if(c == this) throw new IllegalArgumentException();
+        lock.lock();
+        try{
+            int n = 0;
+            while(n < maxElements && count > 0) {
+                c.add(dequeue());
+                n++;
+            }
+            return n;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    public boolean remove(Object o) {
+        if(o == null) return false;
+        lock.lock();
+        try{
+            for(LinkedList<ESGEvent> lane : lanes) {
+                if(lane.removeFirstOccurrence(o)) {
+                    forget((ESGEvent)o);
+                    count--;
+                    notFull.signalAll();
+                    return true;
+                }
+            }
+            return false;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    //A snapshot, in take order (lane by lane), whose remove() takes
+    //the event out of the inbox if it is still there.
+    public Iterator<ESGEvent> iterator() {
+        final List<ESGEvent> snapshot = new ArrayList<ESGEvent>();
+        lock.lock();
+        try{
+            for(LinkedList<ESGEvent> lane : lanes) { snapshot.addAll(lane); }
+        }finally{
+            lock.unlock();
+        }
+        return iterator(snapshot);
+    }
+
+    //The same for just the one lane
+    public Iterator<ESGEvent> iterator(int lane) {
+        final List<ESGEvent> snapshot = new ArrayList<ESGEvent>();
+        lock.lock();
+        try{
+            snapshot.addAll(lanes.get(lane));
+        }finally{
+            lock.unlock();
+        }
+        return iterator(snapshot);
+    }
+
+    private Iterator<ESGEvent> iterator(final List<ESGEvent> snapshot) {
+        return new Iterator<ESGEvent>() {
+            private int next = 0;
+            private ESGEvent last = null;
+            public boolean hasNext() { return next < snapshot.size(); }
+            public ESGEvent next() {
+                if(next >= snapshot.size()) throw new NoSuchElementException();
+                return (last = snapshot.get(next++));
+            }
+            public void remove() {
+                if(last == null) throw new IllegalStateException();
+                ESGEventInbox.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+}
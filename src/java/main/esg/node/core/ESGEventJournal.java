@@ -0,0 +1,338 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   An optional, append only, write-ahead journal of the events put on
+   a component's queue.  Each event is written (ESGEventCodec) when it
+   goes into the inbox and a completion record is written once the
+   component has handled it.  When the node comes back up, whatever
+   was queued but never completed (ex: merged registrations not yet
+   pushed out) is put back on the queue instead of being lost.
+
+   The journal is a run of memory mapped segment files in its own
+   directory, "seg-<n>.log".  Records are
+
+   [int payload length+1][byte type][long id][int crc32 of payload][payload]
+
+   with a zero length marking the end of what has been written in a
+   segment (segments are zero filled when created).  Segments are removed, oldest first, once every event
+   journaled in them has completed.
+
+   queue.REGISTRY.journal=true           (off by default)
+   queue.journal.dir                     (default $ESGF_HOME/journal)
+   queue.journal.segment.size=8388608    (bytes)
+   queue.journal.sync=false              (force() every record to disk)
+
+   Only events ESGEventCodec can encode are journaled; process local
+   events (joins, callable/future events such as prunes...) are
+   re-created by the components themselves when they start up.
+
+**/
+package esg.node.core;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGEventJournal {
+
+    private static Log log = LogFactory.getLog(ESGEventJournal.class);
+
+    private static final byte ENQUEUED  = 1;
+    private static final byte COMPLETED = 2;
+    private static final int HEADER = 4+1+8+4;
+
+    private static final FileFilter segmentFilter = new FileFilter() {
+            public boolean accept(File file) { return file.getName().startsWith("seg-") && file.getName().endsWith(".log"); }
+        };
+
+    private final File dir;
+    private final int segmentSize;
+    private final boolean sync;
+
+    private long nextId = 0L;
+    private long lastId = -1L; //highest id read back at open time
+    private int segmentNum = -1;
+    private int firstLive = 0; //oldest segment of this run not yet removed
+    private MappedByteBuffer segment = null;
+
+    //journaled events not yet completed, and which segment each id is in
+    private final Map<ESGEvent,List<Long>> pendingIds = new IdentityHashMap<ESGEvent,List<Long>>();
+    private final Map<Long,Integer> idSegments = new HashMap<Long,Integer>();
+    private final TreeMap<Integer,Integer> outstanding = new TreeMap<Integer,Integer>(); //segment -> open ids
+
+    //read back at open time, waiting for replay()
+    private Map<Long,byte[]> unfinished = new LinkedHashMap<Long,byte[]>();
+    private List<File> oldSegments = new ArrayList<File>();
+
+    public ESGEventJournal(File dir, int segmentSize, boolean sync) {
+        this.dir = dir;
+        this.segmentSize = Math.max(4096,segmentSize);
+        this.sync = sync;
+    }
+
+    /**
+       Reads any segments left from the last run (keeping the events
+       that never completed for replay()) and starts a new segment.
+    */
+    public synchronized void open() throws IOException {
+        if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create journal directory "+dir);
+        File[] files = dir.listFiles(segmentFilter);
+        Arrays.sort(files,new Comparator<File>() {
+                public int compare(File a, File b) { return segmentNumOf(a) - segmentNumOf(b); }
+            });
+        for(File file : files) {
+            read(file);
+            segmentNum = Math.max(segmentNum,segmentNumOf(file));
+            oldSegments.add(file);
+        }
+        roll(0);
+        firstLive = segmentNum;
+        nextId = lastId+1; //ids stay unique across runs (old segments live until replayed)
+        if(!unfinished.isEmpty()) log.info(dir+": ["+unfinished.size()+"] unfinished events to replay");
+    }
+
+    private void read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file,"r");
+        try{
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,0,raf.length());
+            CRC32 crc = new CRC32();
+            while(buffer.remaining() >= HEADER) {
+                int length = buffer.getInt()-1;
+                if(length < 0) break;
+                byte type = buffer.get();
+                long id = buffer.getLong();
+                lastId = Math.max(lastId,id);
+                int checksum = buffer.getInt();
+                if(length > buffer.remaining()) { log.warn("Truncated journal record in "+file); break; }
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                crc.reset();
+                crc.update(payload);
+                if((int)crc.getValue() != checksum) { log.warn("Corrupt journal record in "+file+" (id="+id+")"); break; }
+                if(type == ENQUEUED) {
+                    unfinished.put(id,payload);
+                }else if(type == COMPLETED) {
+                    unfinished.remove(id);
+                }
+            }
+        }finally{
+            raf.close();
+        }
+    }
+
+    /**
+       Hands back the events left unfinished by the last run (oldest
+       first).  The caller re-enqueues them, which journals them
+       again, and then calls replayed().
+    */
+    public synchronized List<ESGEvent> replay(Object source) {
+        List<ESGEvent> events = new ArrayList<ESGEvent>(unfinished.size());
+        for(Map.Entry<Long,byte[]> entry : unfinished.entrySet()) {
+            try{
+                events.add(ESGEventCodec.decode(entry.getValue(),source));
+            }catch(IOException e) {
+                log.error(dir+": could not decode journaled event "+entry.getKey()+", skipping it",e);
+            }
+        }
+        unfinished = new LinkedHashMap<Long,byte[]>();
+        return events;
+    }
+
+    //The replayed events are in the journal again, so the segments
+    //of the last run can be removed
+    public synchronized void replayed() {
+        for(File file : oldSegments) {
+            if(!file.delete()) log.warn("Could not remove old journal segment "+file);
+        }
+        oldSegments.clear();
+    }
+
+    //-------------------------------------------
+    //Recording
+    //-------------------------------------------
+
+    /**
+       Writes the event to the journal before it goes on the inbox.
+       @return false if the event can't be journaled (not encodable or
+       the write failed)
+    */
+    public boolean append(ESGEvent event) {
+        if(!ESGEventCodec.canEncode(event)) return false;
+        byte[] payload = null;
+        try{
+            payload = ESGEventCodec.encode(event);
+        }catch(IOException e) {
+            log.warn(dir+": could not encode event for journal: "+e.getMessage());
+            return false;
+        }
+        synchronized(this) {
+            try{
+                long id = nextId++;
+                write(ENQUEUED,id,payload);
+                List<Long> ids = pendingIds.get(event);
+                if(ids == null) pendingIds.put(event,ids = new ArrayList<Long>(1));
+                ids.add(id);
+                idSegments.put(id,segmentNum);
+                Integer open = outstanding.get(segmentNum);
+                outstanding.put(segmentNum,(open == null) ? 1 : open+1);
+                return true;
+            }catch(IOException e) {
+                log.error(dir+": journal write failed",e);
+                return false;
+            }
+        }
+    }
+
+    //The event has been dealt with (or never made it onto the inbox)
+    public synchronized void complete(ESGEvent event) {
+        List<Long> ids = pendingIds.remove(event);
+        if(ids == null) return;
+        for(Long id : ids) {
+            try{
+                write(COMPLETED,id,new byte[0]);
+            }catch(IOException e) {
+                log.error(dir+": journal write failed",e);
+            }
+            Integer seg = idSegments.remove(id);
+            if(seg != null) {
+                int open = outstanding.get(seg)-1;
+                if(open > 0) { outstanding.put(seg,open); } else { outstanding.remove(seg); }
+            }
+        }
+        dropCompletedSegments();
+    }
+
+    //The waiting event "pending" was coalesced with "newer" into
+    //"merged": completing merged completes all of them
+    public synchronized void merged(ESGEvent pending, ESGEvent newer, ESGEvent merged) {
+        List<Long> ids = new ArrayList<Long>();
+        List<Long> more = null;
+        if((more = pendingIds.remove(pending)) != null) ids.addAll(more);
+        if((more = pendingIds.remove(newer)) != null) ids.addAll(more);
+        if((more = pendingIds.remove(merged)) != null) ids.addAll(more);
+        if(!ids.isEmpty()) pendingIds.put(merged,ids);
+    }
+
+    public synchronized int getPendingCount() { return idSegments.size(); }
+
+    //-------------------------------------------
+    //Segments (must hold the lock)
+    //-------------------------------------------
+    private void write(byte type, long id, byte[] payload) throws IOException {
+        if(segment.remaining() < HEADER+payload.length+4) roll(HEADER+payload.length+4);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        segment.putInt(payload.length+1);
+        segment.put(type);
+        segment.putLong(id);
+        segment.putInt((int)crc.getValue());
+        segment.put(payload);
+        if(sync) segment.force();
+    }
+
+    private void roll(int needed) throws IOException {
+        segmentNum++;
+        File file = new File(dir,"seg-"+segmentNum+".log");
+        RandomAccessFile raf = new RandomAccessFile(file,"rw");
+        try{
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,0,Math.max(segmentSize,needed+4));
+        }finally{
+            raf.close();
+        }
+        log.trace(dir+": journal now writing to "+file);
+    }
+
+    //Oldest first, and never the one being written
+    private void dropCompletedSegments() {
+        int oldest = outstanding.isEmpty() ? segmentNum : outstanding.firstKey();
+        for(; firstLive < oldest; firstLive++) {
+            File file = new File(dir,"seg-"+firstLive+".log");
+            if(!file.delete()) log.warn("Could not remove journal segment "+file);
+        }
+    }
+
+    private static int segmentNumOf(File file) {
+        String name = file.getName();
+        try{
+            return Integer.parseInt(name.substring(4,name.length()-4));
+        }catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public String toString() { return "Journal:["+dir+"] segment:["+segmentNum+"] pending:["+getPendingCount()+"]"; }
+
+}
@@ -0,0 +1,260 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   The path one piece of work takes through the node's components.
+   Each time a traced event is put on a component's queue a "hop" is
+   added, stamped (System.nanoTime()) when it went on the queue, when
+   a drainer took it off, and when the component's handler started and
+   finished with it.  From those a hop's time splits into queue wait,
+   batch linger and service (handler) time.
+
+   Events queued by a handler while it is working on a traced event
+   join that event's trace (the trace is "current" on the handler's
+   thread), so a REGISTER coming in from a peer and the registry
+   update it turns into end up on one trace: DNODE_SVC -> REGISTRY ->
+   CONN_MGR.  When the last open hop is finished the trace is handed
+   to its ESGTraceBuffer.
+
+   Hops are looked up by component name, so an event may be on several
+   queues at once (fan out) without the hops getting mixed up.
+
+**/
+package esg.node.core;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ESGEventTrace {
+
+    private static final ThreadLocal<ESGEventTrace> current = new ThreadLocal<ESGEventTrace>();
+    private static final AtomicLong counter = new AtomicLong(0L);
+    private static final String idPrefix = Long.toHexString(System.currentTimeMillis())+"-";
+
+    private final String id;
+    private final ESGTraceBuffer buffer;
+    private final long begunMillis = System.currentTimeMillis();
+    private final List<Hop> hops = new ArrayList<Hop>(4);
+    private int open = 0;
+    private boolean abandoned = false;
+    private long finished = 0L;
+
+    ESGEventTrace(String id, ESGTraceBuffer buffer) {
+        this.id = (id == null) ? newId() : id;
+        this.buffer = buffer;
+    }
+
+    static String newId() { return idPrefix+Long.toHexString(counter.incrementAndGet()); }
+
+    public String getId() { return id; }
+    public long getBegunMillis() { return begunMillis; }
+
+    //------------------------------------------------------------
+    //The trace of the event the calling thread's handler is working on
+    //------------------------------------------------------------
+    public static ESGEventTrace current() { return current.get(); }
+    public static String currentId() {
+        ESGEventTrace trace = current.get();
+        return (trace == null) ? null : trace.getId();
+    }
+    static void setCurrent(ESGEventTrace trace) {
+        if(trace == null) current.remove(); else current.set(trace);
+    }
+
+    //------------------------------------------------------------
+    //Stamping (see ESGQueue and ESGBatchController)
+    //------------------------------------------------------------
+    synchronized void enqueued(String component, long now) {
+        hops.add(new Hop(component,now));
+        open++;
+    }
+
+    synchronized void dequeued(String component, long now) {
+        Hop hop = find(component);
+        if(hop != null && hop.dequeued == 0L) hop.dequeued = now;
+    }
+
+    synchronized void started(String component, long now) {
+        Hop hop = find(component);
+        if(hop == null) return;
+        if(hop.dequeued == 0L) hop.dequeued = now;
+        hop.started = now;
+    }
+
+    void ended(String component, long now) { close(component,now,false); }
+
+    //The event never made it to the handler (inbox full, or folded
+    //into another waiting event), so there is nothing to time.
+    void abandoned(String component, long now) { close(component,now,true); }
+
+    /**
+       For work done right on the calling thread (not through a
+       queue), ex: the data node service taking in a remote event.
+       Opens a hop, makes this the thread's current trace and returns
+       whatever trace was current before (to be put back by end()).
+    */
+    public ESGEventTrace begin(String component) {
+        long now = System.nanoTime();
+        synchronized(this) {
+            Hop hop = new Hop(component,now);
+            hop.dequeued = now;
+            hop.started = now;
+            hops.add(hop);
+            open++;
+        }
+        ESGEventTrace previous = current.get();
+        current.set(this);
+        return previous;
+    }
+
+    public void end(String component, ESGEventTrace previous) {
+        setCurrent(previous);
+        ended(component,System.nanoTime());
+    }
+
+    private void close(String component, long now, boolean abandon) {
+        boolean done = false;
+        synchronized(this) {
+            Hop hop = find(component);
+            if(hop == null) return;
+            hop.ended = now;
+            hop.abandoned = abandon;
+            abandoned |= abandon;
+            if(--open == 0 && finished == 0L) {
+                finished = now;
+                done = true;
+            }
+        }
+        if(done && buffer != null) buffer.record(this);
+    }
+
+    //The latest hop at the component that is still open
+    private Hop find(String component) {
+        for(int i = hops.size()-1; i >= 0; i--) {
+            Hop hop = hops.get(i);
+            if(hop.ended == 0L && hop.component.equals(component)) return hop;
+        }
+        return null;
+    }
+
+    //------------------------------------------------------------
+    //Reading a (finished) trace
+    //------------------------------------------------------------
+    public synchronized boolean isFinished() { return finished != 0L; }
+
+    //Some hop's event was dropped or superseded along the way
+    public synchronized boolean isAbandoned() { return abandoned; }
+
+    public synchronized List<Hop> getHops() { return new ArrayList<Hop>(hops); }
+
+    //ex: "DNODE_SVC -> REGISTRY -> CONN_MGR"
+    public synchronized String getRoute() {
+        StringBuilder sb = new StringBuilder();
+        for(Hop hop : hops) {
+            if(sb.length() > 0) sb.append(" -> ");
+            sb.append(hop.component);
+            if(hop.abandoned) sb.append("(x)");
+        }
+        return sb.toString();
+    }
+
+    //first hop enqueued to last hop finished (nanos)
+    public synchronized long getDuration() {
+        if(hops.isEmpty()) return 0L;
+        long end = (finished != 0L) ? finished : System.nanoTime();
+        return end - hops.get(0).enqueued;
+    }
+
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("Trace:["+id+"] ("+(getDuration()/1000000.0)+"ms) ");
+        for(Hop hop : hops) { sb.append(hop).append(" "); }
+        return sb.toString();
+    }
+
+    /**
+       One component's part of a trace.  Times are System.nanoTime()
+       stamps, 0 if that point was never reached.
+    */
+    public static class Hop {
+        private final String component;
+        private final long enqueued;
+        private long dequeued = 0L;
+        private long started = 0L;
+        private long ended = 0L;
+        private boolean abandoned = false;
+
+        Hop(String component, long enqueued) {
+            this.component = component;
+            this.enqueued = enqueued;
+        }
+
+        public String getComponent() { return component; }
+        public boolean isAbandoned() { return abandoned; }
+
+        //nanos spent on the queue, waiting for a batch to fill, and in the handler
+        public long getWait()    { return (dequeued == 0L) ? 0L : dequeued - enqueued; }
+        public long getLinger()  { return (started == 0L || dequeued == 0L) ? 0L : started - dequeued; }
+        public long getService() { return (ended == 0L || started == 0L) ? 0L : ended - started; }
+
+        public String toString() {
+            return component+"[wait:"+(getWait()/1000000.0)+" linger:"+(getLinger()/1000000.0)+" service:"+(getService()/1000000.0)+(abandoned ? " abandoned" : "")+"]";
+        }
+    }
+
+}
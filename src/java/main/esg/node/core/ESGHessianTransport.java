@@ -0,0 +1,362 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   How peer stubs (HessianPeer, ESGConnector) talk HTTP.  The same few
+   dozen hosts are called over and over (pings, gossip pushes,
+   prunes), so what the transport is about is not paying for a new
+   connection, and TLS handshake, on every call:
+
+   - Connections are kept alive and pooled per host by the JVM's
+     HttpURLConnection keep-alive cache.  Hessian disconnect()s each
+     connection once it has the reply, which would close the socket
+     rather than hand it back to the cache, so the connections it is
+     given (KeepAliveConnection) only close the reply stream on
+     disconnect() - that is what returns the socket to the cache.
+     The cache keeps up to http.maxConnections idle connections per
+     host; unless set otherwise it is set to the per host limit below.
+
+   - All https calls go through one SSLSocketFactory (of the JVM's
+     default SSLContext, so the usual javax.net.ssl key/trust stores
+     apply) whose client session cache is sized and timed here, so
+     reconnects resume the TLS session rather than doing a full
+     handshake.
+
+   - Every connection gets connect and read timeouts, so a call to a
+     dead host fails instead of hanging.
+
+   - At most "max.per.host" calls are made to a host at once; callers
+     beyond that wait (up to the connect timeout) for a turn.
+
+   The node's transport (getInstance()) is configured from the
+   conn.transport.* properties; another can be plugged in with
+   setInstance() (subclasses may override configure() and createStub()).
+
+**/
+package esg.node.core;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.Permission;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.caucho.hessian.client.HessianProxyFactory;
+import com.caucho.hessian.client.HessianRuntimeException;
+
+import esg.common.util.ESGFConfig;
+
+public class ESGHessianTransport {
+
+    private static final Log log = LogFactory.getLog(ESGHessianTransport.class);
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+    public static final int DEFAULT_MAX_PER_HOST = 4;
+    public static final int DEFAULT_TLS_SESSION_CACHE = 512;
+    public static final int DEFAULT_TLS_SESSION_TIMEOUT = 86400; //seconds
+
+    private static ESGHessianTransport instance = null;
+
+    private final HessianProxyFactory factory;
+    private final ConcurrentHashMap<String,Semaphore> hostSlots = new ConcurrentHashMap<String,Semaphore>();
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int maxPerHost;
+    private SSLSocketFactory sslSocketFactory = null;
+
+    private final AtomicLong numCalls = new AtomicLong(0L);
+    private final AtomicLong numWaits = new AtomicLong(0L);
+    private final AtomicLong numRefused = new AtomicLong(0L);
+
+    public static synchronized ESGHessianTransport getInstance() {
+        if(instance == null) instance = new ESGHessianTransport(ESGFConfig.getInstance().current().toProperties());
+        return instance;
+    }
+
+    public static synchronized void setInstance(ESGHessianTransport transport) { instance = transport; }
+
+    public ESGHessianTransport(Properties props) {
+        connectTimeout = Integer.parseInt(props.getProperty("conn.transport.connect.timeout",""+DEFAULT_CONNECT_TIMEOUT).trim());
+        readTimeout = Integer.parseInt(props.getProperty("conn.transport.read.timeout",""+DEFAULT_READ_TIMEOUT).trim());
+        maxPerHost = Math.max(1,Integer.parseInt(props.getProperty("conn.transport.max.per.host",""+DEFAULT_MAX_PER_HOST).trim()));
+
+        //the keep-alive cache reads this once, so it only takes if
+        //set before the first http connection of the JVM
+        if(System.getProperty("http.maxConnections") == null) System.setProperty("http.maxConnections",""+maxPerHost);
+        if(System.getProperty("http.keepAlive") == null) System.setProperty("http.keepAlive","true");
+
+        try{
+            SSLContext context = SSLContext.getDefault();
+            SSLSessionContext sessions = context.getClientSessionContext();
+            if(sessions != null) {
+                sessions.setSessionCacheSize(Integer.parseInt(props.getProperty("conn.transport.tls.session.cache",""+DEFAULT_TLS_SESSION_CACHE).trim()));
+                sessions.setSessionTimeout(Integer.parseInt(props.getProperty("conn.transport.tls.session.timeout",""+DEFAULT_TLS_SESSION_TIMEOUT).trim()));
+            }
+            sslSocketFactory = context.getSocketFactory();
+        }catch(java.security.NoSuchAlgorithmException e) {
+            log.warn("No default SSL context, https calls use the JVM's default socket factory: "+e.getMessage());
+        }
+
+        factory = new HessianProxyFactory() {
+                protected URLConnection openConnection(URL url) throws IOException {
+                    return pooled(configure(super.openConnection(url)));
+                }
+            };
+        log.info("Hessian transport: connect.timeout="+connectTimeout+"ms read.timeout="+readTimeout+"ms max.per.host="+maxPerHost);
+    }
+
+    public int getConnectTimeout() { return connectTimeout; }
+    public int getReadTimeout() { return readTimeout; }
+    public int getMaxPerHost() { return maxPerHost; }
+    public long getNumCalls() { return numCalls.get(); }
+    public long getNumWaits() { return numWaits.get(); }
+    public long getNumRefused() { return numRefused.get(); }
+    public int getInFlight(String host) {
+        Semaphore slots = hostSlots.get(host);
+        return (slots == null) ? 0 : maxPerHost - slots.availablePermits();
+    }
+
+    /**
+       Sets up each connection the Hessian stubs open.
+    */
+    protected URLConnection configure(URLConnection conn) {
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        if((conn instanceof HttpsURLConnection) && (sslSocketFactory != null)) {
+            ((HttpsURLConnection)conn).setSSLSocketFactory(sslSocketFactory);
+        }
+        return conn;
+    }
+
+    //What Hessian gets to use: http(s) connections it can't close
+    //the (kept alive) socket of
+    URLConnection pooled(URLConnection conn) {
+        return (conn instanceof HttpURLConnection) ? new KeepAliveConnection((HttpURLConnection)conn) : conn;
+    }
+
+    //The plain Hessian stub (its calls are limited per host by create())
+    protected Object createStub(Class<?> serviceClass, String serviceURL) throws MalformedURLException {
+        return factory.create(serviceClass,serviceURL);
+    }
+
+    /**
+       A stub for the service at serviceURL whose calls go through this
+       transport.
+    */
+    public Object create(Class<?> serviceClass, String serviceURL) throws MalformedURLException {
+        final Object stub = createStub(serviceClass,serviceURL);
+        if(stub == null) return null;
+        final String host = hostOf(serviceURL);
+        return Proxy.newProxyInstance(serviceClass.getClassLoader(),new Class<?>[] { serviceClass },new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if(method.getDeclaringClass() == Object.class) return method.invoke(stub,args);
+                    Semaphore slots = slotsOf(host);
+                    if(!slots.tryAcquire()) {
+                        numWaits.incrementAndGet();
+                        if(!slots.tryAcquire(connectTimeout,TimeUnit.MILLISECONDS)) {
+                            numRefused.incrementAndGet();
+                            throw new HessianRuntimeException("No free connection to ["+host+"] within "+connectTimeout+"ms ("+maxPerHost+" calls already out)");
+                        }
+                    }
+                    numCalls.incrementAndGet();
+                    try{
+                        return method.invoke(stub,args);
+                    }catch(InvocationTargetException e) {
+                        throw e.getCause();
+                    }finally{
+                        slots.release();
+                    }
+                }
+            });
+    }
+
+    private Semaphore slotsOf(String host) {
+        Semaphore slots = hostSlots.get(host);
+        if(slots == null) {
+            slots = new Semaphore(maxPerHost,true);
+            Semaphore raced = hostSlots.putIfAbsent(host,slots);
+            if(raced != null) slots = raced;
+        }
+        return slots;
+    }
+
+    //host[:port] of the url, what connections are pooled by
+    static String hostOf(String serviceURL) throws MalformedURLException {
+        URL url = new URL(serviceURL);
+        int port = (url.getPort() == -1) ? url.getDefaultPort() : url.getPort();
+        return url.getHost().toLowerCase()+":"+port;
+    }
+
+    /**
+       An http(s) connection whose disconnect() closes the reply (or
+       error) stream, which puts the socket back in the keep-alive
+       cache, instead of closing the socket.  One that never got as
+       far as a reply is disconnected for real.  Everything else is
+       passed through.
+    */
+    static class KeepAliveConnection extends HttpURLConnection {
+        private final HttpURLConnection conn;
+        private InputStream in = null;
+        private InputStream err = null;
+
+        KeepAliveConnection(HttpURLConnection conn) {
+            super(conn.getURL());
+            this.conn = conn;
+        }
+
+        public void disconnect() {
+            if(in == null && err == null) {
+                conn.disconnect();
+                return;
+            }
+            for(InputStream reply : new InputStream[] { in, err }) {
+                if(reply == null) continue;
+                try{
+                    reply.close();
+                }catch(IOException e) {
+                    log.trace("Could not close reply from "+conn.getURL()+": "+e.getMessage());
+                }
+            }
+        }
+
+        public InputStream getInputStream() throws IOException { return in = conn.getInputStream(); }
+        public InputStream getErrorStream() { return err = conn.getErrorStream(); }
+
+        public void connect() throws IOException { conn.connect(); }
+        public boolean usingProxy() { return conn.usingProxy(); }
+        public OutputStream getOutputStream() throws IOException { return conn.getOutputStream(); }
+        public int getResponseCode() throws IOException { return conn.getResponseCode(); }
+        public String getResponseMessage() throws IOException { return conn.getResponseMessage(); }
+        public void setRequestMethod(String method) throws java.net.ProtocolException { conn.setRequestMethod(method); }
+        public String getRequestMethod() { return conn.getRequestMethod(); }
+        public void setFixedLengthStreamingMode(int length) { conn.setFixedLengthStreamingMode(length); }
+        public void setFixedLengthStreamingMode(long length) { conn.setFixedLengthStreamingMode(length); }
+        public void setChunkedStreamingMode(int chunkLength) { conn.setChunkedStreamingMode(chunkLength); }
+        public void setInstanceFollowRedirects(boolean follow) { conn.setInstanceFollowRedirects(follow); }
+        public boolean getInstanceFollowRedirects() { return conn.getInstanceFollowRedirects(); }
+        public Permission getPermission() throws IOException { return conn.getPermission(); }
+
+        public void setConnectTimeout(int timeout) { conn.setConnectTimeout(timeout); }
+        public int getConnectTimeout() { return conn.getConnectTimeout(); }
+        public void setReadTimeout(int timeout) { conn.setReadTimeout(timeout); }
+        public int getReadTimeout() { return conn.getReadTimeout(); }
+        public void setDoInput(boolean doInput) { conn.setDoInput(doInput); }
+        public boolean getDoInput() { return conn.getDoInput(); }
+        public void setDoOutput(boolean doOutput) { conn.setDoOutput(doOutput); }
+        public boolean getDoOutput() { return conn.getDoOutput(); }
+        public void setAllowUserInteraction(boolean allow) { conn.setAllowUserInteraction(allow); }
+        public boolean getAllowUserInteraction() { return conn.getAllowUserInteraction(); }
+        public void setUseCaches(boolean useCaches) { conn.setUseCaches(useCaches); }
+        public boolean getUseCaches() { return conn.getUseCaches(); }
+        public void setIfModifiedSince(long since) { conn.setIfModifiedSince(since); }
+        public long getIfModifiedSince() { return conn.getIfModifiedSince(); }
+        public void setDefaultUseCaches(boolean useCaches) { conn.setDefaultUseCaches(useCaches); }
+        public boolean getDefaultUseCaches() { return conn.getDefaultUseCaches(); }
+        public void setRequestProperty(String key, String value) { conn.setRequestProperty(key,value); }
+        public void addRequestProperty(String key, String value) { conn.addRequestProperty(key,value); }
+        public String getRequestProperty(String key) { return conn.getRequestProperty(key); }
+        public Map<String,List<String>> getRequestProperties() { return conn.getRequestProperties(); }
+
+        public String getHeaderField(String name) { return conn.getHeaderField(name); }
+        public String getHeaderField(int n) { return conn.getHeaderField(n); }
+        public String getHeaderFieldKey(int n) { return conn.getHeaderFieldKey(n); }
+        public Map<String,List<String>> getHeaderFields() { return conn.getHeaderFields(); }
+        public int getHeaderFieldInt(String name, int defaultValue) { return conn.getHeaderFieldInt(name,defaultValue); }
+        public long getHeaderFieldLong(String name, long defaultValue) { return conn.getHeaderFieldLong(name,defaultValue); }
+        public long getHeaderFieldDate(String name, long defaultValue) { return conn.getHeaderFieldDate(name,defaultValue); }
+        public String getContentType() { return conn.getContentType(); }
+        public String getContentEncoding() { return conn.getContentEncoding(); }
+        public int getContentLength() { return conn.getContentLength(); }
+        public long getContentLengthLong() { return conn.getContentLengthLong(); }
+        public long getExpiration() { return conn.getExpiration(); }
+        public long getDate() { return conn.getDate(); }
+        public long getLastModified() { return conn.getLastModified(); }
+        public Object getContent() throws IOException { return conn.getContent(); }
+        @SuppressWarnings("rawtypes")
+        public Object getContent(Class[] classes) throws IOException { return conn.getContent(classes); }
+
+        public String toString() { return "KeepAlive:"+conn; }
+    }
+
+    public String toString() {
+        return "ESGHessianTransport: calls="+numCalls+" waits="+numWaits+" refused="+numRefused+" hosts="+hostSlots.size();
+    }
+}
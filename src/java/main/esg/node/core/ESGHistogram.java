@@ -0,0 +1,131 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   A cheap, lock free histogram of durations.  Samples are kept in
+   power of two (microsecond) buckets, so percentiles are only good to
+   within a factor of two - plenty for spotting where a pipeline is
+   backing up, without the cost of keeping the samples themselves.
+
+**/
+package esg.node.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class ESGHistogram {
+
+    private static final int BUCKETS = 40; //up to 2^39 us ~ 6 days
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(0L);
+    private final AtomicLong total = new AtomicLong(0L); //us
+    private final AtomicLong max   = new AtomicLong(0L); //us
+
+    public void record(long nanos) { record(nanos,1); }
+
+    //Records the same duration n times (ex: each event in a batch)
+    public void record(long nanos, int n) {
+        if(n < 1) return;
+        long micros = Math.max(0L,nanos/1000L);
+        int bucket = Math.min(BUCKETS-1,64-Long.numberOfLeadingZeros(micros));
+        buckets.addAndGet(bucket,n);
+        count.addAndGet(n);
+        total.addAndGet(micros*n);
+        long m;
+        while(micros > (m = max.get()) && !max.compareAndSet(m,micros)) { }
+    }
+
+    public long getCount() { return count.get(); }
+
+    //all the values below are in milliseconds
+    public double getMean() {
+        long n = count.get();
+        return (n == 0) ? 0.0 : (total.get()/(double)n)/1000.0;
+    }
+
+    public double getMax() { return max.get()/1000.0; }
+
+    /**
+       @param p the percentile wanted (0.0 - 1.0)
+       @return the upper bound of the bucket the percentile falls in
+    */
+    public double getPercentile(double p) {
+        long n = count.get();
+        if(n == 0) return 0.0;
+        long rank = (long)Math.ceil(p*n);
+        long seen = 0L;
+        for(int i=0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if(seen >= rank) return Math.min((1L << i),max.get())/1000.0;
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for(int i=0; i < BUCKETS; i++) { buckets.set(i,0L); }
+        count.set(0L);
+        total.set(0L);
+        max.set(0L);
+    }
+
+    public String toString() {
+        return "n:["+getCount()+"] mean:["+getMean()+"] p50:["+getPercentile(0.5)+"] p99:["+getPercentile(0.99)+"] max:["+getMax()+"] (ms)";
+    }
+
+}
@@ -0,0 +1,283 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   What a component's ESGQueue does with an event when its inbox is
+   full.  The policy is picked per component with the
+   "overload.policy" queue property, ex:
+
+   queue.overload.policy=block            (all components)
+   queue.REGISTRY.overload.policy=coalesce (just the registry)
+
+   callerruns - dispatch the event in the enqueuing thread (the old
+                behavior, and still the default)
+   block      - wait up to overload.block.timeout ms for room, then drop
+   shed       - throw out the oldest queued event of the same type
+                (or of any of the types in overload.shed.types) to
+                make room
+   coalesce   - replace a queued event from the same origin with the
+                same message type (the newer one supersedes it)
+   spill      - write the event to local disk, replayed into the inbox
+                once the queue has drained (see ESGSpillPolicy)
+
+   When shed, coalesce or spill cannot make room they fall back to
+   blocking for the timeout and then dropping, never to running in
+   the caller's thread (for ingress the caller is a servlet thread).
+   Every policy counts what it drops, sheds, coalesces and runs in
+   the caller.
+
+**/
+package esg.node.core;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public abstract class ESGOverloadPolicy {
+
+    private static Log log = LogFactory.getLog(ESGOverloadPolicy.class);
+
+    protected final AtomicLong dropped    = new AtomicLong(0L);
+    protected final AtomicLong shed       = new AtomicLong(0L);
+    protected final AtomicLong coalesced  = new AtomicLong(0L);
+    protected final AtomicLong callerRuns = new AtomicLong(0L);
+    protected long blockTimeout = 500L; //milliseconds
+
+    public static ESGOverloadPolicy newPolicy(String name) {
+        String policyName = (name == null) ? "" : name.trim().toLowerCase();
+        switch(policyName) {
+        case "block":    return new BlockPolicy();
+        case "shed":     return new ShedOldestPolicy();
+        case "coalesce": return new CoalescePolicy();
+        case "spill":    return new ESGSpillPolicy();
+        case "":
+        case "callerruns": return new CallerRunsPolicy();
+        default:
+            log.warn("Unknown overload policy ["+name+"], using callerruns");
+            return new CallerRunsPolicy();
+        }
+    }
+
+    public abstract String getName();
+
+    public void configure(ESGQueue queue, Properties props) {
+        blockTimeout = Long.parseLong(queue.getQueueProperty(props,"overload.block.timeout",""+blockTimeout));
+    }
+
+    /**
+       Called by the queue when the event could not be put on its
+       inbox.
+
+       @return true if a drainer needs to be scheduled (the event
+       ended up on the inbox, or drained() has something to put
+       there), false if the event was dealt with otherwise
+    */
+    public abstract boolean handleOverload(ESGQueue queue, ESGEvent event);
+
+    /**
+       Called by a drainer each time it has emptied the inbox.
+
+       @return true if events were put back on the inbox
+    */
+    public boolean drained(ESGQueue queue) { return false; }
+
+    public long getDroppedCount()    { return dropped.get(); }
+    public long getShedCount()       { return shed.get(); }
+    public long getCoalescedCount()  { return coalesced.get(); }
+    public long getCallerRunsCount() { return callerRuns.get(); }
+
+    //-------------------------------------------
+    //Shared helpers for the policies...
+    //-------------------------------------------
+
+    protected boolean runInCaller(ESGQueue queue, ESGEvent event) {
+        callerRuns.incrementAndGet();
+        log.trace("Inbox full, "+queue.getName()+" dispatching event in caller's thread");
+        queue.getBatchController().handleESGQueuedEvent(event);
+        return false;
+    }
+
+    //Wait (bounded) for room, drop the event if none shows up
+    protected boolean blockOrDrop(ESGQueue queue, ESGEvent event) {
+        try{
+            if(blockTimeout > 0 && queue.getInbox().offer(event,blockTimeout,TimeUnit.MILLISECONDS)) return true;
+        }catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drop(queue,event);
+        return false;
+    }
+
+    protected void drop(ESGQueue queue, ESGEvent event) {
+        long count = dropped.incrementAndGet();
+        queue.abandon(event);
+        log.warn("["+queue.getName()+"] Inbox full, dropped event ("+count+" dropped so far): "+ESGEventHelper.typeOf(event));
+    }
+
+    public String toString() {
+        return getName()+" dropped:["+dropped+"] shed:["+shed+"] coalesced:["+coalesced+"] callerRuns:["+callerRuns+"]";
+    }
+
+    //----
+
+    static class CallerRunsPolicy extends ESGOverloadPolicy {
+        public String getName() { return "callerruns"; }
+        public boolean handleOverload(ESGQueue queue, ESGEvent event) {
+            return runInCaller(queue,event);
+        }
+    }
+
+    //----
+
+    static class BlockPolicy extends ESGOverloadPolicy {
+        public String getName() { return "block"; }
+        public boolean handleOverload(ESGQueue queue, ESGEvent event) {
+            return blockOrDrop(queue,event);
+        }
+    }
+
+    //----
+
+    static class ShedOldestPolicy extends ESGOverloadPolicy {
+        private Set<String> shedTypes = new HashSet<String>(); //empty means any type
+
+        public String getName() { return "shed"; }
+
+        public void configure(ESGQueue queue, Properties props) {
+            super.configure(queue,props);
+            String types = queue.getQueueProperty(props,"overload.shed.types","");
+            shedTypes = new HashSet<String>();
+            if(types.length() > 0) {
+                for(String type : Arrays.asList(types.split("\\s*,\\s*"))) { shedTypes.add(type.toUpperCase()); }
+            }
+        }
+
+        private boolean sheddable(String type) {
+            return shedTypes.isEmpty() || shedTypes.contains(type.toUpperCase());
+        }
+
+        public boolean handleOverload(ESGQueue queue, ESGEvent event) {
+            ESGEventInbox inbox = queue.getLanes();
+            String type = ESGEventHelper.typeOf(event);
+            //only the event's own lane is full, and only room there will do
+            int lane = inbox.laneOf(event);
+
+            //oldest of the same type first, then the oldest of any sheddable type
+            ESGEvent victim = sheddable(type) ? findOldest(inbox.iterator(lane),type) : null;
+            if(victim == null) victim = findOldest(inbox.iterator(lane),null);
+
+            if(victim != null && inbox.remove(victim)) {
+                shed.incrementAndGet();
+                queue.abandon(victim);
+                log.trace("["+queue.getName()+"] shed queued "+ESGEventHelper.typeOf(victim)+" event to make room for "+type);
+                if(inbox.offer(event)) return true;
+            }
+            return blockOrDrop(queue,event);
+        }
+
+        private ESGEvent findOldest(Iterator<ESGEvent> it, String type) {
+            while(it.hasNext()) {
+                ESGEvent queued = it.next();
+                String queuedType = ESGEventHelper.typeOf(queued);
+                if((type == null) ? sheddable(queuedType) : type.equals(queuedType)) return queued;
+            }
+            return null;
+        }
+    }
+
+    //----
+
+    static class CoalescePolicy extends ESGOverloadPolicy {
+        public String getName() { return "coalesce"; }
+
+        //Events from the same originating node with the same message
+        //type supersede one another.  Local events are never coalesced.
+        protected Object keyOf(ESGEvent event) {
+            if(!event.hasRemoteEvent()) return null;
+            return event.getRemoteEvent().getOrigin()+":"+event.getRemoteEvent().getMessageType();
+        }
+
+        public boolean handleOverload(ESGQueue queue, ESGEvent event) {
+            Object key = keyOf(event);
+            if(key != null) {
+                BlockingQueue<ESGEvent> inbox = queue.getInbox();
+                for(Iterator<ESGEvent> it = inbox.iterator(); it.hasNext();) {
+                    ESGEvent queued = it.next();
+                    if(key.equals(keyOf(queued)) && inbox.remove(queued)) {
+                        coalesced.incrementAndGet();
+                        queue.abandon(queued);
+                        log.trace("["+queue.getName()+"] coalesced queued event for key "+key);
+                        if(inbox.offer(event)) return true;
+                        break;
+                    }
+                }
+            }
+            return blockOrDrop(queue,event);
+        }
+    }
+
+}
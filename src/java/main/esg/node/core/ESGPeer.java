@@ -86,6 +86,10 @@ public abstract class ESGPeer extends AbstractDataNodeComponent {
     protected boolean isValid = false;
     protected boolean isAvailable = false;
 
+    //What the peer told us (on its last event) it can decode - see
+    //ESGPayloadCodec.  Until we hear from it, plain text it is.
+    private volatile int capabilities = 0;
+
     //This pattern is what allows us to enforce that p2p service endpoint integrity.
     //You can only talk to the esgf-node-manager/node p2p web service.
     private static Pattern hostPattern = Pattern.compile("http[s]?://([^:/]*)(?::(?:[0-9]*))?/.*[/]*esgf-node-manager/(node)");
@@ -117,6 +121,8 @@ public abstract class ESGPeer extends AbstractDataNodeComponent {
     public String getServiceURL() { return serviceURL; }
     public boolean isValid() { return isValid; }
     public boolean isAvailable() { return isAvailable; }
+    public int getCapabilities() { return capabilities; }
+    public void setCapabilities(int capabilities) { this.capabilities = capabilities; }
     
     
     //-----------------------------------------------------------------
@@ -128,6 +134,9 @@ public abstract class ESGPeer extends AbstractDataNodeComponent {
 
     //Send the represented ESGPeer endpoint an event object
     public abstract void handleESGRemoteEvent(ESGRemoteEvent evt);
+    //Same, but says whether the event got there (override me if you
+    //can tell, this one can't)
+    public boolean sendESGRemoteEvent(ESGRemoteEvent evt) { handleESGRemoteEvent(evt); return true; }
     //-----------------------------------------------------------------
 
 
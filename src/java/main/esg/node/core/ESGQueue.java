@@ -58,11 +58,94 @@
 /**
    Description:
 
+   Each component owns one of these queues.  Events are put into the
+   queue's inbox and "drainer" tasks, run on the queue's thread pool,
+   pull them out in batches (see ESGBatchController) and hand them to
+   the component.  The number of drainers running at any one time is
+   bounded by the pool's core size, so the pool's own work queue only
+   ever holds a handful of drainer tasks - the events themselves sit
+   in the inbox where they can be seen and batched.
+
+   Queue properties are looked up per component first and then
+   globally, ex: for the component named "REGISTRY"...
+
+   queue.REGISTRY.batch.size=50   (falls back to queue.batch.size)
+   queue.REGISTRY.batch.linger=20 (falls back to queue.batch.linger)
+   queue.REGISTRY.threads.min=2   (falls back to queue.threads.min)
+   queue.REGISTRY.threads.max=20  (falls back to queue.threads.max)
+
+   The inbox sorts events into priority lanes, so control events are
+   handed out ahead of queued payload events (see ESGEventInbox for
+   the lane.* properties).  It also coalesces waiting events that
+   share a coalescing key (queue.coalesce=true, the default), handing
+   the pair to the queue's ESGEventMerger.
+
+   Queued events can be journaled to disk so that the ones not yet
+   handled when the node goes down are re-queued when it comes back
+   up (queue.<COMPONENT>.journal=true, see ESGEventJournal).
+
+   Events put on the queue join the trace of the handler doing the
+   putting, or start a new one, so their time here is timed hop by hop
+   (see ESGEventTrace and ESGTraceBuffer).
+
+   The pool's size is managed by the ESGQueueController (see there
+   for the rest of the threads.* properties).  What happens when the
+   inbox is full is up to the queue's ESGOverloadPolicy (see there
+   for the overload.* properties).
+
+   Instead of the pool, a queue may run its drainers on virtual
+   threads (Java 21+), one per drainer, with the number running at
+   once held to "virtual.permits" by a semaphore.  Handlers that
+   spend their time blocked on Hessian/HTTP or JDBC calls can then
+   have hundreds of calls outstanding without a big platform pool.
+   The mode is picked when the component is registered...
+
+   queue.CONN_MGR.execution=virtual  (pool is the default)
+   queue.CONN_MGR.virtual.permits=256
+
+   On older JVMs the queue stays on its pool (with a warning).
+
+   Or, so that the thread count follows the number of cores and not
+   the number of components, queues can share one work stealing
+   ForkJoinPool.  Each queue then runs at most "shared.permits"
+   drainers on it, the default of 1 making the queue a serial
+   executor over the shared pool: events are handed to the component
+   one at a time in the order they were queued (FIFO), and each
+   queue keeps its own inbox, batching and stats...
+
+   queue.execution=shared
+   queue.shared.parallelism=8  (global, defaults to the number of cores)
+
+   The shared pool is sized for work that keeps the cpu busy;
+   components that sit blocked on I/O are better off on their own
+   pool or on virtual threads.
+
+   Whichever threads run them, drainers normally hand out events in
+   inbox order with no regard to what else is being handled.  A
+   queue can instead be striped (see ESGStripedDispatcher): events
+   with the same key (by default the origin of the remote event) are
+   handled one batch at a time and in order, events with different
+   keys in parallel...
+
+   queue.REGISTRY.dispatch=striped
+   queue.REGISTRY.stripes=8
+
 **/
 package esg.node.core;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.RejectedExecutionHandler;
@@ -75,11 +158,34 @@ import org.apache.commons.logging.impl.*;
 public class ESGQueue {
 
     private static Log log = LogFactory.getLog(AbstractDataNodeComponent.class);
+
+    public static final int DEFAULT_CAPACITY = 1000;
+    public static final long DEFAULT_KEEPALIVE = 60000L; //milliseconds
+    private static final int SHARED_TURN = 64; //batches a drainer runs before yielding a shared worker
+
     private DataNodeComponent handler = null;
     private ThreadPoolExecutor pool = null;
     private ESGQueueController qController = null;
     private ESGBatchController bController = null;
-    private Runnable command = null;
+    private ESGEventInbox inbox = null;
+    private ESGQueueStats stats = null;
+    private volatile ESGEventJournal journal = null;
+    private volatile ESGEventMerger merger = ESGEventInbox.NEWEST;
+    private volatile ESGTraceBuffer traceBuffer = null;
+    private volatile ESGOverloadPolicy overloadPolicy = new ESGOverloadPolicy.CallerRunsPolicy();
+    private final AtomicInteger activeDrainers = new AtomicInteger(0);
+    //When not running on our own pool: where drainers run and how
+    //many may run at once
+    private volatile Executor executor = null;
+    private volatile Semaphore drainerPermits = null;
+    private int permitLimit = 0;
+    private String executionMode = "pool";
+    private volatile ESGStripedDispatcher stripes = null;
+
+    private static ForkJoinPool sharedPool = null;
+    private final Runnable drainer = new Runnable() {
+            public void run() { ESGQueue.this.drain(); }
+        };
 
     public ESGQueue(DataNodeComponent handler) {
 	this(handler,null,null);
@@ -89,7 +195,7 @@ public class ESGQueue {
 		    ESGQueueController qController,
 		    ESGBatchController bController) {
 	this(handler,
-	     new ThreadPoolExecutor(2,20,10L,TimeUnit.MILLISECONDS,
+	     new ThreadPoolExecutor(2,20,DEFAULT_KEEPALIVE,TimeUnit.MILLISECONDS,
 				    new LinkedBlockingQueue<Runnable>(1000),
 				    new ESGGroupedThreadFactory(handler.getName()),
 				    new ESGRejectPolicy(handler.getName())),
@@ -103,6 +209,8 @@ public class ESGQueue {
 	
 	this.handler = handler;
 	this.pool = pool;
+	this.inbox = new ESGEventInbox(DEFAULT_CAPACITY);
+	this.stats = new ESGQueueStats(this);
 	if(qController == null) {
 	    //TODO create default controller
 	    this.qController = new ESGQueueController(handler.getName());
@@ -116,33 +224,411 @@ public class ESGQueue {
 	    this.bController = bController;
 	}
 	
+	//Idle threads are let go after the keep-alive; the queue
+	//controller decides how many may be running.
+	this.pool.allowCoreThreadTimeOut(true);
+	this.qController.attach(this,this.pool);
+	this.bController.setQueueController(this.qController);
+	this.bController.setStats(this.stats);
+
+	//Let the journal know when the inbox folds events together
+	this.inbox.setMerger(new ESGEventMerger() {
+		public ESGEvent merge(ESGEvent pending, ESGEvent newer) {
+		    ESGEvent merged = merger.merge(pending,newer);
+		    if(merged == null) merged = newer;
+		    ESGEventJournal j = journal;
+		    if(j != null) j.merged(pending,newer,merged);
+		    if(merged != pending) abandonTrace(pending);
+		    if(merged != newer) abandonTrace(newer);
+		    return merged;
+		}
+	    });
     }
     
     public void init()  { }
     public String getName() { return handler.getName()+"_QUEUE"; }
+    public String getComponentName() { return handler.getName(); }
     
     public ESGQueueController getQueueController() { return qController; }
     public ESGBatchController getBatchController() { return bController; }
+    public ESGQueueStats getStats() { return stats; }
+    public ESGOverloadPolicy getOverloadPolicy() { return overloadPolicy; }
+    public void setOverloadPolicy(ESGOverloadPolicy overloadPolicy) { this.overloadPolicy = overloadPolicy; }
+
+    /**
+       Picks up this queue's tuning values from the node's properties.
+       Called by the data node manager when the owning component is
+       registered.
+    */
+    public void configure(Properties props) {
+        if(props == null) return;
+        retune(props);
+        if(Boolean.valueOf(getQueueProperty(props,"journal","false"))) {
+            String defaultDir = System.getenv().get("ESGF_HOME");
+            defaultDir = ((defaultDir == null) ? System.getProperty("java.io.tmpdir") : defaultDir)+File.separator+"journal";
+            openJournal(new File(getQueueProperty(props,"journal.dir",defaultDir),handler.getName()),
+                        Integer.parseInt(getQueueProperty(props,"journal.segment.size",""+(8*1024*1024))),
+                        Boolean.valueOf(getQueueProperty(props,"journal.sync","false")));
+        }
+
+        String mode = getQueueProperty(props,"execution","pool");
+        if("virtual".equalsIgnoreCase(mode)) {
+            useVirtualThreads(Integer.parseInt(getQueueProperty(props,"virtual.permits","256")));
+        }else if("shared".equalsIgnoreCase(mode)) {
+            useSharedPool(Integer.parseInt(props.getProperty("queue.shared.parallelism",""+Runtime.getRuntime().availableProcessors()).trim()),
+                          Integer.parseInt(getQueueProperty(props,"shared.permits","1")));
+        }
+        if("striped".equalsIgnoreCase(getQueueProperty(props,"dispatch","unordered"))) {
+            useStripes(Integer.parseInt(getQueueProperty(props,"stripes",""+Runtime.getRuntime().availableProcessors())),
+                       ESGStripedDispatcher.newKey(getQueueProperty(props,"stripe.key","origin")),
+                       Integer.parseInt(getQueueProperty(props,"stripe.backlog",""+ESGStripedDispatcher.DEFAULT_BACKLOG)));
+        }
+        ESGOverloadPolicy policy = ESGOverloadPolicy.newPolicy(getQueueProperty(props,"overload.policy","callerruns"));
+        policy.configure(this,props);
+        overloadPolicy = policy;
+        log.debug(getName()+" configured: batch.size="+bController.getBatchSize()+" batch.linger="+bController.getMaxLinger()+"ms"+
+                  " threads="+qController.getMinThreads()+"-"+qController.getMaxThreads()+" keepalive="+qController.getKeepAlive()+"ms"+
+                  " adaptive="+qController.isAdaptive()+" overload.policy="+overloadPolicy.getName()+
+                  " execution="+executionMode+((drainerPermits == null) ? "" : "("+permitLimit+")")+
+                  ((stripes == null) ? "" : " stripes="+stripes.getStripeCount()));
+    }
+
+    /**
+       Picks up the tuning values that are safe to change while events
+       are flowing (batching, lanes, coalescing and the pool's
+       threads).  The rest (journal, execution mode, dispatch, overload
+       policy) are only taken at configure time.  Called again by the
+       data node manager when the node's configuration is reloaded.
+    */
+    public void retune(Properties props) {
+        if(props == null) return;
+        bController.setBatchSize(Integer.parseInt(getQueueProperty(props,"batch.size","1")));
+        bController.setMaxLinger(Long.parseLong(getQueueProperty(props,"batch.linger","0")));
+
+        String controlTypes = getQueueProperty(props,"lane.control.types","");
+        if(controlTypes.length() > 0) inbox.setControlTypes(new HashSet<String>(Arrays.asList(controlTypes.split("\\s*,\\s*"))));
+        inbox.setBurst(Integer.parseInt(getQueueProperty(props,"lane.burst",""+inbox.getBurst())));
+        inbox.setCoalescing(Boolean.valueOf(getQueueProperty(props,"coalesce","true")));
+
+        qController.setThreadBounds(Integer.parseInt(getQueueProperty(props,"threads.min","2")),
+                                    Integer.parseInt(getQueueProperty(props,"threads.max","20")));
+        qController.setKeepAlive(Long.parseLong(getQueueProperty(props,"threads.keepalive",""+DEFAULT_KEEPALIVE)));
+        qController.setAdaptive(Boolean.valueOf(getQueueProperty(props,"threads.adaptive","true")));
+        qController.setWaitTarget(Long.parseLong(getQueueProperty(props,"threads.wait.target","100")));
+        qController.setAdjustInterval(Long.parseLong(getQueueProperty(props,"threads.adjust.interval","1000")));
+    }
+
+    /**
+       Switches this queue over to ordered per-key dispatch over
+       "count" stripes (see ESGStripedDispatcher).  Must be done
+       before events start flowing.  The most stripes that can be
+       worked on at once is still the queue's concurrency, so the
+       threads (or permits) should be raised to match.
+    */
+    public void useStripes(int count, ESGStripeKey key, int backlog) {
+        stripes = new ESGStripedDispatcher(count,key,backlog);
+        log.info(getName()+" - striped dispatch over ["+stripes.getStripeCount()+"] stripes (backlog="+stripes.getBacklog()+")");
+    }
+
+    public ESGStripedDispatcher getStripes() { return stripes; }
+    public boolean isStriped() { return stripes != null; }
+
+    /**
+       Switches this queue over to running its drainers on virtual
+       threads, at most "permits" at a time.  Must be done before
+       events start flowing (i.e. at configuration time).
+
+       @return false if this JVM has no virtual threads (the queue
+       stays on its pool)
+    */
+    public boolean useVirtualThreads(int permits) {
+        ThreadFactory factory = virtualThreadFactory("ESG-vthread-["+handler.getName()+"]-");
+        if(factory == null) {
+            log.warn(getName()+" - virtual threads are not available on this JVM ("+System.getProperty("java.version")+"), staying with thread pool");
+            return false;
+        }
+        final ThreadFactory virtualThreads = factory;
+        useExecutor("virtual",new Executor() {
+                public void execute(Runnable r) { virtualThreads.newThread(r).start(); }
+            },permits);
+        return true;
+    }
+
+    /**
+       Switches this queue over to running its drainers on the node
+       wide shared ForkJoinPool, at most "permits" at a time (1 keeps
+       the events in FIFO order).  The shared pool is created by the
+       first queue to ask for it, with the given parallelism.  Must be
+       done before events start flowing.
+    */
+    public void useSharedPool(int parallelism, int permits) {
+        useExecutor("shared",sharedPool(parallelism),permits);
+    }
+
+    static synchronized ForkJoinPool sharedPool(int parallelism) {
+        if(sharedPool == null) {
+            //async mode: forked tasks are taken FIFO, as befits event processing
+            sharedPool = new ForkJoinPool(Math.max(1,parallelism),
+                                          ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+                                          null,true);
+            log.info("Created shared ESGQueue scheduler (parallelism="+sharedPool.getParallelism()+")");
+        }
+        return sharedPool;
+    }
+
+    private void useExecutor(String mode, Executor executor, int permits) {
+        this.permitLimit = Math.max(1,permits);
+        this.drainerPermits = new Semaphore(permitLimit);
+        this.executor = executor;
+        this.executionMode = mode;
+        //sizing our pool no longer means anything for this queue
+        qController.setAdaptive(false);
+        log.info(getName()+" - running on "+mode+" threads (permits="+permitLimit+")");
+    }
+
+    public String getExecutionMode() { return executionMode; }
+    public boolean isVirtual() { return "virtual".equals(executionMode); }
+
+    //Thread.ofVirtual().name(prefix,0).factory() - by reflection since
+    //we still build for older JVMs.  Null if there is no such thing.
+    static ThreadFactory virtualThreadFactory(String prefix) {
+        try{
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name",String.class,long.class);
+            builder = name.invoke(builder,prefix,0L);
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        }catch(Exception e) {
+            return null;
+        }
+    }
+
+    //Per component value if present, else the global queue value, else the default
+    protected String getQueueProperty(Properties props, String key, String defaultValue) {
+        String value = props.getProperty("queue."+handler.getName()+"."+key);
+        if(value == null) value = props.getProperty("queue."+key, defaultValue);
+        return value.trim();
+    }
+
+    //Waiting in the inbox, or (striped) set aside on a busy stripe
+    public int size() {
+        ESGStripedDispatcher s = stripes;
+        return inbox.size() + ((s == null) ? 0 : s.size());
+    }
+    public int size(int lane) { return inbox.size(lane); }
+    public ESGEventInbox getLanes() { return inbox; }
+
+    //How waiting events with the same coalescing key are combined
+    public void setEventMerger(ESGEventMerger merger) { this.merger = (merger == null) ? ESGEventInbox.NEWEST : merger; }
+
+    //-------------------------------------------
+    //Journal
+    //-------------------------------------------
+
+    /**
+       Starts journaling events put on this queue, picking up the
+       unfinished events of the last run for replayJournal().
+    */
+    public boolean openJournal(File dir, int segmentSize, boolean sync) {
+        ESGEventJournal j = new ESGEventJournal(dir,segmentSize,sync);
+        try{
+            j.open();
+        }catch(IOException e) {
+            log.error(getName()+" - could not open event journal in "+dir+", running without one",e);
+            return false;
+        }
+        journal = j;
+        bController.setJournal(j);
+        log.info(getName()+" - journaling events to "+dir);
+        return true;
+    }
+
+    public ESGEventJournal getJournal() { return journal; }
+
+    //Where traces started on this queue go when finished (set by the manager)
+    void setTraceBuffer(ESGTraceBuffer traceBuffer) { this.traceBuffer = traceBuffer; }
+    public ESGTraceBuffer getTraceBuffer() { return traceBuffer; }
+
+    //Join the trace of the handler queueing this event, or start one
+    private void traceEnqueued(ESGEvent event, long now) {
+        ESGEventTrace trace = event.getTrace();
+        if(trace == null) {
+            ESGTraceBuffer buffer = traceBuffer;
+            if((trace = ESGEventTrace.current()) == null && buffer != null) trace = buffer.newTrace();
+            if(trace == null) return;
+            event.setTrace(trace);
+        }
+        trace.enqueued(handler.getName(),now);
+    }
+
+    //The event is not going to reach the handler by way of this queue
+    //(dropped, shed, superseded or spilled to disk)
+    void abandonTrace(ESGEvent event) {
+        ESGEventTrace trace = event.getTrace();
+        if(trace != null) trace.abandoned(handler.getName(),System.nanoTime());
+    }
+
+    //...and it is no longer the journal's to replay either (dropped,
+    //shed, superseded or in the spill's hands now)
+    void abandon(ESGEvent event) {
+        abandonTrace(event);
+        ESGEventJournal j = journal;
+        if(j != null) j.complete(event);
+    }
+
+    /**
+       Re-queues whatever the last run left unfinished.  Called by the
+       manager once all the components are loaded and connected.
+    */
+    public int replayJournal() {
+        ESGEventJournal j = journal;
+        if(j == null) return 0;
+        List<ESGEvent> events = j.replay(this);
+        for(ESGEvent event : events) { enqueueEvent(event); }
+        j.replayed(); //journaled again, the old segments can go
+        if(events.size() > 0) log.info(getName()+" - replayed ["+events.size()+"] journaled events");
+        return events.size();
+    }
+
+    //For the overload policies
+    BlockingQueue<ESGEvent> getInbox() { return inbox; }
+
+    //The number of drainers that may be pulling from the inbox at once
+    public int getConcurrency() { return (drainerPermits != null) ? permitLimit : Math.max(1,pool.getCorePoolSize()); }
+    public int getPoolSize() { return (drainerPermits != null) ? permitLimit : pool.getPoolSize(); }
+    public int getActiveThreads() {
+        Semaphore permits = drainerPermits;
+        return (permits != null) ? permitLimit - permits.availablePermits() : pool.getActiveCount();
+    }
     
-    
-    //Events are put on the eventQueue (BlockingQueue)
+    //Events are put on the inbox (BlockingQueue) and a drainer is
+    //kicked off (if there are not already enough running) to
+    //dispatch them to the component.
     public void enqueueEvent(final ESGEvent event) {
         log.trace("Enqueuing event onto ["+getName()+"] - "+event+" for component: "+handler.getName());
-	pool.execute(new Runnable() {
-		public void run() {
-		    //TODO: make this actually a call to the batch
-		    //controller that then will be able to rack up
-		    //(batch) and distribute the event.  So basically
-		    //this calls the batch controller and when the
-		    //batch controller has reached its batch threshold
-		    //then it will call
-		    //handler.handleESGQueuedEvent(List<ESGEvent>s)
-		    //For now... let's short that and call the single
-		    //event handling method directly.
-		    log.trace(ESGQueue.this.getName()+" - Dispatching event to component: "+handler.getName());
-		    bController.handleESGQueuedEvent(event);
-		}
-	    });
+        long now = System.nanoTime();
+        event.setEnqueueTime(now);
+        traceEnqueued(event,now);
+        stats.recordEnqueued();
+        ESGEventJournal j = journal;
+        if(j != null) j.append(event);
+        if(!inbox.offer(event)) {
+            //the policy completes it in the journal if it doesn't make it (see abandon)
+            stats.recordRejected();
+            //Inbox is full... up to the overload policy what to do
+            log.trace("Inbox full ["+inbox.size()+"], "+getName()+" applying overload policy: "+overloadPolicy.getName());
+            if(!overloadPolicy.handleOverload(this,event)) return;
+        }
+        scheduleDrain();
+    }
+
+    /**
+       For events coming back to the inbox from elsewhere (replayed
+       from the spill): stamped, traced, counted and journaled just as
+       enqueueEvent does, but if there is no room it is up to the
+       caller (not the overload policy) what happens to it.
+       @return true if the event is on the inbox
+    */
+    boolean reenqueueEvent(ESGEvent event) {
+        long now = System.nanoTime();
+        event.setEnqueueTime(now);
+        traceEnqueued(event,now);
+        ESGEventJournal j = journal;
+        if(j != null) j.append(event);
+        if(!inbox.offer(event)) {
+            abandon(event);
+            return false;
+        }
+        stats.recordEnqueued();
+        return true;
+    }
+
+    private void scheduleDrain() {
+        if(acquireDrainer()) {
+            log.trace(getName()+" - Launching drainer ["+getActiveThreads()+"/"+getConcurrency()+"]");
+            launchDrainer();
+        }
+    }
+
+    //Called by the queue controller after the pool has been resized
+    //so that the new threads go right to work on a backed up inbox.
+    void wakeDrainers() {
+        while(hasWork() && acquireDrainer()) {
+            launchDrainer();
+        }
+    }
+
+    private void launchDrainer() {
+        Executor other = executor;
+        if(other != null) {
+            other.execute(drainer);
+        }else {
+            pool.execute(drainer);
+        }
+    }
+
+    private boolean acquireDrainer() {
+        Semaphore permits = drainerPermits;
+        if(permits != null) return permits.tryAcquire();
+        int n;
+        while((n = activeDrainers.get()) < getConcurrency()) {
+            if(activeDrainers.compareAndSet(n,n+1)) return true;
+        }
+        return false;
+    }
+
+    private void releaseDrainer() {
+        Semaphore permits = drainerPermits;
+        if(permits != null) {
+            permits.release();
+        }else {
+            activeDrainers.decrementAndGet();
+        }
+    }
+
+    //Run by the pool (or virtual, or shared) threads.  Keep handing batches to the batch
+    //controller until the inbox is empty (and the overload policy has
+    //nothing more to put back on it).  After giving up our slot we
+    //look one more time, an event may have been put in the inbox
+    //just as we were leaving and its enqueuer saw no free slot.
+    //On the shared pool a busy queue gives up its worker every so
+    //often (keeping its permit, so ordering is kept) and goes to the
+    //back of the line so it can't starve the other components.
+    private void drain() {
+        boolean yielded = false;
+        do {
+            try{
+                yielded = !drainTurn("shared".equals(executionMode) ? SHARED_TURN : Integer.MAX_VALUE);
+            }finally{
+                if(yielded) {
+                    launchDrainer();
+                }else {
+                    releaseDrainer();
+                }
+            }
+        }while(!yielded && hasWork() && acquireDrainer());
+    }
+
+    //@return false if the turn ran out before the inbox was emptied
+    private boolean drainTurn(int batches) {
+        do {
+            while(drainBatch() > 0) {
+                if(--batches <= 0 && hasWork()) return false;
+            }
+        }while(overloadPolicy.drained(this));
+        return true;
+    }
+
+    private int drainBatch() {
+        ESGStripedDispatcher s = stripes;
+        return (s == null) ? bController.drain(inbox) : s.drain(inbox,bController);
+    }
+
+    //Striped, events may be waiting that no drainer can take on yet
+    //(their stripe is busy) and others may be set aside on a stripe
+    private boolean hasWork() {
+        ESGStripedDispatcher s = stripes;
+        return (s == null) ? !inbox.isEmpty() : s.hasWork(inbox);
     }
 
 
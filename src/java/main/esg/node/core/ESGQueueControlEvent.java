@@ -0,0 +1,107 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid Federation (ESGF) Data Node Software   *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid Federation (ESGF) Data Node Software Stack           *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                             *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                               *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   Sent by the manager (see AbstractDataNodeManager.sendQueueControlEvent)
+   to a component's queue controllers to retune the queue at runtime.
+   Only the values that have been set are applied, everything else is
+   left as it is.
+
+**/
+package esg.node.core;
+
+public class ESGQueueControlEvent extends ESGEvent {
+
+    private int minThreads = -1;
+    private int maxThreads = -1;
+    private long keepAlive = -1L;  //milliseconds
+    private int batchSize = -1;
+    private long batchLinger = -1L; //milliseconds
+    private Boolean adaptive = null;
+
+    public ESGQueueControlEvent(Object source) { super(source,"Queue Control"); }
+    public ESGQueueControlEvent(Object source, String message) { super(source,message); }
+
+    public void setThreadBounds(int minThreads, int maxThreads) {
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+    }
+    public void setKeepAlive(long keepAlive) { this.keepAlive = keepAlive; }
+    public void setBatchSize(int batchSize) { this.batchSize = batchSize; }
+    public void setBatchLinger(long batchLinger) { this.batchLinger = batchLinger; }
+    public void setAdaptive(boolean adaptive) { this.adaptive = adaptive; }
+
+    public int getMinThreads() { return minThreads; }
+    public int getMaxThreads() { return maxThreads; }
+    public long getKeepAlive() { return keepAlive; }
+    public int getBatchSize() { return batchSize; }
+    public long getBatchLinger() { return batchLinger; }
+    public Boolean getAdaptive() { return adaptive; }
+
+    public boolean hasThreadBounds() { return minThreads > 0 && maxThreads > 0; }
+    public boolean hasKeepAlive() { return keepAlive >= 0; }
+    public boolean hasBatchSize() { return batchSize > 0; }
+    public boolean hasBatchLinger() { return batchLinger >= 0; }
+    public boolean hasAdaptive() { return adaptive != null; }
+
+    public String toString() {
+        return super.toString()+" threads:["+minThreads+"-"+maxThreads+"] keepalive:["+keepAlive+
+            "] batch:["+batchSize+"/"+batchLinger+"] adaptive:["+adaptive+"]";
+    }
+
+}
@@ -54,7 +54,6 @@
 *   SUCH DAMAGE.                                                           *
 *                                                                          *
 ***************************************************************************/
-
 /**
    Description:
    
@@ -62,23 +61,161 @@
    manager to the associated queue for a given component.  Through
    this controller information can be sent to, and received by; the
    manager.
+
+   The queue controller owns the sizing of the queue's thread pool.
+   The batch controller reports back how long each dispatched event
+   sat in the inbox (wait time) and how long the component took with
+   it (service time).  Every "adjust interval" the controller looks at
+   those (smoothed) numbers along with the depth of the inbox and
+   grows or shrinks the pool's core size by a thread, staying within
+   the configured min and max.  The pool's core size is also the
+   number of drainers the queue will run at once, so this is what
+   actually sets the queue's concurrency.  Idle threads above the
+   core are let go after the keep-alive time.
+
+   The manager may retune things at runtime by sending an
+   ESGQueueControlEvent to handleESGEvent.
    
 **/
 package esg.node.core;
 
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.*;
 
 public class ESGQueueController implements ESGListener {
     private static Log log = LogFactory.getLog(ESGQueueController.class);    
+
+    //weight given to each new sample in the moving averages
+    private static final double ALPHA = 0.2;
+
     String myName = null;
+    private ESGQueue queue = null;
+    private ThreadPoolExecutor pool = null;
+
+    private int minThreads = 2;
+    private int maxThreads = 20;
+    private volatile boolean adaptive = true;
+    private long waitTarget = TimeUnit.MILLISECONDS.toNanos(100);
+    private long adjustInterval = TimeUnit.MILLISECONDS.toNanos(1000);
+
+    //smoothed per event times (nanoseconds)
+    private double avgWait = 0.0;
+    private double avgService = 0.0;
+    private long dispatched = 0L;
+    private long lastAdjust = System.nanoTime();
 
     public ESGQueueController(String name) { this.myName = name; }
-    
+
+    //Called by the queue when it is constructed
+    void attach(ESGQueue queue, ThreadPoolExecutor pool) {
+        this.queue = queue;
+        this.pool = pool;
+    }
+
+    //-------------------------------------------
+    //Bounds and tuning
+    //-------------------------------------------
+
+    public synchronized void setThreadBounds(int newMin, int newMax) {
+        if(newMin < 1 || newMax < newMin) {
+            log.warn("["+myName+"] Ignoring invalid thread bounds: min="+newMin+" max="+newMax);
+            return;
+        }
+        this.minThreads = newMin;
+        this.maxThreads = newMax;
+        if(pool == null) return;
+        resize(Math.min(Math.max(pool.getCorePoolSize(),minThreads),maxThreads));
+    }
+    public synchronized int getMinThreads() { return minThreads; }
+    public synchronized int getMaxThreads() { return maxThreads; }
+
+    //How long (ms) threads above the core size may sit idle before being let go
+    public void setKeepAlive(long millis) {
+        if(pool == null || millis < 0) return;
+        pool.setKeepAliveTime(Math.max(1L,millis),TimeUnit.MILLISECONDS);
+    }
+    public long getKeepAlive() { return (pool == null) ? -1L : pool.getKeepAliveTime(TimeUnit.MILLISECONDS); }
+
+    public void setAdaptive(boolean adaptive) { this.adaptive = adaptive; }
+    public boolean isAdaptive() { return adaptive; }
+
+    //The inbox wait time (ms) above which we try adding threads
+    public synchronized void setWaitTarget(long millis) { this.waitTarget = TimeUnit.MILLISECONDS.toNanos(Math.max(1L,millis)); }
+    public synchronized long getWaitTarget() { return TimeUnit.NANOSECONDS.toMillis(waitTarget); }
+
+    public synchronized void setAdjustInterval(long millis) { this.adjustInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(1L,millis)); }
+    public synchronized long getAdjustInterval() { return TimeUnit.NANOSECONDS.toMillis(adjustInterval); }
+
+    //-------------------------------------------
+    //Measurements
+    //-------------------------------------------
+
+    /**
+       Called by the batch controller after each dispatch.
+
+       @param count the number of events dispatched
+       @param waitNanos total time the events spent in the inbox
+       @param serviceNanos time the handler took with them
+    */
+    public synchronized void recordDispatch(int count, long waitNanos, long serviceNanos) {
+        if(count < 1) return;
+        avgWait    = (ALPHA * (waitNanos/count))    + ((1.0 - ALPHA) * avgWait);
+        avgService = (ALPHA * (serviceNanos/count)) + ((1.0 - ALPHA) * avgService);
+        dispatched += count;
+
+        long now = System.nanoTime();
+        if(adaptive && (now - lastAdjust) >= adjustInterval) {
+            lastAdjust = now;
+            adjust();
+        }
+    }
+
+    public synchronized double getAverageWaitTime() { return avgWait / 1000000.0; }      //ms
+    public synchronized double getAverageServiceTime() { return avgService / 1000000.0; } //ms
+    public synchronized long getDispatchCount() { return dispatched; }
+
+    //Add a thread when events are backing up and waiting longer than
+    //we want, give one back when the inbox is empty and waits are short.
+    private void adjust() {
+        if(pool == null || queue == null) return;
+        int depth = queue.size();
+        int core = pool.getCorePoolSize();
+        if(depth > core && avgWait > waitTarget && core < maxThreads) {
+            log.debug("["+myName+"] Growing pool: depth="+depth+" wait="+getAverageWaitTime()+"ms service="+getAverageServiceTime()+"ms core="+core+"->"+(core+1));
+            resize(core+1);
+        }else if(depth == 0 && avgWait < (waitTarget/4) && core > minThreads) {
+            log.debug("["+myName+"] Shrinking pool: wait="+getAverageWaitTime()+"ms core="+core+"->"+(core-1));
+            resize(core-1);
+        }
+    }
+
+    //Max must never drop below core (and vice versa) while resizing
+    private void resize(int newCore) {
+        if(newCore > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(maxThreads);
+            pool.setCorePoolSize(newCore);
+        }else {
+            pool.setCorePoolSize(newCore);
+            pool.setMaximumPoolSize(maxThreads);
+        }
+        queue.wakeDrainers();
+    }
+
+    //-------------------------------------------
+    //Control events from the manager
+    //-------------------------------------------
     public void handleESGEvent(ESGEvent event) { 
 	log.trace("Queue Controller ["+myName+"] Handling ingress control event...");
-	//TODO: handle events pertaining to controlling the thread queue
+        if(!(event instanceof ESGQueueControlEvent)) return;
+        ESGQueueControlEvent controlEvent = (ESGQueueControlEvent)event;
+        if(controlEvent.hasThreadBounds()) setThreadBounds(controlEvent.getMinThreads(),controlEvent.getMaxThreads());
+        if(controlEvent.hasKeepAlive()) setKeepAlive(controlEvent.getKeepAlive());
+        if(controlEvent.hasAdaptive()) setAdaptive(controlEvent.getAdaptive());
+        log.info("["+myName+"] Queue now: threads="+getMinThreads()+"-"+getMaxThreads()+" keepalive="+getKeepAlive()+"ms adaptive="+isAdaptive());
     } 
     
     public String getName() { return myName; }
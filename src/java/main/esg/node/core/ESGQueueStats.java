@@ -0,0 +1,230 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   The numbers kept on each component's event queue: how many events
+   came in (and how fast), how deep the inbox is, how long events sat
+   in it (wait time) and how long the component took with them
+   (service time), how many found the inbox full (rejections) and
+   what the overload policy did with them, and how many events the
+   component tried to send on to a next hop that wasn't there.
+
+   Recording is a handful of atomic increments so it is always on.
+   The manager registers each one with the platform MBean server as
+   esg.node:type=ESGQueue,name=<COMPONENT> and the monitor copies them
+   (toMap()) into MonitorInfo.queueInfo.
+
+**/
+package esg.node.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ESGQueueStats implements ESGQueueStatsMBean {
+
+    //MonitorInfo.queueInfo map keys
+    public static final String ENQUEUED        = "ENQUEUED";
+    public static final String ENQUEUE_RATE    = "ENQUEUE_RATE";
+    public static final String DEPTH           = "DEPTH";
+    public static final String CONTROL_DEPTH   = "CONTROL_DEPTH";
+    public static final String JOURNAL_PENDING = "JOURNAL_PENDING";
+    public static final String REJECTED        = "REJECTED";
+    public static final String NO_ROUTE_DROPPED = "NO_ROUTE_DROPPED";
+    public static final String OVERLOAD_POLICY = "OVERLOAD_POLICY";
+    public static final String OVERLOAD_DROPPED = "OVERLOAD_DROPPED";
+    public static final String SHED            = "SHED";
+    public static final String COALESCED       = "COALESCED";
+    public static final String CALLER_RUNS     = "CALLER_RUNS";
+    public static final String DISPATCHED      = "DISPATCHED";
+    public static final String CONCURRENCY     = "CONCURRENCY";
+    public static final String ACTIVE_THREADS  = "ACTIVE_THREADS";
+    public static final String WAIT_MEAN       = "WAIT_MEAN";
+    public static final String WAIT_P50        = "WAIT_P50";
+    public static final String WAIT_P99        = "WAIT_P99";
+    public static final String WAIT_MAX        = "WAIT_MAX";
+    public static final String SERVICE_MEAN    = "SERVICE_MEAN";
+    public static final String SERVICE_P50     = "SERVICE_P50";
+    public static final String SERVICE_P99     = "SERVICE_P99";
+    public static final String SERVICE_MAX     = "SERVICE_MAX";
+
+    //the enqueue rate is worked out over windows at least this long
+    private static final long RATE_WINDOW = 10000000000L; //10 sec in ns
+
+    private final ESGQueue queue;
+    private final AtomicLong enqueued = new AtomicLong(0L);
+    private final AtomicLong rejected = new AtomicLong(0L);
+    private final AtomicLong noRouteDropped = new AtomicLong(0L);
+    private final ESGHistogram waitTimes = new ESGHistogram();
+    private final ESGHistogram serviceTimes = new ESGHistogram();
+
+    private long rateCount = 0L;
+    private long rateTime = System.nanoTime();
+    private double rate = 0.0;
+
+    public ESGQueueStats(ESGQueue queue) { this.queue = queue; }
+
+    //-------------------------------------------
+    //Recording (called from the queue machinery)
+    //-------------------------------------------
+    void recordEnqueued() { enqueued.incrementAndGet(); }
+    void recordRejected() { rejected.incrementAndGet(); }
+    void recordNoRouteDropped() { noRouteDropped.incrementAndGet(); }
+    void recordWait(long nanos) { waitTimes.record(nanos); }
+    void recordService(long nanos, int count) { serviceTimes.record(nanos,count); }
+
+    public ESGHistogram getWaitTimes() { return waitTimes; }
+    public ESGHistogram getServiceTimes() { return serviceTimes; }
+
+    //-------------------------------------------
+    //ESGQueueStatsMBean
+    //-------------------------------------------
+    public String getComponentName() { return queue.getComponentName(); }
+
+    public long getEnqueuedCount() { return enqueued.get(); }
+
+    public synchronized double getEnqueueRate() {
+        long now = System.nanoTime();
+        long elapsed = now - rateTime;
+        if(elapsed >= RATE_WINDOW) {
+            long count = enqueued.get();
+            rate = (count - rateCount) / (elapsed / 1000000000.0);
+            rateCount = count;
+            rateTime = now;
+        }
+        return rate;
+    }
+
+    public int getDepth() { return queue.size(); }
+    public int getControlDepth() { return queue.size(ESGEventInbox.CONTROL); }
+    public int getJournalPending() {
+        ESGEventJournal journal = queue.getJournal();
+        return (journal == null) ? -1 : journal.getPendingCount();
+    }
+    public long getRejectedCount() { return rejected.get(); }
+    public long getNoRouteDroppedCount() { return noRouteDropped.get(); }
+
+    public String getOverloadPolicy() { return queue.getOverloadPolicy().getName(); }
+    public long getOverloadDroppedCount() { return queue.getOverloadPolicy().getDroppedCount(); }
+    public long getShedCount() { return queue.getOverloadPolicy().getShedCount(); }
+    //keyed coalescing in the inbox plus any done by the overload policy
+    public long getCoalescedCount() { return queue.getLanes().getCoalescedCount() + queue.getOverloadPolicy().getCoalescedCount(); }
+    public long getCallerRunsCount() { return queue.getOverloadPolicy().getCallerRunsCount(); }
+
+    public long getDispatchedCount() { return serviceTimes.getCount(); }
+    public int getConcurrency() { return queue.getConcurrency(); }
+    public int getPoolSize() { return queue.getPoolSize(); }
+    public int getActiveThreads() { return queue.getActiveThreads(); }
+
+    public double getWaitTimeMean() { return waitTimes.getMean(); }
+    public double getWaitTimeP50()  { return waitTimes.getPercentile(0.50); }
+    public double getWaitTimeP99()  { return waitTimes.getPercentile(0.99); }
+    public double getWaitTimeMax()  { return waitTimes.getMax(); }
+    public double getServiceTimeMean() { return serviceTimes.getMean(); }
+    public double getServiceTimeP50()  { return serviceTimes.getPercentile(0.50); }
+    public double getServiceTimeP99()  { return serviceTimes.getPercentile(0.99); }
+    public double getServiceTimeMax()  { return serviceTimes.getMax(); }
+
+    public void reset() {
+        enqueued.set(0L);
+        rejected.set(0L);
+        noRouteDropped.set(0L);
+        waitTimes.reset();
+        serviceTimes.reset();
+        synchronized(this) {
+            rateCount = 0L;
+            rateTime = System.nanoTime();
+            rate = 0.0;
+        }
+    }
+
+    //Flattened (String valued) for MonitorInfo
+    public Map<String,String> toMap() {
+        Map<String,String> map = new LinkedHashMap<String,String>();
+        map.put(ENQUEUED,""+getEnqueuedCount());
+        map.put(ENQUEUE_RATE,""+getEnqueueRate());
+        map.put(DEPTH,""+getDepth());
+        map.put(CONTROL_DEPTH,""+getControlDepth());
+        map.put(JOURNAL_PENDING,""+getJournalPending());
+        map.put(REJECTED,""+getRejectedCount());
+        map.put(NO_ROUTE_DROPPED,""+getNoRouteDroppedCount());
+        map.put(OVERLOAD_POLICY,getOverloadPolicy());
+        map.put(OVERLOAD_DROPPED,""+getOverloadDroppedCount());
+        map.put(SHED,""+getShedCount());
+        map.put(COALESCED,""+getCoalescedCount());
+        map.put(CALLER_RUNS,""+getCallerRunsCount());
+        map.put(DISPATCHED,""+getDispatchedCount());
+        map.put(CONCURRENCY,""+getConcurrency());
+        map.put(ACTIVE_THREADS,""+getActiveThreads());
+        map.put(WAIT_MEAN,""+getWaitTimeMean());
+        map.put(WAIT_P50,""+getWaitTimeP50());
+        map.put(WAIT_P99,""+getWaitTimeP99());
+        map.put(WAIT_MAX,""+getWaitTimeMax());
+        map.put(SERVICE_MEAN,""+getServiceTimeMean());
+        map.put(SERVICE_P50,""+getServiceTimeP50());
+        map.put(SERVICE_P99,""+getServiceTimeP99());
+        map.put(SERVICE_MAX,""+getServiceTimeMax());
+        return map;
+    }
+
+    public String toString() {
+        return queue.getName()+" depth:["+getDepth()+"] enqueued:["+getEnqueuedCount()+"] rejected:["+getRejectedCount()+
+            "] wait:"+waitTimes+" service:"+serviceTimes;
+    }
+
+}
@@ -0,0 +1,386 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   The node's one scheduler for periodic work (the monitor, metrics
+   and notifier sweeps, the registry re-post, the connection
+   manager's pings and registration re-push...).  Rather than a
+   java.util.Timer thread per component, named jobs share a small
+   pool of daemon threads.
+
+   A job's next run is only scheduled once its current run is done,
+   so a job never overlaps itself, however long it takes.  A job
+   that throws is logged (and counted) and runs again next period; a
+   failure does not silently kill the job, or anyone else's.
+
+   When a run overruns its period, or the scheduler gets to it late,
+   what happens to the runs that fell due in the meantime is the
+   job's missed run policy...
+
+   skip  - they are dropped, the next run is on the next period
+           boundary (the default)
+   once  - one late run right away, then back on the period
+   delay - the next run is a period after this one finished (fixed
+           delay, the period boundaries drift)
+
+   Each run can be pushed back by a random "jitter" so that nodes
+   (and jobs) started together do not keep firing together.  Both can
+   be set per job, by name, falling back to the scheduler wide value:
+
+   scheduler.threads=2
+   scheduler.conn.repush.jitter=5000  (ms, falls back to scheduler.jitter)
+   scheduler.conn.repush.missed=skip  (falls back to scheduler.missed)
+
+   How long runs take, how late they start (lag), overruns, missed
+   runs and failures are kept per job and visible through JMX as
+   esg.node:type=ESGScheduler.
+
+**/
+package esg.node.core;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGScheduler implements ESGSchedulerMBean {
+
+    private static Log log = LogFactory.getLog(ESGScheduler.class);
+
+    public static enum MissedRuns { SKIP, ONCE, DELAY }
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final ConcurrentHashMap<String,Job> jobs = new ConcurrentHashMap<String,Job>();
+    private final Properties props;
+    private volatile boolean shutdown = false;
+
+    public ESGScheduler(int threads) { this(threads,null); }
+
+    public ESGScheduler(int threads, Properties props) {
+        this.props = (props == null) ? new Properties() : props;
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        this.executor = new ScheduledThreadPoolExecutor(Math.max(1,threads),new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r,"ESG-scheduler-"+threadNumber.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        this.executor.setRemoveOnCancelPolicy(true);
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+       Runs the task every "period" after "initialDelay", with the
+       jitter and missed run policy configured for "name" (if any).
+       A job already scheduled under the same name is cancelled.
+    */
+    public Job schedule(String name, Runnable task, long initialDelay, long period, TimeUnit unit) {
+        return schedule(name,task,initialDelay,period,unit,
+                        Long.parseLong(getJobProperty(name,"jitter","0")),
+                        missedRuns(getJobProperty(name,"missed","skip")));
+    }
+
+    /**
+       @param jitter at most this many milliseconds (picked at random
+       for each run) are added to the time of each run
+    */
+    public Job schedule(String name, Runnable task, long initialDelay, long period, TimeUnit unit, long jitter, MissedRuns missed) {
+        if(shutdown) throw new IllegalStateException("Scheduler has been shut down, not scheduling ["+name+"]");
+        if(period <= 0) throw new IllegalArgumentException("Job ["+name+"] needs a period > 0");
+        Job job = new Job(name,task,unit.toNanos(period),TimeUnit.MILLISECONDS.toNanos(Math.max(0L,jitter)),
+                          (missed == null) ? MissedRuns.SKIP : missed);
+        Job previous = jobs.put(name,job);
+        if(previous != null) {
+            log.warn("Job ["+name+"] replaces the one scheduled before it");
+            previous.cancel();
+        }
+        job.start(unit.toNanos(Math.max(0L,initialDelay)));
+        log.info("Scheduled job ["+name+"] every "+unit.toMillis(period)+"ms (delay="+unit.toMillis(initialDelay)+
+                 "ms jitter="+jitter+"ms missed="+job.missed.name().toLowerCase()+")");
+        return job;
+    }
+
+    public static MissedRuns missedRuns(String name) {
+        try{
+            return MissedRuns.valueOf(name.trim().toUpperCase());
+        }catch(IllegalArgumentException e) {
+            log.warn("Unknown missed run policy ["+name+"], using skip");
+            return MissedRuns.SKIP;
+        }
+    }
+
+    //Per job value if present, else the scheduler wide value, else the default
+    private String getJobProperty(String name, String key, String defaultValue) {
+        String value = props.getProperty("scheduler."+name+"."+key);
+        if(value == null) value = props.getProperty("scheduler."+key, defaultValue);
+        return value.trim();
+    }
+
+    public Job getJob(String name) { return jobs.get(name); }
+
+    public boolean cancel(String name) {
+        Job job = jobs.remove(name);
+        if(job == null) return false;
+        job.cancel();
+        log.info("Cancelled job ["+name+"]");
+        return true;
+    }
+
+    /**
+       Stops scheduling runs and waits up to "timeout" for the ones
+       under way to finish, after which they are interrupted.
+
+       @return true if everything finished in time
+    */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        shutdown = true;
+        for(Job job : jobs.values()) { job.cancel(); }
+        executor.shutdown();
+        try{
+            if(executor.awaitTermination(timeout,unit)) return true;
+            log.warn("Scheduled jobs still running after "+unit.toMillis(timeout)+"ms, interrupting them");
+        }catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+        return false;
+    }
+
+    public boolean isShutdown() { return shutdown; }
+
+    //-------------------------------------------
+    //ESGSchedulerMBean
+    //-------------------------------------------
+    public int getThreads() { return executor.getCorePoolSize(); }
+    public int getActiveCount() { return executor.getActiveCount(); }
+
+    public String[] getJobNames() {
+        String[] names = jobs.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        return names;
+    }
+
+    public Map<String,Long> getJobStats(String name) {
+        Job job = jobs.get(name);
+        return (job == null) ? null : job.toMap();
+    }
+
+    public Map<String,Map<String,Long>> getJobs() {
+        Map<String,Map<String,Long>> stats = new LinkedHashMap<String,Map<String,Long>>();
+        for(String name : getJobNames()) {
+            Job job = jobs.get(name);
+            if(job != null) stats.put(name,job.toMap());
+        }
+        return stats;
+    }
+
+    //-------------------------------------------
+    //A named periodic job.  Only the thread running it writes its
+    //numbers (runs never overlap), JMX reads them.
+    //-------------------------------------------
+    public class Job implements Runnable {
+        private final String name;
+        private final Runnable task;
+        private final long period;
+        private final long jitter;
+        private final MissedRuns missed;
+
+        private ScheduledFuture<?> next = null;
+        private boolean cancelled = false;
+        private long due = 0L;     //nanoTime the run is for (on the period)
+        private long planned = 0L; //nanoTime the run was set to start (with jitter)
+
+        private volatile long runs = 0L;
+        private volatile long failures = 0L;
+        private volatile long overruns = 0L;
+        private volatile long skipped = 0L;
+        private volatile long lastDuration = 0L;
+        private volatile long maxDuration = 0L;
+        private volatile long totalDuration = 0L;
+        private volatile long lastLag = 0L;
+        private volatile long maxLag = 0L;
+        private volatile long lastRun = 0L;
+        private volatile boolean running = false;
+
+        Job(String name, Runnable task, long period, long jitter, MissedRuns missed) {
+            this.name = name;
+            this.task = task;
+            this.period = period;
+            this.jitter = jitter;
+            this.missed = missed;
+        }
+
+        public String getName() { return name; }
+        public long getPeriod(TimeUnit unit) { return unit.convert(period,TimeUnit.NANOSECONDS); }
+        public MissedRuns getMissedRuns() { return missed; }
+        public long getRuns() { return runs; }
+        public long getFailures() { return failures; }
+        public long getOverruns() { return overruns; }
+        public long getSkipped() { return skipped; }
+        public boolean isRunning() { return running; }
+        public synchronized boolean isCancelled() { return cancelled; }
+
+        void start(long initialDelay) {
+            due = System.nanoTime()+initialDelay;
+            plan(due+jitter());
+        }
+
+        public void run() {
+            if(isCancelled()) return;
+            long start = System.nanoTime();
+            long lag = Math.max(0L,start-planned);
+            running = true;
+            try{
+                task.run();
+            }catch(Throwable t) {
+                failures++;
+                log.error("Scheduled job ["+name+"] failed (will run again next period)",t);
+            }finally{
+                running = false;
+            }
+            long end = System.nanoTime();
+            long duration = end-start;
+            runs++;
+            lastRun = System.currentTimeMillis();
+            lastDuration = duration;
+            totalDuration += duration;
+            if(duration > maxDuration) maxDuration = duration;
+            lastLag = lag;
+            if(lag > maxLag) maxLag = lag;
+            if(duration > period) {
+                overruns++;
+                log.warn("Scheduled job ["+name+"] overran its period: took "+TimeUnit.NANOSECONDS.toMillis(duration)+
+                         "ms (period "+TimeUnit.NANOSECONDS.toMillis(period)+"ms)");
+            }
+            scheduleNext(end);
+        }
+
+        private void scheduleNext(long now) {
+            if(missed == MissedRuns.DELAY) {
+                due = now+period;
+                plan(due+jitter());
+                return;
+            }
+            due += period;
+            if(due > now) {
+                plan(due+jitter());
+                return;
+            }
+            //fell behind: "behind" period boundaries have passed
+            long behind = ((now-due)/period)+1;
+            if(missed == MissedRuns.ONCE) {
+                skipped += behind-1;
+                due += (behind-1)*period;
+                plan(now);
+            }else {
+                skipped += behind;
+                due += behind*period;
+                plan(due+jitter());
+            }
+        }
+
+        private long jitter() {
+            return (jitter > 0) ? ThreadLocalRandom.current().nextLong(jitter) : 0L;
+        }
+
+        private synchronized void plan(long at) {
+            if(cancelled || shutdown) return;
+            planned = at;
+            next = executor.schedule(this,Math.max(0L,at-System.nanoTime()),TimeUnit.NANOSECONDS);
+        }
+
+        //Any run under way is left to finish
+        synchronized void cancel() {
+            cancelled = true;
+            if(next != null) next.cancel(false);
+        }
+
+        public Map<String,Long> toMap() {
+            Map<String,Long> stats = new LinkedHashMap<String,Long>();
+            long n = runs;
+            stats.put("period",TimeUnit.NANOSECONDS.toMillis(period));
+            stats.put("runs",n);
+            stats.put("failures",failures);
+            stats.put("overruns",overruns);
+            stats.put("skipped",skipped);
+            stats.put("running",running ? 1L : 0L);
+            stats.put("lastRun",lastRun);
+            stats.put("duration.last",TimeUnit.NANOSECONDS.toMillis(lastDuration));
+            stats.put("duration.max",TimeUnit.NANOSECONDS.toMillis(maxDuration));
+            stats.put("duration.mean",(n == 0) ? 0L : TimeUnit.NANOSECONDS.toMillis(totalDuration/n));
+            stats.put("lag.last",TimeUnit.NANOSECONDS.toMillis(lastLag));
+            stats.put("lag.max",TimeUnit.NANOSECONDS.toMillis(maxLag));
+            return stats;
+        }
+
+        public String toString() { return "Job["+name+"]"+toMap(); }
+    }
+
+}
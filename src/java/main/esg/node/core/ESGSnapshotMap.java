@@ -0,0 +1,140 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   A name -> object registry for the things the node manager keeps
+   track of (components, peers).  Lookups go straight to a
+   ConcurrentHashMap.  Every change also publishes a fresh, immutable
+   snapshot of the values, so event fan out (fireESGEvent and friends)
+   walks a plain list - no locking, and no
+   ConcurrentModificationException when a Hessian or timer thread
+   registers a peer in the middle of it.  Changes are expected to be
+   rare next to the reads, so the copy on each change is cheap.
+
+**/
+package esg.node.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public class ESGSnapshotMap<V> {
+
+    private final ConcurrentMap<String,V> map = new ConcurrentHashMap<String,V>();
+    private volatile List<V> snapshot = Collections.emptyList();
+
+    public V get(String name) { return map.get(name); }
+    public boolean containsKey(String name) { return map.containsKey(name); }
+    public int size() { return map.size(); }
+    public boolean isEmpty() { return map.isEmpty(); }
+
+    /**
+       @return the value registered under the name before (replaced), or null
+    */
+    public synchronized V put(String name, V value) {
+        V previous = map.put(name,value);
+        if(previous != value) publish();
+        return previous;
+    }
+
+    /**
+       Registers the value only if nothing is under the name yet.
+       @return the value already registered under the name, or null if this one went in
+    */
+    public synchronized V putIfAbsent(String name, V value) {
+        V existing = map.putIfAbsent(name,value);
+        if(existing == null) publish();
+        return existing;
+    }
+
+    public synchronized V remove(String name) {
+        V removed = map.remove(name);
+        if(removed != null) publish();
+        return removed;
+    }
+
+    //Removes the entry only if it is (still) this value
+    public synchronized boolean remove(String name, V value) {
+        boolean removed = map.remove(name,value);
+        if(removed) publish();
+        return removed;
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        publish();
+    }
+
+    //The values as of the last change (immutable, safe to iterate at leisure)
+    public List<V> values() { return snapshot; }
+
+    public String[] names() {
+        Set<String> names = map.keySet();
+        return names.toArray(new String[names.size()]);
+    }
+
+    private void publish() {
+        snapshot = Collections.unmodifiableList(new ArrayList<V>(map.values()));
+    }
+
+    public String toString() { return map.keySet().toString(); }
+
+}
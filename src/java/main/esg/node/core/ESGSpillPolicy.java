@@ -0,0 +1,209 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   Overload policy that writes events that do not fit in the inbox to
+   local disk, one file per event, and puts them back on the inbox
+   (oldest first) whenever a drainer has emptied it.  Files left over
+   from a previous run are picked up and replayed as well.
+
+   queue.<COMPONENT>.overload.spill.dir  (default $ESGF_HOME/spill)
+   queue.<COMPONENT>.overload.spill.max  (most events kept on disk, default 100000)
+
+   Each component spills into its own subdirectory.  Replayed events
+   go to the back of the inbox, so they are not ordered with respect
+   to events that arrived while they were on disk.  Only plain remote
+   events can be spilled (see ESGEventCodec), anything else, or
+   anything beyond spill.max, is blocked on and then dropped.
+
+**/
+package esg.node.core;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGSpillPolicy extends ESGOverloadPolicy {
+
+    private static Log log = LogFactory.getLog(ESGSpillPolicy.class);
+
+    private static final String SUFFIX = ".evt";
+    private static final FileFilter spillFilter = new FileFilter() {
+            public boolean accept(File file) { return file.getName().endsWith(SUFFIX); }
+        };
+
+    private File spillDir = null;
+    private long maxSpilled = 100000L;
+    private final AtomicLong sequence = new AtomicLong(0L);
+    private final AtomicLong pending  = new AtomicLong(0L);
+    private final AtomicLong spilled  = new AtomicLong(0L);
+    private final AtomicLong replayed = new AtomicLong(0L);
+    private final Object replayLock = new Object();
+
+    public String getName() { return "spill"; }
+
+    public void configure(ESGQueue queue, Properties props) {
+        super.configure(queue,props);
+        maxSpilled = Long.parseLong(queue.getQueueProperty(props,"overload.spill.max",""+maxSpilled));
+
+        String defaultDir = System.getenv().get("ESGF_HOME");
+        defaultDir = ((defaultDir == null) ? System.getProperty("java.io.tmpdir") : defaultDir)+File.separator+"spill";
+        File dir = new File(queue.getQueueProperty(props,"overload.spill.dir",defaultDir),queue.getName());
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            log.error("Could not create spill directory "+dir+" events for "+queue.getName()+" will be dropped when its inbox is full");
+            return;
+        }
+
+        //Pick up where a previous run left off
+        long lastSeq = -1L;
+        File[] leftOvers = dir.listFiles(spillFilter);
+        for(File file : leftOvers) { lastSeq = Math.max(lastSeq,sequenceOf(file)); }
+        synchronized(replayLock) {
+            spillDir = dir;
+            sequence.set(lastSeq+1);
+            pending.set(leftOvers.length);
+        }
+        if(leftOvers.length > 0) log.info(queue.getName()+" has ["+leftOvers.length+"] spilled events to replay from "+dir);
+    }
+
+    public boolean handleOverload(ESGQueue queue, ESGEvent event) {
+        if(spillDir == null || !ESGEventCodec.canEncode(event) || pending.get() >= maxSpilled) {
+            return blockOrDrop(queue,event);
+        }
+        try{
+            String name = String.format("%020d",sequence.getAndIncrement());
+            File tmp = new File(spillDir,name+".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try{
+                out.write(ESGEventCodec.encode(event));
+                out.getFD().sync();
+            }finally{
+                out.close();
+            }
+            if(!tmp.renameTo(new File(spillDir,name+SUFFIX))) throw new IOException("Could not rename "+tmp);
+            pending.incrementAndGet();
+            spilled.incrementAndGet();
+            queue.abandon(event); //the spill file has it now, picks up a new trace when replayed
+            log.trace("["+queue.getName()+"] spilled event to disk: "+name);
+            //make sure a drainer comes around to replay it, the inbox
+            //may have emptied out while we were writing
+            return true;
+        }catch(IOException e) {
+            log.error("["+queue.getName()+"] Could not spill event",e);
+            return blockOrDrop(queue,event);
+        }
+    }
+
+    //Put as many spilled events back on the inbox as will fit, oldest first
+    public boolean drained(ESGQueue queue) {
+        if(pending.get() == 0) return false;
+        int count = 0;
+        synchronized(replayLock) {
+            BlockingQueue<ESGEvent> inbox = queue.getInbox();
+            File[] files = spillDir.listFiles(spillFilter);
+            if(files == null) return false;
+            Arrays.sort(files);
+            for(File file : files) {
+                if(inbox.remainingCapacity() == 0) break;
+                try{
+                    ESGEvent event = ESGEventCodec.decode(Files.readAllBytes(file.toPath()),queue);
+                    if(!queue.reenqueueEvent(event)) break;
+                    count++;
+                    replayed.incrementAndGet();
+                }catch(IOException e) {
+                    log.error("["+queue.getName()+"] Could not replay spilled event "+file+" (setting aside)",e);
+                    file.renameTo(new File(spillDir,file.getName()+".bad"));
+                    pending.decrementAndGet();
+                    continue;
+                }
+                if(!file.delete()) log.warn("Could not remove replayed spill file "+file);
+                pending.decrementAndGet();
+            }
+        }
+        if(count > 0) log.debug("["+queue.getName()+"] replayed ["+count+"] spilled events, ["+pending.get()+"] still on disk");
+        return count > 0;
+    }
+
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        try{
+            return Long.parseLong(name.substring(0,name.length()-SUFFIX.length()));
+        }catch(NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    public long getSpilledCount()  { return spilled.get(); }
+    public long getReplayedCount() { return replayed.get(); }
+    public long getPendingCount()  { return pending.get(); }
+
+    public String toString() {
+        return super.toString()+" spilled:["+spilled+"] replayed:["+replayed+"] pending:["+pending+"]";
+    }
+
+}
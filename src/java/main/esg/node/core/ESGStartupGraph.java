@@ -0,0 +1,287 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   Brings the node up as a graph of named startup steps rather than
+   one component after another.  A step (typically registering, and
+   so init()'ing, a component) declares the steps it depends on and
+   runs once they have all finished; steps that do not depend on
+   each other run in parallel.  Component init()s spend most of their
+   time reading property files, building DAOs and talking to the
+   database, so the node is up (and answering its peers) about as
+   soon as its slowest chain of steps is done rather than the sum of
+   all of them.
+
+   If a step fails the steps that depend on it (directly or not) are
+   skipped, the rest carry on.  How long each step took, and when it
+   finished relative to the start, is kept for reporting.
+
+   ex:
+   graph.add(new ESGConnectionManager("CONN_MGR"));
+   graph.add(new ESGFRegistry("REGISTRY"));
+   graph.add("DEFAULT_PEER",registerDefaultPeer,"CONN_MGR");
+   graph.start(4,120000);
+
+**/
+package esg.node.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGStartupGraph {
+
+    private static Log log = LogFactory.getLog(ESGStartupGraph.class);
+
+    private final DataNodeManager manager;
+    private final Map<String,Step> steps = new LinkedHashMap<String,Step>();
+    private final Map<String,Long> durations = new ConcurrentHashMap<String,Long>();
+    private final Map<String,Long> finishedAt = new ConcurrentHashMap<String,Long>(); //nanos since the start
+    private final List<String> failed = new ArrayList<String>();
+    private final List<String> skipped = new ArrayList<String>();
+    private ExecutorService executor = null;
+    private CountDownLatch remaining = null;
+    private long startTime = 0L;
+
+    private class Step implements Runnable {
+        final String name;
+        final Runnable task;
+        final List<String> dependsOn;
+        final List<Step> dependents = new ArrayList<Step>();
+        final AtomicInteger waitingOn = new AtomicInteger(0);
+
+        Step(String name, Runnable task, String... dependsOn) {
+            this.name = name;
+            this.task = task;
+            this.dependsOn = Arrays.asList(dependsOn);
+        }
+
+        public void run() {
+            long start = System.nanoTime();
+            boolean ok = false;
+            try{
+                log.debug("Starting up ["+name+"]...");
+                task.run();
+                ok = true;
+            }catch(Throwable t) {
+                log.error("Startup of ["+name+"] failed, skipping what depends on it",t);
+                synchronized(failed) { failed.add(name); }
+            }finally{
+                long end = System.nanoTime();
+                durations.put(name,TimeUnit.NANOSECONDS.toMillis(end-start));
+                finishedAt.put(name,end-startTime);
+                finished(this,ok);
+            }
+        }
+    }
+
+    public ESGStartupGraph(DataNodeManager manager) { this.manager = manager; }
+
+    /**
+       Adds a step that registers (and so init()'s) the component,
+       named after it.
+    */
+    public ESGStartupGraph add(final DataNodeComponent component, String... dependsOn) {
+        return add(component.getName(),new Runnable() {
+                public void run() {
+                    if(!manager.registerComponent(component)) {
+                        throw new IllegalStateException("Could not register component ["+component.getName()+"]");
+                    }
+                }
+            },dependsOn);
+    }
+
+    public synchronized ESGStartupGraph add(String name, Runnable task, String... dependsOn) {
+        if(steps.containsKey(name)) throw new IllegalArgumentException("Startup step ["+name+"] added twice");
+        steps.put(name,new Step(name,task,dependsOn));
+        return this;
+    }
+
+    /**
+       Runs the steps, at most "threads" at once, and waits (up to
+       "timeout" ms) for all of them to finish or be skipped.
+
+       @return true if every step ran successfully in time
+    */
+    public synchronized boolean start(int threads, long timeout) {
+        List<Step> ready = link();
+        startTime = System.nanoTime();
+        remaining = new CountDownLatch(steps.size());
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        executor = Executors.newFixedThreadPool(Math.max(1,Math.min(threads,steps.size())),new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r,"ESG-startup-"+threadNumber.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        log.info("Starting up ["+steps.size()+"] steps ("+ready.size()+" with no dependencies) on up to "+threads+" threads");
+        for(Step step : ready) { executor.execute(step); }
+
+        boolean done = false;
+        try{
+            done = remaining.await(timeout,TimeUnit.MILLISECONDS);
+        }catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdown();
+        if(!done) log.error("Startup did not finish within "+timeout+"ms, still waiting on "+remaining.getCount()+" step(s)");
+        log.info("Startup took "+TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-startTime)+"ms "+getReport());
+        synchronized(failed) { return done && failed.isEmpty() && skipped.isEmpty(); }
+    }
+
+    //Wires up the dependents and checks that there is no unknown
+    //dependency or cycle.  Returns the steps that can start right away.
+    private List<Step> link() {
+        List<Step> ready = new ArrayList<Step>();
+        for(Step step : steps.values()) {
+            for(String dependency : step.dependsOn) {
+                Step other = steps.get(dependency);
+                if(other == null) throw new IllegalArgumentException("Startup step ["+step.name+"] depends on unknown step ["+dependency+"]");
+                other.dependents.add(step);
+            }
+            step.waitingOn.set(step.dependsOn.size());
+            if(step.dependsOn.isEmpty()) ready.add(step);
+        }
+        //Kahn's algorithm, just counting
+        Map<Step,Integer> counts = new LinkedHashMap<Step,Integer>();
+        for(Step step : steps.values()) { counts.put(step,step.dependsOn.size()); }
+        List<Step> order = new ArrayList<Step>(ready);
+        for(int i=0; i < order.size(); i++) {
+            for(Step dependent : order.get(i).dependents) {
+                int n = counts.get(dependent)-1;
+                counts.put(dependent,n);
+                if(n == 0) order.add(dependent);
+            }
+        }
+        if(order.size() != steps.size()) throw new IllegalArgumentException("Startup steps have a dependency cycle");
+        return ready;
+    }
+
+    private void finished(Step step, boolean ok) {
+        remaining.countDown();
+        for(Step dependent : step.dependents) {
+            if(!ok) {
+                skip(dependent,step.name);
+            }else if(dependent.waitingOn.decrementAndGet() == 0) {
+                executor.execute(dependent);
+            }
+        }
+    }
+
+    //A step is skipped once, whichever of its dependencies failed
+    //first, and the same goes for its own dependents
+    private void skip(Step step, String because) {
+        if(step.waitingOn.getAndSet(-1) < 0) return;
+        log.warn("Skipping startup of ["+step.name+"] since ["+because+"] did not start");
+        synchronized(failed) { skipped.add(step.name); }
+        remaining.countDown();
+        for(Step dependent : step.dependents) { skip(dependent,step.name); }
+    }
+
+    //-------------------------------------------
+    //Reporting
+    //-------------------------------------------
+
+    //step name -> how long it took (ms), in order of finishing
+    public Map<String,Long> getDurations() {
+        Map<String,Long> byFinish = new LinkedHashMap<String,Long>();
+        List<Map.Entry<String,Long>> entries = new ArrayList<Map.Entry<String,Long>>(finishedAt.entrySet());
+        Collections.sort(entries,new Comparator<Map.Entry<String,Long>>() {
+                public int compare(Map.Entry<String,Long> a, Map.Entry<String,Long> b) { return a.getValue().compareTo(b.getValue()); }
+            });
+        for(Map.Entry<String,Long> entry : entries) { byFinish.put(entry.getKey(),durations.get(entry.getKey())); }
+        return byFinish;
+    }
+
+    //step name -> when it finished (ms since the start)
+    public Map<String,Long> getFinishTimes() {
+        Map<String,Long> times = new LinkedHashMap<String,Long>();
+        for(String name : getDurations().keySet()) { times.put(name,TimeUnit.NANOSECONDS.toMillis(finishedAt.get(name))); }
+        return times;
+    }
+
+    public List<String> getFailed() { synchronized(failed) { return new ArrayList<String>(failed); } }
+    public List<String> getSkipped() { synchronized(failed) { return new ArrayList<String>(skipped); } }
+
+    public String getReport() {
+        StringBuilder sb = new StringBuilder("[");
+        for(Map.Entry<String,Long> entry : getDurations().entrySet()) {
+            if(sb.length() > 1) sb.append(", ");
+            sb.append(entry.getKey()).append("=").append(entry.getValue()).append("ms@").append(TimeUnit.NANOSECONDS.toMillis(finishedAt.get(entry.getKey())));
+        }
+        for(String name : getSkipped()) { sb.append((sb.length() > 1) ? ", " : "").append(name).append("=skipped"); }
+        return sb.append("]").toString();
+    }
+
+}
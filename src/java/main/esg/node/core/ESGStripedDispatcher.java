@@ -0,0 +1,238 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   Ordered per-key parallel dispatch for an ESGQueue.  Events still
+   go into the queue's one inbox (so lanes, coalescing, the journal
+   and the overload policy all work as before) but the drainers do
+   not hand out whatever comes next.  Each event taken off the inbox
+   is put on one of N "stripes" by the hash of its key (see
+   ESGStripeKey, by default the remote event's origin), and a stripe
+   is only ever worked on by one drainer at a time.  Events with the
+   same key are therefore handled one batch at a time in the order
+   they were queued, while events from different origins are handled
+   in parallel, up to the queue's concurrency (threads.min..max, or
+   the virtual/shared permits).
+
+   A drainer claims a stripe that has events waiting and no one
+   working on it, or failing that takes events off the inbox onto
+   their stripes until one of them lands on a free stripe.  Events
+   for a stripe that is busy are set aside on it, at most "backlog"
+   per stripe, beyond that they are left on the inbox (where the
+   overload policy can see them) until the stripe catches up.  The
+   stripe is let go after each batch so busy origins take turns.
+   Events without a key are spread over the stripes.
+
+   queue.REGISTRY.dispatch=striped   (default is unordered)
+   queue.REGISTRY.stripes=8          (defaults to the number of cores)
+   queue.REGISTRY.stripe.key=origin  (origin | source)
+   queue.REGISTRY.stripe.backlog=64
+
+**/
+package esg.node.core;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGStripedDispatcher {
+
+    private static Log log = LogFactory.getLog(ESGStripedDispatcher.class);
+
+    public static final int DEFAULT_BACKLOG = 64;
+
+    //Remote events from the same node, in the order we got them
+    public static final ESGStripeKey ORIGIN = new ESGStripeKey() {
+            public Object keyOf(ESGEvent event) {
+                return event.hasRemoteEvent() ? event.getRemoteEvent().getOrigin() : null;
+            }
+        };
+
+    //Remote events sent by the same peer (may be relaying others')
+    public static final ESGStripeKey SOURCE = new ESGStripeKey() {
+            public Object keyOf(ESGEvent event) {
+                return event.hasRemoteEvent() ? event.getRemoteEvent().getSource() : null;
+            }
+        };
+
+    private final Stripe[] stripes;
+    private final ESGStripeKey key;
+    private final int backlog;
+    private int next = 0; //where the look for a waiting stripe starts
+
+    private static final class Stripe {
+        final BlockingQueue<ESGEvent> pending = new LinkedBlockingQueue<ESGEvent>();
+        boolean owned = false;
+    }
+
+    public ESGStripedDispatcher(int count, ESGStripeKey key, int backlog) {
+        this.stripes = new Stripe[Math.max(1,count)];
+        for(int i=0; i < stripes.length; i++) { stripes[i] = new Stripe(); }
+        this.key = (key == null) ? ORIGIN : key;
+        this.backlog = Math.max(1,backlog);
+    }
+
+    public static ESGStripeKey newKey(String name) {
+        if("source".equalsIgnoreCase(name)) return SOURCE;
+        if(!"origin".equalsIgnoreCase(name)) log.warn("Unknown stripe key ["+name+"], using origin");
+        return ORIGIN;
+    }
+
+    public int getStripeCount() { return stripes.length; }
+    public ESGStripeKey getKey() { return key; }
+    public int getBacklog() { return backlog; }
+
+    //Events taken off the inbox and waiting on their stripe
+    public synchronized int size() {
+        int n = 0;
+        for(Stripe stripe : stripes) { n += stripe.pending.size(); }
+        return n;
+    }
+
+    int stripeOf(ESGEvent event) {
+        Object k = null;
+        try{
+            k = key.keyOf(event);
+        }catch(Throwable t) {
+            log.error("Could not get stripe key of "+event,t);
+        }
+        int h = (k == null) ? System.identityHashCode(event) : k.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % stripes.length;
+    }
+
+    /**
+       Called by the queue's drainers in place of
+       ESGBatchController.drain(inbox).  Claims a stripe, dispatches
+       the next batch on it and lets it go.
+
+       @return the number of events dispatched (0 when there was
+       nothing this drainer could take on)
+    */
+    public int drain(BlockingQueue<ESGEvent> inbox, ESGBatchController bController) {
+        Stripe stripe = claim(inbox,bController.getBatchSize());
+        if(stripe == null) return 0;
+        try{
+            return bController.drain(stripe.pending);
+        }finally{
+            release(stripe);
+        }
+    }
+
+    /**
+       Whether a drainer would find something to do: a free stripe
+       with events waiting or an event on the inbox that can be taken
+       (its stripe is free or has room in its backlog).
+    */
+    public synchronized boolean hasWork(BlockingQueue<ESGEvent> inbox) {
+        for(Stripe stripe : stripes) {
+            if(!stripe.owned && !stripe.pending.isEmpty()) return true;
+        }
+        ESGEvent head = inbox.peek();
+        if(head == null) return false;
+        Stripe stripe = stripes[stripeOf(head)];
+        return !stripe.owned || stripe.pending.size() < backlog;
+    }
+
+    private synchronized Stripe claim(BlockingQueue<ESGEvent> inbox, int batchSize) {
+        int n = stripes.length;
+        for(int i=0; i < n; i++) {
+            Stripe stripe = stripes[(next+i)%n];
+            if(!stripe.owned && !stripe.pending.isEmpty()) {
+                next = (next+i+1)%n;
+                return own(stripe,inbox,batchSize);
+            }
+        }
+
+        ESGEvent event = null;
+        while((event = inbox.peek()) != null) {
+            Stripe stripe = stripes[stripeOf(event)];
+            if(stripe.owned && stripe.pending.size() >= backlog) return null;
+            //may not be the one we peeked (a control event may have cut in)
+            ESGEvent taken = inbox.poll();
+            if(taken == null) return null;
+            if(taken != event) stripe = stripes[stripeOf(taken)];
+            stripe.pending.add(taken);
+            if(!stripe.owned) return own(stripe,inbox,batchSize);
+        }
+        return null;
+    }
+
+    //So that batching still means something, keep taking events off
+    //the inbox onto their (free or not full) stripes while ours has
+    //less than a batch waiting
+    private Stripe own(Stripe stripe, BlockingQueue<ESGEvent> inbox, int batchSize) {
+        stripe.owned = true;
+        for(int moved = 0; stripe.pending.size() < batchSize && moved < batchSize; moved++) {
+            ESGEvent event = inbox.peek();
+            if(event == null) break;
+            Stripe other = stripes[stripeOf(event)];
+            if(other != stripe && other.owned && other.pending.size() >= backlog) break;
+            ESGEvent taken = inbox.poll();
+            if(taken == null) break;
+            stripes[stripeOf(taken)].pending.add(taken);
+        }
+        return stripe;
+    }
+
+    private synchronized void release(Stripe stripe) { stripe.owned = false; }
+
+}
@@ -0,0 +1,243 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+   Keeps the last "capacity" finished traces (see ESGEventTrace) in a
+   ring and works out latency percentiles for each route from them,
+   ex: for "DNODE_SVC -> REGISTRY -> CONN_MGR" the end to end time,
+   and for each component on the route its queue wait and service
+   time - enough to tell if slow convergence is events sitting in the
+   registry's queue, the registry's (JAXB) merge or the connection
+   manager's calls out to peers.
+
+   Traces whose events were dropped or superseded along the way are
+   counted but not kept.  The manager registers the buffer as
+   esg.node:type=ESGTrace and hands it to every component's queue.
+
+   trace.enabled=true
+   trace.buffer=1024  (traces kept)
+   trace.sample=1     (trace one in every N new pieces of work)
+
+**/
+package esg.node.core;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class ESGTraceBuffer implements ESGTraceBufferMBean {
+
+    public static final String COUNT = "count";
+    public static final String TOTAL = "total";
+    public static final String WAIT = "wait";
+    public static final String SERVICE = "service";
+
+    private final AtomicReferenceArray<ESGEventTrace> ring;
+    private final AtomicLong recorded = new AtomicLong(0L);
+    private final AtomicLong abandoned = new AtomicLong(0L);
+    private final AtomicLong started = new AtomicLong(0L);
+    private volatile boolean enabled = true;
+    private volatile int sampleEvery = 1;
+
+    public ESGTraceBuffer(int capacity) {
+        this.ring = new AtomicReferenceArray<ESGEventTrace>(Math.max(1,capacity));
+    }
+
+    /**
+       Starts a new trace, or returns null when tracing is off or this
+       piece of work is not sampled.
+
+       @param id the trace id to carry on (ex: from a remote event), null for a new one
+    */
+    public ESGEventTrace newTrace(String id) {
+        if(!enabled) return null;
+        int every = sampleEvery;
+        if(started.getAndIncrement() % every != 0) return null;
+        return new ESGEventTrace(id,this);
+    }
+    public ESGEventTrace newTrace() { return newTrace(null); }
+
+    void record(ESGEventTrace trace) {
+        if(trace.isAbandoned()) {
+            abandoned.incrementAndGet();
+            return;
+        }
+        ring.set((int)(recorded.getAndIncrement() % ring.length()),trace);
+    }
+
+    //The finished traces held, oldest first
+    public List<ESGEventTrace> getTraces() {
+        int capacity = ring.length();
+        long end = recorded.get();
+        List<ESGEventTrace> traces = new ArrayList<ESGEventTrace>(capacity);
+        ESGEventTrace trace = null;
+        for(long i = Math.max(0L,end-capacity); i < end; i++) {
+            if((trace = ring.get((int)(i % capacity))) != null) traces.add(trace);
+        }
+        return traces;
+    }
+
+    /**
+       Latency percentiles (milliseconds) for each route seen in the
+       buffer, keyed "count", "total.p50", ..., "REGISTRY.wait.p99",
+       "REGISTRY.service.p50" and so on.
+    */
+    public Map<String,Map<String,Double>> getRouteLatencies() {
+        Map<String,List<ESGEventTrace>> byRoute = new TreeMap<String,List<ESGEventTrace>>();
+        for(ESGEventTrace trace : getTraces()) {
+            String route = trace.getRoute();
+            List<ESGEventTrace> traces = byRoute.get(route);
+            if(traces == null) byRoute.put(route,traces = new ArrayList<ESGEventTrace>());
+            traces.add(trace);
+        }
+        Map<String,Map<String,Double>> latencies = new LinkedHashMap<String,Map<String,Double>>();
+        for(Map.Entry<String,List<ESGEventTrace>> entry : byRoute.entrySet()) {
+            latencies.put(entry.getKey(),summarize(entry.getValue()));
+        }
+        return latencies;
+    }
+
+    private Map<String,Double> summarize(List<ESGEventTrace> traces) {
+        int n = traces.size();
+        long[] totals = new long[n];
+        Map<String,long[]> waits = new LinkedHashMap<String,long[]>();
+        Map<String,long[]> services = new LinkedHashMap<String,long[]>();
+        for(int i=0; i < n; i++) {
+            ESGEventTrace trace = traces.get(i);
+            totals[i] = trace.getDuration();
+            for(ESGEventTrace.Hop hop : trace.getHops()) {
+                sample(waits,hop.getComponent(),n)[i] += hop.getWait()+hop.getLinger();
+                sample(services,hop.getComponent(),n)[i] += hop.getService();
+            }
+        }
+        Map<String,Double> summary = new LinkedHashMap<String,Double>();
+        summary.put(COUNT,(double)n);
+        percentiles(summary,TOTAL,totals);
+        for(String component : waits.keySet()) {
+            percentiles(summary,component+"."+WAIT,waits.get(component));
+            percentiles(summary,component+"."+SERVICE,services.get(component));
+        }
+        return summary;
+    }
+
+    private static long[] sample(Map<String,long[]> samples, String component, int n) {
+        long[] values = samples.get(component);
+        if(values == null) samples.put(component,values = new long[n]);
+        return values;
+    }
+
+    private static void percentiles(Map<String,Double> summary, String prefix, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        summary.put(prefix+".p50",percentile(sorted,0.50));
+        summary.put(prefix+".p90",percentile(sorted,0.90));
+        summary.put(prefix+".p99",percentile(sorted,0.99));
+        summary.put(prefix+".max",percentile(sorted,1.0));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if(sorted.length == 0) return 0.0;
+        int rank = (int)Math.ceil(p*sorted.length);
+        return sorted[Math.max(0,Math.min(sorted.length,rank)-1)]/1000000.0;
+    }
+
+    //-------------------------------------------
+    //ESGTraceBufferMBean
+    //-------------------------------------------
+    public boolean isEnabled() { return enabled; }
+    public void setEnabled(boolean enabled) { this.enabled = enabled; }
+    public int getSampleEvery() { return sampleEvery; }
+    public void setSampleEvery(int sampleEvery) { this.sampleEvery = Math.max(1,sampleEvery); }
+    public int getCapacity() { return ring.length(); }
+    public long getRecordedCount() { return recorded.get(); }
+    public long getAbandonedCount() { return abandoned.get(); }
+
+    public String[] getRoutes() {
+        return getRouteLatencies().keySet().toArray(new String[0]);
+    }
+
+    public Map<String,Double> getRouteLatency(String route) {
+        Map<String,Double> latency = getRouteLatencies().get(route);
+        return (latency == null) ? new LinkedHashMap<String,Double>() : latency;
+    }
+
+    public String[] getRecentTraces() {
+        List<ESGEventTrace> traces = getTraces();
+        String[] recent = new String[traces.size()];
+        for(int i=0; i < recent.length; i++) {
+            recent[i] = traces.get(recent.length-1-i).toString(); //newest first
+        }
+        return recent;
+    }
+
+    public void reset() {
+        for(int i=0; i < ring.length(); i++) { ring.set(i,null); }
+        recorded.set(0L);
+        abandoned.set(0L);
+    }
+
+    public String toString() {
+        return "ESGTraceBuffer recorded:["+recorded.get()+"] abandoned:["+abandoned.get()+"] routes:"+getRouteLatencies().keySet();
+    }
+
+}
@@ -78,25 +78,25 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.*;
 
-import com.caucho.hessian.client.HessianProxyFactory;
 
 public abstract class HessianPeer extends ESGPeer {
     
     private static final Log log = LogFactory.getLog(HessianPeer.class);    
 
-    private HessianProxyFactory factory;
+    private ESGHessianTransport transport;
    
     public HessianPeer(String serviceURL, int type) throws java.net.MalformedURLException { 
         super(serviceURL,type); 
-        this.factory = new HessianProxyFactory();
+        this.transport = ESGHessianTransport.getInstance();
     }
     
     //From the super-class the default type is set to "DATA_NODE_PEER"
     public HessianPeer(String serviceURL) throws java.net.MalformedURLException { 
         super(serviceURL); 
-        this.factory = new HessianProxyFactory();
+        this.transport = ESGHessianTransport.getInstance();
     }
-    protected HessianProxyFactory getFactory() { return factory; }
+    //(pooled keep-alive connections, timeouts etc. see ESGHessianTransport)
+    protected ESGHessianTransport getTransport() { return transport; }
 
     //Note: This is what makes this Hessian specific... the
     //use of the hessian "factory.". Also Note, all RPC
@@ -111,7 +111,7 @@ public abstract class HessianPeer extends ESGPeer {
         if (serviceURL == null) serviceURL = getServiceURL();
         Object endpoint = null;
         try{
-            endpoint = factory.create(serviceClass, serviceURL); 
+            endpoint = transport.create(serviceClass, serviceURL); 
         }catch(Exception e) {
             log.error(e);
             e.printStackTrace();
@@ -135,6 +135,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.*;
 
 import esg.common.db.DatabaseResource;
+import esg.common.util.ESGFConfig;
 import esg.common.util.ESGFProperties;
 
 public class AccessLoggingFilter implements Filter {
@@ -160,7 +161,7 @@ public class AccessLoggingFilter implements Filter {
         this.filterConfig = filterConfig;
         ESGFProperties esgfProperties = null;
         try{
-            esgfProperties = new ESGFProperties();
+            esgfProperties = ESGFConfig.getInstance().getProperties();
         }catch (java.io.IOException e) { e.printStackTrace(); log.error(e); }
         String value = null;
         dbProperties = new Properties();
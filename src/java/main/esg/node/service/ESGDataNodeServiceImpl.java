@@ -68,7 +68,9 @@
 package esg.node.service;
 
 import java.lang.InterruptedException;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -85,6 +87,8 @@ import esg.node.core.ESGSystemEvent;
 import esg.node.core.ESGCallableEvent;
 import esg.node.core.ESGCallableFutureEvent;
 import esg.node.core.ESGFPruneEvent;
+import esg.node.core.ESGEventTrace;
+import esg.node.core.ESGTraceBuffer;
 import esg.node.connection.ESGConnectionManager;
 import esg.common.service.ESGRemoteEvent;
 import esg.common.Utils;
@@ -115,7 +119,10 @@ public class ESGDataNodeServiceImpl extends AbstractDataNodeComponent
     }
     //******************************
     
-    public void init() { log.trace("no-op initialization"); }
+    public void init() {
+        //all loaded (system) and connection manager join events from the manager
+        getDataNodeManager().subscribe(this,ESGSystemEvent.class,ESGJoinEvent.class);
+    }
 
     //------------------------------------------------------------
     //We will consider this object not valid if there are no peers
@@ -144,6 +151,15 @@ public class ESGDataNodeServiceImpl extends AbstractDataNodeComponent
 
 
     
+    //Remember what a sender can decode (see ESGPayloadCodec) on its peer
+    private void noteCapabilities(ESGRemoteEvent evt_) {
+        String source = evt_.getSource();
+        if(source == null || getDataNodeManager() == null) return;
+        ESGPeer peer = getDataNodeManager().getPeer(source);
+        if(peer == null) peer = getDataNodeManager().getPeer(Utils.asSSLUrl(source));
+        if(peer != null) peer.setCapabilities(evt_.getCapabilities());
+    }
+
     //------------------------------------------------------------
     //Remote service interface implementation ping & handleESGRemoteEvent
     //------------------------------------------------------------
@@ -162,9 +178,10 @@ public class ESGDataNodeServiceImpl extends AbstractDataNodeComponent
     /**
        Remote method implementation to allow for others to tell you
        that you need to clean up the current representation of who's
-       in the world.
+       in the world.  Any number of these may be in flight at once,
+       each gives up after "prune.timeout" milliseconds (default 60000).
      */
-    public synchronized boolean prune() {
+    public boolean prune() {
         boolean ret = false;
 
         if(!amAvailable()) {
@@ -178,18 +195,24 @@ public class ESGDataNodeServiceImpl extends AbstractDataNodeComponent
         ESGFPruneEvent evt = new ESGFPruneEvent(this,Boolean.FALSE,"Prune Event Message");
 
         if(connMgr != null) {
+            //past the deadline the event fails (TimeoutException) and is
+            //skipped by whichever component it is still queued at
+            evt.withTimeout(pruneTimeout(),TimeUnit.MILLISECONDS);
             log.info("Prune Callable Event posting to "+evt.getRouteAsList().get(0)+"'s event queue");
             enqueueESGEvent(evt.getRouteAsList().get(0),evt);
             try{
-                ret = evt.get(); //Block here until there is something to get...
+                ret = evt.get(); //Block here until there is something to get (or the deadline)...
             }catch(InterruptedException e) {
                 log.warn(e);
                 ret=false;
                 evt.cancel(false);
+                Thread.currentThread().interrupt();
             }catch(ExecutionException e){
+                log.warn("Prune did not complete: "+e.getCause());
+                ret=false;
+            }catch(CancellationException e){
                 log.warn(e);
                 ret=false;
-                evt.cancel(false);
             }
         }
         else { 
@@ -200,6 +223,15 @@ public class ESGDataNodeServiceImpl extends AbstractDataNodeComponent
         return ret;
     }
 
+    private long pruneTimeout() {
+        try{
+            return Long.parseLong(datanodeMgr.getNodeProperty("prune.timeout","60000").trim());
+        }catch(NumberFormatException e) {
+            log.warn("Bad prune.timeout property, using 60000ms: "+e.getMessage());
+            return 60000L;
+        }
+    }
+
     //Ingress event handling from remote 'client'
     public void handleESGRemoteEvent(ESGRemoteEvent evt_) {
         log.trace("DataNode service got \"handleESGRemoteEvent\" call with event: ["+evt_+"]");
@@ -222,40 +254,90 @@ public class ESGDataNodeServiceImpl extends AbstractDataNodeComponent
             log.warn("Dropping ingress notification event on the floor, I am NOT available. ["+evt_+"]");
         }
     
-        //Being a nice guy and rerouting you to right method
-        //I may be being too nice... consider taking this out if abused.
-        ESGEvent evt = null;
-        if(evt_.getMessageType() == ESGRemoteEvent.NOOP) { 
-            log.trace("GOT NOOP REMOTE EVENT"); 
-        }else if(evt_.getMessageType() == ESGRemoteEvent.REGISTER) {
-            log.trace("GOT REGISTER REMOTE EVENT");
-            if(evt_.getPayload() == null) {
-                log.warn("Violation: Dropping null payload from ["+evt_.getSource()+"] on floor (payload required)");
-                return;
+        //Remember what the sender can decode so what we send back can
+        //be compressed, then get the payload back to plain text
+        noteCapabilities(evt_);
+        if(!evt_.decode()) {
+            log.warn("Could not decode payload (encoding "+evt_.getEncoding()+") of event from "+evt_.getSource()+" dropping on floor...");
+            return;
+        }
+
+        //Time this event's way through the node's components (under
+        //the trace id it was sent with, if the sender was tracing it)
+        ESGTraceBuffer traceBuffer = getESGEventQueue().getTraceBuffer();
+        ESGEventTrace trace = (traceBuffer == null) ? null : traceBuffer.newTrace(evt_.getTraceId());
+        ESGEventTrace previous = null;
+        if(trace != null) {
+            if(evt_.getTraceId() == null) evt_.setTraceId(trace.getId());
+            previous = trace.begin(getName());
+        }
+        try{
+            //Being a nice guy and rerouting you to right method
+            //I may be being too nice... consider taking this out if abused.
+            ESGEvent evt = null;
+            if(evt_.getMessageType() == ESGRemoteEvent.NOOP) { 
+                log.trace("GOT NOOP REMOTE EVENT"); 
+            }else if(evt_.getMessageType() == ESGRemoteEvent.REGISTER) {
+                log.trace("GOT REGISTER REMOTE EVENT");
+                if(evt_.getPayload() == null) {
+                    log.warn("Violation: Dropping null payload from ["+evt_.getSource()+"] on floor (payload required)");
+                    return;
+                }
+                log.debug("["+(new java.util.Date())+"] Receiving Register Event from: "+evt_.getSource()); 
+                evt = new ESGEvent(this);
+                evt.setRemoteEvent(evt_);
+                //a newer registration from the same origin supersedes a waiting one
+                evt.setCoalesceKey("REGISTER:"+evt_.getOrigin());
+                enqueueESGEvent("REGISTRY",evt);
+            }else if(evt_.getMessageType() == ESGRemoteEvent.REGISTER_DELTA) {
+                log.trace("GOT REGISTER_DELTA REMOTE EVENT");
+                if(evt_.getPayload() == null) {
+                    log.warn("Violation: Dropping null payload from ["+evt_.getSource()+"] on floor (payload required)");
+                    return;
+                }
+                log.debug("["+(new java.util.Date())+"] Receiving Register Delta Event from: "+evt_.getSource());
+                evt = new ESGEvent(this);
+                evt.setRemoteEvent(evt_);
+                //(deltas build on each other, so they are not coalesced)
+                enqueueESGEvent("REGISTRY",evt);
+            }else if(evt_.getMessageType() == ESGRemoteEvent.REGISTER_PULL) {
+                log.trace("GOT REGISTER_PULL REMOTE EVENT");
+                evt = new ESGEvent(this);
+                evt.setRemoteEvent(evt_);
+                evt.setCoalesceKey("REGISTER_PULL:"+evt_.getOrigin());
+                enqueueESGEvent("CONN_MGR",evt);
+            }else if(evt_.getMessageType() == ESGRemoteEvent.REGISTER_SYNC) {
+                log.trace("GOT REGISTER_SYNC REMOTE EVENT");
+                if(evt_.getPayload() == null) {
+                    log.warn("Violation: Dropping null payload from ["+evt_.getSource()+"] on floor (payload required)");
+                    return;
+                }
+                evt = new ESGEvent(this);
+                evt.setRemoteEvent(evt_);
+                //(each step of a round answers the one before, so they are not coalesced)
+                enqueueESGEvent("REGISTRY",evt);
+            }else if(evt_.getMessageType() == ESGRemoteEvent.UNREGISTER) { 
+                log.trace("GOT UNREGISTER REMOTE EVENT"); 
+                evt = new ESGEvent(this);
+                evt.setRemoteEvent(evt_);
+                enqueueESGEvent("REGISTRY",evt);
+            }else if(evt_.getMessageType() == ESGRemoteEvent.HEALTH) { 
+                log.trace("GOT HEALTH REMOTE EVENT"); 
+                evt = new ESGEvent(this);
+                evt.setRemoteEvent(evt_);
+                enqueueESGEvent("MONITOR",evt);
+            }else if(evt_.getMessageType() == ESGRemoteEvent.METRICS) { 
+                log.trace("GOT METRICS REMOTE EVENT");
+                evt = new ESGEvent(this);
+                evt.setRemoteEvent(evt_);
+                enqueueESGEvent("METRICS",evt);
+            }else if(evt_.getMessageType() == ESGRemoteEvent.APPLICATION) { 
+                log.trace("GOT APPLICATION REMOTE EVENT (not yet implemented)");
+            }else {
+                log.trace("DO NOT RECOGNIZE THIS MESSAGE TYPE: "+evt_);
             }
-            log.debug("["+(new java.util.Date())+"] Receiving Register Event from: "+evt_.getSource()); 
-            evt = new ESGEvent(this);
-            evt.setRemoteEvent(evt_);
-            enqueueESGEvent("REGISTRY",evt);
-        }else if(evt_.getMessageType() == ESGRemoteEvent.UNREGISTER) { 
-            log.trace("GOT UNREGISTER REMOTE EVENT"); 
-            evt = new ESGEvent(this);
-            evt.setRemoteEvent(evt_);
-            enqueueESGEvent("REGISTRY",evt);
-        }else if(evt_.getMessageType() == ESGRemoteEvent.HEALTH) { 
-            log.trace("GOT HEALTH REMOTE EVENT"); 
-            evt = new ESGEvent(this);
-            evt.setRemoteEvent(evt_);
-            enqueueESGEvent("MONITOR",evt);
-        }else if(evt_.getMessageType() == ESGRemoteEvent.METRICS) { 
-            log.trace("GOT METRICS REMOTE EVENT");
-            evt = new ESGEvent(this);
-            evt.setRemoteEvent(evt_);
-            enqueueESGEvent("METRICS",evt);
-        }else if(evt_.getMessageType() == ESGRemoteEvent.APPLICATION) { 
-            log.trace("GOT APPLICATION REMOTE EVENT (not yet implemented)");
-        }else {
-            log.trace("DO NOT RECOGNIZE THIS MESSAGE TYPE: "+evt_);
+        }finally {
+            if(trace != null) trace.end(getName(),previous);
         }
     
 
@@ -0,0 +1,204 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.common.service;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGPayloadCodecTest {
+    private static final Log log = LogFactory.getLog(ESGPayloadCodecTest.class);
+
+    private static final int ALL = ESGPayloadCodec.DEFLATE | ESGPayloadCodec.DEFLATE_DICT;
+
+    //Shaped like what RegistrationGleaner marshals
+    private String registration(int nodes) {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+        sb.append("<Registration xmlns=\"http://www.esgf.org/registry\" timeStamp=\"1302578816957\">\n");
+        for(int i=0; i < nodes; i++) {
+            String host = "esgf-node"+i+".example"+(i%3)+".org";
+            sb.append("    <Node organization=\"Org "+i+"\" namespace=\"org.example"+i+"\" nodePeerGroup=\"esgf\" supportEmail=\"admin@"+host+"\" ")
+                .append("hostname=\""+host+"\" ip=\"10.0."+i+"."+(i*7%255)+"\" dn=\"/O=Grid/OU=GlobusTest/OU=simpleCA-"+host+"/CN="+host+"\" ")
+                .append("shortName=\"NODE-"+i+"\" longName=\"ESGF Node "+i+"\" timeStamp=\""+(1302578816957L+i*1000)+"\" version=\"v1.3.2\" ")
+                .append("release=\"Stuyvesant\" nodeType=\""+(1+i%16)+"\" adminPeer=\"https://"+host+"/esgf-node-manager/node\" defaultPeer=\"https://esgf-node0.example0.org/esgf-node-manager/node\">\n");
+            sb.append("        <CA hash=\"a2e4f1"+i+"\" endpoint=\"https://"+host+"/esgf-ca\" dn=\"/O=Grid/OU=GlobusTest/CN=Globus Simple CA\"/>\n");
+            sb.append("        <GeoLocation lat=\""+(30+i)+".5\" lon=\"-"+(100+i)+".25\" city=\"City "+i+"\"/>\n");
+            sb.append("        <NodeManager endpoint=\"https://"+host+"/esgf-node-manager/node\"/>\n");
+            sb.append("        <OpenIDProvider endpoint=\"https://"+host+"/esgf-idp/idp/openidServer.htm\"/>\n");
+            sb.append("        <IndexService port=\"80\" endpoint=\"http://"+host+"/esg-search/search\"/>\n");
+            sb.append("        <AttributeService endpoint=\"https://"+host+"/esgf-security/saml/soap/secure/attributeService.htm\">\n");
+            sb.append("            <Group name=\"CMIP5 Research\" description=\"\"/>\n        </AttributeService>\n");
+            sb.append("        <AuthorizationService endpoint=\"https://"+host+"/esgf-security/saml/soap/secure/authorizationService.htm\"/>\n");
+            sb.append("        <ThreddsService endpoint=\"http://"+host+"/thredds\"/>\n");
+            sb.append("        <GridFTPService endpoint=\"gsiftp://"+host+"\">\n");
+            sb.append("            <Configuration serviceType=\"Replication\" port=\"2812\"/>\n");
+            sb.append("            <Configuration serviceType=\"Download\" port=\"2811\"/>\n        </GridFTPService>\n");
+            sb.append("        <MyProxyService endpoint=\""+host+"\"/>\n");
+            sb.append("        <PublishingService endpoint=\"https://"+host+"/esg-search/remote/secure/client-cert/hessian/publishingService\"/>\n");
+            sb.append("        <RelyingPartyService endpoint=\"https://"+host+"/esg-orp/html.htm\"/>\n");
+            sb.append("        <Metrics>\n            <DownloadedData count=\""+(i*131)+"\" size=\""+(i*8191L)+"\" users=\""+(i*3)+"\"/>\n");
+            sb.append("            <RegisteredUsers count=\""+(i*17)+"\"/>\n        </Metrics>\n");
+            sb.append("    </Node>\n");
+        }
+        return sb.append("</Registration>\n").toString();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        String xml = registration(3);
+        for(int enc : new int[] {ESGPayloadCodec.DEFLATE, ESGPayloadCodec.DEFLATE_DICT}) {
+            assertEquals(xml,ESGPayloadCodec.decompress(ESGPayloadCodec.compress(xml,enc),enc));
+        }
+    }
+
+    @Test
+    public void testRatio() throws Exception {
+        String one = registration(1);
+        String many = registration(40);
+        int oneDict = ESGPayloadCodec.compress(one,ESGPayloadCodec.DEFLATE_DICT).length;
+        int onePlain = ESGPayloadCodec.compress(one,ESGPayloadCodec.DEFLATE).length;
+        int manyDict = ESGPayloadCodec.compress(many,ESGPayloadCodec.DEFLATE_DICT).length;
+        log.info("1 node: "+one.length()+" -> "+onePlain+" ("+oneDict+" w/dict), 40 nodes: "+many.length()+" -> "+manyDict);
+        assertTrue("dictionary should help small documents",oneDict < onePlain);
+        assertTrue("expected at least 5x on a full registration",many.length() >= 5*manyDict);
+    }
+
+    @Test
+    public void testEncodeOnlyForCapablePeers() {
+        String xml = registration(5);
+        ESGRemoteEvent evt = new ESGRemoteEvent("https://a.example.org/esgf-node-manager/node",ESGRemoteEvent.REGISTER,xml,"sum",1L,3);
+        assertSame(evt,evt.encodeFor(0)); //older node
+        ESGRemoteEvent small = new ESGRemoteEvent("https://a.example.org/esgf-node-manager/node",ESGRemoteEvent.REGISTER,"<Registration/>","sum",1L,3);
+        assertSame(small,small.encodeFor(ALL));
+
+        ESGRemoteEvent encoded = evt.encodeFor(ALL);
+        assertNotSame(evt,encoded);
+        assertTrue(encoded.isEncoded());
+        assertTrue(encoded.getPayload() instanceof byte[]);
+        assertEquals(ESGPayloadCodec.DEFLATE_DICT,encoded.getEncoding());
+        assertEquals(evt.getOrigin(),encoded.getOrigin());
+        assertEquals(evt.getTTL(),encoded.getTTL());
+        assertEquals("sum",encoded.getPayloadChecksum());
+        assertEquals(ESGPayloadCodec.DEFLATE,evt.encodeFor(ESGPayloadCodec.DEFLATE).getEncoding());
+
+        assertTrue(encoded.decode());
+        assertFalse(encoded.isEncoded());
+        assertEquals(xml,encoded.getPayload());
+        assertEquals(xml,evt.getPayload()); //original left alone
+    }
+
+    @Test
+    public void testCorruptPayloadDoesNotDecode() throws Exception {
+        byte[] data = ESGPayloadCodec.compress(registration(5),ESGPayloadCodec.DEFLATE_DICT);
+        byte[] truncated = new byte[data.length/2];
+        System.arraycopy(data,0,truncated,0,truncated.length);
+        try{
+            ESGPayloadCodec.decompress(truncated,ESGPayloadCodec.DEFLATE_DICT);
+            fail("decoded a truncated payload");
+        }catch(java.io.IOException e) { }
+        try{
+            ESGPayloadCodec.decompress(data,ESGPayloadCodec.DEFLATE);
+            fail("decoded a dictionary payload without the dictionary");
+        }catch(java.io.IOException e) { }
+    }
+
+    @Test
+    public void testOversizedPayloadDoesNotInflate() throws Exception {
+        byte[] bomb = ESGPayloadCodec.compress(new byte[1024*1024],ESGPayloadCodec.DEFLATE);
+        assertEquals(1024*1024,ESGPayloadCodec.inflate(bomb,ESGPayloadCodec.DEFLATE,1024*1024).length);
+        try{
+            ESGPayloadCodec.inflate(bomb,ESGPayloadCodec.DEFLATE,1024*1024-1);
+            fail("inflated past the limit");
+        }catch(java.io.IOException e) { }
+    }
+
+    @Test
+    public void testCompactFormOnlyForPeersThatReadIt() {
+        byte[] compact = new byte[] {1,2,3};
+        ESGPayloadCodec.setCompactForm(new ESGPayloadCodec.CompactForm() {
+                public String toText(byte[] b) { return "<Registration/>"; }
+            });
+        try{
+            ESGRemoteEvent evt = new ESGRemoteEvent("https://a.example.org/esgf-node-manager/node",ESGRemoteEvent.REGISTER,"<Registration/>","sum",1L,3);
+            evt.setCompactPayload(compact);
+            assertSame(evt,evt.encodeFor(ALL)); //older peer
+            ESGRemoteEvent sent = evt.encodeFor(ALL | ESGPayloadCodec.COMPACT);
+            assertTrue(sent.isCompact());
+            assertFalse(sent.isEncoded()); //too small to bother compressing
+            assertSame(compact,sent.getPayload());
+            assertEquals("sum",sent.getPayloadChecksum());
+
+            //relayed on to an older peer it goes back to text
+            ESGRemoteEvent relayed = new ESGRemoteEvent(sent.getSource(),ESGRemoteEvent.REGISTER,sent.getPayload(),"sum",2L).keepPayloadFormOf(sent);
+            assertTrue(relayed.isCompact());
+            ESGRemoteEvent legacy = relayed.encodeFor(0);
+            assertFalse(legacy.isCompact());
+            assertEquals("<Registration/>",legacy.getPayload());
+        }finally{
+            ESGPayloadCodec.setCompactForm(null);
+        }
+        assertEquals(0,ESGPayloadCodec.getCapabilities() & ESGPayloadCodec.COMPACT);
+    }
+}
@@ -0,0 +1,188 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.common.util;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGFConfigTest {
+    private static final Log log = LogFactory.getLog(ESGFConfigTest.class);
+
+    private File dir = null;
+    private File file = null;
+
+    @Before
+    public void setup() throws IOException {
+        dir = File.createTempFile("esgfconfig",null);
+        dir.delete();
+        dir.mkdirs();
+        file = new File(dir,"esgf.properties");
+        Properties values = new Properties();
+        values.setProperty("esgf.host","a.example.org");
+        values.setProperty("queue.batch.size","1");
+        values.setProperty("queue.REGISTRY.batch.size","8");
+        values.setProperty("db.user","dbsuper");
+        write(values);
+    }
+
+    @After
+    public void cleanup() {
+        file.delete();
+        dir.delete();
+    }
+
+    private void write(Properties values) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try{ values.store(out,null); }finally{ out.close(); }
+    }
+
+    @Test
+    public void testViews() throws Exception {
+        ESGFConfig config = new ESGFConfig(file);
+        ESGFConfig.Snapshot snapshot = config.current();
+        assertTrue(snapshot.isLoaded());
+        assertEquals("a.example.org",config.get("esgf.host"));
+        assertEquals("none",config.get("no.such.key","none"));
+
+        Map<String,String> queue = snapshot.withPrefix("queue.");
+        assertEquals(2,queue.size());
+        assertSame(queue,snapshot.withPrefix("queue."));
+
+        Properties batch = snapshot.matching("queue\\..*batch\\.size");
+        assertEquals(2,batch.size());
+        assertSame(batch,snapshot.matching("queue\\..*batch\\.size"));
+        assertEquals(0,snapshot.matching("[bad").size());
+
+        //handed out copies are the caller's own
+        ESGFProperties props = config.getProperties();
+        props.setProperty("esgf.host","changed");
+        assertEquals("a.example.org",config.get("esgf.host"));
+    }
+
+    @Test
+    public void testReloadTellsListenersWhatChanged() throws Exception {
+        ESGFConfig config = new ESGFConfig(file);
+        final AtomicReference<Set<String>> seen = new AtomicReference<Set<String>>();
+        config.addListener(new ESGFConfigListener() {
+                public void configChanged(ESGFConfig.Snapshot previous, ESGFConfig.Snapshot current, Set<String> changedKeys) {
+                    seen.set(changedKeys);
+                }
+            });
+        ESGFConfig.Snapshot before = config.current();
+        assertTrue(config.reload().isEmpty());
+        assertSame(before,config.current());
+        assertNull(seen.get());
+
+        Properties values = before.toProperties();
+        values.setProperty("queue.batch.size","4");
+        values.remove("db.user");
+        values.setProperty("trace.sample","10");
+        write(values);
+        config.reload();
+
+        assertEquals(3,seen.get().size());
+        assertTrue(seen.get().contains("queue.batch.size"));
+        assertTrue(seen.get().contains("db.user"));
+        assertTrue(seen.get().contains("trace.sample"));
+        assertTrue(config.current().getVersion() > before.getVersion());
+        assertEquals("4",config.get("queue.batch.size"));
+        //the old snapshot is left as it was
+        assertEquals("1",before.get("queue.batch.size"));
+    }
+
+    @Test
+    public void testWatcherPicksUpChanges() throws Exception {
+        ESGFConfig config = new ESGFConfig(file);
+        final CountDownLatch changed = new CountDownLatch(1);
+        config.addListener(new ESGFConfigListener() {
+                public void configChanged(ESGFConfig.Snapshot previous, ESGFConfig.Snapshot current, Set<String> changedKeys) {
+                    if(changedKeys.contains("esgf.host")) changed.countDown();
+                }
+            });
+        Assume.assumeTrue(config.startWatching());
+        try{
+            Properties values = config.current().toProperties();
+            values.setProperty("esgf.host","b.example.org");
+            write(values);
+            //polling watch services (no native support) can take a while
+            assertTrue(changed.await(30,TimeUnit.SECONDS));
+            assertEquals("b.example.org",config.get("esgf.host"));
+        }finally{
+            config.stopWatching();
+        }
+        assertFalse(config.isWatching());
+    }
+}
@@ -0,0 +1,137 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.node.components.registry;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+import esg.common.generated.registration.*;
+
+public class DeltaStepsTest {
+    private static final Log log = LogFactory.getLog(DeltaStepsTest.class);
+
+    private static final String ORIGIN = "https://sender.example.org/esgf-node-manager/node";
+
+    private Node node(String hostname, long timeStamp) {
+        Node node = new Node();
+        node.setHostname(hostname);
+        node.setTimeStamp(timeStamp);
+        return node;
+    }
+
+    private Map<String,Object> delta(List<Node> from, List<Node> to) {
+        Map<String,Object> payload = new HashMap<String,Object>();
+        payload.put(RegistryDelta.BASE,RegistryDelta.digestOf(from));
+        payload.put(RegistryDelta.DIGEST,RegistryDelta.digestOf(to));
+        return payload;
+    }
+
+    //The sender knows x.example.org, which the receiver excludes, so
+    //the receiver's digest never matches the sender's
+    @Test
+    public void testReceiverSideExclusionPullsOnce() {
+        DeltaSteps steps = new DeltaSteps();
+        List<Node> s0 = Arrays.asList(node("a.example.org",1L),node("b.example.org",1L),node("x.example.org",1L));
+        List<Node> s1 = Arrays.asList(node("a.example.org",2L),node("b.example.org",1L),node("x.example.org",1L));
+        List<Node> s2 = Arrays.asList(node("a.example.org",2L),node("b.example.org",3L),node("x.example.org",1L));
+        List<Node> s3 = Arrays.asList(node("a.example.org",2L),node("b.example.org",3L),node("x.example.org",4L));
+        List<Node> r1 = Arrays.asList(node("a.example.org",2L),node("b.example.org",1L));
+        List<Node> r2 = Arrays.asList(node("a.example.org",2L),node("b.example.org",3L));
+
+        //nothing to go on yet: pull, and the answer (which changes
+        //nothing for us) puts us in step
+        Map<String,Object> d1 = delta(s0,s1);
+        assertTrue(steps.merged(ORIGIN,RegistryDelta.digestOf(r1),d1));
+        steps.pulled(ORIGIN,d1);
+        steps.fullState(ORIGIN);
+
+        //from here on the deltas chain on and nothing is pulled, even
+        //for a change to the excluded node only
+        assertFalse(steps.merged(ORIGIN,RegistryDelta.digestOf(r2),delta(s1,s2)));
+        assertFalse(steps.merged(ORIGIN,RegistryDelta.digestOf(r2),delta(s2,s3)));
+    }
+
+    @Test
+    public void testMissedDeltaPulls() {
+        DeltaSteps steps = new DeltaSteps();
+        List<Node> s0 = Arrays.asList(node("a.example.org",1L));
+        List<Node> s1 = Arrays.asList(node("a.example.org",2L));
+        List<Node> s2 = Arrays.asList(node("a.example.org",3L));
+        List<Node> s3 = Arrays.asList(node("a.example.org",4L));
+
+        //without filters in the way a merged delta is plainly in step
+        assertFalse(steps.merged(ORIGIN,RegistryDelta.digestOf(s1),delta(s0,s1)));
+        //the delta s1 -> s2 went missing, s2 -> s3 leaves us short
+        Map<String,Object> d3 = delta(s2,s3);
+        assertTrue(steps.merged(ORIGIN,RegistryDelta.digestOf(s1),d3));
+        //and a full state that is not the answer to a pull does not
+        //count for one
+        steps.fullState("https://other.example.org/esgf-node-manager/node");
+        assertTrue(steps.merged(ORIGIN,RegistryDelta.digestOf(s1),delta(s3,s3)));
+    }
+}
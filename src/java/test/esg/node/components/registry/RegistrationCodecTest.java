@@ -0,0 +1,226 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.node.components.registry;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+import esg.common.generated.registration.*;
+
+public class RegistrationCodecTest {
+    private static final Log log = LogFactory.getLog(RegistrationCodecTest.class);
+
+    private Node node(String hostname, String group, long timeStamp) {
+        Node node = new Node();
+        node.setHostname(hostname);
+        node.setNodePeerGroup(group);
+        node.setTimeStamp(timeStamp);
+        node.setShortName(hostname.substring(0,hostname.indexOf('.')));
+        node.setVersion("v1.3.2");
+        node.setDefaultPeer("https://default.example.org/esgf-node-manager/node");
+        return node;
+    }
+
+    private Registration registration() {
+        Registration registration = new Registration();
+        registration.setTimeStamp(1302578816957L);
+        registration.setVersion("v0.0.1");
+
+        Node full = node("full.example.org","esgf",42L);
+        full.setDn("/O=Grid/CN=full.example.org");
+        CA ca = new CA();
+        ca.setEndpoint("https://full.example.org/esgf-ca");
+        ca.setHash("a2e4f1");
+        full.setCA(ca);
+        GeoLocation geo = new GeoLocation();
+        geo.setLat("37.68");
+        geo.setLon("-121.76");
+        full.setGeoLocation(geo);
+        AttributeService attrs = new AttributeService();
+        attrs.setEndpoint("https://full.example.org/esgf-security/saml/soap/secure/attributeService.htm");
+        Group group = new Group();
+        group.setName("CMIP5 Research");
+        group.setDescription("");
+        attrs.getGroup().add(group);
+        full.setAttributeService(attrs);
+        GridFTPService gftp = new GridFTPService();
+        gftp.setEndpoint("gsiftp://full.example.org");
+        Configuration config = new Configuration();
+        config.setServiceType(GridFTPServiceType.REPLICATION);
+        config.setPort("2812");
+        gftp.getConfiguration().add(config);
+        full.setGridFTPService(gftp);
+        Metrics metrics = new Metrics();
+        DownloadedData data = new DownloadedData();
+        data.setCount("3");
+        data.setSize("1024");
+        data.setUsers("2");
+        metrics.setDownloadedData(data);
+        full.setMetrics(metrics);
+        RSSFeeds feeds = new RSSFeeds();
+        RSSFeed feed = new RSSFeed();
+        feed.setUrl("http://full.example.org/rss");
+        feed.setTitle("News");
+        feeds.getRSSFeed().add(feed);
+        full.setRSSFeeds(feeds);
+        PEMCert cert = new PEMCert();
+        cert.setCert("-----BEGIN CERTIFICATE-----\nMIIC...\n-----END CERTIFICATE-----\n");
+        full.setPEMCert(cert);
+
+        registration.getNode().add(full);
+        registration.getNode().add(node("other.example.org","esgf-test",7L));
+        registration.getNode().add(node("third.example.org","esgf",9L));
+        return registration;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] bytes = RegistrationCodec.encode(registration());
+        assertTrue(RegistrationCodec.isCompact(bytes));
+        Registration decoded = RegistrationCodec.decode(bytes);
+
+        assertEquals(1302578816957L,decoded.getTimeStamp());
+        assertEquals("v0.0.1",decoded.getVersion());
+        assertEquals(3,decoded.getNode().size());
+        Node full = decoded.getNode().get(0);
+        assertEquals("full.example.org",full.getHostname());
+        assertEquals(42L,full.getTimeStamp());
+        assertEquals("/O=Grid/CN=full.example.org",full.getDn());
+        assertNull(full.getLongName());
+        assertEquals("a2e4f1",full.getCA().getHash());
+        assertEquals("-121.76",full.getGeoLocation().getLon());
+        assertNull(full.getGeoLocation().getCity());
+        assertEquals("CMIP5 Research",full.getAttributeService().getGroup().get(0).getName());
+        assertEquals(GridFTPServiceType.REPLICATION,full.getGridFTPService().getConfiguration().get(0).getServiceType());
+        assertEquals("1024",full.getMetrics().getDownloadedData().getSize());
+        assertNull(full.getMetrics().getRegisteredUsers());
+        assertEquals("News",full.getRSSFeeds().getRSSFeed().get(0).getTitle());
+        assertTrue(full.getPEMCert().getCert().startsWith("-----BEGIN"));
+        assertNull(full.getThreddsService());
+        assertNull(decoded.getNode().get(1).getCA());
+
+        //and nothing lost along the way
+        assertTrue(Arrays.equals(bytes,RegistrationCodec.encode(decoded)));
+    }
+
+    @Test
+    public void testFilterSkipsNodes() throws Exception {
+        final List<String> asked = new ArrayList<String>();
+        Registration decoded = RegistrationCodec.decode(RegistrationCodec.encode(registration()),new RegistrationCodec.NodeFilter() {
+                public boolean accept(String hostname, String nodePeerGroup) {
+                    asked.add(hostname);
+                    return "esgf".equals(nodePeerGroup);
+                }
+            });
+        assertEquals(Arrays.asList("full.example.org","other.example.org","third.example.org"),asked);
+        assertEquals(2,decoded.getNode().size());
+        assertEquals("full.example.org",decoded.getNode().get(0).getHostname());
+        assertEquals("third.example.org",decoded.getNode().get(1).getHostname());
+        assertEquals(9L,decoded.getNode().get(1).getTimeStamp());
+    }
+
+    @Test
+    public void testRejectsNewerOrForeignData() throws Exception {
+        byte[] bytes = RegistrationCodec.encode(registration());
+        bytes[4] = (byte)(RegistrationCodec.VERSION+1);
+        try{
+            RegistrationCodec.decode(bytes);
+            fail("decoded a newer format version");
+        }catch(java.io.IOException e) { }
+
+        assertFalse(RegistrationCodec.isCompact("<Registration/>".getBytes("UTF-8")));
+        try{
+            RegistrationCodec.decode("<Registration/>".getBytes("UTF-8"));
+            fail("decoded xml");
+        }catch(java.io.IOException e) { }
+    }
+
+    @Test
+    public void testRejectsBogusLengths() throws Exception {
+        //a string table of Integer.MAX_VALUE and of -1 entries
+        for(byte top : new byte[] {0x07, 0x0f}) {
+            java.io.ByteArrayOutputStream buf = new java.io.ByteArrayOutputStream();
+            java.io.DataOutputStream out = new java.io.DataOutputStream(buf);
+            out.writeInt(RegistrationCodec.MAGIC);
+            out.writeByte(RegistrationCodec.VERSION);
+            out.writeLong(1L);
+            out.writeByte(0); //(null) version
+            out.write(new byte[] {(byte)0xff,(byte)0xff,(byte)0xff,(byte)0xff,top});
+            try{
+                RegistrationCodec.decode(buf.toByteArray());
+                fail("allocated by a bogus length");
+            }catch(java.io.IOException e) { }
+        }
+
+        byte[] bytes = RegistrationCodec.encode(registration());
+        try{
+            RegistrationCodec.decode(Arrays.copyOf(bytes,bytes.length-8));
+            fail("decoded a truncated registration");
+        }catch(java.io.IOException e) { }
+    }
+}
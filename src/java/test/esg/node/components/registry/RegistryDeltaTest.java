@@ -0,0 +1,150 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.node.components.registry;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+import esg.common.generated.registration.*;
+
+public class RegistryDeltaTest {
+    private static final Log log = LogFactory.getLog(RegistryDeltaTest.class);
+
+    private Node node(String hostname, long timeStamp) {
+        Node node = new Node();
+        node.setHostname(hostname);
+        node.setTimeStamp(timeStamp);
+        return node;
+    }
+
+    @Test
+    public void testDigestIgnoresOrder() {
+        List<Node> a = Arrays.asList(node("a.example.org",1L),node("b.example.org",2L));
+        List<Node> b = Arrays.asList(node("b.example.org",2L),node("a.example.org",1L));
+        assertEquals(RegistryDelta.digestOf(a),RegistryDelta.digestOf(b));
+        List<Node> c = Arrays.asList(node("a.example.org",1L),node("b.example.org",3L));
+        assertFalse(RegistryDelta.digestOf(a).equals(RegistryDelta.digestOf(c)));
+    }
+
+    @Test
+    public void testChainedDeltasFoldIntoOne() {
+        Node b2 = node("b.example.org",2L);
+        Node c3 = node("c.example.org",3L);
+        Map<String,Long> removed = new HashMap<String,Long>();
+        removed.put("d.example.org",10L);
+
+        RegistryUpdateDigest first = new RegistryUpdateDigest("<doc1/>","1",new HashSet<Node>(Arrays.asList(b2))).setDelta("s0","s1",removed,100L);
+        RegistryUpdateDigest second = new RegistryUpdateDigest("<doc2/>","2",new HashSet<Node>(Arrays.asList(c3))).setDelta("s1","s2",null,200L);
+
+        RegistryUpdateDigest folded = RegistryUpdateDigest.merge(first,second);
+        assertEquals("<doc2/>",folded.xmlDocument());
+        assertTrue(folded.hasDelta());
+        assertEquals("s0",folded.baseDigest());
+        assertEquals("s2",folded.digest());
+        assertEquals(2,folded.updatedNodes().size());
+        assertEquals(Long.valueOf(10L),folded.removedNodes().get("d.example.org"));
+        assertEquals(200L,folded.timeStamp());
+    }
+
+    @Test
+    public void testUnchainedDeltasGoOutAsFullState() {
+        RegistryUpdateDigest first = new RegistryUpdateDigest("<doc1/>","1",new HashSet<Node>()).setDelta("s0","s1",null,100L);
+        RegistryUpdateDigest second = new RegistryUpdateDigest("<doc2/>","2",new HashSet<Node>()).setDelta("x1","x2",null,200L);
+        assertFalse(RegistryUpdateDigest.merge(first,second).hasDelta());
+        //nor does a state that is not a change
+        assertFalse(new RegistryUpdateDigest("<doc/>","3",new HashSet<Node>()).hasDelta());
+    }
+
+    @Test
+    public void testRemovalAfterUpdateWins() {
+        Node b2 = node("b.example.org",2L);
+        Map<String,Long> removed = new HashMap<String,Long>();
+        removed.put("b.example.org",5L);
+        RegistryUpdateDigest first = new RegistryUpdateDigest("<doc1/>","1",new HashSet<Node>(Arrays.asList(b2))).setDelta("s0","s1",null,100L);
+        RegistryUpdateDigest second = new RegistryUpdateDigest("<doc2/>","2",new HashSet<Node>()).setDelta("s1","s2",removed,200L);
+        RegistryUpdateDigest folded = RegistryUpdateDigest.merge(first,second);
+        assertTrue(folded.updatedNodes().isEmpty());
+        assertEquals(Long.valueOf(5L),folded.removedNodes().get("b.example.org"));
+    }
+
+    @Test
+    public void testPayloadAccessors() {
+        Map<String,Object> payload = new HashMap<String,Object>();
+        payload.put(RegistryDelta.BASE,"s0");
+        payload.put(RegistryDelta.DIGEST,"s1");
+        payload.put(RegistryDelta.NODES,"<registration/>");
+        Map<String,Object> removed = new HashMap<String,Object>();
+        removed.put("d.example.org",Integer.valueOf(7)); //(numbers may come back narrowed)
+        payload.put(RegistryDelta.REMOVED,removed);
+        assertTrue(RegistryDelta.isPayload(payload));
+        assertFalse(RegistryDelta.isPayload("<registration/>"));
+        assertEquals("s0",RegistryDelta.baseOf(payload));
+        assertEquals(Long.valueOf(7L),RegistryDelta.removedOf(payload).get("d.example.org"));
+        assertNotNull(RegistryDelta.checksumOf(payload));
+    }
+}
@@ -0,0 +1,154 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.node.components.registry;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+import esg.common.generated.registration.*;
+
+public class RegistrySyncTest {
+    private static final Log log = LogFactory.getLog(RegistrySyncTest.class);
+
+    private Node node(String hostname, long timeStamp) {
+        Node node = new Node();
+        node.setHostname(hostname);
+        node.setNodePeerGroup("esgf");
+        node.setTimeStamp(timeStamp);
+        return node;
+    }
+
+    private List<Node> federation(int size) {
+        List<Node> nodes = new ArrayList<Node>();
+        for(int i=0; i < size; i++) nodes.add(node("node"+i+".example.org",1000L+i));
+        return nodes;
+    }
+
+    private Set<String> hostnames(Collection<Node> nodes) {
+        Set<String> hostnames = new TreeSet<String>();
+        for(Node node : nodes) hostnames.add(node.getHostname());
+        return hostnames;
+    }
+
+    @Test
+    public void testInStepStopsAtSummary() {
+        List<Node> a = federation(100);
+        List<Node> b = federation(100);
+        Collections.reverse(b);
+        assertNull(RegistrySync.createEntries(b,RegistrySync.createSummary(a)));
+    }
+
+    @Test
+    public void testOnlyDifferingEntriesMove() {
+        List<Node> a = federation(100);
+        List<Node> b = federation(100);
+        a.set(3,node("node3.example.org",5000L));   //newer at a
+        b.set(42,node("node42.example.org",6000L)); //newer at b
+        a.add(node("onlya.example.org",1L));
+        b.add(node("onlyb.example.org",1L));
+
+        //a -> b (summary), b -> a (entries)
+        Map<String,Object> entries = RegistrySync.createEntries(b,RegistrySync.createSummary(a));
+        assertNotNull(entries);
+        Map<String,Long> stamps = RegistrySync.stampsOf(entries);
+        assertTrue("only the buckets that differ should be listed ("+stamps.size()+")",stamps.size() < 50);
+
+        //a works out what to give and what to want
+        List<Node> give = new ArrayList<Node>();
+        List<String> want = new ArrayList<String>();
+        RegistrySync.compare(a,entries,give,want);
+        assertEquals(new TreeSet<String>(Arrays.asList("node3.example.org","onlya.example.org")),hostnames(give));
+        assertEquals(new TreeSet<String>(Arrays.asList("node42.example.org","onlyb.example.org")),new TreeSet<String>(want));
+
+        //a -> b (exchange), and what b gets out of it
+        Registration given = new Registration();
+        given.getNode().addAll(give);
+        Map<String,Object> exchange = RegistrySync.createExchange(given,want);
+        assertEquals(RegistrySync.EXCHANGE,RegistrySync.phaseOf(exchange));
+        assertEquals(hostnames(give),hostnames(RegistrySync.nodesOf(exchange,null).getNode()));
+        assertEquals(5000L,nodeNamed(RegistrySync.nodesOf(exchange,null).getNode(),"node3.example.org").getTimeStamp());
+        assertEquals(new TreeSet<String>(want),new TreeSet<String>(RegistrySync.wantOf(exchange)));
+    }
+
+    @Test
+    public void testOneSidedDifferenceWantsNothingBack() {
+        List<Node> a = federation(20);
+        List<Node> b = federation(20);
+        a.set(7,node("node7.example.org",9000L));
+        List<Node> give = new ArrayList<Node>();
+        List<String> want = new ArrayList<String>();
+        RegistrySync.compare(a,RegistrySync.createEntries(b,RegistrySync.createSummary(a)),give,want);
+        assertEquals(1,give.size());
+        assertTrue(want.isEmpty());
+    }
+
+    private Node nodeNamed(List<Node> nodes, String hostname) {
+        for(Node node : nodes) { if(node.getHostname().equals(hostname)) return node; }
+        return null;
+    }
+}
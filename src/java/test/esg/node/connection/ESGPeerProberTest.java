@@ -0,0 +1,171 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.node.connection;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+import esg.common.service.ESGRemoteEvent;
+import esg.node.core.ESGPeer;
+import esg.node.core.ESGPeerListener;
+
+public class ESGPeerProberTest {
+    private static final Log log = LogFactory.getLog(ESGPeerProberTest.class);
+
+    private ESGPeerProber prober = null;
+
+    @After
+    public void cleanup() {
+        if(prober != null) prober.shutdown();
+    }
+
+    //Answers (alive or not) after "delay" ms
+    private static class SlowPeer extends ESGPeer {
+        final long delay;
+        final boolean answer;
+        final AtomicInteger pings = new AtomicInteger(0);
+        SlowPeer(String host, long delay, boolean answer) throws java.net.MalformedURLException {
+            super("http://"+host+"/esgf-node-manager/node",PEER);
+            this.delay = delay;
+            this.answer = answer;
+        }
+        public void init() { }
+        public boolean ping() { return ping(false); }
+        public boolean ping(boolean force) {
+            pings.incrementAndGet();
+            try{ Thread.sleep(delay); }catch(InterruptedException e) { }
+            return answer;
+        }
+        public void handleESGRemoteEvent(ESGRemoteEvent evt) { }
+        public void addPeerListener(ESGPeerListener listener) { }
+    }
+
+    @Test
+    public void testSweepTakesAboutTheSlowestPing() throws Exception {
+        prober = new ESGPeerProber(16,5000L);
+        List<SlowPeer> peers = new ArrayList<SlowPeer>();
+        for(int i=0;i<10;i++) peers.add(new SlowPeer("dead"+i+".example.org",300,false));
+        peers.add(new SlowPeer("alive.example.org",10,true));
+
+        final List<String> order = new ArrayList<String>();
+        ESGPeerProber.Sweep sweep = prober.sweep(peers,new ESGPeerProber.ProbeListener() {
+                public void probed(ESGPeer peer, boolean alive, boolean timedOut, long millis) {
+                    order.add(peer.getServiceURL());
+                }
+            });
+        log.info(sweep);
+        assertEquals(11,sweep.getProbed());
+        assertEquals(1,sweep.getAlive());
+        assertEquals(10,sweep.getDead());
+        //one after the other would be 3s+
+        assertTrue("sweep took "+sweep.getMillis()+"ms",sweep.getMillis() < 2000);
+        //results come in as they complete
+        assertTrue(order.get(0).contains("alive.example.org"));
+    }
+
+    @Test
+    public void testTimedOutPeerIsSkippedUntilItAnswers() throws Exception {
+        prober = new ESGPeerProber(4,100L);
+        SlowPeer stuck = new SlowPeer("stuck.example.org",1000,true);
+        List<SlowPeer> peers = new ArrayList<SlowPeer>();
+        peers.add(stuck);
+        peers.add(new SlowPeer("quick.example.org",10,true));
+
+        ESGPeerProber.Sweep sweep = prober.sweep(peers);
+        assertEquals(1,sweep.getTimedOut());
+        assertEquals(1,sweep.getAlive());
+        assertTrue("sweep took "+sweep.getMillis()+"ms",sweep.getMillis() < 900);
+
+        //its first ping is still out
+        sweep = prober.sweep(peers);
+        assertEquals(1,sweep.getSkipped());
+        assertEquals(1,stuck.pings.get());
+    }
+
+    @Test
+    public void testConcurrencyIsBounded() throws Exception {
+        prober = new ESGPeerProber(2,5000L);
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger most = new AtomicInteger(0);
+        List<ESGPeer> peers = new ArrayList<ESGPeer>();
+        for(int i=0;i<8;i++) {
+            peers.add(new SlowPeer("p"+i+".example.org",50,true) {
+                    public boolean ping(boolean force) {
+                        int now = running.incrementAndGet();
+                        while(most.get() < now && !most.compareAndSet(most.get(),now)) { }
+                        try{ return super.ping(force); }finally{ running.decrementAndGet(); }
+                    }
+                });
+        }
+        ESGPeerProber.Sweep sweep = prober.sweep(peers);
+        assertEquals(8,sweep.getAlive());
+        assertTrue(most.get() <= 2);
+    }
+}
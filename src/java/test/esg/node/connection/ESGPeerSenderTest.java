@@ -0,0 +1,155 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.node.connection;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+import esg.common.service.ESGRemoteEvent;
+import esg.node.core.ESGPeer;
+import esg.node.core.ESGPeerListener;
+
+public class ESGPeerSenderTest {
+    private static final Log log = LogFactory.getLog(ESGPeerSenderTest.class);
+
+    private ESGPeerSender sender = null;
+
+    @After
+    public void cleanup() {
+        if(sender != null) sender.shutdown();
+    }
+
+    //Takes "delay" ms to take an event
+    private static class SlowPeer extends ESGPeer {
+        final long delay;
+        final AtomicInteger received = new AtomicInteger(0);
+        SlowPeer(String host, long delay) throws java.net.MalformedURLException {
+            super("http://"+host+"/esgf-node-manager/node",PEER);
+            this.delay = delay;
+        }
+        public void init() { }
+        public boolean ping() { return true; }
+        public boolean ping(boolean force) { return true; }
+        public void handleESGRemoteEvent(ESGRemoteEvent evt) {
+            try{ Thread.sleep(delay); }catch(InterruptedException e) { }
+            received.incrementAndGet();
+        }
+        public void addPeerListener(ESGPeerListener listener) { }
+    }
+
+    private ESGRemoteEvent event() {
+        return new ESGRemoteEvent("http://me.example.org/esgf-node-manager/node",ESGRemoteEvent.REGISTER,"<Registration/>","x",1L,5);
+    }
+
+    @Test
+    public void testSlowPeerDoesNotHoldUpOthers() throws Exception {
+        sender = new ESGPeerSender(4,2,5000L);
+        SlowPeer slow = new SlowPeer("slow.example.org",1000);
+        SlowPeer quick = new SlowPeer("quick.example.org",10);
+        final CountDownLatch quickDone = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        assertTrue(sender.send(slow,event()));
+        assertTrue(sender.send(quick,event(),new ESGPeerSender.Callback() {
+                public void completed(ESGPeer peer, ESGRemoteEvent event, boolean sent, boolean timedOut, long millis) {
+                    if(sent) quickDone.countDown();
+                }
+            }));
+        //the caller was not held up either
+        assertTrue(System.currentTimeMillis() - start < 500);
+        assertTrue(quickDone.await(500,TimeUnit.MILLISECONDS));
+        assertEquals(0,slow.received.get());
+        assertTrue(sender.flush(5000));
+        assertEquals(1,slow.received.get());
+    }
+
+    @Test
+    public void testOutstandingIsBoundedAndTimesOut() throws Exception {
+        sender = new ESGPeerSender(4,2,100L);
+        SlowPeer slow = new SlowPeer("slow.example.org",800);
+        final CountDownLatch timedOut = new CountDownLatch(2);
+        ESGPeerSender.Callback callback = new ESGPeerSender.Callback() {
+                public void completed(ESGPeer peer, ESGRemoteEvent event, boolean sent, boolean timedOut_, long millis) {
+                    if(timedOut_) timedOut.countDown();
+                }
+            };
+        assertTrue(sender.send(slow,event(),callback));
+        assertTrue(sender.send(slow,event(),callback));
+        assertFalse(sender.send(slow,event(),callback));
+        assertEquals(1,sender.getNumRefused());
+
+        assertTrue(timedOut.await(2,TimeUnit.SECONDS));
+        assertEquals(2,sender.getNumTimedOut());
+        //still out, so still no room
+        assertEquals(0,sender.available(slow));
+        assertTrue(sender.flush(5000));
+        assertEquals(2,sender.available(slow));
+        assertEquals(0,sender.getNumSent());
+    }
+}
@@ -0,0 +1,168 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.node.core;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGCallableFutureEventTest {
+    private static final Log log = LogFactory.getLog(ESGCallableFutureEventTest.class);
+
+    public ESGCallableFutureEventTest() {
+        log.trace("Instantiating Test Case for ESGCallableFutureEventTest");
+    }
+
+    private static class Context extends AbstractDataNodeComponent {
+        Context() { super("CONTEXT"); }
+        public void init() { }
+    }
+
+    //Answers with its data, counting how many times it was called
+    private static class CountingEvent extends ESGCallableFutureEvent<String> {
+        final AtomicInteger calls = new AtomicInteger(0);
+        CountingEvent(String data) { super("test",data,"counting event"); }
+        public boolean call(DataNodeComponent contextComponent) {
+            calls.incrementAndGet();
+            return true;
+        }
+    }
+
+    private static class Recorder implements ESGFutureCallback<Object> {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        public void onSuccess(Object r) { result.set(r); done.countDown(); }
+        public void onFailure(Throwable t) { failure.set(t); done.countDown(); }
+    }
+
+    @Test
+    public void testCallbacksSeeTheResult() throws Exception {
+        CountingEvent event = new CountingEvent("answer");
+        Recorder before = new Recorder();
+        event.addCallback(before);
+        assertTrue(event.doCall(new Context()));
+        assertEquals("answer",event.get(1,TimeUnit.SECONDS));
+        assertEquals("answer",before.result.get());
+
+        Recorder after = new Recorder();
+        event.addCallback(after);
+        assertEquals("callbacks added after completion run right away","answer",after.result.get());
+        assertFalse("only the first completion takes",event.setResult("other"));
+    }
+
+    @Test
+    public void testDeadlineFailsTheEventAndSkipsTheCall() throws Exception {
+        CountingEvent event = new CountingEvent("late");
+        Recorder recorder = new Recorder();
+        event.withTimeout(20,TimeUnit.MILLISECONDS).addCallback(recorder);
+        assertTrue(recorder.done.await(5,TimeUnit.SECONDS));
+        assertTrue(recorder.failure.get() instanceof TimeoutException);
+        try{
+            event.get();
+            fail("expected the event to have timed out");
+        }catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        //still sitting in some component's queue...
+        event.doCall(new Context());
+        assertEquals(0,event.calls.get());
+    }
+
+    @Test
+    public void testCancellation() throws Exception {
+        CountingEvent event = new CountingEvent("never");
+        Recorder recorder = new Recorder();
+        event.addCallback(recorder);
+        assertTrue(event.cancel(false));
+        assertTrue(event.isCancelled());
+        assertTrue(recorder.failure.get() instanceof CancellationException);
+        try{
+            event.get();
+            fail("expected a CancellationException");
+        }catch(CancellationException e) { }
+        event.doCall(new Context());
+        assertEquals(0,event.calls.get());
+    }
+
+    @Test
+    public void testBoundedGetTimesOut() throws Exception {
+        CountingEvent event = new CountingEvent("slow");
+        try{
+            event.get(10,TimeUnit.MILLISECONDS);
+            fail("expected a TimeoutException");
+        }catch(TimeoutException e) { }
+        assertFalse(event.isDone());
+    }
+
+}
@@ -0,0 +1,146 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.node.core;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import esg.common.service.ESGRemoteEvent;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGEventBusTest {
+    private static final Log log = LogFactory.getLog(ESGEventBusTest.class);
+
+    public ESGEventBusTest() {
+        log.trace("Instantiating Test Case for ESGEventBusTest");
+    }
+
+    private static class NamedListener implements ESGListener {
+        final String name;
+        NamedListener(String name) { this.name = name; }
+        public String getName() { return name; }
+        public void handleESGEvent(ESGEvent event) { }
+        public String toString() { return name; }
+    }
+
+    private static ESGEvent remote(int messageType) {
+        ESGEvent event = new ESGEvent("test");
+        event.setRemoteEvent(new ESGRemoteEvent("http://node/esgf-node-manager",messageType,0L));
+        return event;
+    }
+
+    @Test
+    public void testListenersOnlyGetWhatTheySubscribedTo() {
+        ESGEventBus bus = new ESGEventBus();
+        NamedListener everything = new NamedListener("everything");
+        NamedListener joins = new NamedListener("joins");
+        NamedListener registers = new NamedListener("registers");
+        NamedListener nothing = new NamedListener("nothing");
+        bus.subscribe(everything,ESGEvent.class);
+        bus.subscribe(joins,ESGJoinEvent.class,ESGSystemEvent.class);
+        bus.subscribeRemote(registers,ESGRemoteEvent.REGISTER,ESGRemoteEvent.UNREGISTER);
+        bus.subscribe(nothing);
+
+        ESGEvent join = new ESGJoinEvent(this,"X",null,ESGJoinEvent.JOIN);
+        List<ESGListener> got = Arrays.asList(bus.listenersFor(join));
+        assertEquals(Arrays.<ESGListener>asList(everything,joins),got);
+
+        got = Arrays.asList(bus.listenersFor(remote(ESGRemoteEvent.REGISTER)));
+        assertEquals(Arrays.<ESGListener>asList(everything,registers),got);
+
+        got = Arrays.asList(bus.listenersFor(remote(ESGRemoteEvent.HEALTH)));
+        assertEquals(Arrays.<ESGListener>asList(everything),got);
+
+        assertTrue(bus.isSubscribed(nothing));
+        assertEquals(4,bus.size());
+    }
+
+    @Test
+    public void testChangesAreSeenByTheNextDispatch() {
+        ESGEventBus bus = new ESGEventBus();
+        NamedListener a = new NamedListener("a");
+        NamedListener b = new NamedListener("b");
+        bus.subscribe(a,ESGSystemEvent.class);
+        ESGEvent system = new ESGSystemEvent(this,ESGSystemEvent.ALL_LOADED);
+        assertEquals(1,bus.listenersFor(system).length);
+        assertSame("dispatch table should be reused",bus.listenersFor(system),bus.listenersFor(system));
+
+        bus.subscribe(b,ESGEvent.class);
+        assertEquals(2,bus.listenersFor(system).length);
+
+        assertTrue(bus.unsubscribe(a));
+        assertEquals(Arrays.<ESGListener>asList(b),Arrays.asList(bus.listenersFor(system)));
+        assertFalse(bus.unsubscribe(a));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testOnlyEventTypesCanBeSubscribedTo() {
+        new ESGEventBus().subscribe(new NamedListener("x"),String.class);
+    }
+
+}
@@ -0,0 +1,177 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.node.core;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import esg.common.service.ESGRemoteEvent;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGEventInboxTest {
+    private static final Log log = LogFactory.getLog(ESGEventInboxTest.class);
+
+    public ESGEventInboxTest() {
+        log.trace("Instantiating Test Case for ESGEventInboxTest");
+    }
+
+    private ESGEvent register(int i) {
+        ESGEvent event = new ESGEvent(this,null,"register #"+i);
+        event.setRemoteEvent(new ESGRemoteEvent("http://node/esgf-node-manager",ESGRemoteEvent.REGISTER,(long)i));
+        return event;
+    }
+
+    private ESGEvent control(int i) {
+        return new ESGSystemEvent(this,ESGSystemEvent.ALL_LOADED);
+    }
+
+    @Test
+    public void testControlEventsJumpAheadOfPayload() throws Exception {
+        ESGEventInbox inbox = new ESGEventInbox(100);
+        for(int i=0; i < 10; i++) { assertTrue(inbox.offer(register(i))); }
+        ESGEvent systemEvent = control(0);
+        assertTrue(inbox.offer(systemEvent));
+
+        assertEquals(ESGEventInbox.CONTROL,inbox.laneOf(systemEvent));
+        assertEquals(1,inbox.size(ESGEventInbox.CONTROL));
+        assertEquals(11,inbox.size());
+        assertSame(systemEvent,inbox.poll());
+        for(int i=0; i < 10; i++) { assertEquals("register #"+i,inbox.poll().getMessage()); }
+        assertNull(inbox.poll());
+    }
+
+    @Test
+    public void testBurstKeepsNormalLaneFromStarving() throws Exception {
+        ESGEventInbox inbox = new ESGEventInbox(100);
+        inbox.setBurst(4);
+        for(int i=0; i < 3; i++) { inbox.offer(register(i)); }
+        for(int i=0; i < 12; i++) { inbox.offer(control(i)); }
+
+        List<ESGEvent> taken = new ArrayList<ESGEvent>();
+        inbox.drainTo(taken);
+        assertEquals(15,taken.size());
+        //every fifth take comes from the normal lane while it has events waiting
+        for(int i=0; i < taken.size(); i++) {
+            boolean normal = (inbox.laneOf(taken.get(i)) == ESGEventInbox.NORMAL);
+            assertEquals("take #"+i,(i % 5 == 4),normal);
+        }
+    }
+
+    @Test
+    public void testLanesHaveTheirOwnCapacity() throws Exception {
+        ESGEventInbox inbox = new ESGEventInbox(5);
+        for(int i=0; i < 5; i++) { assertTrue(inbox.offer(register(i))); }
+        assertFalse("normal lane should be full", inbox.offer(register(5)));
+        assertTrue("control lane should still have room", inbox.offer(control(0)));
+
+        //iteration is in take order, control lane first
+        ESGEvent queued = inbox.iterator().next();
+        assertEquals(ESGEventInbox.CONTROL,inbox.laneOf(queued));
+        assertTrue(inbox.remove(queued));
+        assertFalse(inbox.remove(queued));
+        assertFalse(inbox.offer(register(6)));
+        assertNotNull(inbox.poll());
+        assertTrue(inbox.offer(register(6)));
+    }
+
+    @Test
+    public void testKeyedEventsCoalesceInPlace() throws Exception {
+        ESGEventInbox inbox = new ESGEventInbox(100);
+        inbox.setMerger(new ESGEventMerger() {
+                public ESGEvent merge(ESGEvent pending, ESGEvent newer) {
+                    return new ESGEvent(newer.getSource(),pending.getData()+"+"+newer.getData(),newer.getMessage());
+                }
+            });
+
+        ESGEvent first = new ESGEvent(this,"a","state");
+        first.setCoalesceKey("registry-state");
+        ESGEvent second = new ESGEvent(this,"b","state");
+        second.setCoalesceKey("registry-state");
+
+        inbox.offer(first);
+        inbox.offer(register(1));
+        inbox.offer(second);
+        assertEquals(2,inbox.size());
+        assertEquals(1,inbox.getCoalescedCount());
+
+        ESGEvent merged = inbox.poll();
+        assertEquals("merged event should keep the waiting event's place","a+b",merged.getData());
+        assertEquals("register #1",inbox.poll().getMessage());
+
+        //once taken, the key starts over
+        inbox.offer(second);
+        assertEquals(1,inbox.size());
+        assertSame(second,inbox.poll());
+
+        inbox.setCoalescing(false);
+        inbox.offer(first);
+        inbox.offer(second);
+        assertEquals(2,inbox.size());
+    }
+
+}
@@ -0,0 +1,195 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.node.core;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import esg.common.service.ESGRemoteEvent;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGEventJournalTest {
+    private static final Log log = LogFactory.getLog(ESGEventJournalTest.class);
+
+    private File dir = null;
+
+    public ESGEventJournalTest() {
+        log.trace("Instantiating Test Case for ESGEventJournalTest");
+    }
+
+    @Before
+    public void makeDir() {
+        dir = new File(System.getProperty("java.io.tmpdir"),"esgf-journal-test-"+System.nanoTime());
+    }
+
+    @After
+    public void removeDir() {
+        File[] files = dir.listFiles();
+        if(files != null) for(File file : files) { file.delete(); }
+        dir.delete();
+    }
+
+    private ESGEvent register(int i, String payload) {
+        ESGEvent event = new ESGEvent(this,payload,"register #"+i);
+        event.setRemoteEvent(new ESGRemoteEvent("http://node/esgf-node-manager",ESGRemoteEvent.REGISTER,payload,null,(long)i));
+        event.setCoalesceKey("REGISTER:node"+i);
+        return event;
+    }
+
+    @Test
+    public void testUnfinishedEventsAreReplayed() throws Exception {
+        ESGEventJournal journal = new ESGEventJournal(dir,4096,false);
+        journal.open();
+        List<ESGEvent> events = new ArrayList<ESGEvent>();
+        for(int i=0; i < 5; i++) {
+            events.add(register(i,"<Registration/>"));
+            assertTrue(journal.append(events.get(i)));
+        }
+        journal.complete(events.get(0));
+        journal.complete(events.get(3));
+        assertEquals(3,journal.getPendingCount());
+
+        //...and the node goes down.  Coming back up:
+        ESGEventJournal restarted = new ESGEventJournal(dir,4096,false);
+        restarted.open();
+        List<ESGEvent> replayed = restarted.replay(this);
+        assertEquals(3,replayed.size());
+        assertEquals("register #1",replayed.get(0).getMessage());
+        assertEquals("register #2",replayed.get(1).getMessage());
+        assertEquals("register #4",replayed.get(2).getMessage());
+        assertEquals(ESGRemoteEvent.REGISTER,replayed.get(2).getRemoteEvent().getMessageType());
+        assertEquals("REGISTER:node4",replayed.get(2).getCoalesceKey());
+        assertTrue("nothing left to replay a second time", restarted.replay(this).isEmpty());
+    }
+
+    @Test
+    public void testOldSegmentsOutliveReplayUntilRejournaled() throws Exception {
+        ESGEventJournal journal = new ESGEventJournal(dir,4096,false);
+        journal.open();
+        journal.append(register(1,"<Registration/>"));
+        journal.append(register(2,"<Registration/>"));
+
+        //down again before the replayed events were journaled again...
+        ESGEventJournal restarted = new ESGEventJournal(dir,4096,false);
+        restarted.open();
+        assertEquals(2,restarted.replay(this).size());
+
+        //...still there the next time
+        restarted = new ESGEventJournal(dir,4096,false);
+        restarted.open();
+        List<ESGEvent> replayed = restarted.replay(this);
+        assertEquals(2,replayed.size());
+        for(ESGEvent event : replayed) { assertTrue(restarted.append(event)); }
+        restarted.replayed();
+        restarted.complete(replayed.get(0));
+
+        restarted = new ESGEventJournal(dir,4096,false);
+        restarted.open();
+        replayed = restarted.replay(this);
+        assertEquals(1,replayed.size());
+        assertEquals("register #2",replayed.get(0).getMessage());
+    }
+
+    @Test
+    public void testCompletedSegmentsAreRemoved() throws Exception {
+        ESGEventJournal journal = new ESGEventJournal(dir,4096,false);
+        journal.open();
+        StringBuilder big = new StringBuilder();
+        for(int i=0; i < 1500; i++) { big.append('x'); }
+
+        List<ESGEvent> events = new ArrayList<ESGEvent>();
+        for(int i=0; i < 20; i++) {
+            events.add(register(i,big.toString()));
+            journal.append(events.get(i));
+        }
+        assertTrue("expected the journal to roll over segments", dir.listFiles().length > 3);
+
+        for(ESGEvent event : events) { journal.complete(event); }
+        assertEquals(0,journal.getPendingCount());
+        assertEquals("only the current segment should be left",1,dir.listFiles().length);
+
+        ESGEventJournal restarted = new ESGEventJournal(dir,4096,false);
+        restarted.open();
+        assertTrue(restarted.replay(this).isEmpty());
+    }
+
+    @Test
+    public void testMergedEventCompletesBoth() throws Exception {
+        ESGEventJournal journal = new ESGEventJournal(dir,4096,false);
+        journal.open();
+        ESGEvent pending = register(1,"a");
+        ESGEvent newer = register(1,"b");
+        journal.append(pending);
+        journal.append(newer);
+        journal.merged(pending,newer,newer);
+        journal.complete(newer);
+        assertEquals(0,journal.getPendingCount());
+    }
+
+}
@@ -0,0 +1,208 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.node.core;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.HttpsURLConnection;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGHessianTransportTest {
+    private static final Log log = LogFactory.getLog(ESGHessianTransportTest.class);
+
+    public static interface Echo {
+        public String echo(String s);
+    }
+
+    //Hands out local Echo "stubs" that take a while to answer
+    private static class LocalTransport extends ESGHessianTransport {
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger most = new AtomicInteger(0);
+        LocalTransport(Properties props) { super(props); }
+        protected Object createStub(Class<?> serviceClass, String serviceURL) {
+            return new Echo() {
+                public String echo(String s) {
+                    int now = running.incrementAndGet();
+                    while(most.get() < now && !most.compareAndSet(most.get(),now)) { }
+                    try{ Thread.sleep(50); }catch(InterruptedException e) { }
+                    running.decrementAndGet();
+                    if(s == null) throw new IllegalArgumentException("nothing to echo");
+                    return s;
+                }
+            };
+        }
+    }
+
+    private Properties props(int maxPerHost, int connectTimeout) {
+        Properties props = new Properties();
+        props.setProperty("conn.transport.max.per.host",""+maxPerHost);
+        props.setProperty("conn.transport.connect.timeout",""+connectTimeout);
+        props.setProperty("conn.transport.read.timeout","1234");
+        return props;
+    }
+
+    @Test
+    public void testConnectionsAreConfigured() throws Exception {
+        ESGHessianTransport transport = new ESGHessianTransport(props(4,4321));
+        URLConnection conn = transport.configure(new URL("https://peer.example.org/esgf-node-manager/node").openConnection());
+        assertEquals(4321,conn.getConnectTimeout());
+        assertEquals(1234,conn.getReadTimeout());
+        assertTrue(conn instanceof HttpsURLConnection);
+        //one factory, so one TLS session cache, for all peers
+        URLConnection other = transport.configure(new URL("https://other.example.org/esgf-node-manager/node").openConnection());
+        assertSame(((HttpsURLConnection)conn).getSSLSocketFactory(),((HttpsURLConnection)other).getSSLSocketFactory());
+        assertEquals("peer.example.org:443",ESGHessianTransport.hostOf("https://Peer.example.org/esgf-node-manager/node"));
+    }
+
+    //The way Hessian makes a call: post, read the reply, disconnect()
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+        final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1",0),0);
+        server.createContext("/esgf-node-manager/node",new HttpHandler() {
+                public void handle(HttpExchange exchange) throws java.io.IOException {
+                    clientPorts.add(exchange.getRemoteAddress().getPort());
+                    InputStream in = exchange.getRequestBody();
+                    while(in.read() != -1) { }
+                    byte[] reply = "reply".getBytes("UTF-8");
+                    exchange.sendResponseHeaders(200,reply.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(reply);
+                    out.close();
+                }
+            });
+        server.start();
+        try{
+            ESGHessianTransport transport = new ESGHessianTransport(props(4,5000));
+            URL url = new URL("http://127.0.0.1:"+server.getAddress().getPort()+"/esgf-node-manager/node");
+            int calls = 10;
+            for(int i=0; i < calls; i++) {
+                HttpURLConnection conn = (HttpURLConnection)transport.pooled(transport.configure(url.openConnection()));
+                conn.setDoOutput(true);
+                conn.setRequestMethod("POST");
+                OutputStream out = conn.getOutputStream();
+                out.write(("call "+i).getBytes("UTF-8"));
+                out.close();
+                assertEquals(200,conn.getResponseCode());
+                //(Hessian reads up to the reply's end marker, not to EOF)
+                InputStream in = conn.getInputStream();
+                for(int n=0; n < "reply".length(); n++) { assertTrue(in.read() != -1); }
+                conn.disconnect();
+            }
+            log.info(calls+" calls over "+clientPorts.size()+" connections");
+            assertTrue("expected connections to be reused ("+clientPorts.size()+" for "+calls+" calls)",clientPorts.size() < calls);
+        }finally{
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testCallsPerHostAreLimited() throws Exception {
+        final LocalTransport transport = new LocalTransport(props(2,5000));
+        final Echo echo = (Echo)transport.create(Echo.class,"http://peer.example.org/esgf-node-manager/node");
+        List<Thread> callers = new ArrayList<Thread>();
+        for(int i=0;i<6;i++) {
+            Thread t = new Thread() { public void run() { echo.echo("hi"); } };
+            callers.add(t);
+            t.start();
+        }
+        for(Thread t : callers) t.join();
+        assertEquals(6,transport.getNumCalls());
+        assertTrue(transport.most.get() <= 2);
+        assertTrue(transport.getNumWaits() > 0);
+        assertEquals(0,transport.getInFlight("peer.example.org:80"));
+    }
+
+    @Test
+    public void testCallerSeesTheStubsException() throws Exception {
+        LocalTransport transport = new LocalTransport(props(2,5000));
+        Echo echo = (Echo)transport.create(Echo.class,"http://peer.example.org/esgf-node-manager/node");
+        try{
+            echo.echo(null);
+            fail("expected the stub's exception");
+        }catch(IllegalArgumentException e) {
+            //as if called directly
+        }
+        assertEquals(0,transport.getInFlight("peer.example.org:80"));
+    }
+}
@@ -0,0 +1,242 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.node.core;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import esg.common.service.ESGRemoteEvent;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGOverloadPolicyTest {
+    private static final Log log = LogFactory.getLog(ESGOverloadPolicyTest.class);
+
+    //enough to fill the inbox with some left over
+    private static final int EVENTS = ESGQueue.DEFAULT_CAPACITY+50;
+
+    public ESGOverloadPolicyTest() {
+        log.trace("Instantiating Test Case for ESGOverloadPolicyTest");
+    }
+
+    //Holds up its drainers until released so the inbox fills up
+    private static class GatedComponent extends AbstractDataNodeComponent {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger received = new AtomicInteger(0);
+
+        GatedComponent(String name) { super(name); }
+        public void init() { }
+
+        public boolean handleESGQueuedEvent(ESGEvent event) {
+            try{ gate.await(10,TimeUnit.SECONDS); }catch(InterruptedException e) { }
+            received.incrementAndGet();
+            return true;
+        }
+    }
+
+    private ESGEvent remoteEvent(int messageType, int i) {
+        ESGEvent event = new ESGEvent(this,"payload-"+i,"TestEvent #"+i);
+        event.setRemoteEvent(new ESGRemoteEvent("http://node"+i+"/esgf-node-manager",messageType,(long)i));
+        return event;
+    }
+
+    private void awaitReceived(GatedComponent component, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis()+10000;
+        while(component.received.get() < expected && System.currentTimeMillis() < deadline) { Thread.sleep(10); }
+    }
+
+    @Test
+    public void testShedOldestMakesRoomWithoutBlocking() throws Exception {
+        GatedComponent component = new GatedComponent("SHEDDER");
+        ESGQueue queue = component.getESGEventQueue();
+        ESGOverloadPolicy policy = ESGOverloadPolicy.newPolicy("shed");
+        Properties props = new Properties();
+        props.setProperty("queue.overload.shed.types","HEALTH");
+        policy.configure(queue,props);
+        queue.setOverloadPolicy(policy);
+
+        for(int i=0; i < EVENTS; i++) {
+            queue.enqueueEvent(remoteEvent(ESGRemoteEvent.HEALTH,i));
+        }
+        assertTrue("expected queued events to be shed", policy.getShedCount() > 0);
+        assertEquals(0,policy.getCallerRunsCount());
+        assertEquals(0,policy.getDroppedCount());
+
+        component.gate.countDown();
+        awaitReceived(component,(int)(EVENTS-policy.getShedCount()));
+        assertEquals(EVENTS-policy.getShedCount(),component.received.get());
+    }
+
+    @Test
+    public void testShedOnlyFromTheFullLane() throws Exception {
+        final AtomicInteger controlReceived = new AtomicInteger(0);
+        GatedComponent component = new GatedComponent("LANE_SHEDDER") {
+                public boolean handleESGQueuedEvent(ESGEvent event) {
+                    if(event.getRemoteEvent().getMessageType() == ESGRemoteEvent.UNREGISTER) controlReceived.incrementAndGet();
+                    return super.handleESGQueuedEvent(event);
+                }
+            };
+        ESGQueue queue = component.getESGEventQueue();
+        ESGOverloadPolicy policy = ESGOverloadPolicy.newPolicy("shed");
+        Properties props = new Properties();
+        props.setProperty("queue.overload.shed.types","HEALTH,UNREGISTER");
+        policy.configure(queue,props);
+        queue.setOverloadPolicy(policy);
+
+        int control = 10;
+        for(int i=0; i < control; i++) {
+            queue.enqueueEvent(remoteEvent(ESGRemoteEvent.UNREGISTER,i));
+        }
+        //a full normal lane, then more (not sheddable) events for it
+        for(int i=0; i < EVENTS; i++) {
+            queue.enqueueEvent(remoteEvent((i < ESGQueue.DEFAULT_CAPACITY) ? ESGRemoteEvent.HEALTH : ESGRemoteEvent.REGISTER,control+i));
+        }
+        assertTrue("expected queued events to be shed", policy.getShedCount() > 0);
+        assertEquals(0,policy.getDroppedCount());
+
+        component.gate.countDown();
+        awaitReceived(component,(int)(control+EVENTS-policy.getShedCount()));
+        assertEquals(control+EVENTS-policy.getShedCount(),component.received.get());
+        assertEquals("control events were shed for normal ones",control,controlReceived.get());
+    }
+
+    @Test
+    public void testSpilledEventsAreReplayed() throws Exception {
+        File spillDir = new File(System.getProperty("java.io.tmpdir"),"esgf-spill-test-"+System.nanoTime());
+        GatedComponent component = new GatedComponent("SPILLER");
+        ESGQueue queue = component.getESGEventQueue();
+        ESGSpillPolicy policy = (ESGSpillPolicy)ESGOverloadPolicy.newPolicy("spill");
+        Properties props = new Properties();
+        props.setProperty("queue.overload.spill.dir",spillDir.getPath());
+        policy.configure(queue,props);
+        queue.setOverloadPolicy(policy);
+
+        for(int i=0; i < EVENTS; i++) {
+            queue.enqueueEvent(remoteEvent(ESGRemoteEvent.REGISTER,i));
+        }
+        assertTrue("expected events to be spilled", policy.getSpilledCount() > 0);
+        assertEquals(0,policy.getCallerRunsCount());
+
+        component.gate.countDown();
+        awaitReceived(component,EVENTS);
+        assertEquals(EVENTS,component.received.get());
+        assertEquals(policy.getSpilledCount(),policy.getReplayedCount());
+        assertEquals(0,policy.getPendingCount());
+
+        new File(spillDir,queue.getName()).delete();
+        spillDir.delete();
+    }
+
+    @Test
+    public void testReplayedSpillIsStampedAndJournaled() throws Exception {
+        File spillDir = new File(System.getProperty("java.io.tmpdir"),"esgf-spill-test-"+System.nanoTime());
+        File journalDir = new File(System.getProperty("java.io.tmpdir"),"esgf-spill-journal-test-"+System.nanoTime());
+        final AtomicInteger leastPending = new AtomicInteger(Integer.MAX_VALUE);
+        GatedComponent component = new GatedComponent("SPILL_JOURNAL") {
+                public boolean handleESGQueuedEvent(ESGEvent event) {
+                    //every event being handled is still in the journal, replayed ones too
+                    int pending = getESGEventQueue().getJournal().getPendingCount();
+                    while(pending < leastPending.get() && !leastPending.compareAndSet(leastPending.get(),pending)) { }
+                    return super.handleESGQueuedEvent(event);
+                }
+            };
+        ESGQueue queue = component.getESGEventQueue();
+        assertTrue(queue.openJournal(journalDir,1024*1024,false));
+        ESGSpillPolicy policy = (ESGSpillPolicy)ESGOverloadPolicy.newPolicy("spill");
+        Properties props = new Properties();
+        props.setProperty("queue.overload.spill.dir",spillDir.getPath());
+        policy.configure(queue,props);
+        queue.setOverloadPolicy(policy);
+
+        for(int i=0; i < EVENTS; i++) {
+            queue.enqueueEvent(remoteEvent(ESGRemoteEvent.REGISTER,i));
+        }
+        assertTrue("expected events to be spilled", policy.getSpilledCount() > 0);
+        component.gate.countDown();
+        awaitReceived(component,EVENTS);
+        assertEquals(EVENTS,component.received.get());
+        assertEquals(policy.getSpilledCount(),policy.getReplayedCount());
+
+        assertTrue("replayed events were not journaled",leastPending.get() >= 1);
+        long deadline = System.currentTimeMillis()+5000;
+        while(queue.getJournal().getPendingCount() > 0 && System.currentTimeMillis() < deadline) { Thread.sleep(10); }
+        assertEquals(0,queue.getJournal().getPendingCount());
+        assertEquals(EVENTS+policy.getReplayedCount(),queue.getStats().getEnqueuedCount());
+        //waits are from when they were put back on the inbox (not from 0)
+        assertTrue("wait max: "+queue.getStats().getWaitTimeMax(),queue.getStats().getWaitTimeMax() < 20000.0);
+
+        for(File dir : new File[] { new File(spillDir,queue.getName()), spillDir, journalDir }) {
+            File[] files = dir.listFiles();
+            if(files != null) for(File file : files) { file.delete(); }
+            dir.delete();
+        }
+    }
+
+}
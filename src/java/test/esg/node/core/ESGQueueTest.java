@@ -0,0 +1,356 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+
+/**
+   Description:
+
+**/
+
+package esg.node.core;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import esg.common.service.ESGRemoteEvent;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGQueueTest {
+    private static final Log log = LogFactory.getLog(ESGQueueTest.class);
+
+    public ESGQueueTest() {
+        log.trace("Instantiating Test Case for ESGQueueTest");
+    }
+
+    //Records what the queue hands it... holds the first event until
+    //released so that a backlog can build up behind it.
+    private static class RecordingComponent extends AbstractDataNodeComponent {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch done;
+        final AtomicInteger received = new AtomicInteger(0);
+        final AtomicInteger batches = new AtomicInteger(0);
+        final AtomicInteger largestBatch = new AtomicInteger(0);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        long delay = 0L;
+
+        RecordingComponent(String name, int expected) {
+            super(name);
+            done = new CountDownLatch(expected);
+        }
+        public void init() { }
+
+        public boolean handleESGQueuedEvents(List<ESGEvent> events) {
+            batches.incrementAndGet();
+            int n;
+            while((n = largestBatch.get()) < events.size()) { largestBatch.compareAndSet(n,events.size()); }
+            for(ESGEvent event : events) { handleESGQueuedEvent(event); }
+            return true;
+        }
+        public boolean handleESGQueuedEvent(ESGEvent event) {
+            try{
+                gate.await(10,TimeUnit.SECONDS);
+                if(delay > 0) Thread.sleep(delay);
+            }catch(InterruptedException e) { }
+            order.add(event.getMessage());
+            threads.add(Thread.currentThread().getName());
+            received.incrementAndGet();
+            done.countDown();
+            return true;
+        }
+    }
+
+    @Test
+    public void testDrainedEventsAreBatched() throws Exception {
+        RecordingComponent component = new RecordingComponent("BATCHER",50);
+        ESGQueue queue = component.getESGEventQueue();
+        queue.getBatchController().setBatchSize(10);
+
+        for(int i=0; i < 50; i++) {
+            queue.enqueueEvent(new ESGEvent(this,"data","TestEvent #"+i));
+        }
+        component.gate.countDown();
+
+        assertTrue("not all events were delivered", component.done.await(10,TimeUnit.SECONDS));
+        assertEquals(50,component.received.get());
+        assertTrue("expected events to arrive in batches", component.batches.get() > 0);
+        assertTrue("batch bigger than batch size", component.largestBatch.get() <= 10);
+        assertEquals(0,queue.size());
+    }
+
+    @Test
+    public void testLingerFillsPartialBatch() throws Exception {
+        RecordingComponent component = new RecordingComponent("LINGERER",5);
+        component.gate.countDown();
+        ESGQueue queue = component.getESGEventQueue();
+        queue.getBatchController().setBatchSize(5);
+        queue.getBatchController().setMaxLinger(2000);
+
+        for(int i=0; i < 5; i++) {
+            queue.enqueueEvent(new ESGEvent(this,"data","TestEvent #"+i));
+            Thread.sleep(20);
+        }
+
+        assertTrue("not all events were delivered", component.done.await(10,TimeUnit.SECONDS));
+        assertTrue("expected lingering drainer to collect a batch", component.largestBatch.get() > 1);
+    }
+
+    @Test
+    public void testControllerGrowsPoolUnderBacklog() throws Exception {
+        RecordingComponent component = new RecordingComponent("GROWER",200);
+        component.delay = 5L;
+        component.gate.countDown();
+        ESGQueue queue = component.getESGEventQueue();
+        ESGQueueController qController = queue.getQueueController();
+        qController.setThreadBounds(1,8);
+        qController.setWaitTarget(1);
+        qController.setAdjustInterval(1);
+        int initial = queue.getConcurrency();
+
+        for(int i=0; i < 200; i++) {
+            queue.enqueueEvent(new ESGEvent(this,"data","TestEvent #"+i));
+        }
+
+        assertTrue("not all events were delivered", component.done.await(20,TimeUnit.SECONDS));
+        assertTrue("expected the pool to grow past its initial size", queue.getConcurrency() > initial);
+        assertTrue("pool grew past its maximum", queue.getConcurrency() <= 8);
+        assertTrue("expected service times to be measured", qController.getAverageServiceTime() > 0.0);
+    }
+
+    @Test
+    public void testControlEventRetunesQueue() throws Exception {
+        RecordingComponent component = new RecordingComponent("TUNED",1);
+        ESGQueue queue = component.getESGEventQueue();
+
+        ESGQueueControlEvent controlEvent = new ESGQueueControlEvent(this);
+        controlEvent.setThreadBounds(4,6);
+        controlEvent.setKeepAlive(5000);
+        controlEvent.setBatchSize(25);
+        queue.getQueueController().handleESGEvent(controlEvent);
+        queue.getBatchController().handleESGEvent(controlEvent);
+
+        assertEquals(4,queue.getConcurrency());
+        assertEquals(6,queue.getQueueController().getMaxThreads());
+        assertEquals(5000L,queue.getQueueController().getKeepAlive());
+        assertEquals(25,queue.getBatchController().getBatchSize());
+    }
+
+    @Test
+    public void testStatsRecordPipeline() throws Exception {
+        RecordingComponent component = new RecordingComponent("COUNTED",20);
+        component.delay = 2L;
+        component.gate.countDown();
+        ESGQueue queue = component.getESGEventQueue();
+
+        for(int i=0; i < 20; i++) {
+            queue.enqueueEvent(new ESGEvent(this,"data","TestEvent #"+i));
+        }
+        assertTrue("not all events were delivered", component.done.await(10,TimeUnit.SECONDS));
+        Thread.sleep(50);
+
+        ESGQueueStats stats = queue.getStats();
+        assertEquals(20,stats.getEnqueuedCount());
+        assertEquals(20,stats.getDispatchedCount());
+        assertEquals(20,stats.getWaitTimes().getCount());
+        assertEquals(0,stats.getRejectedCount());
+        assertTrue("expected service times of at least the handler's delay", stats.getServiceTimeMax() >= 1.0);
+        assertTrue(stats.getServiceTimeP99() >= stats.getServiceTimeP50());
+        assertEquals("20",stats.toMap().get(ESGQueueStats.ENQUEUED));
+    }
+
+    @Test
+    public void testVirtualExecutionMode() throws Exception {
+        assumeTrue(ESGQueue.virtualThreadFactory("test-") != null);
+
+        RecordingComponent component = new RecordingComponent("VIRTUAL",100);
+        component.delay = 20L;
+        component.gate.countDown();
+        ESGQueue queue = component.getESGEventQueue();
+        assertTrue(queue.useVirtualThreads(100));
+        assertEquals(100,queue.getConcurrency());
+
+        //100 blocking handlers at once should take about one delay, not 100/20ths of them
+        long start = System.currentTimeMillis();
+        for(int i=0; i < 100; i++) {
+            queue.enqueueEvent(new ESGEvent(this,"data","TestEvent #"+i));
+        }
+        assertTrue("not all events were delivered", component.done.await(10,TimeUnit.SECONDS));
+        assertTrue("expected handlers to run concurrently", (System.currentTimeMillis()-start) < 1000);
+    }
+
+    @Test
+    public void testVirtualExecutionFallsBackToPool() throws Exception {
+        assumeTrue(ESGQueue.virtualThreadFactory("test-") == null);
+
+        RecordingComponent component = new RecordingComponent("NOT_VIRTUAL",10);
+        component.gate.countDown();
+        ESGQueue queue = component.getESGEventQueue();
+        assertFalse(queue.useVirtualThreads(100));
+        assertFalse(queue.isVirtual());
+
+        for(int i=0; i < 10; i++) {
+            queue.enqueueEvent(new ESGEvent(this,"data","TestEvent #"+i));
+        }
+        assertTrue("not all events were delivered", component.done.await(10,TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSharedPoolKeepsPerComponentOrder() throws Exception {
+        RecordingComponent[] components = new RecordingComponent[4];
+        for(int c=0; c < components.length; c++) {
+            components[c] = new RecordingComponent("SHARED"+c,500);
+            components[c].gate.countDown();
+            components[c].getESGEventQueue().useSharedPool(2,1);
+            assertEquals("shared",components[c].getESGEventQueue().getExecutionMode());
+        }
+        for(int i=0; i < 500; i++) {
+            for(RecordingComponent component : components) {
+                component.getESGEventQueue().enqueueEvent(new ESGEvent(this,"data",""+i));
+            }
+        }
+
+        Set<String> allThreads = new HashSet<String>();
+        for(RecordingComponent component : components) {
+            assertTrue("not all events were delivered", component.done.await(10,TimeUnit.SECONDS));
+            for(int i=0; i < 500; i++) {
+                assertEquals("events out of order for "+component.getName(),""+i,component.order.get(i));
+            }
+            allThreads.addAll(component.threads);
+        }
+        assertTrue("expected the components to share the scheduler's threads", allThreads.size() <= ESGQueue.sharedPool(2).getParallelism());
+    }
+
+    @Test
+    public void testStripedDispatchKeepsPerOriginOrder() throws Exception {
+        final int origins = 4;
+        final int perOrigin = 200;
+        final Map<String,List<Long>> seen = new ConcurrentHashMap<String,List<Long>>();
+        final Map<String,AtomicInteger> busy = new ConcurrentHashMap<String,AtomicInteger>();
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger mostRunning = new AtomicInteger(0);
+        final AtomicInteger overlaps = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(origins*perOrigin);
+        for(int o=0; o < origins; o++) {
+            seen.put("http://node"+o+"/esgf-node-manager",Collections.synchronizedList(new ArrayList<Long>()));
+            busy.put("http://node"+o+"/esgf-node-manager",new AtomicInteger(0));
+        }
+
+        AbstractDataNodeComponent component = new AbstractDataNodeComponent("STRIPED") {
+                public void init() { }
+                public boolean handleESGQueuedEvent(ESGEvent event) {
+                    String origin = event.getRemoteEvent().getOrigin();
+                    if(busy.get(origin).incrementAndGet() > 1) overlaps.incrementAndGet();
+                    int n = running.incrementAndGet(), most;
+                    while((most = mostRunning.get()) < n) { mostRunning.compareAndSet(most,n); }
+                    try{ Thread.sleep(1); }catch(InterruptedException e) { }
+                    seen.get(origin).add(event.getRemoteEvent().getSeqNum());
+                    running.decrementAndGet();
+                    busy.get(origin).decrementAndGet();
+                    done.countDown();
+                    return true;
+                }
+            };
+        ESGQueue queue = component.getESGEventQueue();
+        Properties props = new Properties();
+        props.setProperty("queue.STRIPED.dispatch","striped");
+        props.setProperty("queue.STRIPED.stripes","8");
+        props.setProperty("queue.STRIPED.stripe.backlog","16");
+        props.setProperty("queue.STRIPED.batch.size","4");
+        props.setProperty("queue.STRIPED.threads.min","4");
+        props.setProperty("queue.STRIPED.threads.max","4");
+        props.setProperty("queue.STRIPED.threads.adaptive","false");
+        props.setProperty("queue.STRIPED.coalesce","false");
+        queue.configure(props);
+        assertTrue(queue.isStriped());
+        assertEquals(8,queue.getStripes().getStripeCount());
+
+        for(int i=0; i < perOrigin; i++) {
+            for(int o=0; o < origins; o++) {
+                ESGEvent event = new ESGEvent(this,null,"register");
+                event.setRemoteEvent(new ESGRemoteEvent("http://node"+o+"/esgf-node-manager",ESGRemoteEvent.REGISTER,(long)i));
+                queue.enqueueEvent(event);
+            }
+        }
+
+        assertTrue("not all events were delivered", done.await(30,TimeUnit.SECONDS));
+        assertEquals("events from the same origin were handled at the same time",0,overlaps.get());
+        for(Map.Entry<String,List<Long>> entry : seen.entrySet()) {
+            assertEquals(perOrigin,entry.getValue().size());
+            for(int i=0; i < perOrigin; i++) {
+                assertEquals("events out of order for "+entry.getKey(),(long)i,entry.getValue().get(i).longValue());
+            }
+        }
+        assertTrue("expected origins to be handled in parallel", mostRunning.get() > 1);
+        assertEquals(0,queue.size());
+    }
+
+}
@@ -0,0 +1,169 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.node.core;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGSchedulerTest {
+    private static final Log log = LogFactory.getLog(ESGSchedulerTest.class);
+
+    private ESGScheduler scheduler = null;
+
+    public ESGSchedulerTest() {
+        log.trace("Instantiating Test Case for ESGSchedulerTest");
+    }
+
+    @Before
+    public void setup() { scheduler = new ESGScheduler(4); }
+
+    @After
+    public void teardown() { scheduler.shutdown(1,TimeUnit.SECONDS); }
+
+    @Test
+    public void testJobNeverOverlapsItself() throws Exception {
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger overlaps = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(5);
+        ESGScheduler.Job job = scheduler.schedule("slow",new Runnable() {
+                public void run() {
+                    if(running.incrementAndGet() > 1) overlaps.incrementAndGet();
+                    try{ Thread.sleep(30); }catch(InterruptedException e) { }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            },0,10,TimeUnit.MILLISECONDS,0L,ESGScheduler.MissedRuns.SKIP);
+
+        assertTrue(done.await(5,TimeUnit.SECONDS));
+        assertEquals(0,overlaps.get());
+        assertTrue("every run overran its period",job.getOverruns() >= 4);
+        assertTrue("missed runs should have been skipped",job.getSkipped() > 0);
+    }
+
+    @Test
+    public void testFailingJobKeepsRunning() throws Exception {
+        final CountDownLatch done = new CountDownLatch(4);
+        ESGScheduler.Job job = scheduler.schedule("fails",new Runnable() {
+                public void run() {
+                    done.countDown();
+                    throw new RuntimeException("boom");
+                }
+            },0,5,TimeUnit.MILLISECONDS);
+
+        assertTrue("job stopped after it threw",done.await(5,TimeUnit.SECONDS));
+        assertTrue(job.getFailures() >= 3);
+        assertTrue(scheduler.getJobStats("fails").get("failures") >= 3L);
+    }
+
+    @Test
+    public void testFixedDelayAndCancel() throws Exception {
+        final CountDownLatch done = new CountDownLatch(3);
+        final long[] last = new long[1];
+        final AtomicInteger tooSoon = new AtomicInteger(0);
+        scheduler.schedule("delayed",new Runnable() {
+                public void run() {
+                    long now = System.nanoTime();
+                    if(last[0] != 0 && TimeUnit.NANOSECONDS.toMillis(now-last[0]) < 19) tooSoon.incrementAndGet();
+                    try{ Thread.sleep(20); }catch(InterruptedException e) { }
+                    last[0] = System.nanoTime();
+                    done.countDown();
+                }
+            },0,20,TimeUnit.MILLISECONDS,0L,ESGScheduler.MissedRuns.DELAY);
+
+        assertTrue(done.await(5,TimeUnit.SECONDS));
+        assertEquals("runs started less than a period after the last one ended",0,tooSoon.get());
+        assertTrue(scheduler.cancel("delayed"));
+        assertFalse(scheduler.cancel("delayed"));
+        assertNull(scheduler.getJob("delayed"));
+    }
+
+    @Test
+    public void testShutdownWaitsForRunningJob() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger finished = new AtomicInteger(0);
+        scheduler.schedule("busy",new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try{ Thread.sleep(100); }catch(InterruptedException e) { return; }
+                    finished.incrementAndGet();
+                }
+            },0,1,TimeUnit.SECONDS);
+
+        assertTrue(started.await(5,TimeUnit.SECONDS));
+        assertTrue(scheduler.shutdown(5,TimeUnit.SECONDS));
+        assertEquals(1,finished.get());
+        assertTrue(scheduler.isShutdown());
+        try{
+            scheduler.schedule("late",new Runnable() { public void run() { } },0,1,TimeUnit.SECONDS);
+            fail("scheduled a job after shutdown");
+        }catch(IllegalStateException e) { }
+    }
+
+}
@@ -0,0 +1,116 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.node.core;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGSnapshotMapTest {
+    private static final Log log = LogFactory.getLog(ESGSnapshotMapTest.class);
+
+    public ESGSnapshotMapTest() {
+        log.trace("Instantiating Test Case for ESGSnapshotMapTest");
+    }
+
+    @Test
+    public void testSnapshotsAreUnaffectedByLaterChanges() {
+        ESGSnapshotMap<String> map = new ESGSnapshotMap<String>();
+        map.put("a","A");
+        map.put("b","B");
+        List<String> before = map.values();
+        assertEquals(2,before.size());
+
+        //changing the registry while walking an earlier snapshot is fine
+        for(String value : before) { map.put(value+"x",value); }
+        assertEquals(2,before.size());
+        assertEquals(4,map.values().size());
+        assertEquals(4,map.names().length);
+
+        try{
+            before.add("nope");
+            fail("snapshots should not be modifiable");
+        }catch(UnsupportedOperationException e) { }
+    }
+
+    @Test
+    public void testRegisterAndReplaceSemantics() {
+        ESGSnapshotMap<String> map = new ESGSnapshotMap<String>();
+        assertNull(map.putIfAbsent("peer","first"));
+        assertEquals("first",map.putIfAbsent("peer","second"));
+        assertEquals("first",map.get("peer"));
+
+        assertEquals("first",map.put("peer","third"));
+        assertFalse("stale value must not remove its replacement", map.remove("peer","first"));
+        assertTrue(map.containsKey("peer"));
+        assertTrue(map.remove("peer","third"));
+        assertTrue(map.isEmpty());
+        assertTrue(map.values().isEmpty());
+        assertEquals(0,map.names().length);
+    }
+
+}
@@ -0,0 +1,149 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.node.core;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGStartupGraphTest {
+    private static final Log log = LogFactory.getLog(ESGStartupGraphTest.class);
+
+    public ESGStartupGraphTest() {
+        log.trace("Instantiating Test Case for ESGStartupGraphTest");
+    }
+
+    private Runnable step(final String name, final List<String> ran) {
+        return new Runnable() { public void run() { ran.add(name); } };
+    }
+
+    @Test
+    public void testIndependentStepsRunInParallel() throws Exception {
+        //each waits for the other to have started: only passes if both run at once
+        final CountDownLatch both = new CountDownLatch(2);
+        Runnable meetUp = new Runnable() {
+                public void run() {
+                    both.countDown();
+                    try{
+                        if(!both.await(5,TimeUnit.SECONDS)) throw new IllegalStateException("ran one after the other");
+                    }catch(InterruptedException e) { throw new IllegalStateException(e); }
+                }
+            };
+        ESGStartupGraph graph = new ESGStartupGraph(null);
+        graph.add("A",meetUp).add("B",meetUp);
+        assertTrue(graph.start(2,10000));
+        assertEquals(2,graph.getDurations().size());
+        assertTrue(graph.getReport().contains("A="));
+    }
+
+    @Test
+    public void testDependenciesRunFirst() throws Exception {
+        List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        ESGStartupGraph graph = new ESGStartupGraph(null);
+        graph.add("D",step("D",ran),"B","C")
+             .add("B",step("B",ran),"A")
+             .add("C",step("C",ran),"A")
+             .add("A",step("A",ran));
+        assertTrue(graph.start(4,10000));
+        assertEquals(4,ran.size());
+        assertEquals("A",ran.get(0));
+        assertEquals("D",ran.get(3));
+        assertEquals("D",new ArrayList<String>(graph.getDurations().keySet()).get(3));
+    }
+
+    @Test
+    public void testFailureSkipsDependents() throws Exception {
+        List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        ESGStartupGraph graph = new ESGStartupGraph(null);
+        graph.add("A",new Runnable() { public void run() { throw new RuntimeException("no database"); } })
+             .add("B",step("B",ran),"A")
+             .add("C",step("C",ran),"B")
+             .add("D",step("D",ran));
+        assertFalse(graph.start(2,10000));
+        assertEquals(Collections.singletonList("D"),ran);
+        assertEquals(Collections.singletonList("A"),graph.getFailed());
+        assertEquals(2,graph.getSkipped().size());
+        assertTrue(graph.getSkipped().contains("C"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testCycleIsRejected() throws Exception {
+        List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        new ESGStartupGraph(null).add("A",step("A",ran),"B").add("B",step("B",ran),"A").start(2,1000);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testUnknownDependencyIsRejected() throws Exception {
+        List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        new ESGStartupGraph(null).add("A",step("A",ran),"NOPE").start(2,1000);
+    }
+
+}
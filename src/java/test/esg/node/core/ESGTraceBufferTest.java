@@ -0,0 +1,159 @@
+/***************************************************************************
+*                                                                          *
+*  Organization: Lawrence Livermore National Lab (LLNL)                    *
+*   Directorate: Computation                                               *
+*    Department: Computing Applications and Research                       *
+*      Division: S&T Global Security                                       *
+*        Matrix: Atmospheric, Earth and Energy Division                    *
+*       Program: PCMDI                                                     *
+*       Project: Earth Systems Grid (ESG) Data Node Software Stack         *
+*  First Author: Gavin M. Bell (gavin@llnl.gov)                            *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*   Copyright (c) 2009, Lawrence Livermore National Security, LLC.         *
+*   Produced at the Lawrence Livermore National Laboratory                 *
+*   Written by: Gavin M. Bell (gavin@llnl.gov)                             *
+*   LLNL-CODE-420962                                                       *
+*                                                                          *
+*   All rights reserved. This file is part of the:                         *
+*   Earth System Grid (ESG) Data Node Software Stack, Version 1.0          *
+*                                                                          *
+*   For details, see http://esgf.org/esg-node/                    *
+*   Please also read this link                                             *
+*    http://esgf.org/LICENSE                                      *
+*                                                                          *
+*   * Redistribution and use in source and binary forms, with or           *
+*   without modification, are permitted provided that the following        *
+*   conditions are met:                                                    *
+*                                                                          *
+*   * Redistributions of source code must retain the above copyright       *
+*   notice, this list of conditions and the disclaimer below.              *
+*                                                                          *
+*   * Redistributions in binary form must reproduce the above copyright    *
+*   notice, this list of conditions and the disclaimer (as noted below)    *
+*   in the documentation and/or other materials provided with the          *
+*   distribution.                                                          *
+*                                                                          *
+*   Neither the name of the LLNS/LLNL nor the names of its contributors    *
+*   may be used to endorse or promote products derived from this           *
+*   software without specific prior written permission.                    *
+*                                                                          *
+*   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS    *
+*   "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT      *
+*   LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS      *
+*   FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL LAWRENCE    *
+*   LIVERMORE NATIONAL SECURITY, LLC, THE U.S. DEPARTMENT OF ENERGY OR     *
+*   CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,           *
+*   SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT       *
+*   LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF       *
+*   USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND    *
+*   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,     *
+*   OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT     *
+*   OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF     *
+*   SUCH DAMAGE.                                                           *
+*                                                                          *
+***************************************************************************/
+/**
+   Description:
+
+**/
+
+package esg.node.core;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.*;
+
+public class ESGTraceBufferTest {
+    private static final Log log = LogFactory.getLog(ESGTraceBufferTest.class);
+
+    public ESGTraceBufferTest() {
+        log.trace("Instantiating Test Case for ESGTraceBufferTest");
+    }
+
+    //Turns each event it gets into a new one for the next component
+    private static class ForwardingComponent extends AbstractDataNodeComponent {
+        final String next;
+        final CountDownLatch done;
+
+        ForwardingComponent(String name, String next, int expected) {
+            super(name);
+            this.next = next;
+            this.done = new CountDownLatch(expected);
+        }
+        public void init() { }
+
+        public boolean handleESGQueuedEvent(ESGEvent event) {
+            try{ Thread.sleep(2); }catch(InterruptedException e) { }
+            if(next != null) enqueueESGEvent(next,new ESGEvent(this,event.getData(),"from "+getName()));
+            done.countDown();
+            return true;
+        }
+    }
+
+    @Test
+    public void testTraceFollowsEventsAcrossComponents() throws Exception {
+        ForwardingComponent second = new ForwardingComponent("SECOND",null,5);
+        ForwardingComponent first = new ForwardingComponent("FIRST","SECOND",5);
+        first.addESGQueueListener(second);
+        ESGTraceBuffer buffer = new ESGTraceBuffer(16);
+        first.getESGEventQueue().setTraceBuffer(buffer);
+
+        for(int i=0; i < 5; i++) {
+            first.getESGEventQueue().enqueueEvent(new ESGEvent(this,"data","TestEvent #"+i));
+        }
+        assertTrue("not all events made it through", second.done.await(10,TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis()+5000;
+        while(buffer.getRecordedCount() < 5 && System.currentTimeMillis() < deadline) { Thread.sleep(10); }
+        assertEquals(5,buffer.getRecordedCount());
+
+        String[] routes = buffer.getRoutes();
+        assertEquals(1,routes.length);
+        assertEquals("FIRST -> SECOND",routes[0]);
+        Map<String,Double> latency = buffer.getRouteLatency("FIRST -> SECOND");
+        log.info(latency);
+        assertEquals(5.0,latency.get(ESGTraceBuffer.COUNT).doubleValue(),0.0);
+        assertTrue(latency.get("FIRST.service.p50") >= 1.0);
+        assertTrue(latency.get("SECOND.service.p50") >= 1.0);
+        assertNotNull(latency.get("SECOND.wait.p99"));
+        assertTrue(latency.get("total.max") >= latency.get("FIRST.service.p50")+latency.get("SECOND.service.p50"));
+        assertEquals(5,buffer.getRecentTraces().length);
+    }
+
+    @Test
+    public void testSamplingAndDisabling() {
+        ESGTraceBuffer buffer = new ESGTraceBuffer(4);
+        buffer.setSampleEvery(3);
+        int traced = 0;
+        for(int i=0; i < 9; i++) { if(buffer.newTrace() != null) traced++; }
+        assertEquals(3,traced);
+
+        buffer.setEnabled(false);
+        assertNull(buffer.newTrace());
+    }
+
+    @Test
+    public void testAbandonedTracesAreNotKept() {
+        ESGTraceBuffer buffer = new ESGTraceBuffer(4);
+        ESGEventTrace kept = buffer.newTrace("kept");
+        kept.enqueued("A",1L);
+        kept.started("A",2L);
+        kept.ended("A",3L);
+        ESGEventTrace dropped = buffer.newTrace("dropped");
+        dropped.enqueued("A",1L);
+        dropped.abandoned("A",2L);
+
+        assertEquals(1,buffer.getRecordedCount());
+        assertEquals(1,buffer.getAbandonedCount());
+        assertEquals("kept",buffer.getTraces().get(0).getId());
+    }
+
+}